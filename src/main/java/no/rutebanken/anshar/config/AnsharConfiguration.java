@@ -15,6 +15,7 @@
 
 package no.rutebanken.anshar.config;
 
+import no.rutebanken.anshar.subscription.SiriDataType;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 
@@ -123,6 +124,54 @@ public class AnsharConfiguration {
     @Value("${anshar.siri.et.future.update.hard.limit.duration:}")
     private Duration hardLimitForFutureUpdates;
 
+    @Value("${anshar.incoming.binary.handoff.enabled:false}")
+    private boolean incomingBinaryHandoffEnabled;
+
+    @Value("${anshar.incoming.streaming.threshold.bytes:0}")
+    private int incomingStreamingThresholdBytes;
+
+    @Value("${anshar.incoming.streaming.chunk.size:500}")
+    private int incomingStreamingChunkSize;
+
+    @Value("${anshar.inbound.queue.enabled:false}")
+    private boolean inboundQueueEnabled;
+
+    @Value("${anshar.inbound.queue.workers:20}")
+    private int inboundQueueWorkers;
+
+    @Value("${anshar.inbound.queue.max.backlog:1000}")
+    private int inboundQueueMaxBacklog;
+
+    @Value("${anshar.inbound.queue.max.backlog.per.subscription:100}")
+    private int inboundQueueMaxBacklogPerSubscription;
+
+    @Value("${anshar.inbound.queue.retry.after.seconds:10}")
+    private int inboundQueueRetryAfterSeconds;
+
+    @Value("${anshar.polling.conditional.enabled:true}")
+    private boolean conditionalPollingEnabled;
+
+    @Value("${anshar.siri.et.delta.storage.enabled:true}")
+    private boolean etDeltaStorageEnabled;
+
+    @Value("${anshar.siri.et.delta.storage.max.new.calls.ratio:0.5}")
+    private double etDeltaStorageMaxNewCallsRatio;
+
+    @Value("${anshar.write.behind.window.millis:0}")
+    private long writeBehindWindowMillis;
+
+    @Value("${anshar.write.behind.max.pending:10000}")
+    private int writeBehindMaxPending;
+
+    @Value("${anshar.cache.local.max.size.mb.et:512}")
+    private long etLocalCacheMaxSizeMb;
+
+    @Value("${anshar.cache.local.max.size.mb.sx:64}")
+    private long sxLocalCacheMaxSizeMb;
+
+    @Value("${anshar.cache.local.max.size.mb.vm:128}")
+    private long vmLocalCacheMaxSizeMb;
+
     public String getHazelcastManagementUrl() {
         return hazelcastManagementUrl;
     }
@@ -265,4 +314,72 @@ public class AnsharConfiguration {
     public Duration hardLimitForFutureEtUpdates() {
         return hardLimitForFutureUpdates;
     }
+
+    public boolean isIncomingBinaryHandoffEnabled() {
+        return incomingBinaryHandoffEnabled;
+    }
+
+    public int getIncomingStreamingThresholdBytes() {
+        return incomingStreamingThresholdBytes;
+    }
+
+    public int getIncomingStreamingChunkSize() {
+        return incomingStreamingChunkSize;
+    }
+
+    public boolean isInboundQueueEnabled() {
+        return inboundQueueEnabled;
+    }
+
+    public int getInboundQueueWorkers() {
+        return inboundQueueWorkers;
+    }
+
+    public int getInboundQueueMaxBacklog() {
+        return inboundQueueMaxBacklog;
+    }
+
+    public int getInboundQueueMaxBacklogPerSubscription() {
+        return inboundQueueMaxBacklogPerSubscription;
+    }
+
+    public int getInboundQueueRetryAfterSeconds() {
+        return inboundQueueRetryAfterSeconds;
+    }
+
+    public boolean isConditionalPollingEnabled() {
+        return conditionalPollingEnabled;
+    }
+
+    public boolean isEtDeltaStorageEnabled() {
+        return etDeltaStorageEnabled;
+    }
+
+    public double getEtDeltaStorageMaxNewCallsRatio() {
+        return etDeltaStorageMaxNewCallsRatio;
+    }
+
+    /**
+     * @return max time updates are coalesced before they are stored - 0 if updates are stored directly
+     */
+    public long getWriteBehindWindowMillis() {
+        return writeBehindWindowMillis;
+    }
+
+    public int getWriteBehindMaxPending() {
+        return writeBehindMaxPending;
+    }
+
+    public long getLocalCacheMaxSizeMb(SiriDataType dataType) {
+        switch (dataType) {
+            case ESTIMATED_TIMETABLE:
+                return etLocalCacheMaxSizeMb;
+            case SITUATION_EXCHANGE:
+                return sxLocalCacheMaxSizeMb;
+            case VEHICLE_MONITORING:
+                return vmLocalCacheMaxSizeMb;
+            default:
+                throw new IllegalArgumentException("No local cache for " + dataType);
+        }
+    }
 }
@@ -0,0 +1,196 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.IMap;
+import com.hazelcast.ringbuffer.ReadResultSet;
+import com.hazelcast.ringbuffer.Ringbuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only, sequence-numbered log of changed keys for one data type.
+ *
+ * Every commit of the local change-buffer is added as a single entry, and each requestor only keeps the sequence it
+ * has read up to. Pending changes for a requestor are resolved by reading the journal from that sequence, compacted by key.
+ *
+ * If the journal has been overwritten or expired past a requestor's position, the requestor is treated as new,
+ * and will receive the full dataset.
+ */
+class ChangeJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChangeJournal.class);
+
+    /**
+     * Max number of items Hazelcast allows in a single ringbuffer-read
+     */
+    private static final int MAX_READ_BATCH_SIZE = 1000;
+
+    private final Ringbuffer<HashSet<SiriObjectStorageKey>> journal;
+    private final IMap<String, ChangeTrackerPosition> positions;
+
+    ChangeJournal(Ringbuffer<HashSet<SiriObjectStorageKey>> journal, IMap<String, ChangeTrackerPosition> positions) {
+        this.journal = journal;
+        this.positions = positions;
+    }
+
+    /**
+     * Appends a set of changed keys to the journal
+     * @param changes
+     * @return sequence of the added entry
+     */
+    long append(Set<SiriObjectStorageKey> changes) {
+        return journal.add(new HashSet<>(changes));
+    }
+
+    /**
+     * Resolves all changes not yet read by the requestor
+     *
+     * @param requestorId
+     * @return pending changes - not tracked if requestor is unknown, or position is no longer available
+     */
+    PendingChanges read(String requestorId) {
+        return read(requestorId, requestorId != null ? positions.get(requestorId) : null);
+    }
+
+    /**
+     * Resolves all changes not yet read from the provided position
+     *
+     * @param requestorId
+     * @param position read-position, e.g. not yet stored in the cluster
+     * @return pending changes - not tracked if position is null, or no longer available
+     */
+    PendingChanges read(String requestorId, ChangeTrackerPosition position) {
+        final long nextSequence = journal.tailSequence() + 1;
+
+        if (position == null) {
+            return PendingChanges.untracked(nextSequence);
+        }
+
+        long sequence = position.getSequence();
+        if (sequence < journal.headSequence() || sequence > nextSequence) {
+            logger.warn("Changes for requestor {} no longer available from sequence {} - returning all", requestorId, sequence);
+            return PendingChanges.untracked(nextSequence);
+        }
+
+        Set<SiriObjectStorageKey> changes = new HashSet<>(position.getPending());
+        try {
+            while (sequence < nextSequence) {
+                int maxCount = (int) Math.min(nextSequence - sequence, MAX_READ_BATCH_SIZE);
+                ReadResultSet<HashSet<SiriObjectStorageKey>> result = journal
+                        .readManyAsync(sequence, 0, maxCount, null)
+                        .toCompletableFuture()
+                        .get();
+
+                if (result.readCount() == 0) {
+                    break;
+                }
+                for (HashSet<SiriObjectStorageKey> keys : result) {
+                    changes.addAll(keys);
+                }
+                sequence = result.getNextSequenceToReadFrom();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while reading changes for requestor {} - returning all", requestorId);
+            return PendingChanges.untracked(nextSequence);
+        } catch (ExecutionException e) {
+            // StaleSequenceException if journal was overwritten while reading
+            logger.warn("Unable to read changes for requestor {} - returning all", requestorId, e.getCause());
+            return PendingChanges.untracked(nextSequence);
+        }
+
+        return new PendingChanges(true, changes, sequence);
+    }
+
+    /**
+     * Stores read-position for the requestor
+     *
+     * @param requestorId
+     * @param position
+     * @param trackingPeriod
+     * @param timeUnit
+     * @return completed when position is stored
+     */
+    CompletionStage<Void> updatePosition(String requestorId, ChangeTrackerPosition position, int trackingPeriod, TimeUnit timeUnit) {
+        return positions.setAsync(requestorId, position, trackingPeriod, timeUnit);
+    }
+
+    /**
+     * @return number of pending changes per tracked requestor
+     */
+    Map<String, Integer> getPendingChangeCount() {
+        Map<String, Integer> count = new HashMap<>();
+        for (String requestorId : positions.keySet()) {
+            PendingChanges pendingChanges = read(requestorId);
+            if (pendingChanges.isTracked()) {
+                count.put(requestorId, pendingChanges.getKeys().size());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes all read-positions - all requestors will be treated as new
+     */
+    void clear() {
+        positions.clear();
+    }
+
+    static class PendingChanges {
+        private final boolean tracked;
+        private final Set<SiriObjectStorageKey> keys;
+        private final long nextSequence;
+
+        private PendingChanges(boolean tracked, Set<SiriObjectStorageKey> keys, long nextSequence) {
+            this.tracked = tracked;
+            this.keys = keys;
+            this.nextSequence = nextSequence;
+        }
+
+        private static PendingChanges untracked(long nextSequence) {
+            return new PendingChanges(false, new HashSet<>(), nextSequence);
+        }
+
+        /**
+         * @return false if all data should be returned
+         */
+        boolean isTracked() {
+            return tracked;
+        }
+
+        /**
+         * @return mutable set of changed keys
+         */
+        Set<SiriObjectStorageKey> getKeys() {
+            return keys;
+        }
+
+        /**
+         * @return sequence to store as read-position after these changes have been handled
+         */
+        long getNextSequence() {
+            return nextSequence;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data;
+
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * Read-position in the change journal for a single requestor.
+ *
+ * Changes that have been read from the journal, but not yet delivered (e.g. limited by maxSize) are kept as pending.
+ */
+public class ChangeTrackerPosition implements Serializable {
+
+    private final long sequence;
+    private final Set<SiriObjectStorageKey> pending;
+
+    public ChangeTrackerPosition(long sequence, Set<SiriObjectStorageKey> pending) {
+        this.sequence = sequence;
+        this.pending = pending;
+    }
+
+    /**
+     * @return next sequence to read from the journal
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Set<SiriObjectStorageKey> getPending() {
+        return pending;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.aggregation.Aggregator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts entries per codespace on the members owning the entries - only the counts are sent to the caller.
+ * Values are never read, so only keys are deserialized.
+ */
+class CodespaceCountAggregator<V> implements Aggregator<Map.Entry<SiriObjectStorageKey, V>, Map<String, Integer>> {
+
+    private final HashMap<String, Integer> counts = new HashMap<>();
+
+    @Override
+    public void accumulate(Map.Entry<SiriObjectStorageKey, V> entry) {
+        counts.merge(entry.getKey().getCodespaceId(), 1, Integer::sum);
+    }
+
+    @Override
+    public void combine(Aggregator aggregator) {
+        CodespaceCountAggregator<?> other = (CodespaceCountAggregator<?>) aggregator;
+        other.counts.forEach((codespace, count) -> counts.merge(codespace, count, Integer::sum));
+    }
+
+    @Override
+    public Map<String, Integer> aggregate() {
+        return counts;
+    }
+}
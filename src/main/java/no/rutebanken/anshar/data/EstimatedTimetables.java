@@ -16,9 +16,16 @@
 package no.rutebanken.anshar.data;
 
 import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
 import com.hazelcast.query.Predicates;
+import com.hazelcast.ringbuffer.Ringbuffer;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
+import no.rutebanken.anshar.data.util.SiriFingerprint;
 import no.rutebanken.anshar.data.util.TimingTracer;
 import no.rutebanken.anshar.metrics.SiriContent;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
@@ -38,7 +45,6 @@ import uk.org.siri.siri21.StopAssignmentStructure;
 import uk.org.siri.siri21.StopPointRefStructure;
 
 import javax.annotation.PostConstruct;
-import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
@@ -51,6 +57,9 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
@@ -67,12 +76,15 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
     private static final long ONE_WEEK_IN_MILLIS = 60 * 60 * 24 * 7 * 1000;
 
+    // Calculate checksum without "RecordedTime" - thus ignoring "fake" updates
+    private static final SiriFingerprint fingerprint = SiriFingerprint.ignoring(EstimatedVehicleJourney.class, "recordedAtTime");
+
     @Autowired
     private IMap<SiriObjectStorageKey, EstimatedVehicleJourney> timetableDeliveries;
 
     @Autowired
     @Qualifier("getEtChecksumMap")
-    private IMap<SiriObjectStorageKey,String> checksumCache;
+    private IMap<SiriObjectStorageKey,Long> checksumCache;
 
     @Autowired
     @Qualifier("getIdForPatternChangesMap")
@@ -82,13 +94,15 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
     @Qualifier("getIdStartTimeMap")
     private IMap<SiriObjectStorageKey, ZonedDateTime> idStartTimeMap;
 
+    private final StartTimeIndex startTimeIndex = new StartTimeIndex();
+
     @Autowired
     @Qualifier("getEstimatedTimetableChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> changesMap;
+    private IMap<String, ChangeTrackerPosition> changesMap;
 
     @Autowired
-    @Qualifier("getLastEtUpdateRequest")
-    private IMap<String, Instant> lastUpdateRequested;
+    @Qualifier("getEstimatedTimetableChangeJournal")
+    private Ringbuffer<HashSet<SiriObjectStorageKey>> changeJournal;
 
     @Autowired
     private AnsharConfiguration configuration;
@@ -114,14 +128,48 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
     @PostConstruct
     private void initializeUpdateCommitter() {
-        super.initBufferCommitter(hazelcastService, lastUpdateRequested, changesMap, configuration.getChangeBufferCommitFrequency());
+        super.initBufferCommitter(hazelcastService, changeJournal, changesMap, configuration.getChangeBufferCommitFrequency());
         enableCache(timetableDeliveries,
             // Only cache monitored/cancelled/extra trips
             value -> (Boolean.TRUE.equals(value.isMonitored()) |
                 Boolean.TRUE.equals(value.isCancellation()) |
-                Boolean.TRUE.equals(value.isExtraJourney()))
+                Boolean.TRUE.equals(value.isExtraJourney())),
+            configuration.getLocalCacheMaxSizeMb(SiriDataType.ESTIMATED_TIMETABLE)
         );
-        linkEntriesTtl(timetableDeliveries, changesMap, checksumCache, idStartTimeMap);
+        linkEntriesTtl(timetableDeliveries, checksumCache, idStartTimeMap);
+        enableStartTimeIndex();
+
+        if (configuration.getWriteBehindWindowMillis() > 0) {
+            enableWriteBehind(hazelcastService, timetableDeliveries, EstimatedVehicleJourney::getRecordedAtTime,
+                    configuration.getWriteBehindWindowMillis(), configuration.getWriteBehindMaxPending(),
+                    checksumCache, idStartTimeMap);
+        }
+    }
+
+    /**
+     * Keeps local startTime-index in sync with idStartTimeMap
+     */
+    private void enableStartTimeIndex() {
+        idStartTimeMap.addEntryListener((EntryAddedListener<SiriObjectStorageKey, ZonedDateTime>) entryEvent ->
+                startTimeIndex.put(entryEvent.getKey(), entryEvent.getValue()), true);
+
+        idStartTimeMap.addEntryListener((EntryUpdatedListener<SiriObjectStorageKey, ZonedDateTime>) entryEvent ->
+                startTimeIndex.put(entryEvent.getKey(), entryEvent.getValue()), true);
+
+        idStartTimeMap.addEntryListener((EntryExpiredListener<SiriObjectStorageKey, ZonedDateTime>) entryEvent ->
+                startTimeIndex.remove(entryEvent.getKey()), false);
+
+        idStartTimeMap.addEntryListener((EntryEvictedListener<SiriObjectStorageKey, ZonedDateTime>) entryEvent ->
+                startTimeIndex.remove(entryEvent.getKey()), false);
+
+        idStartTimeMap.addEntryListener((EntryRemovedListener<SiriObjectStorageKey, ZonedDateTime>) entryEvent ->
+                startTimeIndex.remove(entryEvent.getKey()), false);
+
+        long t1 = System.currentTimeMillis();
+        for (Map.Entry<SiriObjectStorageKey, ZonedDateTime> entry : idStartTimeMap.entrySet()) {
+            startTimeIndex.put(entry.getKey(), entry.getValue());
+        }
+        logger.info("StartTime-index initialized with {} elements in {} ms", startTimeIndex.size(), (System.currentTimeMillis()-t1));
     }
 
     /**
@@ -157,35 +205,15 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
 
     public Map<String, Integer> getDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        timetableDeliveries.keySet().forEach(key -> {
-                        String datasetId = key.getCodespaceId();
-
-                        Integer count = sizeMap.getOrDefault(datasetId, 0);
-                        sizeMap.put(datasetId, count+1);
-                    });
-        logger.debug("Calculating data-distribution (ET) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
+        return countByCodespace(timetableDeliveries);
     }
 
     public Map<String, Integer> getLocalDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        timetableDeliveries.localKeySet().forEach(key -> {
-                        String datasetId = key.getCodespaceId();
-
-                        Integer count = sizeMap.getOrDefault(datasetId, 0);
-                        sizeMap.put(datasetId, count+1);
-                    });
-        logger.debug("Calculating local data-distribution (ET) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
+        return countLocalByCodespace(timetableDeliveries);
     }
 
     public Integer getDatasetSize(String datasetId) {
-        return Math.toIntExact(timetableDeliveries.keySet().stream()
-                .filter(key -> datasetId.equals(key.getCodespaceId()))
-                .count());
+        return countByCodespace(timetableDeliveries, datasetId);
     }
 
     @Override
@@ -195,6 +223,7 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
         logger.warn("Removing all data ({} ids) for {}", idsToRemove.size(), datasetId);
 
+        discardPendingWrites(datasetId);
         for (SiriObjectStorageKey id : idsToRemove) {
             timetableDeliveries.delete(id);
 
@@ -210,9 +239,10 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
         checksumCache.clear();
         idStartTimeMap.clear();
         idForPatternChanges.clear();
-        changesMap.clear();
-        lastUpdateRequested.clear();
-        cache.clear();
+        startTimeIndex.clear();
+        discardPendingWrites(null);
+        clearChangeTrackers();
+        clearCache();
     }
 
     public Siri createServiceDelivery(final String lineRef) {
@@ -254,12 +284,13 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
         }
 
         // Get all relevant ids
-        Set<SiriObjectStorageKey> allIds = new HashSet<>();
-        Set<SiriObjectStorageKey> idSet = changesMap.getOrDefault(requestorId, allIds);
+        ChangeJournal.PendingChanges pendingChanges = getPendingChanges(requestorId);
+        Set<SiriObjectStorageKey> idSet = pendingChanges.getKeys();
 
-        if (idSet == allIds) {
-            idSet.addAll(timetableDeliveries
-                    .keySet(entry -> datasetId == null || ((SiriObjectStorageKey) entry.getKey()).getCodespaceId().equals(datasetId))
+        if (!pendingChanges.isTracked()) {
+            idSet.addAll(datasetId == null ?
+                    timetableDeliveries.keySet() :
+                    timetableDeliveries.keySet(createHzCodespacePredicate(datasetId))
             );
         }
 
@@ -272,11 +303,7 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
         if (previewInterval >= 0) {
             long t1 = System.currentTimeMillis();
-            startTimes.addAll(idStartTimeMap
-                        .entrySet().stream()
-                        .filter(entry -> entry.getValue().isBefore(previewExpiry))
-                        .map(Map.Entry::getKey)
-                        .collect(Collectors.toSet()));
+            startTimes.addAll(startTimeIndex.getStartingBefore(previewExpiry));
 
             logger.info("Found {} ids starting within {} ms in {} ms", startTimes.size(), previewInterval, (System.currentTimeMillis()-t1));
         }
@@ -285,7 +312,7 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
         final AtomicInteger previewIntervalExclusionCounter = new AtomicInteger();
         Predicate<SiriObjectStorageKey> previewIntervalFilter =  id -> {
 
-            if (idForPatternChanges.containsKey(id) || startTimes.contains(id)) {
+            if (startTimes.contains(id) || idForPatternChanges.containsKey(id)) {
                 // Is valid in requested previewInterval
                 previewIntervalInclusionCounter.incrementAndGet();
                 return true;
@@ -332,7 +359,7 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
             siri.getServiceDelivery().setRequestMessageRef(msgRef);
 
             //Update change-tracker
-            updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, idSet, trackingPeriodMinutes, TimeUnit.MINUTES);
+            updateChangeTrackers(requestorId, pendingChanges.getNextSequence(), idSet, trackingPeriodMinutes, TimeUnit.MINUTES);
 
             logger.info("Returning {}, {} left for requestorRef {}", sizeLimitedIds.size(), idSet.size(), requestorId);
         }
@@ -508,10 +535,10 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
     public Collection<EstimatedVehicleJourney> getAllUpdates(String requestorId, String datasetId) {
         if (requestorId != null) {
 
-            Set<SiriObjectStorageKey> idSet = changesMap.get(requestorId);
-            lastUpdateRequested.put(requestorId, Instant.now(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+            ChangeJournal.PendingChanges pendingChanges = getPendingChanges(requestorId);
 
-            if (idSet != null) {
+            if (pendingChanges.isTracked()) {
+                Set<SiriObjectStorageKey> idSet = pendingChanges.getKeys();
                 Set<SiriObjectStorageKey> datasetFilteredIdSet = new HashSet<>();
 
                 if (datasetId != null) {
@@ -522,21 +549,15 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
                 Collection<EstimatedVehicleJourney> changes = timetableDeliveries.getAll(datasetFilteredIdSet).values();
 
-                Set<SiriObjectStorageKey> existingSet = changesMap.get(requestorId);
-                if (existingSet == null) {
-                    existingSet = new HashSet<>();
-                }
-                //Remove returned ids
-                existingSet.removeAll(idSet);
-
-                updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, existingSet, configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+                //Returned ids are no longer pending
+                updateChangeTrackers(requestorId, pendingChanges.getNextSequence(), new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
 
                 logger.info("Returning {} changes to requestorRef {}", changes.size(), requestorId);
                 return changes;
             } else {
 
                 logger.info("Returning all to requestorRef {}", requestorId);
-                updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+                updateChangeTrackers(requestorId, pendingChanges.getNextSequence(), new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
             }
         }
 
@@ -644,8 +665,9 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
     public Collection<EstimatedVehicleJourney> addAll(String datasetId, List<EstimatedVehicleJourney> etList) {
         prepareMetrics();
         Map<SiriObjectStorageKey, EstimatedVehicleJourney> changes = new HashMap();
+        Map<SiriObjectStorageKey, EstimatedVehicleJourneyPatch> patches = new HashMap<>();
 
-        Map<SiriObjectStorageKey, String> checksumCacheTmp = new HashMap<>();
+        Map<SiriObjectStorageKey, Long> checksumCacheTmp = new HashMap<>();
         Map<SiriObjectStorageKey, ZonedDateTime> idStartTimeMapTmp = new HashMap<>();
         Map<SiriObjectStorageKey, Long> expirationMap = new HashMap<>();
 
@@ -658,29 +680,23 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
 
             timingTracer.mark("createKey");
 
-            String currentChecksum = null;
-
-            // Using "now" as default recordedAtTime
-            ZonedDateTime recordedAtTime = et.getRecordedAtTime() != null ? et.getRecordedAtTime(): ZonedDateTime.now();
-            try {
-                // Calculate checksum without "RecordedTime" - thus ignoring "fake" updates
-                et.setRecordedAtTime(null);
-                currentChecksum = getChecksum(et);
-                timingTracer.mark("getChecksum");
-            } catch (Exception e) {
-                //Ignore - data will be updated
-            } finally {
-                //Set original RecordedTime back
-                et.setRecordedAtTime(recordedAtTime);
+            if (et.getRecordedAtTime() == null) {
+                // Using "now" as default recordedAtTime
+                et.setRecordedAtTime(ZonedDateTime.now());
             }
 
-            String existingChecksum = checksumCache.get(key);
+            long currentChecksum = fingerprint.calculate(et);
+            timingTracer.mark("getChecksum");
+
+            // Updates not yet stored are compared with the pending update
+            WriteBehindBuffer.PendingWrite<EstimatedVehicleJourney> pendingWrite = getPendingWrite(key);
+
+            Long existingChecksum = pendingWrite != null ? (Long) pendingWrite.getLinkedValue(0) : checksumCache.get(key);
             timingTracer.mark("checksumCache.get");
             boolean updated;
-//            if (existingChecksum != null && timetableDeliveries.containsKey(key)) {
             if (existingChecksum != null) {
                 //Exists - compare values
-                updated =  !(currentChecksum.equals(existingChecksum));
+                updated = existingChecksum != currentChecksum;
                 if (updated && et.isMonitored() == null) {
                     et.setMonitored(true);
                 }
@@ -696,7 +712,7 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
             EstimatedVehicleJourney existing = null;
             if (updated) {
 
-                existing = timetableDeliveries.get(key);
+                existing = pendingWrite != null ? pendingWrite.getValue() : timetableDeliveries.get(key);
 
                 timingTracer.mark("getExisting");
 
@@ -763,6 +779,15 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
                     changes.put(key, et);
                     timingTracer.mark("changes.put");
 
+                    // Patches are applied to the stored journey - not to a pending update
+                    if (existing != null && pendingWrite == null && configuration.isEtDeltaStorageEnabled()) {
+                        EstimatedVehicleJourneyPatch patch = EstimatedVehicleJourneyPatch.create(existing, et, configuration.getEtDeltaStorageMaxNewCallsRatio());
+                        if (patch != null) {
+                            patches.put(key, patch);
+                        }
+                        timingTracer.mark("createPatch");
+                    }
+
                     checksumCacheTmp.put(key, currentChecksum);
                     timingTracer.mark("checksumCache.put");
 
@@ -789,6 +814,14 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
         markDataReceived(SiriDataType.ESTIMATED_TIMETABLE, datasetId, etList.size(), changes.size(), outdatedCounter.get(), notUpdatedCounter.get() + tooFarAheadCounter.get());
         TimingTracer timingTracer = new TimingTracer("all-et [" + changes.size() + " changes]");
 
+        if (isWriteBehindEnabled()) {
+            addAllWriteBehind(changes, patches, checksumCacheTmp, idStartTimeMapTmp, timingTracer);
+            if (timingTracer.getTotalTime() > 3000) {
+                logger.info(timingTracer.toString());
+            }
+            return changes.values();
+        }
+
         // TTL is set in EntryListener when objects are added to main map
         checksumCache.setAll(checksumCacheTmp);
         timingTracer.mark("checksumCache.setAll");
@@ -796,9 +829,22 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
         idStartTimeMap.setAll(idStartTimeMapTmp);
         timingTracer.mark("idStartTimeMap.setAll");
 
-        timetableDeliveries.setAll(changes);
+        Map<SiriObjectStorageKey, EstimatedVehicleJourney> completeUpdates = new HashMap<>(changes);
+        completeUpdates.keySet().removeAll(patches.keySet());
+
+        Set<SiriObjectStorageKey> rejectedPatches = applyPatches(patches);
+        timingTracer.mark("timetableDeliveries.applyPatches");
+
+        for (SiriObjectStorageKey key : rejectedPatches) {
+            completeUpdates.put(key, changes.get(key));
+        }
+        timetableDeliveries.setAll(completeUpdates);
         timingTracer.mark("timetableDeliveries.setAll");
 
+        if (!patches.isEmpty()) {
+            logger.info("Stored {} ET-updates as patches, {} as complete journeys ({} rejected patches).", patches.size() - rejectedPatches.size(), completeUpdates.size(), rejectedPatches.size());
+        }
+
         markIdsAsUpdated(changes.keySet());
         timingTracer.mark("markIdsAsUpdated");
         if (timingTracer.getTotalTime() > 3000) {
@@ -807,16 +853,75 @@ public class EstimatedTimetables  extends SiriRepository<EstimatedVehicleJourney
         return changes.values();
     }
 
+    /**
+     * Patches are applied directly, together with the linked values - complete journeys are stored with the next flush
+     */
+    private void addAllWriteBehind(Map<SiriObjectStorageKey, EstimatedVehicleJourney> changes,
+                                   Map<SiriObjectStorageKey, EstimatedVehicleJourneyPatch> patches,
+                                   Map<SiriObjectStorageKey, Long> checksumCacheTmp,
+                                   Map<SiriObjectStorageKey, ZonedDateTime> idStartTimeMapTmp,
+                                   TimingTracer timingTracer) {
+        Set<SiriObjectStorageKey> patched = new HashSet<>(patches.keySet());
+        patched.removeAll(applyPatches(patches));
+        timingTracer.mark("timetableDeliveries.applyPatches");
+
+        if (!patched.isEmpty()) {
+            Map<SiriObjectStorageKey, Long> patchedChecksums = new HashMap<>();
+            Map<SiriObjectStorageKey, ZonedDateTime> patchedStartTimes = new HashMap<>();
+            for (SiriObjectStorageKey key : patched) {
+                patchedChecksums.put(key, checksumCacheTmp.get(key));
+                patchedStartTimes.put(key, idStartTimeMapTmp.get(key));
+            }
+            checksumCache.setAll(patchedChecksums);
+            idStartTimeMap.setAll(patchedStartTimes);
+            markIdsAsUpdated(patched);
+            timingTracer.mark("patched.setAll");
+        }
+
+        changes.forEach((key, et) -> {
+            if (!patched.contains(key)) {
+                writeBehind(key, et, checksumCacheTmp.get(key), idStartTimeMapTmp.get(key));
+            }
+        });
+        timingTracer.mark("writeBehind");
+    }
+
+    /**
+     * Applies patches on the owning partitions
+     * @param patches
+     * @return keys where the patch could not be applied, and the complete journey must be stored
+     */
+    private Set<SiriObjectStorageKey> applyPatches(Map<SiriObjectStorageKey, EstimatedVehicleJourneyPatch> patches) {
+        Map<SiriObjectStorageKey, CompletableFuture<Boolean>> results = new HashMap<>();
+        patches.forEach((key, patch) -> results.put(key, timetableDeliveries.submitToKey(key, patch).toCompletableFuture()));
+
+        Set<SiriObjectStorageKey> rejected = new HashSet<>();
+        results.forEach((key, result) -> {
+            try {
+                if (!Boolean.TRUE.equals(result.join())) {
+                    rejected.add(key);
+                }
+            } catch (CompletionException | CancellationException e) {
+                logger.warn("Applying patch failed for key {} - storing complete journey", key, e);
+                rejected.add(key);
+            }
+        });
+        return rejected;
+    }
+
     public EstimatedVehicleJourney add(String datasetId, EstimatedVehicleJourney delivery) {
         if (delivery == null) {return null;}
 
         List<EstimatedVehicleJourney> deliveries = new ArrayList<>();
         deliveries.add(delivery);
         addAll(datasetId, deliveries);
-        return timetableDeliveries.get(createKey(datasetId, delivery));
+
+        SiriObjectStorageKey key = createKey(datasetId, delivery);
+        WriteBehindBuffer.PendingWrite<EstimatedVehicleJourney> pendingWrite = getPendingWrite(key);
+        return pendingWrite != null ? pendingWrite.getValue() : timetableDeliveries.get(key);
     }
 
-    private static SiriObjectStorageKey createKey(String datasetId, EstimatedVehicleJourney element) {
+    public static SiriObjectStorageKey createKey(String datasetId, EstimatedVehicleJourney element) {
 
         StringBuilder key = new StringBuilder();
         if (element.getFramedVehicleJourneyRef() != null) {
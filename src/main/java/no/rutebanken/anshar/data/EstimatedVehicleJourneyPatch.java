@@ -0,0 +1,199 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.EntryProcessor;
+import no.rutebanken.anshar.data.util.SiriFingerprint;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.RecordedCall;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Updates a stored EstimatedVehicleJourney on the owning partition, without sending the complete journey.
+ *
+ * The patch contains all journey-level fields, and only the calls that are not already present in the stored
+ * journey. Unchanged calls are referred to by their index in the stored journey. The patch is only applied if the
+ * stored journey still is the journey it was created from - otherwise the processor returns false, and the caller
+ * has to store the complete journey.
+ *
+ * Backups run the same processor, so only the patch is replicated to backup-partitions.
+ */
+public class EstimatedVehicleJourneyPatch implements EntryProcessor<SiriObjectStorageKey, EstimatedVehicleJourney, Boolean> {
+
+    private static final SiriFingerprint fingerprint = SiriFingerprint.create();
+
+    private static final Field[] headerFields = resolveHeaderFields();
+
+    private static final int NEW_CALL = -1;
+
+    private long baseFingerprint;
+
+    private EstimatedVehicleJourney header;
+
+    private int[] recordedCallRefs;
+    private List<RecordedCall> newRecordedCalls;
+
+    private int[] estimatedCallRefs;
+    private List<EstimatedCall> newEstimatedCalls;
+
+    private EstimatedVehicleJourneyPatch() {
+    }
+
+    /**
+     * Creates a patch that turns base into updated
+     *
+     * @param base              currently stored journey
+     * @param updated           new version of the journey
+     * @param maxNewCallsRatio  maximum share of calls that may be new before a full update is preferred
+     * @return the patch, or null if the complete journey should be stored
+     */
+    static EstimatedVehicleJourneyPatch create(EstimatedVehicleJourney base, EstimatedVehicleJourney updated, double maxNewCallsRatio) {
+        if (base == null || updated == null) {
+            return null;
+        }
+
+        EstimatedVehicleJourneyPatch patch = new EstimatedVehicleJourneyPatch();
+        patch.baseFingerprint = fingerprint.calculate(base);
+        patch.header = copyHeader(updated);
+
+        patch.newRecordedCalls = new ArrayList<>();
+        if (updated.getRecordedCalls() != null) {
+            List<RecordedCall> baseCalls = base.getRecordedCalls() != null ? base.getRecordedCalls().getRecordedCalls() : List.of();
+            patch.recordedCallRefs = resolveCallRefs(baseCalls, updated.getRecordedCalls().getRecordedCalls(), patch.newRecordedCalls);
+        }
+
+        patch.newEstimatedCalls = new ArrayList<>();
+        if (updated.getEstimatedCalls() != null) {
+            List<EstimatedCall> baseCalls = base.getEstimatedCalls() != null ? base.getEstimatedCalls().getEstimatedCalls() : List.of();
+            patch.estimatedCallRefs = resolveCallRefs(baseCalls, updated.getEstimatedCalls().getEstimatedCalls(), patch.newEstimatedCalls);
+        }
+
+        int totalCalls = (patch.recordedCallRefs != null ? patch.recordedCallRefs.length : 0) +
+                (patch.estimatedCallRefs != null ? patch.estimatedCallRefs.length : 0);
+
+        if (totalCalls > 0 && patch.getNewCallCount() > totalCalls * maxNewCallsRatio) {
+            // Patch would be almost as large as the journey itself
+            return null;
+        }
+        return patch;
+    }
+
+    @Override
+    public Boolean process(Map.Entry<SiriObjectStorageKey, EstimatedVehicleJourney> entry) {
+        EstimatedVehicleJourney base = entry.getValue();
+        if (base == null || fingerprint.calculate(base) != baseFingerprint) {
+            return false;
+        }
+        entry.setValue(apply(base));
+        return true;
+    }
+
+    /**
+     * @param base
+     * @return new journey with the patch applied - base is not modified
+     */
+    EstimatedVehicleJourney apply(EstimatedVehicleJourney base) {
+        EstimatedVehicleJourney result = copyHeader(header);
+
+        if (recordedCallRefs != null) {
+            result.setRecordedCalls(new EstimatedVehicleJourney.RecordedCalls());
+            List<RecordedCall> baseCalls = base.getRecordedCalls() != null ? base.getRecordedCalls().getRecordedCalls() : List.of();
+            applyCallRefs(baseCalls, recordedCallRefs, newRecordedCalls, result.getRecordedCalls().getRecordedCalls());
+        }
+
+        if (estimatedCallRefs != null) {
+            result.setEstimatedCalls(new EstimatedVehicleJourney.EstimatedCalls());
+            List<EstimatedCall> baseCalls = base.getEstimatedCalls() != null ? base.getEstimatedCalls().getEstimatedCalls() : List.of();
+            applyCallRefs(baseCalls, estimatedCallRefs, newEstimatedCalls, result.getEstimatedCalls().getEstimatedCalls());
+        }
+        return result;
+    }
+
+    int getNewCallCount() {
+        return newRecordedCalls.size() + newEstimatedCalls.size();
+    }
+
+    private static <C> int[] resolveCallRefs(List<C> baseCalls, List<C> updatedCalls, List<C> newCalls) {
+        Map<Long, Integer> baseIndex = new HashMap<>();
+        for (int i = 0; i < baseCalls.size(); i++) {
+            baseIndex.putIfAbsent(fingerprint.calculate(baseCalls.get(i)), i);
+        }
+
+        int[] refs = new int[updatedCalls.size()];
+        for (int i = 0; i < updatedCalls.size(); i++) {
+            C call = updatedCalls.get(i);
+            Integer index = baseIndex.get(fingerprint.calculate(call));
+            if (index != null) {
+                refs[i] = index;
+            } else {
+                refs[i] = NEW_CALL;
+                newCalls.add(call);
+            }
+        }
+        return refs;
+    }
+
+    private static <C> void applyCallRefs(List<C> baseCalls, int[] refs, List<C> newCalls, List<C> result) {
+        int nextNewCall = 0;
+        for (int ref : refs) {
+            if (ref == NEW_CALL) {
+                result.add(newCalls.get(nextNewCall++));
+            } else {
+                result.add(baseCalls.get(ref));
+            }
+        }
+    }
+
+    /**
+     * @return shallow copy of the journey, without recorded and estimated calls
+     */
+    private static EstimatedVehicleJourney copyHeader(EstimatedVehicleJourney journey) {
+        EstimatedVehicleJourney copy = new EstimatedVehicleJourney();
+        try {
+            for (Field field : headerFields) {
+                field.set(copy, field.get(journey));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to copy EstimatedVehicleJourney", e);
+        }
+        return copy;
+    }
+
+    private static Field[] resolveHeaderFields() {
+        List<Field> fields = new ArrayList<>();
+        Class<?> current = EstimatedVehicleJourney.class;
+        while (current != null && current != Object.class) {
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) ||
+                        field.getType() == EstimatedVehicleJourney.RecordedCalls.class ||
+                        field.getType() == EstimatedVehicleJourney.EstimatedCalls.class) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+            current = current.getSuperclass();
+        }
+        return fields.toArray(new Field[0]);
+    }
+}
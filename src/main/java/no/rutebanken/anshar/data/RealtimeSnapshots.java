@@ -0,0 +1,340 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.IMap;
+import com.hazelcast.nio.serialization.HazelcastSerializationException;
+import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
+import no.rutebanken.anshar.data.collections.KryoSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.VehicleActivityStructure;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps a snapshot of the realtime-data owned by this member on local disk, to allow a warm restart.
+ *
+ * Each member periodically writes the ET/SX/VM-elements it owns, together with the linked checksums and indexes,
+ * and the time each element expires. On startup, elements that have not yet expired are restored with the remaining
+ * TTL - existing elements are never replaced.
+ *
+ * Whether the cluster has been cold-started is decided once for the whole cluster: the first member of a new cluster
+ * creates a cluster epoch, and each member records the epoch its snapshot was written in. A member restores its own
+ * snapshot when the snapshot was written in an earlier epoch - i.e. the data was lost with the previous cluster. A
+ * member rejoining a running cluster skips the restore, as the cluster still holds the current data, and elements
+ * deleted since the snapshot was written must not be restored.
+ *
+ * The restore is completed during startup, before any routes are started, and the member is not ready until then.
+ */
+@Component
+public class RealtimeSnapshots {
+    private final Logger logger = LoggerFactory.getLogger(RealtimeSnapshots.class);
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final String EPOCH_MAP = "anshar.snapshot.epoch";
+    private static final String EPOCH_KEY = "epoch";
+    private static final String EPOCH_FILE = "cluster.epoch";
+
+    @Value("${anshar.snapshot.enabled:false}")
+    private boolean enabled;
+
+    @Value("${anshar.snapshot.directory:${java.io.tmpdir}/anshar-snapshot}")
+    private String directory;
+
+    @Value("${anshar.snapshot.interval.seconds:120}")
+    private int intervalSeconds;
+
+    @Value("${anshar.snapshot.segment.size.mb:64}")
+    private int segmentSizeMb;
+
+    @Autowired
+    private EstimatedTimetables estimatedTimetables;
+
+    @Autowired
+    private Situations situations;
+
+    @Autowired
+    private VehicleActivities vehicleActivities;
+
+    @Autowired
+    private IMap<SiriObjectStorageKey, EstimatedVehicleJourney> timetableDeliveries;
+
+    @Autowired
+    @Qualifier("getEtChecksumMap")
+    private IMap<SiriObjectStorageKey, Long> etChecksumCache;
+
+    @Autowired
+    @Qualifier("getIdStartTimeMap")
+    private IMap<SiriObjectStorageKey, ZonedDateTime> idStartTimeMap;
+
+    @Autowired
+    @Qualifier("getIdForPatternChangesMap")
+    private IMap<SiriObjectStorageKey, String> idForPatternChanges;
+
+    @Autowired
+    private IMap<SiriObjectStorageKey, PtSituationElement> situationElements;
+
+    @Autowired
+    @Qualifier("getSxChecksumMap")
+    private IMap<SiriObjectStorageKey, Long> sxChecksumCache;
+
+    @Autowired
+    private IMap<SiriObjectStorageKey, VehicleActivityStructure> monitoredVehicles;
+
+    @Autowired
+    @Qualifier("getVmChecksumMap")
+    private IMap<SiriObjectStorageKey, Long> vmChecksumCache;
+
+    @Autowired
+    private ExtendedHazelcastService hazelcastService;
+
+    private final KryoSerializer codec = KryoSerializer.create("lz4", KryoSerializer.CURRENT_FORMAT);
+
+    private List<SnapshotTarget<?>> targets;
+
+    private volatile boolean restoreCompleted;
+
+    @PostConstruct
+    private void initialize() {
+        targets = List.of(
+                new SnapshotTarget<>("et", timetableDeliveries, estimatedTimetables::getExpiration,
+                        List.of(etChecksumCache, idStartTimeMap, idForPatternChanges)),
+                new SnapshotTarget<>("sx", situationElements, situations::getExpiration,
+                        List.of(sxChecksumCache)),
+                new SnapshotTarget<>("vm", monitoredVehicles, vehicleActivities::getExpiration,
+                        List.of(vmChecksumCache))
+        );
+
+        if (!enabled) {
+            restoreCompleted = true;
+            return;
+        }
+
+        logger.info("Snapshots in {}, new snapshot every {} seconds", directory, intervalSeconds);
+        restoreOnStartup();
+
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        executor.scheduleWithFixedDelay(this::writeSnapshots, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+
+        hazelcastService.addBeforeShuttingDownHook(() -> {
+            executor.shutdown();
+            logger.info("Shutdown triggered - writing snapshots");
+            writeSnapshots();
+        });
+    }
+
+    /**
+     * Restores the snapshot of this member if the cluster has been cold-started since the snapshot was written
+     * @return true if the snapshot was restored
+     */
+    synchronized boolean restoreOnStartup() {
+        try {
+            String newEpoch = UUID.randomUUID().toString();
+            String clusterEpoch = hazelcastService.getHazelcastInstance().<String, String>getMap(EPOCH_MAP).putIfAbsent(EPOCH_KEY, newEpoch);
+            boolean coldStart = clusterEpoch == null;
+            if (coldStart) {
+                clusterEpoch = newEpoch;
+            }
+
+            String snapshotEpoch = readEpoch();
+            // Snapshots without an epoch are only restored by the member that started the cluster
+            boolean restore = snapshotEpoch != null ? !snapshotEpoch.equals(clusterEpoch) : coldStart;
+
+            if (restore) {
+                logger.info("Snapshot written before the cluster was started - restoring snapshots");
+                restoreSnapshots();
+            } else {
+                logger.info("Snapshot written in the running cluster - skipping restore of snapshots");
+            }
+            writeEpoch(clusterEpoch);
+            return restore;
+        } finally {
+            restoreCompleted = true;
+        }
+    }
+
+    /**
+     * @return true when snapshots have been restored, or the restore has been skipped
+     */
+    public boolean isRestoreCompleted() {
+        return restoreCompleted;
+    }
+
+    private String readEpoch() {
+        Path file = Path.of(directory, EPOCH_FILE);
+        try {
+            return Files.exists(file) ? Files.readString(file).trim() : null;
+        } catch (IOException e) {
+            logger.warn("Reading snapshot epoch failed", e);
+            return null;
+        }
+    }
+
+    private void writeEpoch(String epoch) {
+        try {
+            Files.createDirectories(Path.of(directory));
+            Files.writeString(Path.of(directory, EPOCH_FILE), epoch);
+        } catch (IOException e) {
+            logger.warn("Writing snapshot epoch failed", e);
+        }
+    }
+
+    synchronized void writeSnapshots() {
+        for (SnapshotTarget<?> target : targets) {
+            try {
+                writeSnapshot(target);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Writing snapshot of {} failed", target.name, e);
+            }
+        }
+    }
+
+    synchronized void restoreSnapshots() {
+        for (SnapshotTarget<?> target : targets) {
+            try {
+                restoreSnapshot(target);
+            } catch (IOException | HazelcastSerializationException e) {
+                logger.warn("Restoring snapshot of {} failed - ignoring snapshot", target.name, e);
+            }
+        }
+    }
+
+    private <T> void writeSnapshot(SnapshotTarget<T> target) throws IOException {
+        long t1 = System.currentTimeMillis();
+
+        // Only elements owned by this member
+        List<SiriObjectStorageKey> keys = new ArrayList<>(target.map.localKeySet());
+
+        try (SnapshotFile.Writer writer = SnapshotFile.create(Path.of(directory), target.name, segmentSizeMb * 1024 * 1024)) {
+            for (int i = 0; i < keys.size(); i += BATCH_SIZE) {
+                Set<SiriObjectStorageKey> batch = new HashSet<>(keys.subList(i, Math.min(i + BATCH_SIZE, keys.size())));
+
+                Map<SiriObjectStorageKey, T> values = target.map.getAll(batch);
+                List<Map<SiriObjectStorageKey, ?>> linkedValues = new ArrayList<>();
+                for (IMap<SiriObjectStorageKey, ?> linkedMap : target.linkedMaps) {
+                    linkedValues.add(linkedMap.getAll(batch));
+                }
+
+                long now = System.currentTimeMillis();
+                for (Map.Entry<SiriObjectStorageKey, T> entry : values.entrySet()) {
+                    long expiration = target.expiration.applyAsLong(entry.getValue());
+                    if (expiration <= 0) {
+                        continue;
+                    }
+
+                    byte[][] serialized = new byte[1 + linkedValues.size()][];
+                    serialized[0] = codec.write(entry.getValue());
+                    for (int j = 0; j < linkedValues.size(); j++) {
+                        Object linkedValue = linkedValues.get(j).get(entry.getKey());
+                        serialized[j + 1] = linkedValue != null ? codec.write(linkedValue) : null;
+                    }
+                    writer.append(now + expiration, codec.write(entry.getKey()), serialized);
+                }
+            }
+            writer.commit();
+            logger.info("Wrote snapshot of {} {}-elements in {} ms", writer.getRecordCount(), target.name, (System.currentTimeMillis() - t1));
+        }
+    }
+
+    private <T> void restoreSnapshot(SnapshotTarget<T> target) throws IOException {
+        long t1 = System.currentTimeMillis();
+
+        AtomicInteger restored = new AtomicInteger();
+        AtomicInteger expired = new AtomicInteger();
+        List<CompletableFuture<Boolean>> pending = new ArrayList<>();
+
+        int count = SnapshotFile.read(Path.of(directory), target.name, (expiresAt, keyBytes, values) -> {
+            if (expiresAt <= System.currentTimeMillis()) {
+                expired.incrementAndGet();
+                return;
+            }
+            SiriObjectStorageKey key = (SiriObjectStorageKey) codec.read(keyBytes);
+
+            for (int i = 0; i < target.linkedMaps.size() && i + 1 < values.length; i++) {
+                if (values[i + 1] != null) {
+                    pending.add(restore(target.linkedMaps.get(i), key, codec.read(values[i + 1]), expiresAt));
+                }
+            }
+            pending.add(restore(target.map, key, codec.read(values[0]), expiresAt)
+                    .thenApply(updated -> {
+                        if (updated) {
+                            restored.incrementAndGet();
+                        }
+                        return updated;
+                    }));
+
+            if (pending.size() >= BATCH_SIZE) {
+                awaitAll(pending);
+            }
+        });
+        awaitAll(pending);
+
+        logger.info("Restored {} of {} {}-elements from snapshot in {} ms, {} expired", restored.get(), count, target.name, (System.currentTimeMillis() - t1), expired.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> CompletableFuture<Boolean> restore(IMap<SiriObjectStorageKey, V> map, SiriObjectStorageKey key, Object value, long expiresAt) {
+        return map.submitToKey(key, new SnapshotRestoreProcessor<>((V) value, expiresAt)).toCompletableFuture();
+    }
+
+    private void awaitAll(List<CompletableFuture<Boolean>> pending) {
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            logger.warn("Restoring elements from snapshot failed", e);
+        }
+        pending.clear();
+    }
+
+    static class SnapshotTarget<T> {
+        private final String name;
+        private final IMap<SiriObjectStorageKey, T> map;
+        private final ToLongFunction<T> expiration;
+        private final List<IMap<SiriObjectStorageKey, ?>> linkedMaps;
+
+        SnapshotTarget(String name, IMap<SiriObjectStorageKey, T> map, ToLongFunction<T> expiration, List<IMap<SiriObjectStorageKey, ?>> linkedMaps) {
+            this.name = name;
+            this.map = map;
+            this.expiration = expiration;
+            this.linkedMaps = linkedMaps;
+        }
+    }
+}
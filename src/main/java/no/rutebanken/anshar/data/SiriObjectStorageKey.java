@@ -3,10 +3,17 @@ package no.rutebanken.anshar.data;
 import com.google.common.base.Objects;
 
 import java.io.Serializable;
+import java.util.Locale;
 import java.util.StringJoiner;
 
 public class SiriObjectStorageKey implements Serializable {
 
+    /**
+     * Hazelcast-attributes used for indexing stored keys
+     */
+    public static final String CODESPACE_ID_ATTRIBUTE = "__key.codespaceId";
+    public static final String LINE_REF_ATTRIBUTE = "__key.lineRefIgnoreCase";
+
     private final String codespaceId;
     private final String lineRef;
 
@@ -18,14 +25,26 @@ public class SiriObjectStorageKey implements Serializable {
         this.key = key;
     }
 
-    String getCodespaceId() {
+    public String getCodespaceId() {
         return codespaceId;
     }
 
-    String getLineRef() {
+    public String getLineRef() {
         return lineRef;
     }
 
+    /**
+     * LineRef is matched case-insensitive - exposed in lower case to allow indexed lookups
+     * @return
+     */
+    public String getLineRefIgnoreCase() {
+        return normalizeLineRef(lineRef);
+    }
+
+    static String normalizeLineRef(String lineRef) {
+        return lineRef != null ? lineRef.toLowerCase(Locale.ROOT) : null;
+    }
+
     String getKey() {
         return key;
     }
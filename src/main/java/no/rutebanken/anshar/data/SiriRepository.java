@@ -15,7 +15,11 @@
 
 package no.rutebanken.anshar.data;
 
-import com.google.common.collect.Maps;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.hazelcast.aggregation.Aggregators;
 import com.hazelcast.core.EntryEvent;
 import com.hazelcast.map.IMap;
 import com.hazelcast.map.listener.EntryAddedListener;
@@ -24,40 +28,52 @@ import com.hazelcast.map.listener.EntryExpiredListener;
 import com.hazelcast.map.listener.EntryRemovedListener;
 import com.hazelcast.map.listener.EntryUpdatedListener;
 import com.hazelcast.query.Predicate;
-import jakarta.xml.bind.DatatypeConverter;
+import com.hazelcast.query.Predicates;
+import com.hazelcast.ringbuffer.Ringbuffer;
 import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
+import no.rutebanken.anshar.data.util.SiriSizeEstimator;
 import no.rutebanken.anshar.metrics.PrometheusMetricsService;
 import no.rutebanken.anshar.routes.siri.transformer.ApplicationContextHolder;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.util.SerializationUtils;
 
-import java.io.Serializable;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.time.Instant;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 abstract class SiriRepository<T> {
 
-    private IMap<String, Instant> lastUpdateRequested;
-    private IMap<String, Set<SiriObjectStorageKey>> changesMap;
+    private ChangeJournal changeJournal;
+
+    /**
+     * Max number of requestors with pending change-tracker updates before updates are flushed by the caller
+     */
+    private static final int MAX_PENDING_TRACKER_UPDATES = 10000;
+
+    private static final long TRACKER_FLUSH_INTERVAL_MILLIS = 250;
+
+    /**
+     * Change-tracker updates not yet stored in the cluster - only the latest update per requestor is kept
+     */
+    private final Map<String, ChangeTrackerUpdate> pendingTrackerUpdates = new ConcurrentHashMap<>();
 
     private final SiriDataType SIRI_DATA_TYPE;
 
@@ -85,69 +101,183 @@ abstract class SiriRepository<T> {
 
     private ScheduledExecutorService singleThreadScheduledExecutor;
 
+    private ScheduledExecutorService changeTrackerExecutor;
+
+    /**
+     * Updates not yet stored in the cluster - null if updates are stored directly
+     */
+    private WriteBehindBuffer<T> writeBehindBuffer;
+
+    private int maxPendingWrites;
+
     @Autowired
     protected RequestorRefRepository requestorRefRepository;
 
-    Map<SiriObjectStorageKey, T> cache = Maps.newConcurrentMap();
+    /**
+     * Local, size-bounded copy of the most recently used cacheable objects
+     */
+    private Cache<SiriObjectStorageKey, CachedValue<T>> cache = CacheBuilder.newBuilder().build();
+
+    private final AtomicLong cacheWeight = new AtomicLong();
+
+    /**
+     * Keys of all objects that are eligible for the local cache - values evicted from the cache are read from the map
+     */
+    private final Set<SiriObjectStorageKey> cacheableKeys = ConcurrentHashMap.newKeySet();
+
+    private IMap<SiriObjectStorageKey, T> cachedMap;
+
+    private java.util.function.Predicate<T> includeInCachePredicate;
 
     protected SiriRepository (SiriDataType siriDataType) {
         this.SIRI_DATA_TYPE = siriDataType;
     }
 
-    protected void enableCache(IMap<SiriObjectStorageKey, T> map) {
-        enableCache(map, null);
+    protected void enableCache(IMap<SiriObjectStorageKey, T> map, long maxSizeMb) {
+        enableCache(map, null, maxSizeMb);
     }
 
-    protected void enableCache(IMap<SiriObjectStorageKey, T> map, java.util.function.Predicate<T> includeInCachePredicate) {
+    /**
+     * Keeps a local cache of objects in the provided map, limited by the estimated heap-size of the cached objects.
+     * Least recently used objects are evicted when the limit is reached.
+     *
+     * @param map
+     * @param includeInCachePredicate only objects matching the predicate are cached - all objects if null
+     * @param maxSizeMb
+     */
+    protected void enableCache(IMap<SiriObjectStorageKey, T> map, java.util.function.Predicate<T> includeInCachePredicate, long maxSizeMb) {
+        this.cachedMap = map;
+        this.includeInCachePredicate = includeInCachePredicate;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeMb * 1024 * 1024)
+                .weigher((SiriObjectStorageKey key, CachedValue<T> value) -> value.weight)
+                .removalListener((RemovalListener<SiriObjectStorageKey, CachedValue<T>>) notification -> {
+                    cacheWeight.addAndGet(-notification.getValue().weight);
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        prepareMetrics();
+                        metrics.registerLocalCacheEviction(SIRI_DATA_TYPE);
+                    }
+                })
+                .build();
 
         // Entry added - new data
         map.addEntryListener((EntryAddedListener<SiriObjectStorageKey, T>) entryEvent -> {
-
-            if (includeInCachePredicate == null || includeInCachePredicate.test(entryEvent.getValue())) {
-                cache.put(entryEvent.getKey(), entryEvent.getValue());
-            }
+            putInCache(entryEvent.getKey(), entryEvent.getValue());
         }, true);
 
         // Entry updated - new version
         map.addEntryListener((EntryUpdatedListener<SiriObjectStorageKey, T>) entryEvent -> {
-
-            if (includeInCachePredicate == null || includeInCachePredicate.test(entryEvent.getValue())) {
-                cache.put(entryEvent.getKey(), entryEvent.getValue());
-            }
+            putInCache(entryEvent.getKey(), entryEvent.getValue());
         }, true);
 
         //Entry expired by TTL
         map.addEntryListener((EntryExpiredListener<SiriObjectStorageKey, T>) entryEvent -> {
-
-            cache.remove(entryEvent.getKey());
+            removeFromCache(entryEvent.getKey());
         }, false);
 
         // Entry evicted
         map.addEntryListener((EntryEvictedListener<SiriObjectStorageKey, T>) entryEvent -> {
-
-            cache.remove(entryEvent.getKey());
+            removeFromCache(entryEvent.getKey());
         }, false);
 
         // Entry removed - e.g. "delete all for codespace"
         map.addEntryListener((EntryRemovedListener<SiriObjectStorageKey, T>) entryEvent -> {
-
-            cache.remove(entryEvent.getKey());
+            removeFromCache(entryEvent.getKey());
         }, false);
 
         // Initialize cache
         long t1 = System.currentTimeMillis();
 
         final Map<SiriObjectStorageKey, T> allAsMap = getAllAsMap();
-        if (includeInCachePredicate != null) {
-            for (Map.Entry<SiriObjectStorageKey, T> entry : allAsMap.entrySet()) {
-                if (includeInCachePredicate.test(entry.getValue())) {
-                    cache.put(entry.getKey(), entry.getValue());
+        for (Map.Entry<SiriObjectStorageKey, T> entry : allAsMap.entrySet()) {
+            putInCache(entry.getKey(), entry.getValue());
+        }
+        logger.info("Cache initialized with {} of {} elements ({} MB max) in {} ms", cache.size(), cacheableKeys.size(), maxSizeMb, (System.currentTimeMillis()-t1));
+    }
+
+    private void putInCache(SiriObjectStorageKey key, T value) {
+        if (value != null && (includeInCachePredicate == null || includeInCachePredicate.test(value))) {
+            cacheableKeys.add(key);
+            cacheValue(key, value);
+        }
+    }
+
+    private void cacheValue(SiriObjectStorageKey key, T value) {
+        CachedValue<T> cachedValue = new CachedValue<>(value);
+        cacheWeight.addAndGet(cachedValue.weight);
+        cache.put(key, cachedValue);
+    }
+
+    private void removeFromCache(SiriObjectStorageKey key) {
+        cacheableKeys.remove(key);
+        cache.invalidate(key);
+    }
+
+    /**
+     * Returns cached objects for the provided keys - objects evicted from the local cache are read from the map.
+     * Keys that are not eligible for the cache are ignored.
+     */
+    private List<T> getCachedValues(Collection<SiriObjectStorageKey> keys) {
+        return new ArrayList<>(getCachedAsMap(keys).values());
+    }
+
+    /**
+     * Returns cached objects for the provided keys - objects evicted from the local cache are read from the map in a
+     * single request. Keys that are not eligible for the cache are ignored.
+     */
+    Map<SiriObjectStorageKey, T> getCachedAsMap(Collection<SiriObjectStorageKey> keys) {
+        Map<SiriObjectStorageKey, T> values = new HashMap<>();
+        Set<SiriObjectStorageKey> missing = new HashSet<>();
+        int hits = 0;
+        for (SiriObjectStorageKey key : keys) {
+            final CachedValue<T> element = cache.getIfPresent(key);
+            if (element != null) {
+                values.put(key, element.value);
+                hits++;
+            } else if (cacheableKeys.contains(key)) {
+                missing.add(key);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            for (Map.Entry<SiriObjectStorageKey, T> entry : cachedMap.getAll(missing).entrySet()) {
+                T value = entry.getValue();
+                if (value != null && (includeInCachePredicate == null || includeInCachePredicate.test(value))) {
+                    cacheValue(entry.getKey(), value);
+                    values.put(entry.getKey(), value);
                 }
             }
-        } else {
-            cache.putAll(allAsMap);
         }
-        logger.info("Cache initialized with {} elements in {} ms", cache.size(), (System.currentTimeMillis()-t1));
+
+        prepareMetrics();
+        metrics.registerLocalCacheRequests(SIRI_DATA_TYPE, hits, missing.size());
+        return values;
+    }
+
+    void clearCache() {
+        cacheableKeys.clear();
+        cache.invalidateAll();
+    }
+
+    /**
+     * Evicts all objects from the local cache - evicted objects are read from the map when requested
+     */
+    void evictLocalCache() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return number of objects in local cache
+     */
+    public long getLocalCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * @return estimated heap-size in bytes of objects in local cache
+     */
+    public long getLocalCacheWeight() {
+        return cacheWeight.get();
     }
 
     /**
@@ -159,7 +289,7 @@ abstract class SiriRepository<T> {
      * @param map
      * @param linkedMaps
      */
-    void linkEntriesTtl(IMap<SiriObjectStorageKey, T> map,  IMap<String, Set<SiriObjectStorageKey>> linkedChangeMap, Map<SiriObjectStorageKey, ? extends Object>... linkedMaps) {
+    void linkEntriesTtl(IMap<SiriObjectStorageKey, T> map, Map<SiriObjectStorageKey, ? extends Object>... linkedMaps) {
         {
 
             // Entry added - new data
@@ -174,28 +304,25 @@ abstract class SiriRepository<T> {
 
             //Entry expired by TTL
             map.addEntryListener((EntryExpiredListener<SiriObjectStorageKey, T>) entryEvent -> {
-                removeFromLinked(linkedChangeMap, entryEvent, linkedMaps);
+                removeFromLinked(entryEvent, linkedMaps);
             }, false);
 
             // Entry evicted
             map.addEntryListener((EntryEvictedListener<SiriObjectStorageKey, T>) entryEvent -> {
-                removeFromLinked(linkedChangeMap, entryEvent, linkedMaps);
+                removeFromLinked(entryEvent, linkedMaps);
             }, false);
 
             // Entry removed - e.g. "delete all for codespace"
             map.addEntryListener((EntryRemovedListener<SiriObjectStorageKey, T>) entryEvent -> {
-                removeFromLinked(linkedChangeMap, entryEvent, linkedMaps);
+                removeFromLinked(entryEvent, linkedMaps);
             }, false);
         }
     }
 
-    private void removeFromLinked(IMap<String, Set<SiriObjectStorageKey>> linkedChangeMap, EntryEvent<SiriObjectStorageKey, T> entryEvent, Map<SiriObjectStorageKey, ?>[] linkedMaps) {
+    private void removeFromLinked(EntryEvent<SiriObjectStorageKey, T> entryEvent, Map<SiriObjectStorageKey, ?>[] linkedMaps) {
         for (Map<SiriObjectStorageKey, ?> linkedMap : linkedMaps) {
             linkedMap.remove(entryEvent.getKey());
         }
-        for (Set<SiriObjectStorageKey> changes : linkedChangeMap.values()) {
-            changes.remove(entryEvent.getKey());
-        }
     }
 
     public Collection<T> getAllCachedUpdates(
@@ -209,8 +336,10 @@ abstract class SiriRepository<T> {
         if (maxSize == null) {
             maxSize = Integer.MAX_VALUE;
         }
+        final String decodedLineRef = lineRef != null ? decodeLineRef(lineRef) : null;
 
         if (requestorId != null) {
+            long nextSequence = -1;
             try {
                 requestorRefRepository.touchRequestorRef(requestorId,
                     datasetId,
@@ -218,49 +347,43 @@ abstract class SiriRepository<T> {
                     SIRI_DATA_TYPE
                 );
 
-                if (changesMap.containsKey(requestorId)) {
-                    Set<SiriObjectStorageKey> changes = changesMap.get(requestorId);
+                ChangeJournal.PendingChanges pendingChanges = getPendingChanges(requestorId);
+                nextSequence = pendingChanges.getNextSequence();
 
-                    changes = changes.stream()
+                if (pendingChanges.isTracked()) {
+                    Set<SiriObjectStorageKey> changes = pendingChanges.getKeys().stream()
                         .filter((k) -> datasetId == null || codespaceMatches(datasetId, k))
-                        .filter((k) -> lineRef == null || lineRefMatches(lineRef, k))
+                        .filter((k) -> decodedLineRef == null || lineRefMatches(decodedLineRef, k))
                         .limit(maxSize)
                         .collect(Collectors.toSet());
 
-                    List<T> updates = new ArrayList<>();
-                    for (SiriObjectStorageKey key : changes) {
-                        final T element = cache.get(key);
-                        if (element != null) {
-                            updates.add(element);
-                        }
-                    }
-                    return updates;
+                    return getCachedValues(changes);
                 }
             } finally {
-                updateChangeTrackers(lastUpdateRequested,
-                    changesMap,
-                    requestorId,
-                    new HashSet<>(),
-                    2,
-                    TimeUnit.MINUTES
-                );
+                if (nextSequence >= 0) {
+                    updateChangeTrackers(requestorId,
+                        nextSequence,
+                        new HashSet<>(),
+                        2,
+                        TimeUnit.MINUTES
+                    );
+                }
             }
         }
 
-        return cache
-            .entrySet()
+        List<SiriObjectStorageKey> keys = cacheableKeys
             .stream()
-            .filter((entry) -> entry.getValue() != null)
-            .filter((entry) -> datasetId == null || codespaceMatches(datasetId, entry.getKey()))
-            .filter((entry) -> lineRef == null || lineRefMatches(lineRef, entry.getKey()))
+            .filter((key) -> datasetId == null || codespaceMatches(datasetId, key))
+            .filter((key) -> decodedLineRef == null || lineRefMatches(decodedLineRef, key))
             .limit(maxSize)
-            .map(Map.Entry::getValue)
             .collect(Collectors.toList());
+
+        return getCachedValues(keys);
     }
 
-    void initBufferCommitter(ExtendedHazelcastService hazelcastService, IMap<String, Instant> lastUpdateRequested, IMap<String, Set<SiriObjectStorageKey>> changesMap, int commitFrequency) {
-        this.lastUpdateRequested = lastUpdateRequested;
-        this.changesMap = changesMap;
+    void initBufferCommitter(ExtendedHazelcastService hazelcastService, Ringbuffer<HashSet<SiriObjectStorageKey>> changeJournal,
+                             IMap<String, ChangeTrackerPosition> changesMap, int commitFrequency) {
+        this.changeJournal = new ChangeJournal(changeJournal, changesMap);
 
         if (singleThreadScheduledExecutor == null) {
             singleThreadScheduledExecutor = Executors.newSingleThreadScheduledExecutor();
@@ -270,11 +393,21 @@ abstract class SiriRepository<T> {
             singleThreadScheduledExecutor.scheduleWithFixedDelay(this::commitChanges, 0, commitFrequency, TimeUnit.SECONDS);
         }
 
+        if (changeTrackerExecutor == null) {
+            changeTrackerExecutor = Executors.newSingleThreadScheduledExecutor();
+
+            changeTrackerExecutor.scheduleWithFixedDelay(this::flushChangeTrackers, TRACKER_FLUSH_INTERVAL_MILLIS, TRACKER_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
         hazelcastService.addBeforeShuttingDownHook(() -> {
             while (!dirtyChanges.isEmpty()) {
                 logger.info("Shutdown triggered - committing {} changes", dirtyChanges.size());
                 commitChanges();
             }
+            if (!pendingTrackerUpdates.isEmpty()) {
+                logger.info("Shutdown triggered - flushing {} change-tracker updates", pendingTrackerUpdates.size());
+                flushChangeTrackers();
+            }
             logger.info("ShutDownHook finished");
         });
     }
@@ -292,17 +425,9 @@ abstract class SiriRepository<T> {
                 final Set<SiriObjectStorageKey> bufferedChanges = new HashSet<>(dirtyChanges);
                 dirtyChanges.clear();
 
-                changesMap.keySet().forEach(key -> {
-                    if (!lastUpdateRequested.containsKey(key)) {
-                        changesMap.delete(key);
-                    }
-                });
-
-                if (!changesMap.isEmpty()) {
-                    changesMap.executeOnEntries(new AppendChangesToSetEntryProcessor(bufferedChanges));
-                    logger.info("Updating changes for {} requestors ({}), committed {} changes, update took {} ms",
-                            changesMap.size(), this.getClass().getSimpleName(), bufferedChanges.size(), (System.currentTimeMillis() - t1));
-                }
+                final long sequence = changeJournal.append(bufferedChanges);
+                logger.info("Appended {} changes to journal as sequence {} ({}), update took {} ms",
+                        bufferedChanges.size(), sequence, this.getClass().getSimpleName(), (System.currentTimeMillis() - t1));
             } else {
                 logger.debug("No changes - ignoring commit ({})", this.getClass().getSimpleName());
             }
@@ -335,29 +460,215 @@ abstract class SiriRepository<T> {
         }
     }
 
-    void updateChangeTrackers(IMap<String, Instant> lastUpdateRequested, IMap<String, Set<SiriObjectStorageKey>> changesMap,
-                              String key, Set<SiriObjectStorageKey> changes, int trackingPeriodMinutes, TimeUnit timeUnit) {
-        final String breadcrumbId = MDC.get("camel.breadcrumbId");
+    /**
+     * Resolves changes not yet delivered to the requestor
+     * @param requestorId
+     * @return
+     */
+    ChangeJournal.PendingChanges getPendingChanges(String requestorId) {
+        final ChangeTrackerUpdate pendingUpdate = requestorId != null ? pendingTrackerUpdates.get(requestorId) : null;
+        if (pendingUpdate != null) {
+            // Latest position has not been flushed yet
+            return changeJournal.read(requestorId, pendingUpdate.position);
+        }
+        return changeJournal.read(requestorId);
+    }
 
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        executorService.execute(() -> {
-            try {
-                MDC.put("camel.breadcrumbId", breadcrumbId);
+    /**
+     * @return number of changes not yet delivered, per tracked requestor
+     */
+    public Map<String, Integer> getPendingChangeCount() {
+        return changeJournal.getPendingChangeCount();
+    }
 
-                long t1 = System.currentTimeMillis();
+    /**
+     * @return number of requestors with change-tracker updates not yet stored in the cluster
+     */
+    public int getPendingTrackerUpdateCount() {
+        return pendingTrackerUpdates.size();
+    }
 
-                changesMap.executeOnKey(key, new ReplaceSetEntryProcessor(changes));
-                changesMap.setTtl(key, trackingPeriodMinutes, timeUnit);
+    void clearChangeTrackers() {
+        pendingTrackerUpdates.clear();
+        changeJournal.clear();
+    }
 
-                lastUpdateRequested.set(key, Instant.now(), trackingPeriodMinutes, timeUnit);
+    /**
+     * Stores read-position in the change journal for the requestor
+     *
+     * @param key requestorId
+     * @param nextSequence next journal-sequence to read
+     * @param changes changes read from the journal, but not yet delivered
+     * @param trackingPeriodMinutes
+     * @param timeUnit
+     */
+    void updateChangeTrackers(String key, long nextSequence, Set<SiriObjectStorageKey> changes, int trackingPeriodMinutes, TimeUnit timeUnit) {
+        final ChangeTrackerUpdate update = new ChangeTrackerUpdate(new ChangeTrackerPosition(nextSequence, new HashSet<>(changes)),
+                trackingPeriodMinutes, timeUnit);
 
-                logger.info("Replacing changes for requestor async {} took {} ms. ({})",
-                    key,(System.currentTimeMillis() - t1),this.getClass().getSimpleName());
-            } finally {
-                MDC.remove("camel.breadcrumbId");
+        if (pendingTrackerUpdates.put(key, update) != null) {
+            prepareMetrics();
+            metrics.registerCoalescedChangeTrackerUpdate(SIRI_DATA_TYPE);
+        }
+
+        if (pendingTrackerUpdates.size() > MAX_PENDING_TRACKER_UPDATES) {
+            logger.info("Change-tracker queue is full - flushing ({})", this.getClass().getSimpleName());
+            flushChangeTrackers();
+        }
+    }
+
+    /**
+     * Stores all pending change-tracker updates in the cluster as one batch.
+     *
+     * Updates are kept locally until they are stored, and are only removed if they have not been replaced in the meantime.
+     */
+    synchronized void flushChangeTrackers() {
+        try {
+            if (pendingTrackerUpdates.isEmpty()) {
+                return;
+            }
+            long t1 = System.currentTimeMillis();
+
+            final Map<String, ChangeTrackerUpdate> batch = new HashMap<>(pendingTrackerUpdates);
+
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (Map.Entry<String, ChangeTrackerUpdate> entry : batch.entrySet()) {
+                ChangeTrackerUpdate update = entry.getValue();
+                futures.add(changeJournal.updatePosition(entry.getKey(), update.position, update.trackingPeriod, update.timeUnit)
+                        .toCompletableFuture());
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+
+            prepareMetrics();
+            final long flushed = System.currentTimeMillis();
+            for (Map.Entry<String, ChangeTrackerUpdate> entry : batch.entrySet()) {
+                pendingTrackerUpdates.remove(entry.getKey(), entry.getValue());
+                metrics.registerChangeTrackerUpdateLatency(SIRI_DATA_TYPE, flushed - entry.getValue().created);
+            }
+            metrics.registerChangeTrackerFlush(SIRI_DATA_TYPE, flushed - t1);
+
+            logger.info("Flushed {} change-tracker updates in {} ms ({})", batch.size(), (flushed - t1), this.getClass().getSimpleName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception t) {
+            //Catch everything to avoid executor being killed - failed updates are retried on next flush
+            logger.info("Exception caught when flushing change-trackers", t);
+        }
+    }
+
+    private static class ChangeTrackerUpdate {
+        private final ChangeTrackerPosition position;
+        private final int trackingPeriod;
+        private final TimeUnit timeUnit;
+        private final long created = System.currentTimeMillis();
+
+        private ChangeTrackerUpdate(ChangeTrackerPosition position, int trackingPeriod, TimeUnit timeUnit) {
+            this.position = position;
+            this.trackingPeriod = trackingPeriod;
+            this.timeUnit = timeUnit;
+        }
+    }
+
+    /**
+     * Collects updates across deliveries, and stores them with a single setAll per map every windowMillis - or
+     * when maxPendingWrites keys have pending updates. Only the latest update of each key is stored.
+     *
+     * Ids are marked as updated when they have been stored.
+     *
+     * @param map
+     * @param recordedAtTime used to ignore updates older than the pending update
+     * @param windowMillis
+     * @param maxPendingWrites
+     * @param linkedMaps maps with values stored together with the main value
+     */
+    @SafeVarargs
+    final void enableWriteBehind(ExtendedHazelcastService hazelcastService, IMap<SiriObjectStorageKey, T> map,
+                                 Function<T, ZonedDateTime> recordedAtTime, long windowMillis, int maxPendingWrites,
+                                 IMap<SiriObjectStorageKey, ?>... linkedMaps) {
+        this.writeBehindBuffer = new WriteBehindBuffer<>(map, recordedAtTime, List.of(linkedMaps));
+        this.maxPendingWrites = maxPendingWrites;
+
+        logger.info("Initializing write-behind with flush every {} ms or {} pending updates ({})", windowMillis, maxPendingWrites, this.getClass().getSimpleName());
+
+        ScheduledExecutorService writeBehindExecutor = Executors.newSingleThreadScheduledExecutor();
+        writeBehindExecutor.scheduleWithFixedDelay(this::flushPendingWrites, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+
+        hazelcastService.addBeforeShuttingDownHook(() -> {
+            writeBehindExecutor.shutdown();
+            if (!writeBehindBuffer.isEmpty()) {
+                logger.info("Shutdown triggered - flushing {} pending updates", writeBehindBuffer.size());
+                flushPendingWrites();
+                commitChanges();
             }
         });
-        logger.info("Changetracker-update submitted");
+    }
+
+    boolean isWriteBehindEnabled() {
+        return writeBehindBuffer != null;
+    }
+
+    /**
+     * Adds update to be stored with the next flush
+     *
+     * @param linkedValues one value per linked map - see enableWriteBehind
+     */
+    void writeBehind(SiriObjectStorageKey key, T value, Object... linkedValues) {
+        writeBehindBuffer.add(key, value, linkedValues);
+
+        if (writeBehindBuffer.size() >= maxPendingWrites) {
+            logger.info("Write-behind queue is full - flushing ({})", this.getClass().getSimpleName());
+            flushPendingWrites();
+        }
+    }
+
+    /**
+     * @return update not yet stored in the cluster, null if there is none
+     */
+    WriteBehindBuffer.PendingWrite<T> getPendingWrite(SiriObjectStorageKey key) {
+        return writeBehindBuffer != null ? writeBehindBuffer.get(key) : null;
+    }
+
+    /**
+     * @return number of keys with updates not yet stored in the cluster
+     */
+    public int getPendingWriteCount() {
+        return writeBehindBuffer != null ? writeBehindBuffer.size() : 0;
+    }
+
+    void discardPendingWrites(String datasetId) {
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.discard(key -> datasetId == null || codespaceMatches(datasetId, key));
+        }
+    }
+
+    /**
+     * Stores all pending updates in the cluster - failed updates are retried on next flush
+     */
+    void flushPendingWrites() {
+        try {
+            if (writeBehindBuffer == null || writeBehindBuffer.isEmpty()) {
+                return;
+            }
+            long t1 = System.currentTimeMillis();
+
+            final Map<SiriObjectStorageKey, WriteBehindBuffer.PendingWrite<T>> flushed = writeBehindBuffer.flush();
+
+            prepareMetrics();
+            final long stored = System.currentTimeMillis();
+            int updates = 0;
+            for (WriteBehindBuffer.PendingWrite<T> write : flushed.values()) {
+                updates += write.getUpdates();
+                metrics.registerWriteBehindLatency(SIRI_DATA_TYPE, stored - write.getCreated());
+            }
+            metrics.registerWriteBehindFlush(SIRI_DATA_TYPE, stored - t1, updates, flushed.size());
+
+            markIdsAsUpdated(flushed.keySet());
+
+            logger.info("Flushed {} pending updates ({} received) in {} ms ({})", flushed.size(), updates, (stored - t1), this.getClass().getSimpleName());
+        } catch (Exception t) {
+            //Catch everything to avoid executor being killed
+            logger.info("Exception caught when flushing pending updates", t);
+        }
     }
 
     /**
@@ -420,16 +731,49 @@ abstract class SiriRepository<T> {
     abstract void clearAllByDatasetId(String datasetId);
 
 
+    /**
+     * Counts entries per codespace on the members owning the data - keys are not sent across the network
+     */
+    Map<String, Integer> countByCodespace(IMap<SiriObjectStorageKey, T> map) {
+        long t1 = System.currentTimeMillis();
+        Map<String, Integer> sizeMap = map.aggregate(new CodespaceCountAggregator<>());
+        logger.debug("Calculating data-distribution ({}) took {} ms: {}", SIRI_DATA_TYPE, (System.currentTimeMillis()-t1), sizeMap);
+        return sizeMap;
+    }
+
+    int countByCodespace(IMap<SiriObjectStorageKey, T> map, String datasetId) {
+        return map.aggregate(Aggregators.count(), createHzCodespacePredicate(datasetId)).intValue();
+    }
+
+    /**
+     * Counts entries per codespace owned by this member
+     */
+    Map<String, Integer> countLocalByCodespace(IMap<SiriObjectStorageKey, T> map) {
+        Map<String, Integer> sizeMap = new HashMap<>();
+        long t1 = System.currentTimeMillis();
+        for (SiriObjectStorageKey key : map.localKeySet()) {
+            sizeMap.merge(key.getCodespaceId(), 1, Integer::sum);
+        }
+        logger.debug("Calculating local data-distribution ({}) took {} ms: {}", SIRI_DATA_TYPE, (System.currentTimeMillis()-t1), sizeMap);
+        return sizeMap;
+    }
+
+    /**
+     * Uses index on key-attribute - see ExtendedHazelcastService
+     * @param datasetId
+     * @return
+     */
     Predicate<SiriObjectStorageKey, T> createHzCodespacePredicate(String datasetId) {
-        return entry -> {
-            return codespaceMatches(datasetId, entry.getKey());
-        };
+        return Predicates.equal(SiriObjectStorageKey.CODESPACE_ID_ATTRIBUTE, datasetId);
     }
 
+    /**
+     * Uses index on key-attribute - see ExtendedHazelcastService
+     * @param lineRef
+     * @return
+     */
     Predicate<SiriObjectStorageKey, T> createHzLineRefPredicate(String lineRef) {
-        return entry -> {
-            return lineRefMatches(lineRef, entry.getKey());
-        };
+        return Predicates.equal(SiriObjectStorageKey.LINE_REF_ATTRIBUTE, SiriObjectStorageKey.normalizeLineRef(decodeLineRef(lineRef)));
     }
 
     private static boolean codespaceMatches(String datasetId, SiriObjectStorageKey entry) {
@@ -440,8 +784,11 @@ abstract class SiriRepository<T> {
         return false;
     }
 
-    private static boolean lineRefMatches(String lineRef, SiriObjectStorageKey entry) {
-        String decodedLine = URLDecoder.decode(lineRef, StandardCharsets.UTF_8);
+    private static String decodeLineRef(String lineRef) {
+        return URLDecoder.decode(lineRef, StandardCharsets.UTF_8);
+    }
+
+    private static boolean lineRefMatches(String decodedLine, SiriObjectStorageKey entry) {
         if (entry.getLineRef() != null) {
             final String ref = entry.getLineRef();
 
@@ -450,29 +797,13 @@ abstract class SiriRepository<T> {
         return false;
     }
 
-    /**
-     * Compares object-equality by calculating and comparing MD5-checksum
-     * @param existing
-     * @param updated
-     * @return
-     */
-    static boolean isEqual(Serializable existing, Serializable updated) {
-        try {
-            String checksumExisting = getChecksum(existing);
-            String checksumUpdated = getChecksum(updated);
-
-            return checksumExisting.equals(checksumUpdated);
+    private static class CachedValue<T> {
+        private final T value;
+        private final int weight;
 
-        } catch (Exception e) {
-            //ignore - data will be updated
+        private CachedValue(T value) {
+            this.value = value;
+            this.weight = (int) Math.min(Integer.MAX_VALUE, SiriSizeEstimator.estimate(value));
         }
-        return false;
-    }
-
-    static String getChecksum(Serializable object) throws NoSuchAlgorithmException {
-        byte[] bytes = SerializationUtils.serialize(object);
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        return DatatypeConverter.printHexBinary(md.digest(bytes));
-
     }
 }
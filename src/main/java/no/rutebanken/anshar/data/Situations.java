@@ -16,8 +16,10 @@
 package no.rutebanken.anshar.data;
 
 import com.hazelcast.map.IMap;
+import com.hazelcast.ringbuffer.Ringbuffer;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
+import no.rutebanken.anshar.data.util.SiriFingerprint;
 import no.rutebanken.anshar.data.util.TimingTracer;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
 import no.rutebanken.anshar.subscription.SiriDataType;
@@ -33,7 +35,6 @@ import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.SituationVersion;
 
 import javax.annotation.PostConstruct;
-import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
@@ -52,21 +53,22 @@ import java.util.stream.Collectors;
 public class Situations extends SiriRepository<PtSituationElement> {
     private final Logger logger = LoggerFactory.getLogger(Situations.class);
 
+    private static final SiriFingerprint fingerprint = SiriFingerprint.create();
+
     @Autowired
     private IMap<SiriObjectStorageKey , PtSituationElement>  situationElements;
 
     @Autowired
     @Qualifier("getSxChecksumMap")
-    private IMap<SiriObjectStorageKey,String> checksumCache;
+    private IMap<SiriObjectStorageKey,Long> checksumCache;
 
     @Autowired
     @Qualifier("getSituationChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> changesMap;
-
+    private IMap<String, ChangeTrackerPosition> changesMap;
 
     @Autowired
-    @Qualifier("getLastSxUpdateRequest")
-    private IMap<String, Instant> lastUpdateRequested;
+    @Qualifier("getSituationChangeJournal")
+    private Ringbuffer<HashSet<SiriObjectStorageKey>> changeJournal;
 
     @Autowired
     private SiriObjectFactory siriObjectFactory;
@@ -83,11 +85,11 @@ public class Situations extends SiriRepository<PtSituationElement> {
 
     @PostConstruct
     private void initializeUpdateCommitter() {
-        super.initBufferCommitter(hazelcastService, lastUpdateRequested, changesMap, configuration.getChangeBufferCommitFrequency());
+        super.initBufferCommitter(hazelcastService, changeJournal, changesMap, configuration.getChangeBufferCommitFrequency());
 
-        enableCache(situationElements);
+        enableCache(situationElements, configuration.getLocalCacheMaxSizeMb(SiriDataType.SITUATION_EXCHANGE));
 
-        linkEntriesTtl(situationElements, changesMap, checksumCache);
+        linkEntriesTtl(situationElements, checksumCache);
     }
 
     /**
@@ -107,37 +109,17 @@ public class Situations extends SiriRepository<PtSituationElement> {
 
 
     public Map<String, Integer> getDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        situationElements.keySet().forEach(key -> {
-            String datasetId = key.getCodespaceId();
-
-            Integer count = sizeMap.getOrDefault(datasetId, 0);
-            sizeMap.put(datasetId, count+1);
-        });
-        logger.debug("Calculating data-distribution (SX) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
+        return countByCodespace(situationElements);
     }
 
 
     public Map<String, Integer> getLocalDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        situationElements.localKeySet().forEach(key -> {
-            String datasetId = key.getCodespaceId();
-
-            Integer count = sizeMap.getOrDefault(datasetId, 0);
-            sizeMap.put(datasetId, count+1);
-        });
-        logger.debug("Calculating data-distribution (SX) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
+        return countLocalByCodespace(situationElements);
     }
 
 
     public Integer getDatasetSize(String datasetId) {
-        return Math.toIntExact(situationElements.keySet().stream()
-                .filter(key -> datasetId.equals(key.getCodespaceId()))
-                .count());
+        return countByCodespace(situationElements, datasetId);
     }
 
     @Override
@@ -157,7 +139,8 @@ public class Situations extends SiriRepository<PtSituationElement> {
         logger.error("Deleting all data - should only be used in test!!!");
         situationElements.clear();
         checksumCache.clear();
-        cache.clear();
+        clearChangeTrackers();
+        clearCache();
     }
 
     public Siri createServiceDelivery(String requestorId, String datasetId, String clientName, int maxSize) {
@@ -174,11 +157,14 @@ public class Situations extends SiriRepository<PtSituationElement> {
         }
 
         // Get all relevant ids
-        Set<SiriObjectStorageKey> allIds = new HashSet<>();
-        Set<SiriObjectStorageKey> idSet = changesMap.getOrDefault(requestorId, allIds);
-
-        if (idSet == allIds) {
-            idSet.addAll(situationElements.keySet());
+        ChangeJournal.PendingChanges pendingChanges = getPendingChanges(requestorId);
+        Set<SiriObjectStorageKey> idSet = pendingChanges.getKeys();
+
+        if (!pendingChanges.isTracked()) {
+            idSet.addAll(datasetId == null ?
+                    situationElements.keySet() :
+                    situationElements.keySet(createHzCodespacePredicate(datasetId))
+            );
         }
 
         //Filter by datasetId
@@ -216,7 +202,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
             siri.getServiceDelivery().setRequestMessageRef(msgRef);
 
             //Update change-tracker
-            updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, idSet, trackingPeriodMinutes, TimeUnit.MINUTES);
+            updateChangeTrackers(requestorId, pendingChanges.getNextSequence(), idSet, trackingPeriodMinutes, TimeUnit.MINUTES);
 
             logger.info("Returning {}, {} left for requestorRef {}", sizeLimitedIds.size(), idSet.size(), requestorId);
         }
@@ -241,9 +227,9 @@ public class Situations extends SiriRepository<PtSituationElement> {
     public Collection<PtSituationElement> getAllUpdates(String requestorId, String datasetId) {
         if (requestorId != null) {
 
-            Set<SiriObjectStorageKey> idSet = changesMap.get(requestorId);
-            lastUpdateRequested.set(requestorId, Instant.now(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
-            if (idSet != null) {
+            ChangeJournal.PendingChanges pendingChanges = getPendingChanges(requestorId);
+            if (pendingChanges.isTracked()) {
+                Set<SiriObjectStorageKey> idSet = pendingChanges.getKeys();
                 Set<SiriObjectStorageKey> datasetFilteredIdSet = new HashSet<>();
 
                 if (datasetId != null) {
@@ -253,15 +239,8 @@ public class Situations extends SiriRepository<PtSituationElement> {
                 }
                 Collection<PtSituationElement> changes = situationElements.getAll(datasetFilteredIdSet).values();
 
-                // Data may have been updated
-                Set<SiriObjectStorageKey> existingSet = changesMap.get(requestorId);
-                if (existingSet == null) {
-                    existingSet = new HashSet<>();
-                }
-                //Remove returned ids
-                existingSet.removeAll(idSet);
-
-                updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, existingSet, configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+                //Returned ids are no longer pending
+                updateChangeTrackers(requestorId, pendingChanges.getNextSequence(), new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
 
                 logger.info("Returning {} changes to requestorRef {}", changes.size(), requestorId);
                 return changes;
@@ -269,7 +248,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
                 logger.info("Returning all to requestorRef {}", requestorId);
             }
 
-            updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+            updateChangeTrackers(requestorId, pendingChanges.getNextSequence(), new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
 
         }
 
@@ -303,7 +282,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
 
     public Collection<PtSituationElement> addAll(String datasetId, List<PtSituationElement> sxList) {
         Map<SiriObjectStorageKey, PtSituationElement> changes = new HashMap<>();
-        Map<SiriObjectStorageKey, String> checksumTmp = new HashMap<>();
+        Map<SiriObjectStorageKey, Long> checksumTmp = new HashMap<>();
 
         AtomicInteger alreadyExpiredCounter = new AtomicInteger(0);
         AtomicInteger ignoredCounter = new AtomicInteger(0);
@@ -312,20 +291,15 @@ public class Situations extends SiriRepository<PtSituationElement> {
 
             SiriObjectStorageKey key = createKey(datasetId, situation);
             timingTracer.mark("createKey");
-            String currentChecksum = null;
-            try {
-                currentChecksum = getChecksum(situation);
-                timingTracer.mark("getChecksum");
-            } catch (Exception e) {
-                //Ignore - data will be updated
-            }
+            long currentChecksum = fingerprint.calculate(situation);
+            timingTracer.mark("getChecksum");
 
-            String existingChecksum = checksumCache.get(key);
+            Long existingChecksum = checksumCache.get(key);
             timingTracer.mark("checksumCache.get");
             boolean updated;
             if (existingChecksum != null && situationElements.containsKey(key)) { // Checksum not compared if actual situation does not exist
                 //Exists - compare values
-                updated =  !(currentChecksum.equals(existingChecksum));
+                updated = existingChecksum != currentChecksum;
 
                 if (updated) { // Ignore if data is unchanged
                     // Compare "Version" - if it exists
@@ -427,7 +401,7 @@ public class Situations extends SiriRepository<PtSituationElement> {
         return situationElements.get(createKey(datasetId, situation));
     }
 
-    private static SiriObjectStorageKey createKey(String datasetId, PtSituationElement element) {
+    public static SiriObjectStorageKey createKey(String datasetId, PtSituationElement element) {
         StringBuilder key = new StringBuilder();
 
         key.append(datasetId).append(":")
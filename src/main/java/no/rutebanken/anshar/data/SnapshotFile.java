@@ -0,0 +1,232 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Snapshot of a set of records on local disk, written to memory-mapped, append-only segment files.
+ *
+ * Each record contains an expiration-timestamp, a key and a fixed number of (nullable) values - all as byte-arrays.
+ * A new snapshot is written to new segment files, and only replaces the previous snapshot when the manifest is
+ * moved in place on commit. Segments from previous snapshots are deleted after commit.
+ *
+ * Segment-format (all records appended until the segment is full):
+ *   [expiresAt (long)][key length (int)][key][value count (int)]([value length (int), -1 if null][value])*
+ */
+class SnapshotFile {
+
+    private static final String MANIFEST_HEADER = "anshar-snapshot-v1";
+    private static final String MANIFEST_SUFFIX = ".snapshot";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(long expiresAt, byte[] key, byte[][] values);
+    }
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * @param directory
+     * @param name        name of the snapshot - e.g. data type
+     * @param segmentSize size of each segment file, a larger segment is created if a single record does not fit
+     * @return writer for a new snapshot - previous snapshot is kept until the writer is committed
+     */
+    static Writer create(Path directory, String name, int segmentSize) throws IOException {
+        Files.createDirectories(directory);
+        return new Writer(directory, name, segmentSize);
+    }
+
+    /**
+     * Reads all records in the last committed snapshot
+     *
+     * @return number of records read, 0 if there is no snapshot
+     */
+    static int read(Path directory, String name, RecordConsumer consumer) throws IOException {
+        Path manifest = directory.resolve(name + MANIFEST_SUFFIX);
+        if (!Files.exists(manifest)) {
+            return 0;
+        }
+
+        List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !MANIFEST_HEADER.equals(lines.get(0))) {
+            throw new IOException("Unsupported snapshot " + manifest);
+        }
+
+        int count = 0;
+        for (String segment : lines.subList(1, lines.size())) {
+            try (FileChannel channel = FileChannel.open(directory.resolve(segment), StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                try {
+                    while (buffer.hasRemaining()) {
+                        long expiresAt = buffer.getLong();
+                        byte[] key = readBytes(buffer);
+                        byte[][] values = new byte[buffer.getInt()][];
+                        for (int i = 0; i < values.length; i++) {
+                            values[i] = readBytes(buffer);
+                        }
+                        consumer.accept(expiresAt, key, values);
+                        count++;
+                    }
+                } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                    throw new IOException("Corrupt snapshot-segment " + segment, e);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static byte[] readBytes(MappedByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    static class Writer implements Closeable {
+
+        private final Path directory;
+        private final String name;
+        private final int segmentSize;
+        private final long generation;
+
+        private final List<String> segments = new ArrayList<>();
+
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        private int recordCount;
+
+        private Writer(Path directory, String name, int segmentSize) {
+            this.directory = directory;
+            this.name = name;
+            this.segmentSize = segmentSize;
+            this.generation = System.currentTimeMillis();
+        }
+
+        void append(long expiresAt, byte[] key, byte[]... values) throws IOException {
+            int size = Long.BYTES + Integer.BYTES + key.length + Integer.BYTES;
+            for (byte[] value : values) {
+                size += Integer.BYTES + (value != null ? value.length : 0);
+            }
+
+            if (buffer == null || buffer.remaining() < size) {
+                closeSegment();
+                openSegment(Math.max(segmentSize, size));
+            }
+
+            buffer.putLong(expiresAt);
+            writeBytes(key);
+            buffer.putInt(values.length);
+            for (byte[] value : values) {
+                writeBytes(value);
+            }
+            recordCount++;
+        }
+
+        private void writeBytes(byte[] bytes) {
+            if (bytes == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+
+        int getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Replaces the previous snapshot with the records written by this writer
+         */
+        void commit() throws IOException {
+            closeSegment();
+
+            List<String> manifest = new ArrayList<>();
+            manifest.add(MANIFEST_HEADER);
+            manifest.addAll(segments);
+
+            Path tmp = directory.resolve(name + MANIFEST_SUFFIX + ".tmp");
+            Files.write(tmp, manifest, StandardCharsets.UTF_8);
+            Files.move(tmp, directory.resolve(name + MANIFEST_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            deleteSegments(new HashSet<>(segments));
+            segments.clear();
+        }
+
+        /**
+         * Discards uncommitted segments
+         */
+        @Override
+        public void close() throws IOException {
+            closeSegment();
+            for (String segment : segments) {
+                Files.deleteIfExists(directory.resolve(segment));
+            }
+            segments.clear();
+        }
+
+        private void openSegment(int size) throws IOException {
+            String segment = name + "-" + generation + "-" + segments.size() + SEGMENT_SUFFIX;
+            segments.add(segment);
+            channel = FileChannel.open(directory.resolve(segment),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        private void closeSegment() throws IOException {
+            if (channel != null) {
+                int written = buffer.position();
+                buffer.force();
+                buffer = null;
+                // Remove unused part of the segment, so the file only contains complete records
+                channel.truncate(written);
+                channel.close();
+                channel = null;
+            }
+        }
+
+        private void deleteSegments(Set<String> keep) throws IOException {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, name + "-*" + SEGMENT_SUFFIX)) {
+                for (Path segment : stream) {
+                    if (!keep.contains(segment.getFileName().toString())) {
+                        Files.deleteIfExists(segment);
+                    }
+                }
+            }
+        }
+    }
+}
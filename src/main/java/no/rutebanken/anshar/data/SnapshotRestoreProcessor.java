@@ -0,0 +1,50 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.map.ExtendedMapEntry;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restores a value from a local snapshot with the remaining TTL - existing values are never replaced.
+ */
+public class SnapshotRestoreProcessor<V> implements EntryProcessor<SiriObjectStorageKey, V, Boolean> {
+
+    private V value;
+
+    private long expiresAt;
+
+    private SnapshotRestoreProcessor() {
+    }
+
+    SnapshotRestoreProcessor(V value, long expiresAt) {
+        this.value = value;
+        this.expiresAt = expiresAt;
+    }
+
+    @Override
+    public Boolean process(Map.Entry<SiriObjectStorageKey, V> entry) {
+        long ttl = expiresAt - System.currentTimeMillis();
+        if (entry.getValue() != null || ttl <= 0) {
+            return false;
+        }
+        ((ExtendedMapEntry<SiriObjectStorageKey, V>) entry).setValue(value, ttl, TimeUnit.MILLISECONDS);
+        return true;
+    }
+}
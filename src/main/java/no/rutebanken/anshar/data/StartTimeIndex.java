@@ -0,0 +1,116 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data;
+
+import java.time.ZonedDateTime;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Node-local index of keys by start time, grouped in minute-buckets.
+ *
+ * Finding all keys starting before a given time is a range-scan over the buckets, where only the last bucket
+ * needs to be checked against the exact start time.
+ *
+ * Updates are serialized, lookups are lock-free.
+ */
+class StartTimeIndex {
+
+    private static final long BUCKET_SIZE_MILLIS = 60_000;
+
+    private final ConcurrentSkipListMap<Long, Set<SiriObjectStorageKey>> buckets = new ConcurrentSkipListMap<>();
+
+    private final Map<SiriObjectStorageKey, Long> startTimes = new ConcurrentHashMap<>();
+
+    /**
+     * Adds or moves key to the bucket for the provided start time
+     * @param key
+     * @param startTime
+     */
+    synchronized void put(SiriObjectStorageKey key, ZonedDateTime startTime) {
+        if (startTime == null) {
+            remove(key);
+            return;
+        }
+        final long millis = startTime.toInstant().toEpochMilli();
+        final Long previous = startTimes.put(key, millis);
+        if (previous != null) {
+            if (bucketOf(previous) == bucketOf(millis)) {
+                return;
+            }
+            removeFromBucket(key, previous);
+        }
+        buckets.computeIfAbsent(bucketOf(millis), b -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    synchronized void remove(SiriObjectStorageKey key) {
+        final Long previous = startTimes.remove(key);
+        if (previous != null) {
+            removeFromBucket(key, previous);
+        }
+    }
+
+    synchronized void clear() {
+        buckets.clear();
+        startTimes.clear();
+    }
+
+    /**
+     * @param time
+     * @return all keys with start time before the provided time
+     */
+    Set<SiriObjectStorageKey> getStartingBefore(ZonedDateTime time) {
+        final long millis = time.toInstant().toEpochMilli();
+        final long lastBucket = bucketOf(millis);
+
+        Set<SiriObjectStorageKey> result = new HashSet<>();
+        for (Set<SiriObjectStorageKey> keys : buckets.headMap(lastBucket, false).values()) {
+            result.addAll(keys);
+        }
+
+        final Set<SiriObjectStorageKey> boundary = buckets.get(lastBucket);
+        if (boundary != null) {
+            for (SiriObjectStorageKey key : boundary) {
+                Long startTime = startTimes.get(key);
+                if (startTime != null && startTime < millis) {
+                    result.add(key);
+                }
+            }
+        }
+        return result;
+    }
+
+    int size() {
+        return startTimes.size();
+    }
+
+    private void removeFromBucket(SiriObjectStorageKey key, long millis) {
+        final long bucket = bucketOf(millis);
+        final Set<SiriObjectStorageKey> keys = buckets.get(bucket);
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                buckets.remove(bucket);
+            }
+        }
+    }
+
+    private static long bucketOf(long millis) {
+        return Math.floorDiv(millis, BUCKET_SIZE_MILLIS);
+    }
+}
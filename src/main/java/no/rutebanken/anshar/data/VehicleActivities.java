@@ -16,8 +16,10 @@
 package no.rutebanken.anshar.data;
 
 import com.hazelcast.map.IMap;
+import com.hazelcast.ringbuffer.Ringbuffer;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
+import no.rutebanken.anshar.data.util.SiriFingerprint;
 import no.rutebanken.anshar.data.util.TimingTracer;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
 import no.rutebanken.anshar.subscription.SiriDataType;
@@ -35,7 +37,6 @@ import uk.org.siri.siri21.VehicleActivityStructure;
 import uk.org.siri.siri21.VehicleRef;
 
 import javax.annotation.PostConstruct;
-import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
@@ -57,20 +58,23 @@ import java.util.stream.Collectors;
 public class VehicleActivities extends SiriRepository<VehicleActivityStructure> {
     private final Logger logger = LoggerFactory.getLogger(VehicleActivities.class);
 
+    // Calculate checksum without "ValidUntilTime" - thus ignoring "fake" updates where only validity is updated
+    private static final SiriFingerprint fingerprint = SiriFingerprint.ignoring(VehicleActivityStructure.class, "validUntilTime");
+
     @Autowired
     private IMap<SiriObjectStorageKey, VehicleActivityStructure> monitoredVehicles;
 
     @Autowired
     @Qualifier("getVehicleChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> changesMap;
+    private IMap<String, ChangeTrackerPosition> changesMap;
 
     @Autowired
-    @Qualifier("getVmChecksumMap")
-    private IMap<SiriObjectStorageKey,String> checksumCache;
+    @Qualifier("getVehicleChangeJournal")
+    private Ringbuffer<HashSet<SiriObjectStorageKey>> changeJournal;
 
     @Autowired
-    @Qualifier("getLastVmUpdateRequest")
-    private IMap<String, Instant> lastUpdateRequested;
+    @Qualifier("getVmChecksumMap")
+    private IMap<SiriObjectStorageKey,Long> checksumCache;
 
     @Autowired
     private SiriObjectFactory siriObjectFactory;
@@ -87,10 +91,15 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
 
     @PostConstruct
     private void initializeUpdateCommitter() {
-        super.initBufferCommitter(hazelcastService, lastUpdateRequested, changesMap, configuration.getChangeBufferCommitFrequency());
+        super.initBufferCommitter(hazelcastService, changeJournal, changesMap, configuration.getChangeBufferCommitFrequency());
+
+        enableCache(monitoredVehicles, configuration.getLocalCacheMaxSizeMb(SiriDataType.VEHICLE_MONITORING));
+        linkEntriesTtl(monitoredVehicles, checksumCache);
 
-        enableCache(monitoredVehicles);
-        linkEntriesTtl(monitoredVehicles, changesMap);
+        if (configuration.getWriteBehindWindowMillis() > 0) {
+            enableWriteBehind(hazelcastService, monitoredVehicles, VehicleActivityStructure::getRecordedAtTime,
+                    configuration.getWriteBehindWindowMillis(), configuration.getWriteBehindMaxPending(), checksumCache);
+        }
     }
 
     /**
@@ -109,36 +118,16 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     }
 
     public Map<String, Integer> getDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        monitoredVehicles.keySet().forEach(key -> {
-            String datasetId = key.getCodespaceId();
-
-            Integer count = sizeMap.getOrDefault(datasetId, 0);
-            sizeMap.put(datasetId, count+1);
-        });
-        logger.debug("Calculating data-distribution (VM) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
+        return countByCodespace(monitoredVehicles);
     }
 
     public Map<String, Integer> getLocalDatasetSize() {
-        Map<String, Integer> sizeMap = new HashMap<>();
-        long t1 = System.currentTimeMillis();
-        monitoredVehicles.localKeySet().forEach(key -> {
-            String datasetId = key.getCodespaceId();
-
-            Integer count = sizeMap.getOrDefault(datasetId, 0);
-            sizeMap.put(datasetId, count+1);
-        });
-        logger.debug("Calculating data-distribution (VM) took {} ms: {}", (System.currentTimeMillis()-t1), sizeMap);
-        return sizeMap;
+        return countLocalByCodespace(monitoredVehicles);
     }
 
 
     public Integer getDatasetSize(String datasetId) {
-        return Math.toIntExact(monitoredVehicles.keySet().stream()
-                .filter(key -> datasetId.equals(key.getCodespaceId()))
-                .count());
+        return countByCodespace(monitoredVehicles, datasetId);
     }
 
     @Override
@@ -148,15 +137,20 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
 
         logger.warn("Removing all data ({} ids) for {}", idsToRemove.size(), datasetId);
 
+        discardPendingWrites(datasetId);
         for (SiriObjectStorageKey id : idsToRemove) {
             monitoredVehicles.delete(id);
+            checksumCache.remove(id);
         }
     }
 
     public void clearAll() {
         logger.error("Deleting all data - should only be used in test!!!");
         monitoredVehicles.clear();
-        cache.clear();
+        checksumCache.clear();
+        discardPendingWrites(null);
+        clearChangeTrackers();
+        clearCache();
     }
 
     /**
@@ -176,9 +170,9 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     public Collection<VehicleActivityStructure> getAllUpdates(String requestorId, String datasetId) {
         if (requestorId != null) {
 
-            Set<SiriObjectStorageKey> idSet = changesMap.get(requestorId);
-            lastUpdateRequested.set(requestorId, Instant.now(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
-            if (idSet != null) {
+            ChangeJournal.PendingChanges pendingChanges = getPendingChanges(requestorId);
+            if (pendingChanges.isTracked()) {
+                Set<SiriObjectStorageKey> idSet = pendingChanges.getKeys();
                 Set<SiriObjectStorageKey> datasetFilteredIdSet = new HashSet<>();
 
                 if (datasetId != null) {
@@ -189,22 +183,15 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
 
                 Collection<VehicleActivityStructure> changes = monitoredVehicles.getAll(datasetFilteredIdSet).values();
 
-                Set<SiriObjectStorageKey> existingSet = changesMap.get(requestorId);
-                if (existingSet == null) {
-                    existingSet = new HashSet<>();
-                }
-
-                //Remove returned ids
-                existingSet.removeAll(idSet);
-
-                updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, existingSet, configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+                //Returned ids are no longer pending
+                updateChangeTrackers(requestorId, pendingChanges.getNextSequence(), new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
 
                 logger.info("Returning {} changes to requestorRef {}", changes.size(), requestorId);
                 return changes;
             } else {
 
                 logger.info("Returning all to requestorRef {}", requestorId);
-                updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
+                updateChangeTrackers(requestorId, pendingChanges.getNextSequence(), new HashSet<>(), configuration.getTrackingPeriodMinutes(), TimeUnit.MINUTES);
 
             }
         }
@@ -238,11 +225,15 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
         }
 
         // Get all relevant ids
-        Set<SiriObjectStorageKey> allIds = new HashSet<>();
-        Set<SiriObjectStorageKey> idSet = changesMap.getOrDefault(requestorId, allIds);
+        ChangeJournal.PendingChanges pendingChanges = getPendingChanges(requestorId);
+        Set<SiriObjectStorageKey> idSet = pendingChanges.getKeys();
 
-        if (idSet == allIds) {
-            idSet.addAll(monitoredVehicles.keySet());
+        if (!pendingChanges.isTracked()) {
+            if (datasetId != null && (excludedDatasetIds == null || excludedDatasetIds.isEmpty())) {
+                idSet.addAll(monitoredVehicles.keySet(createHzCodespacePredicate(datasetId)));
+            } else {
+                idSet.addAll(monitoredVehicles.keySet());
+            }
         }
 
         Set<SiriObjectStorageKey> requestedIds = filterIdsByDataset(idSet, excludedDatasetIds, datasetId);
@@ -266,7 +257,7 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
 
 
             //Update change-tracker
-            updateChangeTrackers(lastUpdateRequested, changesMap, requestorId, idSet, trackingPeriodMinutes, TimeUnit.MINUTES);
+            updateChangeTrackers(requestorId, pendingChanges.getNextSequence(), idSet, trackingPeriodMinutes, TimeUnit.MINUTES);
 
 
             MessageRefStructure msgRef = new MessageRefStructure();
@@ -302,35 +293,52 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
     public Collection<VehicleActivityStructure> addAll(String datasetId, List<VehicleActivityStructure> vmList) {
 
         Map<SiriObjectStorageKey, VehicleActivityStructure> changes = new HashMap<>();
+        Map<SiriObjectStorageKey, Long> checksumTmp = new HashMap<>();
 
         AtomicInteger invalidLocationCounter = new AtomicInteger(0);
         AtomicInteger notMeaningfulCounter = new AtomicInteger(0);
         AtomicInteger outdatedCounter = new AtomicInteger(0);
         AtomicInteger notUpdatedCounter = new AtomicInteger(0);
 
-        vmList.stream()
+        List<VehicleActivityStructure> validActivities = vmList.stream()
                 .filter(activity -> activity.getMonitoredVehicleJourney() != null)
                 .filter(activity -> activity.getMonitoredVehicleJourney().getVehicleRef() != null)
                 .filter(activity -> activity.getMonitoredVehicleJourney().getFramedVehicleJourneyRef() == null ||
                         ( activity.getMonitoredVehicleJourney().getFramedVehicleJourneyRef() != null &&
                                 activity.getMonitoredVehicleJourney().getFramedVehicleJourneyRef().getDatedVehicleJourneyRef() != null)
                 )
-                .forEach(activity -> {
+                .collect(Collectors.toList());
+
+        final Set<SiriObjectStorageKey> keys = validActivities.stream()
+                .map(activity -> createKey(datasetId, activity.getMonitoredVehicleJourney()))
+                .collect(Collectors.toSet());
+
+        // Checksums of existing data are stored alongside the data - existing data and checksums are fetched in bulk
+        final Map<SiriObjectStorageKey, Long> existingChecksums = checksumCache.getAll(keys);
+        final Map<SiriObjectStorageKey, VehicleActivityStructure> existingValues = getCachedAsMap(keys);
+
+        validActivities.forEach(activity -> {
                     TimingTracer timingTracer = new TimingTracer("single-vm");
                     SiriObjectStorageKey key = createKey(datasetId, activity.getMonitoredVehicleJourney());
                     timingTracer.mark("createKey");
 
-                    String currentChecksum = calculateChecksum(activity);
+                    long currentChecksum = fingerprint.calculate(activity);
                     timingTracer.mark("calculateChecksum.updated");
 
-                    VehicleActivityStructure existing = cache.get(key);
-                    timingTracer.mark("getExisting");
+                    // Updates not yet stored are compared with the pending update
+                    WriteBehindBuffer.PendingWrite<VehicleActivityStructure> pendingWrite = getPendingWrite(key);
 
-                    String existingChecksum = calculateChecksum(existing);
+                    VehicleActivityStructure existing = pendingWrite != null ? pendingWrite.getValue() : existingValues.get(key);
+                    timingTracer.mark("getExisting");
 
-                    timingTracer.mark("calculateChecksum.current");
+                    Long existingChecksum;
+                    if (pendingWrite != null) {
+                        existingChecksum = (Long) pendingWrite.getLinkedValue(0);
+                    } else {
+                        existingChecksum = existing != null ? existingChecksums.get(key) : null;
+                    }
 
-                    if (isUpdated(existingChecksum, currentChecksum)) {
+                    if (existingChecksum == null || existingChecksum != currentChecksum) {
 
                         boolean keep = (existing == null); //No existing data i.e. keep
 
@@ -345,6 +353,7 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
 
                         if (expiration > 0 && keep) {
                             changes.put(key, activity);
+                            checksumTmp.put(key, currentChecksum);
                         } else {
                             outdatedCounter.incrementAndGet();
                         }
@@ -368,18 +377,27 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
                 });
         TimingTracer timingTracer = new TimingTracer("all-vm [" + changes.size() + " changes]");
 
-//        checksumCache.putAll(checksumCacheTmp);
-//        timingTracer.mark("checksumCache.putAll");
-        monitoredVehicles.setAll(changes);
-        timingTracer.mark("monitoredVehicles.setAll");
+        if (isWriteBehindEnabled()) {
+            // Stored - and marked as updated - with the next flush
+            changes.forEach((key, activity) -> writeBehind(key, activity, checksumTmp.get(key)));
+            timingTracer.mark("writeBehind");
+        } else {
+            // TTL is set in EntryListener when objects are added to main map
+            checksumCache.setAll(checksumTmp);
+            timingTracer.mark("checksumCache.setAll");
+            monitoredVehicles.setAll(changes);
+            timingTracer.mark("monitoredVehicles.setAll");
+        }
 
         logger.info("Updated {} (of {}) :: Ignored elements - Missing location:{}, Missing values: {}, Expired: {}, Not updated: {}", changes.size(), vmList.size(), invalidLocationCounter.get(), notMeaningfulCounter.get(), outdatedCounter.get(), notUpdatedCounter.get());
 
         markDataReceived(SiriDataType.VEHICLE_MONITORING, datasetId, vmList.size(), changes.size(), outdatedCounter.get(), (invalidLocationCounter.get() + notMeaningfulCounter.get() + notUpdatedCounter.get()));
 
         timingTracer.mark("markDataReceived");
-        markIdsAsUpdated(changes.keySet());
-        timingTracer.mark("markIdsAsUpdated");
+        if (!isWriteBehindEnabled()) {
+            markIdsAsUpdated(changes.keySet());
+            timingTracer.mark("markIdsAsUpdated");
+        }
 
         if (timingTracer.getTotalTime() > 1000) {
             logger.info(timingTracer.toString());
@@ -388,28 +406,6 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
         return changes.values();
     }
 
-    private static boolean isUpdated(String currentChecksum, String existingChecksum) {
-        return currentChecksum == null || !currentChecksum.equals(existingChecksum);
-    }
-
-    private static String calculateChecksum(VehicleActivityStructure vehicleActivityStructure) {
-        String existingChecksum = null;
-        if (vehicleActivityStructure != null) {
-            ZonedDateTime validUntilTime = vehicleActivityStructure.getValidUntilTime();
-            try {
-                // Calculate checksum without "ValidUntilTime" - thus ignoring "fake" updates where only validity is updated
-                vehicleActivityStructure.setValidUntilTime(null);
-                existingChecksum = getChecksum(vehicleActivityStructure);
-            } catch (Exception e) {
-                //Ignore - data will be updated
-            } finally {
-                //Set original ValidUntilTime back
-                vehicleActivityStructure.setValidUntilTime(validUntilTime);
-            }
-        }
-        return existingChecksum;
-    }
-
     public VehicleActivityStructure add(String datasetId, VehicleActivityStructure activity) {
         if (activity == null ||
                 activity.getMonitoredVehicleJourney() == null ||
@@ -419,7 +415,10 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
         List<VehicleActivityStructure> activities = new ArrayList<>();
         activities.add(activity);
         addAll(datasetId, activities);
-        return monitoredVehicles.get(createKey(datasetId, activity.getMonitoredVehicleJourney()));
+
+        SiriObjectStorageKey key = createKey(datasetId, activity.getMonitoredVehicleJourney());
+        WriteBehindBuffer.PendingWrite<VehicleActivityStructure> pendingWrite = getPendingWrite(key);
+        return pendingWrite != null ? pendingWrite.getValue() : monitoredVehicles.get(key);
     }
 
     /*
@@ -491,7 +490,7 @@ public class VehicleActivities extends SiriRepository<VehicleActivityStructure>
      * @param monitoredVehicleJourney
      * @return
      */
-    private SiriObjectStorageKey createKey(String datasetId, VehicleActivityStructure.MonitoredVehicleJourney monitoredVehicleJourney) {
+    public static SiriObjectStorageKey createKey(String datasetId, VehicleActivityStructure.MonitoredVehicleJourney monitoredVehicleJourney) {
         StringBuilder key = new StringBuilder();
 
 
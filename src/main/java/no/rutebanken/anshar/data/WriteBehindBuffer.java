@@ -0,0 +1,169 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.IMap;
+
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Collects updates across deliveries, and stores them in the cluster with a single setAll per map.
+ *
+ * Only the latest update of each key is kept - an update with an older RecordedAtTime than the pending update is
+ * ignored. Values for linked maps (e.g. checksums) are stored together with the main value, and are written before
+ * the main map so entry-listeners on the main map see consistent data.
+ *
+ * Updates are kept until they are stored, and are only removed if they have not been replaced in the meantime.
+ */
+class WriteBehindBuffer<T> {
+
+    private final IMap<SiriObjectStorageKey, T> map;
+
+    private final List<IMap<SiriObjectStorageKey, ?>> linkedMaps;
+
+    private final Function<T, ZonedDateTime> recordedAtTime;
+
+    private final Map<SiriObjectStorageKey, PendingWrite<T>> pending = new ConcurrentHashMap<>();
+
+    WriteBehindBuffer(IMap<SiriObjectStorageKey, T> map, Function<T, ZonedDateTime> recordedAtTime, List<IMap<SiriObjectStorageKey, ?>> linkedMaps) {
+        this.map = map;
+        this.recordedAtTime = recordedAtTime;
+        this.linkedMaps = linkedMaps;
+    }
+
+    /**
+     * @param key
+     * @param value
+     * @param linkedValues one value per linked map, in the same order as the linked maps - null values are not written
+     */
+    void add(SiriObjectStorageKey key, T value, Object... linkedValues) {
+        pending.compute(key, (k, existing) -> {
+            if (existing == null) {
+                return new PendingWrite<>(value, linkedValues, System.currentTimeMillis(), 1);
+            }
+            if (isOlder(value, existing.value)) {
+                // Newer data is already pending
+                return new PendingWrite<>(existing.value, existing.linkedValues, existing.created, existing.updates + 1);
+            }
+            return new PendingWrite<>(value, linkedValues, existing.created, existing.updates + 1);
+        });
+    }
+
+    private boolean isOlder(T value, T existing) {
+        ZonedDateTime recorded = recordedAtTime.apply(value);
+        ZonedDateTime existingRecorded = recordedAtTime.apply(existing);
+        return recorded != null && existingRecorded != null && recorded.isBefore(existingRecorded);
+    }
+
+    /**
+     * @return pending update for the key, null if all updates have been stored
+     */
+    PendingWrite<T> get(SiriObjectStorageKey key) {
+        return pending.get(key);
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Drops pending updates for matching keys without storing them
+     */
+    void discard(Predicate<SiriObjectStorageKey> keyPredicate) {
+        pending.keySet().removeIf(keyPredicate);
+    }
+
+    /**
+     * Stores all pending updates - the stored updates are returned
+     */
+    synchronized Map<SiriObjectStorageKey, PendingWrite<T>> flush() {
+        final Map<SiriObjectStorageKey, PendingWrite<T>> batch = new HashMap<>(pending);
+        if (batch.isEmpty()) {
+            return batch;
+        }
+
+        for (int i = 0; i < linkedMaps.size(); i++) {
+            Map<SiriObjectStorageKey, Object> linkedValues = new HashMap<>();
+            for (Map.Entry<SiriObjectStorageKey, PendingWrite<T>> entry : batch.entrySet()) {
+                Object linkedValue = entry.getValue().getLinkedValue(i);
+                if (linkedValue != null) {
+                    linkedValues.put(entry.getKey(), linkedValue);
+                }
+            }
+            setAll(linkedMaps.get(i), linkedValues);
+        }
+
+        Map<SiriObjectStorageKey, T> values = new HashMap<>();
+        batch.forEach((key, write) -> values.put(key, write.value));
+        map.setAll(values);
+
+        batch.forEach(pending::remove);
+        return batch;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static void setAll(IMap<SiriObjectStorageKey, ?> map, Map<SiriObjectStorageKey, Object> values) {
+        if (!values.isEmpty()) {
+            ((IMap) map).setAll(values);
+        }
+    }
+
+    static class PendingWrite<T> {
+        private final T value;
+        private final Object[] linkedValues;
+        private final long created;
+        private final int updates;
+
+        private PendingWrite(T value, Object[] linkedValues, long created, int updates) {
+            this.value = value;
+            this.linkedValues = linkedValues;
+            this.created = created;
+            this.updates = updates;
+        }
+
+        T getValue() {
+            return value;
+        }
+
+        Object getLinkedValue(int index) {
+            return linkedValues != null && index < linkedValues.length ? linkedValues[index] : null;
+        }
+
+        /**
+         * @return time the first of the coalesced updates was received
+         */
+        long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return number of updates coalesced into this update
+         */
+        int getUpdates() {
+            return updates;
+        }
+    }
+}
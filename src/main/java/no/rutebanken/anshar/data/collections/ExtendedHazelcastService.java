@@ -22,18 +22,24 @@ import com.hazelcast.cluster.Member;
 import com.hazelcast.collection.ISet;
 import com.hazelcast.config.EvictionConfig;
 import com.hazelcast.config.EvictionPolicy;
+import com.hazelcast.config.IndexType;
 import com.hazelcast.config.InMemoryFormat;
 import com.hazelcast.config.MapConfig;
 import com.hazelcast.config.MaxSizePolicy;
 import com.hazelcast.config.NearCacheConfig;
+import com.hazelcast.config.RingbufferConfig;
 import com.hazelcast.config.SerializerConfig;
 import com.hazelcast.core.DistributedObject;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.LifecycleEvent;
 import com.hazelcast.map.IMap;
 import com.hazelcast.replicatedmap.ReplicatedMap;
+import com.hazelcast.ringbuffer.Ringbuffer;
+import no.rutebanken.anshar.data.ChangeTrackerPosition;
+import no.rutebanken.anshar.data.EstimatedVehicleJourneyPatch;
 import no.rutebanken.anshar.data.RequestorRefStats;
 import no.rutebanken.anshar.data.SiriObjectStorageKey;
+import no.rutebanken.anshar.data.SnapshotRestoreProcessor;
 import no.rutebanken.anshar.routes.outbound.OutboundSubscriptionSetup;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
@@ -58,6 +64,7 @@ import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -68,6 +75,27 @@ public class ExtendedHazelcastService extends HazelCastService {
 
     private Logger logger = LoggerFactory.getLogger(ExtendedHazelcastService.class);
 
+    @Value("${anshar.tracking.change.journal.capacity:10000}")
+    private int changeJournalCapacity;
+
+    @Value("${anshar.outbound.polling.tracking.period.minutes:30}")
+    private int trackingPeriodMinutes;
+
+    @Value("${anshar.hazelcast.serializer.compression.et:deflate}")
+    private String etCompression;
+
+    @Value("${anshar.hazelcast.serializer.compression.sx:deflate}")
+    private String sxCompression;
+
+    @Value("${anshar.hazelcast.serializer.compression.vm:deflate}")
+    private String vmCompression;
+
+    @Value("${anshar.hazelcast.serializer.compression.default:deflate}")
+    private String defaultCompression;
+
+    @Value("${anshar.hazelcast.serializer.write.format:" + KryoSerializer.CURRENT_FORMAT + "}")
+    private int serializerWriteFormat;
+
     public ExtendedHazelcastService(@Autowired KubernetesService kubernetesService,
                                     @Value("${entur.hazelcast.backup.count.sync:2}") int backupCountSync) {
         super(kubernetesService);
@@ -102,19 +130,27 @@ public class ExtendedHazelcastService extends HazelCastService {
     @Override
     public List<SerializerConfig> getSerializerConfigs() {
 
+        logger.info("Serializer-format {}, compression ET: {}, SX: {}, VM: {}", serializerWriteFormat, etCompression, sxCompression, vmCompression);
+
         return Arrays.asList(
                 new SerializerConfig()
                     .setTypeClass(EstimatedVehicleJourney.class)
-                    .setImplementation(new KryoSerializer()),
+                    .setImplementation(KryoSerializer.create(etCompression, serializerWriteFormat)),
+                new SerializerConfig()
+                    .setTypeClass(EstimatedVehicleJourneyPatch.class)
+                    .setImplementation(KryoSerializer.create(etCompression, serializerWriteFormat)),
+                new SerializerConfig()
+                    .setTypeClass(SnapshotRestoreProcessor.class)
+                    .setImplementation(KryoSerializer.create(defaultCompression, serializerWriteFormat)),
                 new SerializerConfig()
                     .setTypeClass(PtSituationElement.class)
-                    .setImplementation(new KryoSerializer()),
+                    .setImplementation(KryoSerializer.create(sxCompression, serializerWriteFormat)),
                 new SerializerConfig()
                     .setTypeClass(VehicleActivityStructure.class)
-                    .setImplementation(new KryoSerializer()),
+                    .setImplementation(KryoSerializer.create(vmCompression, serializerWriteFormat)),
                 new SerializerConfig()
                     .setTypeClass(JSONObject.class)
-                    .setImplementation(new KryoSerializer())
+                    .setImplementation(KryoSerializer.create(defaultCompression, serializerWriteFormat))
 
         );
     }
@@ -134,24 +170,54 @@ public class ExtendedHazelcastService extends HazelCastService {
         mapConfig.setNearCacheConfig(nearCacheConfig);
     }
 
+    /**
+     * Adds indexes on codespace and lineRef to allow lookups without scanning all entries
+     */
+    private <T> IMap<SiriObjectStorageKey, T> addKeyIndexes(IMap<SiriObjectStorageKey, T> map) {
+        map.addIndex(IndexType.HASH, SiriObjectStorageKey.CODESPACE_ID_ATTRIBUTE);
+        map.addIndex(IndexType.HASH, SiriObjectStorageKey.LINE_REF_ATTRIBUTE);
+        return map;
+    }
+
+    /**
+     * Change journal expires entries after the tracking period - requestors that have not polled within that period
+     * are no longer tracked anyway
+     */
+    private <T> Ringbuffer<T> getChangeJournal(String name) {
+        hazelcast.getConfig().addRingBufferConfig(new RingbufferConfig(name)
+                .setCapacity(changeJournalCapacity)
+                .setTimeToLiveSeconds(trackingPeriodMinutes * 60));
+        return hazelcast.getRingbuffer(name);
+    }
+
     @Bean
     public IMap<SiriObjectStorageKey, PtSituationElement> getSituationsMap(){
-        return hazelcast.getMap("anshar.sx");
+        return addKeyIndexes(hazelcast.getMap("anshar.sx"));
+    }
+
+    @Bean
+    public IMap<String, ChangeTrackerPosition> getSituationChangesMap() {
+        return hazelcast.getMap("anshar.sx.changes.position");
     }
 
     @Bean
-    public IMap<String, Set<SiriObjectStorageKey>> getSituationChangesMap() {
-        return hazelcast.getMap("anshar.sx.changes");
+    public Ringbuffer<HashSet<SiriObjectStorageKey>> getSituationChangeJournal() {
+        return getChangeJournal("anshar.sx.changes.journal");
     }
 
     @Bean
     public IMap<SiriObjectStorageKey, EstimatedVehicleJourney> getEstimatedTimetablesMap(){
-        return hazelcast.getMap("anshar.et");
+        return addKeyIndexes(hazelcast.getMap("anshar.et"));
+    }
+
+    @Bean
+    public IMap<String, ChangeTrackerPosition> getEstimatedTimetableChangesMap() {
+        return hazelcast.getMap("anshar.et.changes.position");
     }
 
     @Bean
-    public IMap<String, Set<SiriObjectStorageKey>> getEstimatedTimetableChangesMap() {
-        return hazelcast.getMap("anshar.et.changes");
+    public Ringbuffer<HashSet<SiriObjectStorageKey>> getEstimatedTimetableChangeJournal() {
+        return getChangeJournal("anshar.et.changes.journal");
     }
 
     @Bean
@@ -160,18 +226,18 @@ public class ExtendedHazelcastService extends HazelCastService {
     }
 
     @Bean
-    public IMap<SiriObjectStorageKey, String> getSxChecksumMap() {
-        return hazelcast.getMap("anshar.sx.checksum.cache");
+    public IMap<SiriObjectStorageKey, Long> getSxChecksumMap() {
+        return hazelcast.getMap("anshar.sx.fingerprint.cache");
     }
 
     @Bean
-    public IMap<SiriObjectStorageKey, String> getEtChecksumMap() {
-        return hazelcast.getMap("anshar.et.checksum.cache");
+    public IMap<SiriObjectStorageKey, Long> getEtChecksumMap() {
+        return hazelcast.getMap("anshar.et.fingerprint.cache");
     }
 
     @Bean
-    public IMap<SiriObjectStorageKey, String> getVmChecksumMap() {
-        return hazelcast.getMap("anshar.vm.checksum.cache");
+    public IMap<SiriObjectStorageKey, Long> getVmChecksumMap() {
+        return hazelcast.getMap("anshar.vm.fingerprint.cache");
     }
 
     @Bean
@@ -181,12 +247,17 @@ public class ExtendedHazelcastService extends HazelCastService {
 
     @Bean
     public IMap<SiriObjectStorageKey, VehicleActivityStructure> getVehiclesMap(){
-        return hazelcast.getMap("anshar.vm");
+        return addKeyIndexes(hazelcast.getMap("anshar.vm"));
     }
 
     @Bean
-    public IMap<String, Set<SiriObjectStorageKey>> getVehicleChangesMap() {
-        return hazelcast.getMap("anshar.vm.changes");
+    public IMap<String, ChangeTrackerPosition> getVehicleChangesMap() {
+        return hazelcast.getMap("anshar.vm.changes.position");
+    }
+
+    @Bean
+    public Ringbuffer<HashSet<SiriObjectStorageKey>> getVehicleChangeJournal() {
+        return getChangeJournal("anshar.vm.changes.journal");
     }
 
     @Bean
@@ -216,21 +287,6 @@ public class ExtendedHazelcastService extends HazelCastService {
     }
 
 
-    @Bean
-    public IMap<String, Instant> getLastEtUpdateRequest() {
-        return hazelcast.getMap("anshar.activity.last.et.update.request");
-    }
-
-    @Bean
-    public IMap<String, Instant> getLastSxUpdateRequest() {
-        return hazelcast.getMap("anshar.activity.last.sx.update.request");
-    }
-
-    @Bean
-    public IMap<String, Instant> getLastVmUpdateRequest() {
-        return hazelcast.getMap("anshar.activity.last.vm.update.request");
-    }
-
     @Bean
     public IMap<String, Instant> getActivatedTimestampMap() {
         return hazelcast.getMap("anshar.activity.activated");
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data.collections;
+
+import jakarta.xml.bind.annotation.XmlType;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Resolves all classes reachable from the stored SIRI-objects, to allow registering them with Kryo.
+ *
+ * Registered classes are written as a small id instead of the full class name. Classes are sorted by name,
+ * so all nodes running the same version assign the same ids.
+ */
+class KryoRegistrations {
+
+    private static final List<Class<?>> ADDITIONAL_CLASSES = List.of(
+            ArrayList.class,
+            HashMap.class,
+            JSONObject.class,
+            JSONArray.class
+    );
+
+    private KryoRegistrations() {
+    }
+
+    /**
+     * @param roots
+     * @return all classes reachable from the provided classes, sorted by name
+     */
+    static List<Class<?>> resolve(Class<?>... roots) {
+        Set<Class<?>> found = new HashSet<>(ADDITIONAL_CLASSES);
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        for (Class<?> root : roots) {
+            if (found.add(root)) {
+                queue.add(root);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            Class<?> current = queue.poll();
+            while (current != null && current != Object.class) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        collect(field.getGenericType(), found, queue);
+                    }
+                }
+                current = current.getSuperclass();
+                if (current != null && current.isAnnotationPresent(XmlType.class) && found.add(current)) {
+                    queue.add(current);
+                }
+            }
+        }
+
+        List<Class<?>> sorted = new ArrayList<>();
+        for (Class<?> type : found) {
+            if (!type.isInterface() && !Modifier.isAbstract(type.getModifiers())) {
+                sorted.add(type);
+            }
+        }
+        sorted.sort(Comparator.comparing(Class::getName));
+        return sorted;
+    }
+
+    private static void collect(Type type, Set<Class<?>> found, Deque<Class<?>> queue) {
+        if (type instanceof ParameterizedType) {
+            collect(((ParameterizedType) type).getRawType(), found, queue);
+            for (Type argument : ((ParameterizedType) type).getActualTypeArguments()) {
+                collect(argument, found, queue);
+            }
+        } else if (type instanceof WildcardType) {
+            for (Type bound : ((WildcardType) type).getUpperBounds()) {
+                collect(bound, found, queue);
+            }
+        } else if (type instanceof Class) {
+            Class<?> clazz = (Class<?>) type;
+            if (clazz.isArray()) {
+                collect(clazz.getComponentType(), found, queue);
+            } else if (clazz.isAnnotationPresent(XmlType.class) || clazz.isEnum()) {
+                if (found.add(clazz)) {
+                    queue.add(clazz);
+                }
+            } else if (!clazz.isPrimitive() && clazz != Object.class && clazz.getName().startsWith("java.")) {
+                // Value-types like ZonedDateTime, Duration, BigInteger
+                found.add(clazz);
+            }
+        }
+    }
+}
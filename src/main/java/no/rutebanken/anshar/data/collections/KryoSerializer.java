@@ -12,7 +12,6 @@
  * See the Licence for the specific language governing permissions and
  * limitations under the Licence.
  */
-
 package no.rutebanken.anshar.data.collections;
 
 import com.esotericsoftware.kryo.Kryo;
@@ -21,59 +20,322 @@ import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.pool.KryoFactory;
 import com.esotericsoftware.kryo.pool.KryoPool;
 import com.hazelcast.nio.serialization.ByteArraySerializer;
+import com.hazelcast.nio.serialization.HazelcastSerializationException;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.json.simple.JSONObject;
 import org.objenesis.strategy.StdInstantiatorStrategy;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.VehicleActivityStructure;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
+/**
+ * Kryo-based serializer for stored SIRI-objects.
+ *
+ * Current format:
+ *   [magic][format version][compression][registration scheme (int)][uncompressed length (int)][payload]
+ *
+ * All classes reachable from the stored SIRI-objects are pre-registered with ids derived from the class name, and
+ * buffers, Deflaters and Inflaters are reused per thread. Data written in the legacy format (Kryo + DeflaterOutputStream, without header) can always be read.
+ * Writing the legacy format can be enabled to allow rolling upgrades from versions that cannot read the header.
+ */
 public class KryoSerializer implements ByteArraySerializer {
 
-    private static final KryoPool kryoPool;
+    public static final int LEGACY_FORMAT = 0;
+    public static final int CURRENT_FORMAT = 1;
+
+    /**
+     * Legacy format always starts with a zlib-header (0x78)
+     */
+    private static final byte MAGIC = (byte) 0xA5;
+    private static final int HEADER_SIZE = 11;
+
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final List<Class<?>> REGISTERED_CLASSES = KryoRegistrations.resolve(
+            EstimatedVehicleJourney.class,
+            PtSituationElement.class,
+            VehicleActivityStructure.class,
+            JSONObject.class
+    );
+
+    /**
+     * Identifies how registration ids are assigned - ids do not depend on the set of registered classes, so nodes
+     * running different versions of the SIRI-model can read each other's data
+     */
+    static final int REGISTRATION_SCHEME = 2;
+
+    private static final int FIRST_REGISTRATION_ID = 100;
+
+    private static final Map<Class<?>, Integer> REGISTRATION_IDS = assignRegistrationIds(REGISTERED_CLASSES);
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final LZ4Factory lz4Factory = LZ4Factory.fastestInstance();
+
+    private static final ThreadLocal<CodecContext> codecContext = ThreadLocal.withInitial(CodecContext::new);
+
+    private static final KryoPool legacyKryoPool;
 
     static {
-        KryoFactory factory = () -> {
-            Kryo kryo = new Kryo();
-            kryo.setInstantiatorStrategy(new Kryo.DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+        KryoFactory factory = () -> createKryo(false);
+
+        legacyKryoPool = new KryoPool.Builder(factory).softReferences().build();
+    }
+
+    public enum Compression {
+        NONE, DEFLATE, LZ4;
+
+        private static Compression fromId(byte id) {
+            if (id < 0 || id >= values().length) {
+                throw new HazelcastSerializationException("Unknown compression " + id);
+            }
+            return values()[id];
+        }
+    }
+
+    private final Compression compression;
+    private final int compressionLevel;
+    private final int writeFormat;
+
+    public KryoSerializer() {
+        this(Compression.DEFLATE, Deflater.DEFAULT_COMPRESSION, CURRENT_FORMAT);
+    }
+
+    /**
+     * @param compression
+     * @param compressionLevel Deflater-level, only used for DEFLATE
+     * @param writeFormat CURRENT_FORMAT, or LEGACY_FORMAT while older versions are running in the cluster
+     */
+    public KryoSerializer(Compression compression, int compressionLevel, int writeFormat) {
+        if (writeFormat != LEGACY_FORMAT && writeFormat != CURRENT_FORMAT) {
+            throw new IllegalArgumentException("Unsupported format " + writeFormat);
+        }
+        this.compression = compression;
+        this.compressionLevel = compressionLevel;
+        this.writeFormat = writeFormat;
+    }
+
+    /**
+     * Creates serializer from a compression-setting: "none", "lz4", "deflate" or "deflate:<level>"
+     *
+     * @param compressionSetting
+     * @param writeFormat
+     * @return
+     */
+    public static KryoSerializer create(String compressionSetting, int writeFormat) {
+        String[] setting = compressionSetting.trim().toUpperCase(Locale.ROOT).split(":");
+        Compression compression = Compression.valueOf(setting[0]);
+        int level = setting.length > 1 ? Integer.parseInt(setting[1]) : Deflater.DEFAULT_COMPRESSION;
+        return new KryoSerializer(compression, level, writeFormat);
+    }
+
+    private static Kryo createKryo(boolean registerClasses) {
+        Kryo kryo = new Kryo();
+        kryo.setInstantiatorStrategy(new Kryo.DefaultInstantiatorStrategy(new StdInstantiatorStrategy()));
+
+        if (registerClasses) {
+            for (Map.Entry<Class<?>, Integer> registration : REGISTRATION_IDS.entrySet()) {
+                // Keep Kryo's default registrations for e.g. String
+                if (kryo.getClassResolver().getRegistration(registration.getKey()) == null) {
+                    try {
+                        kryo.register(registration.getKey(), registration.getValue());
+                    } catch (IllegalArgumentException e) {
+                        // No serializer available - e.g. classes not accessible through reflection
+                    }
+                }
+            }
+        }
+        return kryo;
+    }
 
-            // configure kryo instance, customize settings
-            return kryo;
-        };
+    /**
+     * Derives the id of each class from its name, so that adding or removing classes does not change the ids of other
+     * classes. Classes with colliding ids are not registered, and are written with their class name.
+     */
+    static Map<Class<?>, Integer> assignRegistrationIds(List<Class<?>> classes) {
+        Map<Integer, List<Class<?>>> byId = new HashMap<>();
+        for (Class<?> type : classes) {
+            int id = FIRST_REGISTRATION_ID + (type.getName().hashCode() & 0x3FFFFFFF);
+            byId.computeIfAbsent(id, i -> new ArrayList<>()).add(type);
+        }
 
-        kryoPool = new KryoPool.Builder(factory).softReferences().build();
+        Map<Class<?>, Integer> ids = new LinkedHashMap<>();
+        byId.forEach((id, types) -> {
+            if (types.size() == 1) {
+                ids.put(types.get(0), id);
+            }
+        });
+        return ids;
     }
 
     @Override
     public byte[] write(Object o) {
-        Kryo kryo = kryoPool.borrow();
+        if (writeFormat == LEGACY_FORMAT) {
+            return writeLegacy(o);
+        }
+
+        final CodecContext context = codecContext.get();
         try {
-                ByteArrayOutputStream byteArrayOutputStream =
-                    new ByteArrayOutputStream();
-                DeflaterOutputStream deflaterOutputStream =
-                    new DeflaterOutputStream(byteArrayOutputStream);
-                Output output = new Output(deflaterOutputStream);
-                kryo.writeClassAndObject(output, o);
-                output.close();
+            final Output output = context.output;
+            output.clear();
+            context.kryo.writeClassAndObject(output, o);
+            output.flush();
 
-            return byteArrayOutputStream.toByteArray();
+            final byte[] raw = output.getBuffer();
+            final int length = output.position();
+
+            final byte[] result;
+            switch (compression) {
+                case DEFLATE:
+                    Deflater deflater = context.deflater;
+                    deflater.reset();
+                    deflater.setLevel(compressionLevel);
+                    deflater.setInput(raw, 0, length);
+                    deflater.finish();
+                    int compressedLength = 0;
+                    byte[] buffer = context.compressionBuffer(length / 2 + 64);
+                    while (!deflater.finished()) {
+                        if (compressedLength == buffer.length) {
+                            buffer = context.compressionBuffer(buffer.length * 2);
+                        }
+                        compressedLength += deflater.deflate(buffer, compressedLength, buffer.length - compressedLength);
+                    }
+                    result = withHeader(buffer, compressedLength, length);
+                    break;
+                case LZ4:
+                    LZ4Compressor compressor = lz4Factory.fastCompressor();
+                    byte[] lz4Buffer = context.compressionBuffer(compressor.maxCompressedLength(length));
+                    int lz4Length = compressor.compress(raw, 0, length, lz4Buffer, 0, lz4Buffer.length);
+                    result = withHeader(lz4Buffer, lz4Length, length);
+                    break;
+                default:
+                    result = withHeader(raw, length, length);
+            }
+            return result;
         } finally {
-            kryoPool.release(kryo);
+            context.releaseLargeBuffers();
         }
     }
 
     @Override
     public Object read(byte[] bytes) {
-        Kryo kryo = kryoPool.borrow();
+        if (bytes.length == 0 || bytes[0] != MAGIC) {
+            return readLegacy(bytes);
+        }
+        if (bytes[1] != CURRENT_FORMAT) {
+            throw new HazelcastSerializationException("Unsupported format " + bytes[1]);
+        }
+        final Compression payloadCompression = Compression.fromId(bytes[2]);
+        final int registrationScheme = readInt(bytes, 3);
+        if (registrationScheme != REGISTRATION_SCHEME) {
+            throw new HazelcastSerializationException("Unsupported registration scheme " + registrationScheme);
+        }
+        final int length = readInt(bytes, 7);
+
+        final CodecContext context = codecContext.get();
+        try {
+            final Input input = context.input;
+            switch (payloadCompression) {
+                case DEFLATE:
+                    Inflater inflater = context.inflater;
+                    inflater.reset();
+                    inflater.setInput(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+                    byte[] inflated = context.compressionBuffer(length);
+                    int inflatedLength = 0;
+                    while (inflatedLength < length && !inflater.finished()) {
+                        int n = inflater.inflate(inflated, inflatedLength, length - inflatedLength);
+                        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            throw new HazelcastSerializationException("Truncated data");
+                        }
+                        inflatedLength += n;
+                    }
+                    input.setBuffer(inflated, 0, length);
+                    break;
+                case LZ4:
+                    byte[] decompressed = context.compressionBuffer(length);
+                    LZ4FastDecompressor decompressor = lz4Factory.fastDecompressor();
+                    decompressor.decompress(bytes, HEADER_SIZE, decompressed, 0, length);
+                    input.setBuffer(decompressed, 0, length);
+                    break;
+                default:
+                    input.setBuffer(bytes, HEADER_SIZE, length);
+            }
+            return context.kryo.readClassAndObject(input);
+        } catch (DataFormatException e) {
+            throw new HazelcastSerializationException(e);
+        } finally {
+            context.input.setBuffer(EMPTY);
+            context.releaseLargeBuffers();
+        }
+    }
+
+    private byte[] withHeader(byte[] payload, int payloadLength, int uncompressedLength) {
+        byte[] result = new byte[HEADER_SIZE + payloadLength];
+        result[0] = MAGIC;
+        result[1] = CURRENT_FORMAT;
+        result[2] = (byte) compression.ordinal();
+        writeInt(result, 3, REGISTRATION_SCHEME);
+        writeInt(result, 7, uncompressedLength);
+        System.arraycopy(payload, 0, result, HEADER_SIZE, payloadLength);
+        return result;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) |
+                ((bytes[offset + 1] & 0xFF) << 16) |
+                ((bytes[offset + 2] & 0xFF) << 8) |
+                (bytes[offset + 3] & 0xFF);
+    }
+
+    private byte[] writeLegacy(Object o) {
+        Kryo kryo = legacyKryoPool.borrow();
+        try {
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(byteArrayOutputStream);
+            Output output = new Output(deflaterOutputStream);
+            kryo.writeClassAndObject(output, o);
+            output.close();
+
+            return byteArrayOutputStream.toByteArray();
+        } finally {
+            legacyKryoPool.release(kryo);
+        }
+    }
 
+    private Object readLegacy(byte[] bytes) {
+        Kryo kryo = legacyKryoPool.borrow();
         try {
-            ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
-            InflaterInputStream in = new InflaterInputStream(byteArrayInputStream);
+            InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes));
 
             Input input = new Input(in);
             return kryo.readClassAndObject(input);
         } finally {
-            kryoPool.release(kryo);
+            legacyKryoPool.release(kryo);
         }
     }
 
@@ -86,4 +348,35 @@ public class KryoSerializer implements ByteArraySerializer {
     public void destroy() {
         //Ignore d
     }
-}
\ No newline at end of file
+
+    /**
+     * Reusable per-thread state
+     */
+    private static class CodecContext {
+        private final Kryo kryo = createKryo(true);
+        private final Deflater deflater = new Deflater();
+        private final Inflater inflater = new Inflater();
+        private final Input input = new Input();
+        private Output output = new Output(INITIAL_BUFFER_SIZE, -1);
+        private byte[] compressionBuffer = new byte[INITIAL_BUFFER_SIZE];
+
+        private byte[] compressionBuffer(int minSize) {
+            if (compressionBuffer.length < minSize) {
+                compressionBuffer = Arrays.copyOf(compressionBuffer, minSize);
+            }
+            return compressionBuffer;
+        }
+
+        /**
+         * Avoid keeping large buffers after serializing exceptionally large objects
+         */
+        private void releaseLargeBuffers() {
+            if (output.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+                output = new Output(INITIAL_BUFFER_SIZE, -1);
+            }
+            if (compressionBuffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                compressionBuffer = new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+    }
+}
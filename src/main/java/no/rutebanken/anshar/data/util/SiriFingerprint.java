@@ -0,0 +1,253 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data.util;
+
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.annotation.XmlType;
+import org.w3c.dom.Node;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Calculates a 64-bit structural fingerprint of a JAXB-generated SIRI object graph.
+ *
+ * The graph is walked field by field, and every value is mixed directly into the hash - no intermediate
+ * serialization or byte arrays are created. Fields listed as ignored for a declaring class are skipped,
+ * so e.g. RecordedAtTime can be left out without temporarily modifying the object.
+ *
+ * Instances are immutable and thread-safe.
+ */
+public class SiriFingerprint {
+
+    private static final long SEED = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x9E3779B97F4A7C15L;
+
+    private static final long NULL_MARKER = 0x5bd1e9955bd1e995L;
+
+    private static final int MAX_DEPTH = 64;
+
+    private final Map<Class<?>, Set<String>> ignoredFields;
+
+    private final ClassValue<Field[]> fieldCache = new ClassValue<>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            return resolveFields(type);
+        }
+    };
+
+    private SiriFingerprint(Map<Class<?>, Set<String>> ignoredFields) {
+        this.ignoredFields = ignoredFields;
+    }
+
+    /**
+     * @return fingerprint including all fields
+     */
+    public static SiriFingerprint create() {
+        return new SiriFingerprint(Collections.emptyMap());
+    }
+
+    /**
+     * @param declaringClass class that declares the ignored fields
+     * @param fieldNames     names of fields that should not affect the fingerprint
+     * @return fingerprint that skips the given fields
+     */
+    public static SiriFingerprint ignoring(Class<?> declaringClass, String... fieldNames) {
+        return create().andIgnoring(declaringClass, fieldNames);
+    }
+
+    public SiriFingerprint andIgnoring(Class<?> declaringClass, String... fieldNames) {
+        Map<Class<?>, Set<String>> ignored = new HashMap<>(ignoredFields);
+        for (String fieldName : fieldNames) {
+            try {
+                declaringClass.getDeclaredField(fieldName);
+            } catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException("Unknown field " + fieldName + " in " + declaringClass.getName(), e);
+            }
+        }
+        ignored.put(declaringClass, Set.of(fieldNames));
+        return new SiriFingerprint(Map.copyOf(ignored));
+    }
+
+    /**
+     * Calculates the fingerprint of the provided object
+     * @param object
+     * @return
+     */
+    public long calculate(Object object) {
+        return hashValue(SEED, object, 0);
+    }
+
+    private long hashValue(long h, Object value, int depth) {
+        if (value == null) {
+            return mix(h, NULL_MARKER);
+        }
+        if (value instanceof String) {
+            return hashString(h, (String) value);
+        }
+        if (value instanceof Boolean) {
+            return mix(h, ((Boolean) value) ? 1231 : 1237);
+        }
+        if (value instanceof Enum) {
+            return hashString(h, ((Enum<?>) value).name());
+        }
+        if (value instanceof ZonedDateTime) {
+            ZonedDateTime time = (ZonedDateTime) value;
+            h = mix(h, time.toEpochSecond());
+            h = mix(h, time.getNano());
+            return hashString(h, time.getZone().getId());
+        }
+        if (value instanceof BigInteger) {
+            BigInteger bigInteger = (BigInteger) value;
+            return bigInteger.bitLength() < 64 ? mix(h, bigInteger.longValue()) : mix(h, bigInteger.hashCode());
+        }
+        if (value instanceof BigDecimal) {
+            BigDecimal bigDecimal = (BigDecimal) value;
+            h = mix(h, bigDecimal.scale());
+            return hashValue(h, bigDecimal.unscaledValue(), depth);
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return mix(h, Double.doubleToLongBits(((Number) value).doubleValue()));
+        }
+        if (value instanceof Number) {
+            return mix(h, ((Number) value).longValue());
+        }
+        if (value instanceof Duration) {
+            Duration duration = (Duration) value;
+            h = mix(h, duration.getSeconds());
+            return mix(h, duration.getNano());
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            h = mix(h, list.size());
+            for (int i = 0; i < list.size(); i++) {
+                h = hashValue(h, list.get(i), depth + 1);
+            }
+            return h;
+        }
+        if (value instanceof Collection) {
+            // Unordered - combine element-hashes commutatively
+            Collection<?> collection = (Collection<?>) value;
+            long sum = 0;
+            for (Object element : collection) {
+                sum += hashValue(SEED, element, depth + 1);
+            }
+            h = mix(h, collection.size());
+            return mix(h, sum);
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            long sum = 0;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                sum += hashValue(hashValue(SEED, entry.getKey(), depth + 1), entry.getValue(), depth + 1);
+            }
+            h = mix(h, map.size());
+            return mix(h, sum);
+        }
+        if (value instanceof JAXBElement) {
+            JAXBElement<?> element = (JAXBElement<?>) value;
+            h = hashValue(h, element.getName(), depth);
+            return hashValue(h, element.getValue(), depth + 1);
+        }
+        if (value instanceof Node) {
+            Node node = (Node) value;
+            h = hashValue(h, node.getNodeName(), depth);
+            return hashValue(h, node.getTextContent(), depth);
+        }
+
+        Class<?> type = value.getClass();
+        if (depth < MAX_DEPTH && isStructure(type)) {
+            h = mix(h, type.getName().hashCode());
+            for (Field field : fieldCache.get(type)) {
+                h = hashField(h, field, value, depth);
+            }
+            return h;
+        }
+
+        // Other value-types (QName, LocalTime etc.) provide a stable hashCode
+        return mix(h, value.hashCode());
+    }
+
+    private long hashField(long h, Field field, Object owner, int depth) {
+        try {
+            Class<?> fieldType = field.getType();
+            if (fieldType.isPrimitive()) {
+                if (fieldType == boolean.class) {
+                    return mix(h, field.getBoolean(owner) ? 1231 : 1237);
+                }
+                if (fieldType == double.class || fieldType == float.class) {
+                    return mix(h, Double.doubleToLongBits(field.getDouble(owner)));
+                }
+                if (fieldType == char.class) {
+                    return mix(h, field.getChar(owner));
+                }
+                return mix(h, field.getLong(owner));
+            }
+            return hashValue(h, field.get(owner), depth + 1);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to read field " + field, e);
+        }
+    }
+
+    private static long hashString(long h, String value) {
+        h = mix(h, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * PRIME;
+        }
+        return mix(h, 0);
+    }
+
+    private static long mix(long h, long value) {
+        h = (h ^ value) * PRIME;
+        return h ^ (h >>> 32);
+    }
+
+    private static boolean isStructure(Class<?> type) {
+        return type.isAnnotationPresent(XmlType.class);
+    }
+
+    private Field[] resolveFields(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        Class<?> current = type;
+        while (current != null && current != Object.class) {
+            Set<String> ignored = ignoredFields.getOrDefault(current, Collections.emptySet());
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+                if (ignored.contains(field.getName())) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+            current = current.getSuperclass();
+        }
+        return fields.toArray(new Field[0]);
+    }
+}
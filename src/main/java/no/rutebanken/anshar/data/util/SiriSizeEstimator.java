@@ -0,0 +1,154 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data.util;
+
+import jakarta.xml.bind.JAXBElement;
+import jakarta.xml.bind.annotation.XmlType;
+import org.w3c.dom.Node;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the heap-size in bytes of a JAXB-generated SIRI object graph.
+ *
+ * The estimate assumes a 64-bit JVM with compressed references, and is only intended for weighing cache-entries
+ * against each other - not for exact accounting. Enums and Booleans are shared instances, and are not counted.
+ */
+public class SiriSizeEstimator {
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int REFERENCE = 4;
+    private static final int ARRAY_HEADER = 16;
+
+    // String + backing byte-array
+    private static final int STRING_OVERHEAD = 24 + ARRAY_HEADER;
+
+    // ZonedDateTime + LocalDateTime + LocalDate + LocalTime - ZoneId is shared
+    private static final int ZONED_DATE_TIME = 24 + 24 + 24 + 24;
+
+    private static final int MAX_DEPTH = 64;
+
+    private static final ClassValue<Field[]> fieldCache = new ClassValue<>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            return resolveFields(type);
+        }
+    };
+
+    private SiriSizeEstimator() {
+    }
+
+    /**
+     * @param object
+     * @return estimated size in bytes
+     */
+    public static long estimate(Object object) {
+        return estimate(object, 0);
+    }
+
+    private static long estimate(Object value, int depth) {
+        if (value == null || value instanceof Boolean || value instanceof Enum) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return align(STRING_OVERHEAD + ((String) value).length());
+        }
+        if (value instanceof ZonedDateTime) {
+            return ZONED_DATE_TIME;
+        }
+        if (value instanceof BigInteger) {
+            return align(OBJECT_HEADER + 16) + align(ARRAY_HEADER + ((BigInteger) value).bitLength() / 8);
+        }
+        if (value instanceof BigDecimal) {
+            return align(OBJECT_HEADER + 24) + estimate(((BigDecimal) value).unscaledValue(), depth);
+        }
+        if (value instanceof Number || value instanceof Duration) {
+            return 24;
+        }
+        if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            long size = align(OBJECT_HEADER + 12) + align(ARRAY_HEADER + (long) REFERENCE * collection.size());
+            for (Object element : collection) {
+                size += estimate(element, depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            long size = 48 + align(ARRAY_HEADER + (long) REFERENCE * map.size()) + 32L * map.size();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                size += estimate(entry.getKey(), depth + 1) + estimate(entry.getValue(), depth + 1);
+            }
+            return size;
+        }
+        if (value instanceof JAXBElement) {
+            JAXBElement<?> element = (JAXBElement<?>) value;
+            return 32 + estimate(element.getValue(), depth + 1);
+        }
+        if (value instanceof Node) {
+            String textContent = ((Node) value).getTextContent();
+            return 256 + (textContent != null ? 2L * textContent.length() : 0);
+        }
+
+        Class<?> type = value.getClass();
+        if (depth < MAX_DEPTH && type.isAnnotationPresent(XmlType.class)) {
+            Field[] fields = fieldCache.get(type);
+            long size = align(OBJECT_HEADER + (long) REFERENCE * fields.length);
+            try {
+                for (Field field : fields) {
+                    if (!field.getType().isPrimitive()) {
+                        size += estimate(field.get(value), depth + 1);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Unable to read field of " + type, e);
+            }
+            return size;
+        }
+
+        // Other value-types (QName, LocalTime etc.)
+        return 32;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static Field[] resolveFields(Class<?> type) {
+        List<Field> fields = new ArrayList<>();
+        Class<?> current = type;
+        while (current != null && current != Object.class) {
+            for (Field field : current.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+            current = current.getSuperclass();
+        }
+        return fields.toArray(new Field[0]);
+    }
+}
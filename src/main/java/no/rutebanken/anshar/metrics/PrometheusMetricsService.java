@@ -24,6 +24,9 @@ import io.micrometer.prometheus.PrometheusMeterRegistry;
 import no.rutebanken.anshar.data.EstimatedTimetables;
 import no.rutebanken.anshar.data.Situations;
 import no.rutebanken.anshar.data.VehicleActivities;
+import no.rutebanken.anshar.routes.outbound.OutboundDispatcher;
+import no.rutebanken.anshar.routes.outbound.OutboundPushTimings;
+import no.rutebanken.anshar.routes.siri.InboundRequestScheduler;
 import no.rutebanken.anshar.routes.siri.transformer.ApplicationContextHolder;
 import no.rutebanken.anshar.routes.siri.transformer.MappingNames;
 import no.rutebanken.anshar.routes.validation.ValidationType;
@@ -44,8 +47,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static no.rutebanken.anshar.subscription.SubscriptionSetup.SubscriptionMode.AVRO_PUBSUB;
 
@@ -83,6 +85,33 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
     private static final String SUBSCRIPTION_OUTBOUND_COUNTER_NAME = METRICS_PREFIX + "subscription.outbound";
     private static final String SUBSCRIPTION_OUTBOUND_CONCURRENT_REQUESTS = METRICS_PREFIX + "concurrent.outbound.requests";
     private static final String SUBSCRIPTION_OUTBOUND_QUEUE = METRICS_PREFIX + "concurrent.outbound.queue";
+    private static final String SUBSCRIPTION_OUTBOUND_QUEUE_WAIT_TIMER_NAME = METRICS_PREFIX + "outbound.queue.wait";
+    private static final String SUBSCRIPTION_OUTBOUND_PUSH_TIMER_NAME = METRICS_PREFIX + "outbound.push";
+    private static final String SUBSCRIPTION_OUTBOUND_DROPPED_COUNTER_NAME = METRICS_PREFIX + "outbound.dropped";
+    private static final String SUBSCRIPTION_OUTBOUND_HTTP_QUEUE_TIMER_NAME = METRICS_PREFIX + "outbound.http.queue";
+    private static final String SUBSCRIPTION_OUTBOUND_HTTP_CONNECT_TIMER_NAME = METRICS_PREFIX + "outbound.http.connect";
+    private static final String SUBSCRIPTION_OUTBOUND_HTTP_TLS_TIMER_NAME = METRICS_PREFIX + "outbound.http.tls";
+    private static final String SUBSCRIPTION_OUTBOUND_HTTP_FIRST_BYTE_TIMER_NAME = METRICS_PREFIX + "outbound.http.first.byte";
+    private static final String SUBSCRIPTION_OUTBOUND_HTTP_TOTAL_TIMER_NAME = METRICS_PREFIX + "outbound.http.total";
+    private static final String INBOUND_QUEUE = METRICS_PREFIX + "inbound.queue";
+    private static final String INBOUND_QUEUE_WAIT_TIMER_NAME = METRICS_PREFIX + "inbound.queue.wait";
+    private static final String INBOUND_REJECTED_COUNTER_NAME = METRICS_PREFIX + "inbound.rejected";
+    private static final String POLLING_UNCHANGED_COUNTER_NAME = METRICS_PREFIX + "polling.unchanged";
+
+    private static final String CHANGE_TRACKER_QUEUE = METRICS_PREFIX + "changetracker.queue";
+    private static final String CHANGE_TRACKER_COALESCED_COUNTER_NAME = METRICS_PREFIX + "changetracker.coalesced";
+    private static final String CHANGE_TRACKER_LATENCY_TIMER_NAME = METRICS_PREFIX + "changetracker.latency";
+    private static final String CHANGE_TRACKER_FLUSH_TIMER_NAME = METRICS_PREFIX + "changetracker.flush";
+
+    private static final String WRITE_BEHIND_QUEUE = METRICS_PREFIX + "writebehind.queue";
+    private static final String WRITE_BEHIND_UPDATES_COUNTER_NAME = METRICS_PREFIX + "writebehind.updates";
+    private static final String WRITE_BEHIND_LATENCY_TIMER_NAME = METRICS_PREFIX + "writebehind.latency";
+    private static final String WRITE_BEHIND_FLUSH_TIMER_NAME = METRICS_PREFIX + "writebehind.flush";
+
+    private static final String LOCAL_CACHE_REQUESTS_COUNTER_NAME = METRICS_PREFIX + "cache.local.requests";
+    private static final String LOCAL_CACHE_EVICTIONS_COUNTER_NAME = METRICS_PREFIX + "cache.local.evictions";
+    private static final String LOCAL_CACHE_SIZE = METRICS_PREFIX + "cache.local.size";
+    private static final String LOCAL_CACHE_BYTES = METRICS_PREFIX + "cache.local.bytes";
 
     private static final String DATA_MAPPING_COUNTER_NAME = METRICS_PREFIX + "data.mapping";
 
@@ -95,7 +124,6 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
 
     @Value("${anshar.metrics.include.failing.subscriptions:false}")
     private boolean includeSubscriptionFailingMetrics;
-    private Map<String, ExecutorService> outboundThreadFactoryMap;
 
     public PrometheusMetricsService() {
         super(PrometheusConfig.DEFAULT);
@@ -241,6 +269,125 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         counter(SUBSCRIPTION_OUTBOUND_COUNTER_NAME, counterTags).increment(1);
     }
 
+    /**
+     * @param subscriptionId
+     * @param waitMillis time the delivery was queued before processing started
+     */
+    public void registerInboundQueueWait(String subscriptionId, long waitMillis) {
+        timer(INBOUND_QUEUE_WAIT_TIMER_NAME, List.of(new ImmutableTag("subscriptionId", subscriptionId)))
+                .record(waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void registerRejectedInboundRequest(String subscriptionId, String reason) {
+        counter(INBOUND_REJECTED_COUNTER_NAME, List.of(new ImmutableTag("subscriptionId", subscriptionId), new ImmutableTag("reason", reason))).increment();
+    }
+
+    public void registerOutboundPush(String subscriptionId, long waitMillis, long pushMillis) {
+        List<Tag> tags = List.of(new ImmutableTag("subscriptionId", subscriptionId));
+        timer(SUBSCRIPTION_OUTBOUND_QUEUE_WAIT_TIMER_NAME, tags).record(waitMillis, TimeUnit.MILLISECONDS);
+        timer(SUBSCRIPTION_OUTBOUND_PUSH_TIMER_NAME, tags).record(pushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param subscriptionId
+     * @param reason "queueFull" when the oldest queued push was dropped, "coalesced" when replaced by a newer push
+     */
+    public void registerDroppedOutboundPush(String subscriptionId, String reason) {
+        counter(SUBSCRIPTION_OUTBOUND_DROPPED_COUNTER_NAME, List.of(new ImmutableTag("subscriptionId", subscriptionId), new ImmutableTag("reason", reason))).increment();
+    }
+
+    /**
+     * Records the phases of a push - connect and TLS are only recorded when a new connection is established
+     * @param subscriptionId
+     * @param timings
+     */
+    public void registerOutboundHttpTimings(String subscriptionId, OutboundPushTimings timings) {
+        List<Tag> tags = List.of(new ImmutableTag("subscriptionId", subscriptionId));
+        if (timings.getQueueMillis() >= 0) {
+            timer(SUBSCRIPTION_OUTBOUND_HTTP_QUEUE_TIMER_NAME, tags).record(timings.getQueueMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (timings.getConnectMillis() >= 0) {
+            timer(SUBSCRIPTION_OUTBOUND_HTTP_CONNECT_TIMER_NAME, tags).record(timings.getConnectMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (timings.getTlsMillis() >= 0) {
+            timer(SUBSCRIPTION_OUTBOUND_HTTP_TLS_TIMER_NAME, tags).record(timings.getTlsMillis(), TimeUnit.MILLISECONDS);
+        }
+        if (timings.getFirstByteMillis() >= 0) {
+            timer(SUBSCRIPTION_OUTBOUND_HTTP_FIRST_BYTE_TIMER_NAME, tags).record(timings.getFirstByteMillis(), TimeUnit.MILLISECONDS);
+        }
+        List<Tag> totalTags = List.of(
+                new ImmutableTag("subscriptionId", subscriptionId),
+                new ImmutableTag("protocol", timings.getProtocol() != null ? timings.getProtocol() : "none")
+        );
+        if (timings.getTotalMillis() >= 0) {
+            timer(SUBSCRIPTION_OUTBOUND_HTTP_TOTAL_TIMER_NAME, totalTags).record(timings.getTotalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param subscriptionSetup
+     * @param reason "notModified" when the provider returned 304, "hash" when the response was identical to the previous
+     */
+    public void registerUnchangedPollingResponse(SubscriptionSetup subscriptionSetup, String reason) {
+        List<Tag> counterTags = new ArrayList<>();
+        counterTags.add(new ImmutableTag(DATATYPE_TAG_NAME, subscriptionSetup.getSubscriptionType().name()));
+        counterTags.add(new ImmutableTag("subscriptionId", subscriptionSetup.getSubscriptionId()));
+        counterTags.add(new ImmutableTag("reason", reason));
+
+        counter(POLLING_UNCHANGED_COUNTER_NAME, counterTags).increment();
+    }
+
+    public void registerCoalescedChangeTrackerUpdate(SiriDataType dataType) {
+        counter(CHANGE_TRACKER_COALESCED_COUNTER_NAME, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()))).increment();
+    }
+
+    /**
+     * @param dataType
+     * @param latencyMillis time from change-tracker update was submitted until it was stored
+     */
+    public void registerChangeTrackerUpdateLatency(SiriDataType dataType, long latencyMillis) {
+        timer(CHANGE_TRACKER_LATENCY_TIMER_NAME, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name())))
+                .record(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void registerChangeTrackerFlush(SiriDataType dataType, long durationMillis) {
+        timer(CHANGE_TRACKER_FLUSH_TIMER_NAME, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name())))
+                .record(durationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param dataType
+     * @param latencyMillis time from the first coalesced update was received until it was stored
+     */
+    public void registerWriteBehindLatency(SiriDataType dataType, long latencyMillis) {
+        timer(WRITE_BEHIND_LATENCY_TIMER_NAME, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name())))
+                .record(latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Coalescing ratio is given by received/written updates
+     *
+     * @param dataType
+     * @param durationMillis
+     * @param received updates received since previous flush
+     * @param written updates written to the cluster
+     */
+    public void registerWriteBehindFlush(SiriDataType dataType, long durationMillis, int received, int written) {
+        timer(WRITE_BEHIND_FLUSH_TIMER_NAME, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name())))
+                .record(durationMillis, TimeUnit.MILLISECONDS);
+        counter(WRITE_BEHIND_UPDATES_COUNTER_NAME, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()), new ImmutableTag("result", "received"))).increment(received);
+        counter(WRITE_BEHIND_UPDATES_COUNTER_NAME, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()), new ImmutableTag("result", "written"))).increment(written);
+    }
+
+    public void registerLocalCacheRequests(SiriDataType dataType, int hits, int misses) {
+        counter(LOCAL_CACHE_REQUESTS_COUNTER_NAME, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()), new ImmutableTag("result", "hit"))).increment(hits);
+        counter(LOCAL_CACHE_REQUESTS_COUNTER_NAME, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()), new ImmutableTag("result", "miss"))).increment(misses);
+    }
+
+    public void registerLocalCacheEviction(SiriDataType dataType) {
+        counter(LOCAL_CACHE_EVICTIONS_COUNTER_NAME, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()))).increment();
+    }
+
     final Map<String, Integer> gaugeValues = new HashMap<>();
 
     public void gaugeDataset(SiriDataType subscriptionType, String agencyId, Integer count) {
@@ -255,6 +402,20 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         gauge(DATA_COUNTER_NAME, counterTags, key, value -> gaugeValues.get(key));
     }
 
+    private void gaugeChangeTrackerQueue(SiriDataType dataType, int queueSize) {
+        gauge(CHANGE_TRACKER_QUEUE, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name())), queueSize);
+    }
+
+    private void gaugeWriteBehindQueue(SiriDataType dataType, int queueSize) {
+        gauge(WRITE_BEHIND_QUEUE, List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name())), queueSize);
+    }
+
+    private void gaugeLocalCache(SiriDataType dataType, long size, long bytes) {
+        List<Tag> tags = List.of(new ImmutableTag(DATATYPE_TAG_NAME, dataType.name()));
+        gauge(LOCAL_CACHE_SIZE, tags, size);
+        gauge(LOCAL_CACHE_BYTES, tags, bytes);
+    }
+
     @Override
     public String scrape() {
         update();
@@ -273,6 +434,18 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
             if (SUBSCRIPTION_OUTBOUND_QUEUE.equals(meter.getId().getName())) {
                 this.remove(meter);
             }
+            if (CHANGE_TRACKER_QUEUE.equals(meter.getId().getName())) {
+                this.remove(meter);
+            }
+            if (WRITE_BEHIND_QUEUE.equals(meter.getId().getName())) {
+                this.remove(meter);
+            }
+            if (LOCAL_CACHE_SIZE.equals(meter.getId().getName()) || LOCAL_CACHE_BYTES.equals(meter.getId().getName())) {
+                this.remove(meter);
+            }
+            if (INBOUND_QUEUE.equals(meter.getId().getName())) {
+                this.remove(meter);
+            }
         }
 
         EstimatedTimetables estimatedTimetables = ApplicationContextHolder.getContext().getBean(EstimatedTimetables.class);
@@ -293,12 +466,28 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
             gaugeDataset(SiriDataType.VEHICLE_MONITORING, entry.getKey(), entry.getValue());
         }
 
-        for (Map.Entry<String, ExecutorService> entry : outboundThreadFactoryMap.entrySet()) {
-            List<Tag> counterTags = new ArrayList<>();
-            counterTags.add(new ImmutableTag("subscriptionId", entry.getKey()));
-            ThreadPoolExecutor executor = (ThreadPoolExecutor) entry.getValue();
-            gauge(SUBSCRIPTION_OUTBOUND_CONCURRENT_REQUESTS, counterTags, executor.getActiveCount());
-            gauge(SUBSCRIPTION_OUTBOUND_QUEUE, counterTags, executor.getQueue().size());
+        gaugeChangeTrackerQueue(SiriDataType.ESTIMATED_TIMETABLE, estimatedTimetables.getPendingTrackerUpdateCount());
+        gaugeChangeTrackerQueue(SiriDataType.SITUATION_EXCHANGE, situations.getPendingTrackerUpdateCount());
+        gaugeChangeTrackerQueue(SiriDataType.VEHICLE_MONITORING, vehicleActivities.getPendingTrackerUpdateCount());
+
+        gaugeWriteBehindQueue(SiriDataType.ESTIMATED_TIMETABLE, estimatedTimetables.getPendingWriteCount());
+        gaugeWriteBehindQueue(SiriDataType.VEHICLE_MONITORING, vehicleActivities.getPendingWriteCount());
+
+        gaugeLocalCache(SiriDataType.ESTIMATED_TIMETABLE, estimatedTimetables.getLocalCacheSize(), estimatedTimetables.getLocalCacheWeight());
+        gaugeLocalCache(SiriDataType.SITUATION_EXCHANGE, situations.getLocalCacheSize(), situations.getLocalCacheWeight());
+        gaugeLocalCache(SiriDataType.VEHICLE_MONITORING, vehicleActivities.getLocalCacheSize(), vehicleActivities.getLocalCacheWeight());
+
+        InboundRequestScheduler inboundRequestScheduler = ApplicationContextHolder.getContext().getBean(InboundRequestScheduler.class);
+        for (Map.Entry<String, Integer> entry : inboundRequestScheduler.getQueueDepths().entrySet()) {
+            gauge(INBOUND_QUEUE, List.of(new ImmutableTag("subscriptionId", entry.getKey())), entry.getValue());
+        }
+
+        OutboundDispatcher outboundDispatcher = ApplicationContextHolder.getContext().getBean(OutboundDispatcher.class);
+        for (Map.Entry<String, Integer> entry : outboundDispatcher.getInFlight().entrySet()) {
+            gauge(SUBSCRIPTION_OUTBOUND_CONCURRENT_REQUESTS, List.of(new ImmutableTag("subscriptionId", entry.getKey())), entry.getValue());
+        }
+        for (Map.Entry<String, Integer> entry : outboundDispatcher.getQueueDepths().entrySet()) {
+            gauge(SUBSCRIPTION_OUTBOUND_QUEUE, List.of(new ImmutableTag("subscriptionId", entry.getKey())), entry.getValue());
         }
 
         if (includeSubscriptionFailingMetrics) {
@@ -351,8 +540,4 @@ public class PrometheusMetricsService extends PrometheusMeterRegistry {
         }
         return 0;
     }
-
-    public void registerOutboundThreadFactoryMap(Map<String, ExecutorService> threadFactoryMap) {
-        this.outboundThreadFactoryMap = threadFactoryMap;
-    }
 }
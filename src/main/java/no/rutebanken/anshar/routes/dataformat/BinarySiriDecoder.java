@@ -0,0 +1,77 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.dataformat;
+
+import org.entur.avro.realtime.siri.converter.Converter;
+import org.entur.avro.realtime.siri.model.SiriRecord;
+import org.entur.protobuf.mapper.SiriMapper;
+import uk.org.siri.siri21.Siri;
+
+import java.io.IOException;
+
+/**
+ * Converts incoming protobuf- and Avro-encoded SIRI to the JAXB-model.
+ *
+ * Avro is converted directly to SIRI 2.1 objects. Protobuf is mapped to SIRI 2.0 objects, which are then mapped
+ * to SIRI 2.1 objects by {@link Siri20To21Mapper} - neither format is written or parsed as XML.
+ */
+public class BinarySiriDecoder {
+
+    public static final String PROTOBUF_CONTENT_TYPE = "application/x-protobuf";
+    public static final String AVRO_CONTENT_TYPE = "application/avro";
+
+    private BinarySiriDecoder() {
+    }
+
+    /**
+     * @return true if the content type is one of the supported binary formats - parameters are ignored
+     */
+    public static boolean isBinary(String contentType) {
+        String mediaType = getMediaType(contentType);
+        return PROTOBUF_CONTENT_TYPE.equals(mediaType) || AVRO_CONTENT_TYPE.equals(mediaType);
+    }
+
+    public static Siri decode(String contentType, byte[] body) throws IOException {
+        String mediaType = getMediaType(contentType);
+        if (PROTOBUF_CONTENT_TYPE.equals(mediaType)) {
+            return decodeProtobuf(body);
+        }
+        if (AVRO_CONTENT_TYPE.equals(mediaType)) {
+            return Converter.avro2Jaxb(SiriRecord.getDecoder().decode(body));
+        }
+        throw new IllegalArgumentException("Unsupported content type: " + contentType);
+    }
+
+    private static Siri decodeProtobuf(byte[] body) throws IOException {
+        uk.org.siri.siri20.Siri siri20 = SiriMapper.mapToJaxb(body);
+        try {
+            return Siri20To21Mapper.map(siri20);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Could not convert protobuf to SIRI 2.1", e);
+        }
+    }
+
+    private static String getMediaType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int parameterStart = contentType.indexOf(';');
+        if (parameterStart >= 0) {
+            contentType = contentType.substring(0, parameterStart);
+        }
+        return contentType.trim().toLowerCase();
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.dataformat;
+
+import jakarta.xml.bind.JAXBElement;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps SIRI 2.0-objects to the corresponding SIRI 2.1-objects directly - without writing and parsing XML.
+ *
+ * The two JAXB-models are generated from nearly identical schemas, so each SIRI 2.0-class is mapped to the SIRI
+ * 2.1-class with the same name, field by field. Where a class has been renamed in SIRI 2.1 - e.g. StopPointRef to
+ * StopPointRefStructure - the type of the SIRI 2.1-field is used instead. Fields that do not exist in SIRI 2.1, or whose values can not be
+ * mapped to the SIRI 2.1-type, are dropped. Enum-values are mapped by name. Values of other classes - e.g. String,
+ * ZonedDateTime and Duration - are shared between the original and the result.
+ *
+ * Mappings are resolved once for each class, and shared between threads.
+ */
+final class Siri20To21Mapper {
+
+    private static final String SOURCE_PACKAGE = ".siri20.";
+    private static final String TARGET_PACKAGE = ".siri21.";
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    private static final Map<Class<?>, Optional<Class<?>>> targetClasses = new ConcurrentHashMap<>();
+
+    private static final Map<Class<?>, Map<Class<?>, ClassMapping>> classMappings = new ConcurrentHashMap<>();
+
+    private Siri20To21Mapper() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if the object could not be mapped
+     */
+    static uk.org.siri.siri21.Siri map(uk.org.siri.siri20.Siri siri) {
+        try {
+            return (uk.org.siri.siri21.Siri) mapValue(siri, uk.org.siri.siri21.Siri.class);
+        } catch (Throwable e) {
+            throw new IllegalArgumentException("Unable to map SIRI 2.0 to SIRI 2.1", e);
+        }
+    }
+
+    /**
+     * @param targetType the type the result is assigned to - null if unknown
+     */
+    private static Object mapValue(Object value, Class<?> targetType) throws Throwable {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> mapped = new ArrayList<>(list.size());
+            for (Object element : list) {
+                mapped.add(mapValue(element, targetType));
+            }
+            return mapped;
+        }
+        if (value instanceof JAXBElement) {
+            return mapElement((JAXBElement<?>) value);
+        }
+        if (!value.getClass().getName().contains(SOURCE_PACKAGE)) {
+            // Not a SIRI 2.0-class - shared
+            return value;
+        }
+        Class<?> targetClass = getTargetClass(value.getClass());
+        if (targetType != null && targetType.getName().contains(TARGET_PACKAGE)
+                && (targetClass == null || !targetType.isAssignableFrom(targetClass))) {
+            // Renamed in SIRI 2.1
+            targetClass = targetType;
+        }
+        if (targetClass == null) {
+            return null;
+        }
+        if (value instanceof Enum) {
+            return mapEnum((Enum<?>) value, targetClass);
+        }
+        if (Modifier.isAbstract(targetClass.getModifiers()) || targetClass.isEnum()) {
+            return null;
+        }
+        return classMappings.computeIfAbsent(value.getClass(), c -> new ConcurrentHashMap<>())
+                .computeIfAbsent(targetClass, t -> createClassMapping(value.getClass(), t))
+                .map(value);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object mapElement(JAXBElement<?> element) throws Throwable {
+        Class<?> declaredType = mapClass(element.getDeclaredType());
+        Object value = mapValue(element.getValue(), declaredType);
+        if (declaredType == null || (value != null && !declaredType.isInstance(value))) {
+            return null;
+        }
+        JAXBElement mapped = new JAXBElement(element.getName(), declaredType, mapClass(element.getScope()), value);
+        mapped.setNil(element.isNil());
+        return mapped;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object mapEnum(Enum<?> value, Class<?> targetClass) {
+        if (!targetClass.isEnum()) {
+            return null;
+        }
+        try {
+            return Enum.valueOf((Class<? extends Enum>) targetClass, value.name());
+        } catch (IllegalArgumentException e) {
+            // Value removed in SIRI 2.1
+            return null;
+        }
+    }
+
+    /**
+     * @return the SIRI 2.1-class, the class itself if it is not a SIRI 2.0-class, or null if it does not exist in SIRI 2.1
+     */
+    private static Class<?> mapClass(Class<?> clazz) {
+        if (clazz == null || !clazz.getName().contains(SOURCE_PACKAGE)) {
+            return clazz;
+        }
+        return getTargetClass(clazz);
+    }
+
+    /**
+     * @return the SIRI 2.1-class with the same name - null if the class is not a SIRI 2.0-class, or does not exist
+     */
+    private static Class<?> getTargetClass(Class<?> clazz) {
+        if (!clazz.getName().contains(SOURCE_PACKAGE)) {
+            return null;
+        }
+        return targetClasses.computeIfAbsent(clazz, c -> {
+            try {
+                return Optional.of(Class.forName(c.getName().replace(SOURCE_PACKAGE, TARGET_PACKAGE), false, c.getClassLoader()));
+            } catch (ClassNotFoundException e) {
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
+
+    private static ClassMapping createClassMapping(Class<?> sourceClass, Class<?> targetClass) {
+        Map<String, Field> sourceFields = getFields(sourceClass);
+
+        List<FieldMapping> fields = new ArrayList<>();
+        for (Field targetField : getFields(targetClass).values()) {
+            Field sourceField = sourceFields.get(targetField.getName());
+            if (sourceField != null) {
+                fields.add(new FieldMapping(sourceField, targetField));
+            }
+        }
+        try {
+            MethodHandle constructor = MethodHandles.publicLookup()
+                    .findConstructor(targetClass, MethodType.methodType(void.class))
+                    .asType(CONSTRUCTOR_TYPE);
+            return new ClassMapping(constructor, fields);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException("Unable to create " + targetClass, e);
+        }
+    }
+
+    /**
+     * @return all instance-fields of the class and its superclasses by name - fields of subclasses take precedence
+     */
+    private static Map<String, Field> getFields(Class<?> clazz) {
+        Map<String, Field> fields = new LinkedHashMap<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && !field.isSynthetic()) {
+                    fields.putIfAbsent(field.getName(), field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    private static class ClassMapping {
+        private final MethodHandle constructor;
+        private final List<FieldMapping> fields;
+
+        private ClassMapping(MethodHandle constructor, List<FieldMapping> fields) {
+            this.constructor = constructor;
+            this.fields = fields;
+        }
+
+        private Object map(Object source) throws Throwable {
+            Object target = (Object) constructor.invokeExact();
+            for (FieldMapping field : fields) {
+                Object value = (Object) field.getter.invokeExact(source);
+                if (value == null) {
+                    continue;
+                }
+                Object mapped = field.accept(mapValue(value, field.type));
+                if (mapped != null) {
+                    field.setter.invokeExact(target, mapped);
+                }
+            }
+            return target;
+        }
+    }
+
+    private static class FieldMapping {
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        /**
+         * Type of the field - or element-type for lists, null if the element-type is unknown
+         */
+        private final Class<?> type;
+        private final boolean list;
+
+        private FieldMapping(Field sourceField, Field targetField) {
+            try {
+                sourceField.setAccessible(true);
+                targetField.setAccessible(true);
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                this.getter = lookup.unreflectGetter(sourceField).asType(GETTER_TYPE);
+                this.setter = lookup.unreflectSetter(targetField).asType(SETTER_TYPE);
+            } catch (IllegalAccessException | RuntimeException e) {
+                throw new IllegalStateException("Unable to access " + targetField, e);
+            }
+            this.list = List.class.isAssignableFrom(targetField.getType());
+            this.type = list ? getElementType(targetField) : MethodType.methodType(targetField.getType()).wrap().returnType();
+        }
+
+        /**
+         * @return the value if it can be assigned to the field - lists without elements of other types
+         */
+        private Object accept(Object value) {
+            if (list) {
+                if (!(value instanceof List)) {
+                    return null;
+                }
+                List<?> elements = (List<?>) value;
+                if (type != null) {
+                    elements.removeIf(element -> !type.isInstance(element));
+                }
+                return elements;
+            }
+            return type.isInstance(value) ? value : null;
+        }
+
+        private static Class<?> getElementType(Field field) {
+            Type genericType = field.getGenericType();
+            if (genericType instanceof ParameterizedType) {
+                Type elementType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+                if (elementType instanceof Class) {
+                    return (Class<?>) elementType;
+                }
+                if (elementType instanceof ParameterizedType) {
+                    // E.g. JAXBElement<?>
+                    return (Class<?>) ((ParameterizedType) elementType).getRawType();
+                }
+            }
+            return null;
+        }
+    }
+}
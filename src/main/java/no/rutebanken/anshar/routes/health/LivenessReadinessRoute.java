@@ -16,6 +16,7 @@
 package no.rutebanken.anshar.routes.health;
 
 import com.hazelcast.collection.ISet;
+import no.rutebanken.anshar.data.RealtimeSnapshots;
 import no.rutebanken.anshar.metrics.PrometheusMetricsService;
 import no.rutebanken.anshar.routes.RestRouteBuilder;
 import no.rutebanken.anshar.subscription.SubscriptionManager;
@@ -91,6 +92,9 @@ public class LivenessReadinessRoute extends RestRouteBuilder {
     @Autowired
     private PrometheusMetricsService prometheusRegistry;
 
+    @Autowired
+    private RealtimeSnapshots realtimeSnapshots;
+
     public static boolean triggerRestart;
 
     @Value("${anshar.route.singleton.policy.lockValue:unknown}")
@@ -158,8 +162,16 @@ public class LivenessReadinessRoute extends RestRouteBuilder {
 
         // readiness
         from("direct:ready")
-                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant("200"))
-                .setBody(constant("OK"))
+                .choice()
+                .when(p -> !realtimeSnapshots.isRestoreCompleted())
+                    // No traffic until data from the snapshot has been restored
+                    .setBody(simple("Restoring snapshot"))
+                    .setHeader(Exchange.HTTP_RESPONSE_CODE, constant("503"))
+                .endChoice()
+                .otherwise()
+                    .setBody(constant("OK"))
+                    .setHeader(Exchange.HTTP_RESPONSE_CODE, constant("200"))
+                .end()
                 .routeId("health.ready")
         ;
 
@@ -1,5 +1,6 @@
 package no.rutebanken.anshar.routes.messaging;
 
+import com.google.common.base.Utf8;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.metrics.PrometheusMetricsService;
 import no.rutebanken.anshar.routes.CamelRouteNames;
@@ -12,17 +13,25 @@ import no.rutebanken.anshar.subscription.SiriDataType;
 import no.rutebanken.anshar.subscription.SubscriptionManager;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
 import org.apache.camel.Exchange;
+import org.apache.camel.Message;
 import org.apache.camel.Predicate;
 import org.apache.camel.Processor;
+import org.apache.camel.StreamCache;
+import org.apache.camel.TypeConversionException;
+import org.apache.camel.builder.PredicateBuilder;
 import org.apache.camel.component.google.pubsub.GooglePubsubConstants;
+import org.apache.camel.support.TypeConverterSupport;
 import org.apache.camel.util.CaseInsensitiveMap;
 import org.entur.siri21.util.SiriXml;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import uk.org.siri.siri21.Siri;
 
+import jakarta.xml.bind.JAXBException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.util.Map;
+import java.util.function.UnaryOperator;
 
 import static no.rutebanken.anshar.routes.HttpParameter.INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT;
 import static no.rutebanken.anshar.routes.HttpParameter.INTERNAL_SIRI_DATA_TYPE;
@@ -30,6 +39,7 @@ import static no.rutebanken.anshar.routes.HttpParameter.PARAM_SUBSCRIPTION_ID;
 import static no.rutebanken.anshar.routes.HttpParameter.PARAM_USE_ORIGINAL_ID;
 import static no.rutebanken.anshar.routes.siri.Siri20RequestHandlerRoute.TRANSFORM_SOAP;
 import static no.rutebanken.anshar.routes.siri.Siri20RequestHandlerRoute.TRANSFORM_VERSION;
+import static org.apache.camel.Exchange.CONTENT_LENGTH;
 
 @Service
 public class MessagingRoute extends RestRouteBuilder {
@@ -76,6 +86,27 @@ public class MessagingRoute extends RestRouteBuilder {
             );
         };
 
+        // Parsed SIRI-objects are only serialized to XML when needed - e.g. for logging
+        getContext().getTypeConverterRegistry().addTypeConverter(String.class, Siri.class, new TypeConverterSupport() {
+            @Override
+            public <T> T convertTo(Class<T> type, Exchange exchange, Object value) throws TypeConversionException {
+                try {
+                    return type.cast(SiriXml.toXml((Siri) value));
+                } catch (JAXBException e) {
+                    throw new TypeConversionException(value, type, e);
+                }
+            }
+        });
+
+        Predicate isDataReadyNotification = PredicateBuilder.or(
+                exchange -> exchange.getIn().getBody() instanceof Siri && ((Siri) exchange.getIn().getBody()).getDataReadyNotification() != null,
+                PredicateBuilder.and(
+                        PredicateBuilder.not(body().isInstanceOf(Siri.class)),
+                        PredicateBuilder.not(body().isInstanceOf(SiriChunkReader.class)),
+                        xpath("/siri:Siri/siri:DataReadyNotification", ns)
+                )
+        );
+
         Processor convertHeadersToAttributes = exchange -> {
             Map<String, Object> headers = exchange.getIn().getHeaders();
             CaseInsensitiveMap pubsubAttributeMap = new CaseInsensitiveMap();
@@ -86,15 +117,39 @@ public class MessagingRoute extends RestRouteBuilder {
         };
 
 
+        // Large deliveries are read in chunks directly from the incoming body - never converted to a String or transformed
+        Processor readInChunks = p -> {
+            SubscriptionSetup subscriptionSetup = subscriptionManager.get(p.getIn().getHeader("subscriptionId", String.class));
+            int contentLength = (int) getDeliveryLength(p.getIn().getBody());
+
+            log.info("Reading delivery of {} bytes in chunks of {} elements", contentLength, configuration.getIncomingStreamingChunkSize());
+            p.getMessage().setHeaders(p.getIn().getHeaders());
+            p.getMessage().setHeader(CONTENT_LENGTH, contentLength);
+            p.getMessage().setBody(readInChunks(p.getIn(), subscriptionSetup));
+        };
+
         from("direct:process.message.synchronous")
-                .convertBodyTo(String.class)
-                .to("direct:transform.siri")
+                .choice()
+                    .when(this::isStreamingIngest)
+                        .process(readInChunks)
+                    .otherwise()
+                        .convertBodyTo(String.class)
+                        .to("direct:transform.siri")
+                .end()
                 .to("direct:" + CamelRouteNames.PROCESSOR_QUEUE_DEFAULT)
         ;
 
         from("direct:enqueue.message")
-                .convertBodyTo(String.class)
-                .to("direct:transform.siri")
+                .choice()
+                    .when(this::isStreamingIngest)
+                        .process(readInChunks)
+                    .when(body().isInstanceOf(Siri.class))
+                        // Binary deliveries are already decoded to SIRI-objects
+                        .to("direct:transform.siri")
+                    .otherwise()
+                        .convertBodyTo(String.class)
+                        .to("direct:transform.siri")
+                .end()
                 .choice()
                     .when(header(INTERNAL_SIRI_DATA_TYPE).isEqualTo(SiriDataType.ESTIMATED_TIMETABLE.name()))
                         .setHeader("target_topic", simple(pubsubQueueET))
@@ -107,7 +162,7 @@ public class MessagingRoute extends RestRouteBuilder {
                     .endChoice()
                     .otherwise()
                         // DataReadyNotification is processed immediately
-                        .when().xpath("/siri:Siri/siri:DataReadyNotification", ns)
+                        .when(isDataReadyNotification)
                             .setHeader("target_topic", simple("direct:"+CamelRouteNames.FETCHED_DELIVERY_QUEUE))
                         .endChoice()
                         .otherwise()
@@ -115,7 +170,7 @@ public class MessagingRoute extends RestRouteBuilder {
                         .end()
                     .end()
                 .end()
-                .removeHeaders("*", "subscriptionId", "breadcrumbId", "target_topic", "correlationId")
+                .removeHeaders("*", "subscriptionId", "breadcrumbId", "target_topic", "correlationId", CONTENT_LENGTH)
                 .process(p -> {
                     p.getMessage().setHeader(INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT, enrichSiriData(p));
                 })
@@ -131,15 +186,25 @@ public class MessagingRoute extends RestRouteBuilder {
             from("direct:send.to.queue")
                     .autoStartup(true)
                     .choice()
+                        .when(body().isInstanceOf(SiriChunkReader.class))
+                        .split(body()).streaming()
+                            .to("direct:send.to.queue")
+                        .end()
+                    .endChoice()
                         .when(header(INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT).isEqualTo(Boolean.TRUE))
                         .removeHeader(INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT)
                         .log("Sending data to enrichment topic")
                         .to("direct:anshar.enrich.siri.et")
                     .endChoice()
+                    .when(body().isInstanceOf(Siri.class))
+                        .log("Sending split data to topic ${header.target_topic}")
+                        .split(method(SiriObjectSplitter.class, "split"))
+                        .to("direct:compress.jaxb")
+                        .toD("${header.target_topic}")
+                    .endChoice()
                     .otherwise()
                         .log("Sending split data to topic ${header.target_topic}")
-                        .to("xslt-saxon:xsl/split.xsl")
-                        .split().tokenizeXML("Siri").streaming()
+                        .split(method(SiriXmlSplitter.class, "split")).streaming()
                         .to("direct:compress.jaxb")
                         .toD("${header.target_topic}")
                     .end()
@@ -149,6 +214,12 @@ public class MessagingRoute extends RestRouteBuilder {
             from("direct:send.to.queue")
                     .autoStartup(true)
                     .choice()
+                    .when(body().isInstanceOf(SiriChunkReader.class))
+                        // Each chunk is sent as a separate message
+                        .split(body()).streaming()
+                            .to("direct:send.to.queue")
+                        .end()
+                    .endChoice()
                     .when(header(INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT).isEqualTo(Boolean.TRUE))
                         .removeHeader(INTERNAL_PUBLISH_TO_KAFKA_FOR_APC_ENRICHMENT)
                         .log("Sending data to enrichment topic")
@@ -175,6 +246,11 @@ public class MessagingRoute extends RestRouteBuilder {
                     .to("xslt-saxon:xsl/siri_14_20.xsl?allowStAX=false&resultHandlerFactory=#streamResultHandlerFactory") // Convert from v1.4 to 2.0
                 .endChoice()
                 .end()
+                .choice()
+                    .when(exchange -> configuration.isIncomingBinaryHandoffEnabled() && !(exchange.getIn().getBody() instanceof Siri))
+                    .to("direct:fix.xml.encoding")
+                .endChoice()
+                .end()
                 .to("direct:process.mapping")
                 .to("direct:format.xml")
                 .to("direct:clear.mdc.subscriptionId")
@@ -185,17 +261,47 @@ public class MessagingRoute extends RestRouteBuilder {
                 .to("direct:set.mdc.subscriptionId")
                 .process(p -> {
                     SubscriptionSetup subscriptionSetup = subscriptionManager.get(p.getIn().getHeader("subscriptionId", String.class));
-                    Siri originalInput = siriXmlValidator.parseXml(subscriptionSetup, p.getIn().getBody(String.class));
+
+                    if (p.getIn().getBody() instanceof Siri) {
+                        // Decoded from protobuf/Avro - only mapping is applied, as XML-validation does not apply
+                        Siri incoming = SiriValueTransformer.transform(p.getIn().getBody(Siri.class), subscriptionSetup.getMappingAdapters(), false, true);
+
+                        p.getMessage().setHeaders(p.getIn().getHeaders());
+                        if (configuration.isIncomingBinaryHandoffEnabled()) {
+                            // Size of the binary delivery as received - set when it was decoded
+                            p.getMessage().setHeader(CONTENT_LENGTH, p.getIn().getHeader(CONTENT_LENGTH, 0, Integer.class));
+                            p.getMessage().setBody(incoming);
+                        } else {
+                            p.getMessage().setBody(SiriXml.toXml(incoming));
+                        }
+                        return;
+                    }
+
+                    String xml = p.getIn().getBody(String.class);
+                    // Size of the delivery as UTF-8 - only passed on with the transformed object
+                    int contentLength = configuration.isIncomingBinaryHandoffEnabled() && xml != null ? Utf8.encodedLength(xml) : 0;
+
+                    Siri originalInput = siriXmlValidator.parseXml(subscriptionSetup, xml);
 
                     Siri incoming = SiriValueTransformer.transform(originalInput, subscriptionSetup.getMappingAdapters(), false, true);
 
                     p.getMessage().setHeaders(p.getIn().getHeaders());
-                    p.getMessage().setBody(SiriXml.toXml(incoming));
+                    if (configuration.isIncomingBinaryHandoffEnabled()) {
+                        // Transformed object is passed on - XML is never parsed again
+                        p.getMessage().setHeader(CONTENT_LENGTH, contentLength);
+                        p.getMessage().setBody(incoming);
+                    } else {
+                        p.getMessage().setBody(SiriXml.toXml(incoming));
+                    }
                 })
                 .to("direct:clear.mdc.subscriptionId")
         ;
 
         from("direct:format.xml")
+            .filter(PredicateBuilder.and(
+                    PredicateBuilder.not(body().isInstanceOf(Siri.class)),
+                    PredicateBuilder.not(body().isInstanceOf(SiriChunkReader.class))
+            ))
             .to("xslt-saxon:xsl/indent.xsl?allowStAX=false&resultHandlerFactory=#streamResultHandlerFactory")
             .routeId("incoming.format.xml")
         ;
@@ -256,6 +362,18 @@ public class MessagingRoute extends RestRouteBuilder {
                 .process(p -> {
 
                     String subscriptionId = p.getIn().getHeader("subscriptionId", String.class);
+
+                    if (p.getIn().getBody() instanceof Siri) {
+                        handler.handleIncomingSiri(subscriptionId, p.getIn().getBody(Siri.class), p.getIn().getHeader(CONTENT_LENGTH, 0, Integer.class));
+                        return;
+                    }
+                    if (p.getIn().getBody() instanceof SiriChunkReader) {
+                        try (SiriChunkReader chunks = p.getIn().getBody(SiriChunkReader.class)) {
+                            handler.handleIncomingSiri(subscriptionId, chunks, p.getIn().getHeader(CONTENT_LENGTH, 0, Integer.class));
+                        }
+                        return;
+                    }
+
                     String datasetId = null;
 
                     InputStream xml = p.getIn().getBody(InputStream.class);
@@ -296,6 +414,76 @@ public class MessagingRoute extends RestRouteBuilder {
     }
 
 
+    /**
+     * Large ServiceDeliveries are read in chunks when the transformed data is passed on as objects. Deliveries that
+     * should be validated are always read in full, as validation requires the complete delivery - as are deliveries
+     * that need XSLT-transformation (SOAP and SIRI 1.4).
+     *
+     * Only bodies with a known size can be streamed - i.e. the stream cache of the request, a byte array or a String.
+     * Only the start of the document is read to check for a ServiceDelivery.
+     */
+    private boolean isStreamingIngest(Exchange exchange) {
+        int threshold = configuration.getIncomingStreamingThresholdBytes();
+        if (threshold <= 0 || !configuration.isIncomingBinaryHandoffEnabled() || configuration.isFullValidationEnabled()) {
+            return false;
+        }
+        Message message = exchange.getIn();
+        if (TRANSFORM_SOAP.equals(message.getHeader(TRANSFORM_SOAP)) || TRANSFORM_VERSION.equals(message.getHeader(TRANSFORM_VERSION))) {
+            return false;
+        }
+        SubscriptionSetup subscriptionSetup = subscriptionManager.get(message.getHeader("subscriptionId", String.class));
+        if (subscriptionSetup == null || subscriptionSetup.isValidation()) {
+            return false;
+        }
+        Object body = message.getBody();
+        if (getDeliveryLength(body) < threshold) {
+            return false;
+        }
+        if (body instanceof String) {
+            return SiriChunkReader.isServiceDelivery((String) body);
+        }
+        try {
+            return SiriChunkReader.isServiceDelivery(openStream(message));
+        } finally {
+            if (body instanceof StreamCache) {
+                ((StreamCache) body).reset();
+            }
+        }
+    }
+
+    private SiriChunkReader readInChunks(Message message, SubscriptionSetup subscriptionSetup) throws Exception {
+        UnaryOperator<Siri> mapping = chunk -> SiriValueTransformer.transform(chunk, subscriptionSetup.getMappingAdapters(), false, false);
+        int chunkSize = configuration.getIncomingStreamingChunkSize();
+
+        if (message.getBody() instanceof String) {
+            return SiriChunkReader.read(new StringReader(message.getBody(String.class)), chunkSize, mapping);
+        }
+        return SiriChunkReader.read(openStream(message), chunkSize, mapping);
+    }
+
+    /**
+     * @return size of the delivery in bytes - -1 if it is not known without reading the body
+     */
+    private static long getDeliveryLength(Object body) {
+        if (body instanceof String) {
+            return Utf8.encodedLength((String) body);
+        }
+        if (body instanceof byte[]) {
+            return ((byte[]) body).length;
+        }
+        if (body instanceof StreamCache) {
+            return ((StreamCache) body).length();
+        }
+        return -1;
+    }
+
+    private static InputStream openStream(Message message) {
+        if (message.getBody() instanceof StreamCache) {
+            ((StreamCache) message.getBody()).reset();
+        }
+        return message.getBody(InputStream.class);
+    }
+
     private Boolean enrichSiriData(Exchange e) {
         String subscriptionId = e.getIn().getHeader(PARAM_SUBSCRIPTION_ID, String.class);
         if (subscriptionId == null || subscriptionId.isEmpty()) {
@@ -0,0 +1,350 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.messaging;
+
+import jakarta.xml.bind.JAXBContext;
+import jakarta.xml.bind.JAXBException;
+import jakarta.xml.bind.Unmarshaller;
+import org.apache.camel.RuntimeCamelException;
+import org.entur.siri.adapter.ZonedDateTimeAdapter;
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.RequestorRef;
+import uk.org.siri.siri21.ServiceDelivery;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
+import uk.org.siri.siri21.VehicleActivityStructure;
+import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.UnaryOperator;
+
+/**
+ * Streaming reader that unmarshals the EstimatedVehicleJourney, VehicleActivity and PtSituationElement-elements of a
+ * SIRI-delivery one at a time, and returns them as SIRI-deliveries with at most chunkSize elements each. Header-elements
+ * (ResponseTimestamp, ProducerRef and RecordedAtTime) are copied to each chunk.
+ *
+ * Only the current chunk of unmarshalled objects is kept in memory, so the object graph is bounded by the chunk size -
+ * not the size of the delivery. The reader itself is not buffered, so the source XML is held by whoever supplied it -
+ * e.g. the stream cache of the incoming request.
+ *
+ * Only ServiceDeliveries are supported - use isServiceDelivery to check the contents first.
+ */
+public class SiriChunkReader implements Iterator<Siri>, Closeable {
+
+    private static final String SIRI_NS = "http://www.siri.org.uk/siri";
+
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    private static final JAXBContext jaxbContext;
+
+    static {
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try {
+            jaxbContext = JAXBContext.newInstance(Siri.class);
+        } catch (JAXBException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final List<String> SERVICE_DELIVERY = List.of("Siri", "ServiceDelivery");
+    private static final List<String> ET_DELIVERY = List.of("Siri", "ServiceDelivery", "EstimatedTimetableDelivery");
+    private static final List<String> ET_FRAME = List.of("Siri", "ServiceDelivery", "EstimatedTimetableDelivery", "EstimatedJourneyVersionFrame");
+    private static final List<String> VM_DELIVERY = List.of("Siri", "ServiceDelivery", "VehicleMonitoringDelivery");
+    private static final List<String> SX_DELIVERY = List.of("Siri", "ServiceDelivery", "SituationExchangeDelivery");
+    private static final List<String> SX_SITUATIONS = List.of("Siri", "ServiceDelivery", "SituationExchangeDelivery", "Situations");
+
+    private final Closeable xml;
+    private final XMLStreamReader reader;
+    private final Unmarshaller unmarshaller;
+    private final int chunkSize;
+    private final UnaryOperator<Siri> chunkProcessor;
+
+    // Local names of current SIRI-elements - null for elements in other namespaces
+    private final List<String> path = new ArrayList<>();
+
+    // True when the reader is already positioned at the next event - i.e. after an element has been unmarshalled
+    private boolean positioned;
+
+    private String version;
+    private ZonedDateTime responseTimestamp;
+    private String producerRef;
+    private String deliveryVersion;
+    private ZonedDateTime deliveryResponseTimestamp;
+    private ZonedDateTime recordedAtTime;
+
+    private Siri chunk;
+    private int chunkCount;
+    private List<EstimatedVehicleJourney> estimatedVehicleJourneys;
+    private List<VehicleActivityStructure> vehicleActivities;
+    private List<PtSituationElement> situations;
+
+    private Siri next;
+
+    private SiriChunkReader(Closeable xml, XMLStreamReader reader, int chunkSize, UnaryOperator<Siri> chunkProcessor) throws JAXBException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.xml = xml;
+        this.reader = reader;
+        this.unmarshaller = jaxbContext.createUnmarshaller();
+        this.chunkSize = chunkSize;
+        this.chunkProcessor = chunkProcessor;
+    }
+
+    /**
+     * @param xml SIRI ServiceDelivery
+     * @param chunkSize max number of elements in each chunk
+     * @param chunkProcessor applied to each chunk before it is returned - e.g. mapping
+     */
+    public static SiriChunkReader read(Reader xml, int chunkSize, UnaryOperator<Siri> chunkProcessor) throws XMLStreamException, JAXBException {
+        return new SiriChunkReader(xml, xmlInputFactory.createXMLStreamReader(xml), chunkSize, chunkProcessor);
+    }
+
+    /**
+     * @param xml SIRI ServiceDelivery - the encoding is read from the XML-declaration
+     * @param chunkSize max number of elements in each chunk
+     * @param chunkProcessor applied to each chunk before it is returned - e.g. mapping
+     */
+    public static SiriChunkReader read(InputStream xml, int chunkSize, UnaryOperator<Siri> chunkProcessor) throws XMLStreamException, JAXBException {
+        return new SiriChunkReader(xml, xmlInputFactory.createXMLStreamReader(xml), chunkSize, chunkProcessor);
+    }
+
+    /**
+     * @return true if the first element in the SIRI-document is a ServiceDelivery - only the start of the document is read
+     */
+    public static boolean isServiceDelivery(String xml) {
+        try {
+            return isServiceDelivery(xmlInputFactory.createXMLStreamReader(new StringReader(xml)));
+        } catch (XMLStreamException e) {
+            // Not valid XML - handled as any other delivery
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the first element in the SIRI-document is a ServiceDelivery - only the start of the stream is
+     * read, and the stream is not closed
+     */
+    public static boolean isServiceDelivery(InputStream xml) {
+        try {
+            return isServiceDelivery(xmlInputFactory.createXMLStreamReader(xml));
+        } catch (XMLStreamException e) {
+            // Not valid XML - handled as any other delivery
+            return false;
+        }
+    }
+
+    private static boolean isServiceDelivery(XMLStreamReader reader) throws XMLStreamException {
+        try {
+            int depth = 0;
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    if (++depth == 2) {
+                        return SIRI_NS.equals(reader.getNamespaceURI()) && "ServiceDelivery".equals(reader.getLocalName());
+                    }
+                } else if (reader.getEventType() == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+            return false;
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = readNext();
+            } catch (XMLStreamException | JAXBException e) {
+                throw new RuntimeCamelException("Reading SIRI-delivery failed", e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Siri next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Siri result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            // Ignore
+        }
+        xml.close();
+    }
+
+    private Siri readNext() throws XMLStreamException, JAXBException {
+        while (chunkCount < chunkSize && (positioned || reader.hasNext())) {
+            int event = positioned ? reader.getEventType() : reader.next();
+            positioned = false;
+
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                path.remove(path.size() - 1);
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                path.add(SIRI_NS.equals(reader.getNamespaceURI()) ? reader.getLocalName() : null);
+
+                String name = path.get(path.size() - 1);
+                List<String> parent = path.subList(0, path.size() - 1);
+
+                if (path.size() == 1) {
+                    version = reader.getAttributeValue(null, "version");
+                } else if (parent.equals(SERVICE_DELIVERY)) {
+                    if ("ResponseTimestamp".equals(name)) {
+                        responseTimestamp = ZonedDateTimeAdapter.parse(readText());
+                    } else if ("ProducerRef".equals(name)) {
+                        producerRef = readText();
+                    } else {
+                        // New delivery
+                        deliveryVersion = reader.getAttributeValue(null, "version");
+                        deliveryResponseTimestamp = null;
+                        resetTargets();
+                    }
+                } else if ("ResponseTimestamp".equals(name) &&
+                        (parent.equals(ET_DELIVERY) || parent.equals(VM_DELIVERY) || parent.equals(SX_DELIVERY))) {
+                    deliveryResponseTimestamp = ZonedDateTimeAdapter.parse(readText());
+                } else if (parent.equals(ET_DELIVERY) && "EstimatedJourneyVersionFrame".equals(name)) {
+                    recordedAtTime = null;
+                    resetTargets();
+                } else if (parent.equals(ET_FRAME) && "RecordedAtTime".equals(name)) {
+                    recordedAtTime = ZonedDateTimeAdapter.parse(readText());
+                } else if (parent.equals(ET_FRAME) && "EstimatedVehicleJourney".equals(name)) {
+                    getEstimatedVehicleJourneys().add(unmarshal(EstimatedVehicleJourney.class));
+                } else if (parent.equals(VM_DELIVERY) && "VehicleActivity".equals(name)) {
+                    getVehicleActivities().add(unmarshal(VehicleActivityStructure.class));
+                } else if (parent.equals(SX_SITUATIONS) && "PtSituationElement".equals(name)) {
+                    getSituations().add(unmarshal(PtSituationElement.class));
+                }
+            }
+        }
+
+        if (chunk == null) {
+            return null;
+        }
+        Siri result = chunk;
+        chunk = null;
+        chunkCount = 0;
+        resetTargets();
+        return chunkProcessor != null ? chunkProcessor.apply(result) : result;
+    }
+
+    /**
+     * Unmarshals the current element - the reader is left at the event following the element
+     */
+    private <T> T unmarshal(Class<T> type) throws JAXBException {
+        T element = unmarshaller.unmarshal(reader, type).getValue();
+        path.remove(path.size() - 1);
+        positioned = true;
+        chunkCount++;
+        return element;
+    }
+
+    private String readText() throws XMLStreamException {
+        String text = reader.getElementText();
+        path.remove(path.size() - 1);
+        return text;
+    }
+
+    private void resetTargets() {
+        estimatedVehicleJourneys = null;
+        vehicleActivities = null;
+        situations = null;
+    }
+
+    private List<EstimatedVehicleJourney> getEstimatedVehicleJourneys() {
+        if (estimatedVehicleJourneys == null) {
+            EstimatedVersionFrameStructure frame = new EstimatedVersionFrameStructure();
+            frame.setRecordedAtTime(recordedAtTime);
+
+            EstimatedTimetableDeliveryStructure delivery = new EstimatedTimetableDeliveryStructure();
+            delivery.setVersion(deliveryVersion);
+            delivery.setResponseTimestamp(deliveryResponseTimestamp);
+            delivery.getEstimatedJourneyVersionFrames().add(frame);
+
+            getServiceDelivery().getEstimatedTimetableDeliveries().add(delivery);
+            estimatedVehicleJourneys = frame.getEstimatedVehicleJourneies();
+        }
+        return estimatedVehicleJourneys;
+    }
+
+    private List<VehicleActivityStructure> getVehicleActivities() {
+        if (vehicleActivities == null) {
+            VehicleMonitoringDeliveryStructure delivery = new VehicleMonitoringDeliveryStructure();
+            delivery.setVersion(deliveryVersion);
+            delivery.setResponseTimestamp(deliveryResponseTimestamp);
+
+            getServiceDelivery().getVehicleMonitoringDeliveries().add(delivery);
+            vehicleActivities = delivery.getVehicleActivities();
+        }
+        return vehicleActivities;
+    }
+
+    private List<PtSituationElement> getSituations() {
+        if (situations == null) {
+            SituationExchangeDeliveryStructure delivery = new SituationExchangeDeliveryStructure();
+            delivery.setVersion(deliveryVersion);
+            delivery.setResponseTimestamp(deliveryResponseTimestamp);
+            delivery.setSituations(new SituationExchangeDeliveryStructure.Situations());
+
+            getServiceDelivery().getSituationExchangeDeliveries().add(delivery);
+            situations = delivery.getSituations().getPtSituationElements();
+        }
+        return situations;
+    }
+
+    private ServiceDelivery getServiceDelivery() {
+        if (chunk == null) {
+            ServiceDelivery serviceDelivery = new ServiceDelivery();
+            serviceDelivery.setResponseTimestamp(responseTimestamp);
+            if (producerRef != null) {
+                RequestorRef requestorRef = new RequestorRef();
+                requestorRef.setValue(producerRef);
+                serviceDelivery.setProducerRef(requestorRef);
+            }
+            chunk = new Siri();
+            chunk.setVersion(version);
+            chunk.setServiceDelivery(serviceDelivery);
+        }
+        return chunk.getServiceDelivery();
+    }
+}
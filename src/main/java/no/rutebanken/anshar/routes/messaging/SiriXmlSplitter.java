@@ -0,0 +1,299 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.messaging;
+
+import org.apache.camel.RuntimeCamelException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Streaming splitter that reads a SIRI-delivery once, and emits one self-contained SIRI-delivery per
+ * EstimatedVehicleJourney, VehicleActivity and PtSituationElement. Header-elements (ResponseTimestamp, ProducerRef
+ * and RecordedAtTime) are copied to each split delivery.
+ *
+ * Only the current element is kept in memory, so memory-usage does not depend on the size of the delivery.
+ *
+ * Usage as Camel splitter-expression: .split(method(SiriXmlSplitter.class, "split")).streaming()
+ */
+public class SiriXmlSplitter implements Iterator<String>, Closeable {
+
+    private static final String SIRI_NS = "http://www.siri.org.uk/siri";
+    private static final String SPLIT_VERSION = "2.0";
+
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+
+    static {
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private static final List<String> SERVICE_DELIVERY = List.of("Siri", "ServiceDelivery");
+    private static final List<String> ET_DELIVERY = List.of("Siri", "ServiceDelivery", "EstimatedTimetableDelivery");
+    private static final List<String> ET_FRAME = List.of("Siri", "ServiceDelivery", "EstimatedTimetableDelivery", "EstimatedJourneyVersionFrame");
+    private static final List<String> VM_DELIVERY = List.of("Siri", "ServiceDelivery", "VehicleMonitoringDelivery");
+    private static final List<String> SX_DELIVERY = List.of("Siri", "ServiceDelivery", "SituationExchangeDelivery");
+    private static final List<String> SX_SITUATIONS = List.of("Siri", "ServiceDelivery", "SituationExchangeDelivery", "Situations");
+
+    private final InputStream xml;
+    private final XMLStreamReader reader;
+
+    // Local names of current SIRI-elements - null for elements in other namespaces
+    private final List<String> path = new ArrayList<>();
+
+    // Namespaces declared by current elements - [prefix, uri]
+    private final List<String[]> namespaces = new ArrayList<>();
+    private final List<Integer> namespaceCounts = new ArrayList<>();
+
+    private String responseTimestamp;
+    private String producerRef;
+    private String deliveryResponseTimestamp;
+    private String recordedAtTime;
+
+    private String next;
+
+    private SiriXmlSplitter(InputStream xml) throws XMLStreamException {
+        this.xml = xml;
+        this.reader = xmlInputFactory.createXMLStreamReader(xml);
+    }
+
+    public static Iterator<String> split(InputStream xml) throws XMLStreamException {
+        return new SiriXmlSplitter(xml);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = readNext();
+            } catch (XMLStreamException e) {
+                throw new RuntimeCamelException("Splitting SIRI-delivery failed", e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            // Ignore
+        }
+        xml.close();
+    }
+
+    private String readNext() throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                pop();
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                push();
+
+                String name = path.get(path.size() - 1);
+                List<String> parent = path.subList(0, path.size() - 1);
+
+                if (parent.equals(SERVICE_DELIVERY)) {
+                    if ("ResponseTimestamp".equals(name)) {
+                        responseTimestamp = readText();
+                    } else if ("ProducerRef".equals(name)) {
+                        producerRef = readText();
+                    } else {
+                        // New delivery
+                        deliveryResponseTimestamp = null;
+                    }
+                } else if ("ResponseTimestamp".equals(name) &&
+                        (parent.equals(ET_DELIVERY) || parent.equals(VM_DELIVERY) || parent.equals(SX_DELIVERY))) {
+                    deliveryResponseTimestamp = readText();
+                } else if (parent.equals(ET_DELIVERY) && "EstimatedJourneyVersionFrame".equals(name)) {
+                    recordedAtTime = null;
+                } else if (parent.equals(ET_FRAME) && "RecordedAtTime".equals(name)) {
+                    recordedAtTime = readText();
+                } else if (parent.equals(ET_FRAME) && "EstimatedVehicleJourney".equals(name)) {
+                    return writeSplit("EstimatedTimetableDelivery", "EstimatedJourneyVersionFrame", "RecordedAtTime", recordedAtTime);
+                } else if (parent.equals(VM_DELIVERY) && "VehicleActivity".equals(name)) {
+                    return writeSplit("VehicleMonitoringDelivery", null, null, null);
+                } else if (parent.equals(SX_SITUATIONS) && "PtSituationElement".equals(name)) {
+                    return writeSplit("SituationExchangeDelivery", "Situations", null, null);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a complete SIRI-delivery containing the current element
+     */
+    private String writeSplit(String deliveryName, String wrapperName, String wrapperHeaderName, String wrapperHeader) throws XMLStreamException {
+        StringWriter out = new StringWriter();
+        XMLStreamWriter writer = xmlOutputFactory.createXMLStreamWriter(out);
+
+        writer.writeStartElement("", "Siri", SIRI_NS);
+        writer.writeDefaultNamespace(SIRI_NS);
+        writer.writeAttribute("version", SPLIT_VERSION);
+        writer.writeStartElement("", "ServiceDelivery", SIRI_NS);
+        writeElement(writer, "ResponseTimestamp", responseTimestamp);
+        writeElement(writer, "ProducerRef", producerRef);
+
+        writer.writeStartElement("", deliveryName, SIRI_NS);
+        writer.writeAttribute("version", SPLIT_VERSION);
+        writeElement(writer, "ResponseTimestamp", deliveryResponseTimestamp);
+        if (wrapperName != null) {
+            writer.writeStartElement("", wrapperName, SIRI_NS);
+            if (wrapperHeaderName != null) {
+                writeElement(writer, wrapperHeaderName, wrapperHeader);
+            }
+        }
+
+        copyCurrentElement(writer);
+        pop();
+
+        if (wrapperName != null) {
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.writeEndElement();
+        writer.close();
+        return out.toString();
+    }
+
+    private static void writeElement(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+        if (value != null) {
+            writer.writeStartElement("", name, SIRI_NS);
+            writer.writeCharacters(value);
+            writer.writeEndElement();
+        }
+    }
+
+    /**
+     * Copies the current element with all children - all namespaces in scope are declared on the copied element
+     */
+    private void copyCurrentElement(XMLStreamWriter writer) throws XMLStreamException {
+        writeStartElement(writer, inScopeNamespaces());
+
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    List<String[]> declared = new ArrayList<>();
+                    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                        declared.add(new String[]{reader.getNamespacePrefix(i), reader.getNamespaceURI(i)});
+                    }
+                    writeStartElement(writer, declared);
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    writer.writeCharacters(reader.getText());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(reader.getText());
+                    break;
+                default:
+                    // Comments and processing-instructions are not copied
+            }
+        }
+    }
+
+    private void writeStartElement(XMLStreamWriter writer, List<String[]> declaredNamespaces) throws XMLStreamException {
+        String prefix = reader.getPrefix() != null ? reader.getPrefix() : "";
+        String uri = reader.getNamespaceURI() != null ? reader.getNamespaceURI() : "";
+        writer.writeStartElement(prefix, reader.getLocalName(), uri);
+
+        for (String[] namespace : declaredNamespaces) {
+            if (namespace[0] == null || namespace[0].isEmpty()) {
+                writer.writeDefaultNamespace(namespace[1]);
+            } else {
+                writer.writeNamespace(namespace[0], namespace[1]);
+            }
+        }
+
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String attributePrefix = reader.getAttributePrefix(i);
+            if (attributePrefix != null && !attributePrefix.isEmpty()) {
+                writer.writeAttribute(attributePrefix, reader.getAttributeNamespace(i), reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            } else {
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+    }
+
+    private List<String[]> inScopeNamespaces() {
+        List<String[]> result = new ArrayList<>();
+        Set<String> prefixes = new HashSet<>();
+        for (int i = namespaces.size() - 1; i >= 0; i--) {
+            String prefix = namespaces.get(i)[0] != null ? namespaces.get(i)[0] : "";
+            if (prefixes.add(prefix)) {
+                result.add(namespaces.get(i));
+            }
+        }
+        return result;
+    }
+
+    private String readText() throws XMLStreamException {
+        String text = reader.getElementText();
+        pop();
+        return text;
+    }
+
+    private void push() {
+        path.add(SIRI_NS.equals(reader.getNamespaceURI()) ? reader.getLocalName() : null);
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            namespaces.add(new String[]{reader.getNamespacePrefix(i), reader.getNamespaceURI(i)});
+        }
+        namespaceCounts.add(reader.getNamespaceCount());
+    }
+
+    private void pop() {
+        path.remove(path.size() - 1);
+        int count = namespaceCounts.remove(namespaceCounts.size() - 1);
+        for (int i = 0; i < count; i++) {
+            namespaces.remove(namespaces.size() - 1);
+        }
+    }
+}
@@ -15,12 +15,15 @@
 
 package no.rutebanken.anshar.routes.outbound;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
 import org.apache.camel.Produce;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.http.base.HttpOperationFailedException;
+import org.entur.siri.validator.SiriValidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
@@ -33,15 +36,14 @@ import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
 import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
 
-import javax.annotation.PostConstruct;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.Objects;
+import java.util.Set;
 
 import static no.rutebanken.anshar.routes.HttpParameter.SIRI_VERSION_HEADER_NAME;
 import static no.rutebanken.anshar.routes.siri.transformer.SiriOutputTransformerRoute.OUTPUT_ADAPTERS_HEADER_NAME;
@@ -50,6 +52,8 @@ import static no.rutebanken.anshar.routes.siri.transformer.SiriOutputTransformer
 public class CamelRouteManager {
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    private static final String HEARTBEAT_COALESCE_KEY = "HeartbeatNotification";
+
     @Autowired
     private SiriHelper siriHelper;
 
@@ -62,16 +66,14 @@ public class CamelRouteManager {
     @Value("${anshar.default.max.elements.per.delivery:1000}")
     private int maximumSizePerDelivery;
 
-    @Value("${anshar.default.max.threads.per.outbound.subscription:5}")
-    private int maximumThreadsPerOutboundSubscription;
+    @Autowired
+    OutboundDispatcher dispatcher;
 
     @Produce(value = "direct:send.to.external.subscription")
     protected ProducerTemplate siriSubscriptionProcessor;
 
-    @PostConstruct
-    private void initThreadMetrics() {
-        metricsService.registerOutboundThreadFactoryMap(threadFactoryMap);
-    }
+    @Produce(value = "direct:marshal.for.external.subscription")
+    protected ProducerTemplate siriMarshaller;
 
     /**
      * Splits SIRI-data if applicable, and pushes data to external subscription
@@ -79,14 +81,50 @@ public class CamelRouteManager {
      * @param subscriptionRequest
      */
     void pushSiriData(Siri payload, OutboundSubscriptionSetup subscriptionRequest, boolean logBody) {
-        String consumerAddress = subscriptionRequest.getAddress();
-        if (consumerAddress == null) {
-            logger.info("ConsumerAddress is null - ignoring data.");
-            return;
+        pushSiriData(payload, List.of(subscriptionRequest), logBody);
+    }
+
+    /**
+     * Splits SIRI-data if applicable, and pushes data to all external subscriptions.
+     *
+     * Recipients that receive identical deliveries - same SIRI-version, value adapters, filter and delivery size - are
+     * grouped, and the data is filtered, split, transformed and marshalled once per group.
+     * @param payload
+     * @param recipients
+     */
+    void pushSiriData(Siri payload, List<OutboundSubscriptionSetup> recipients, boolean logBody) {
+        Map<DeliveryGroup, List<OutboundSubscriptionSetup>> groups = new LinkedHashMap<>();
+        for (OutboundSubscriptionSetup recipient : recipients) {
+            if (recipient.getAddress() == null) {
+                logger.info("ConsumerAddress is null - ignoring data.");
+                continue;
+            }
+            groups.computeIfAbsent(new DeliveryGroup(recipient, getDeliverySize(recipient)), g -> new ArrayList<>())
+                    .add(recipient);
+        }
+
+        for (Map.Entry<DeliveryGroup, List<OutboundSubscriptionSetup>> group : groups.entrySet()) {
+            // Prepared by the first recipient to need it, and shared by the rest of the group
+            Supplier<List<PreparedDelivery>> deliveries = Suppliers.memoize(() -> prepareDeliveries(payload, group.getKey()));
+            for (OutboundSubscriptionSetup recipient : group.getValue()) {
+                pushPreparedDeliveries(deliveries, recipient, getCoalesceKey(payload), logBody);
+            }
         }
+    }
+
+    /**
+     * Heartbeats only signal that the subscription is alive - a queued heartbeat is replaced by the next one
+     */
+    private static String getCoalesceKey(Siri payload) {
+        if (payload.getHeartbeatNotification() != null) {
+            return HEARTBEAT_COALESCE_KEY;
+        }
+        return null;
+    }
+
+    private void pushPreparedDeliveries(Supplier<List<PreparedDelivery>> deliveries, OutboundSubscriptionSetup subscriptionRequest, String coalesceKey, boolean logBody) {
         final String breadcrumbId = MDC.get("camel.breadcrumbId");
-        ExecutorService executorService = getOrCreateExecutorService(subscriptionRequest);
-        executorService.submit(() -> {
+        dispatcher.submit(subscriptionRequest.getSubscriptionId(), coalesceKey, () -> {
             try {
                 MDC.put("camel.breadcrumbId", breadcrumbId);
                 if (!subscriptionManager.subscriptions.containsKey(subscriptionRequest.getSubscriptionId())) {
@@ -94,20 +132,13 @@ public class CamelRouteManager {
                     return;
                 }
 
-                Siri filteredPayload = SiriHelper.filterSiriPayload(payload, subscriptionRequest.getFilterMap());
-
-                int deliverySize = this.maximumSizePerDelivery;
-                if (subscriptionRequest.getDatasetId() != null) {
-                    deliverySize = Integer.MAX_VALUE;
-                }
-
-                List<Siri> splitSiri = siriHelper.splitDeliveries(filteredPayload, deliverySize);
+                List<PreparedDelivery> splitSiri = deliveries.get();
 
                 if (splitSiri.size() > 1) {
                     logger.info("Object split into {} deliveries for subscription {}.", splitSiri.size(), subscriptionRequest);
                 }
 
-                for (Siri siri : splitSiri) {
+                for (PreparedDelivery siri : splitSiri) {
                     postDataToSubscription(siri, subscriptionRequest, logBody);
                     metricsService.markPostToSubscription(subscriptionRequest.getSubscriptionType(),
                             SubscriptionSetup.SubscriptionMode.SUBSCRIBE,
@@ -136,64 +167,54 @@ public class CamelRouteManager {
                         SubscriptionSetup.SubscriptionMode.SUBSCRIBE,
                         subscriptionRequest.getSubscriptionId(),
                         statusCode);
-
-                removeDeadSubscriptionExecutors(subscriptionManager);
             } finally {
                 MDC.remove("camel.breadcrumbId");
             }
         });
     }
 
-    Map<String, ExecutorService> threadFactoryMap = new HashMap<>();
-    private ExecutorService getOrCreateExecutorService(OutboundSubscriptionSetup subscriptionRequest) {
-
-        final String subscriptionId = subscriptionRequest.getSubscriptionId();
-        if (!threadFactoryMap.containsKey(subscriptionId)) {
-            ThreadFactory factory = new ThreadFactoryBuilder().setNameFormat("outbound"+subscriptionId).build();
-
-            threadFactoryMap.put(subscriptionId, Executors.newFixedThreadPool(maximumThreadsPerOutboundSubscription, factory));
+    private int getDeliverySize(OutboundSubscriptionSetup subscriptionRequest) {
+        if (subscriptionRequest.getDatasetId() != null) {
+            return Integer.MAX_VALUE;
         }
-
-        return threadFactoryMap.get(subscriptionId);
+        return this.maximumSizePerDelivery;
     }
 
-
     /**
-     * Clean up dead ExecutorServices
-     * @param subscriptionManager
+     * Filters, splits, transforms and marshals the payload for all recipients in the group
      */
-    private void removeDeadSubscriptionExecutors(ServerSubscriptionManager subscriptionManager) {
-        List<String> idsToRemove = new ArrayList<>();
-        for (String id : threadFactoryMap.keySet()) {
-            if (!subscriptionManager.subscriptions.containsKey(id)) {
-                final ExecutorService service = threadFactoryMap.get(id);
-                idsToRemove.add(id);
-                // Force shutdown since outbound subscription has been stopped
-                service.shutdownNow();
-            }
-        }
-        if (!idsToRemove.isEmpty()) {
-            for (String id : idsToRemove) {
-                logger.info("Remove executor for subscription {}", id);
-                threadFactoryMap.remove(id);
+    private List<PreparedDelivery> prepareDeliveries(Siri payload, DeliveryGroup group) {
+        Siri filteredPayload = SiriHelper.filterSiriPayload(payload, group.filterMap);
+
+        List<PreparedDelivery> deliveries = new ArrayList<>();
+        for (Siri siri : siriHelper.splitDeliveries(filteredPayload, group.deliverySize)) {
+            byte[] body = null;
+            if (serviceDeliveryContainsData(siri)) {
+                Map<String, Object> headers = new HashMap<>();
+                headers.put(SIRI_VERSION_HEADER_NAME, group.siriVersion);
+                headers.put(OUTPUT_ADAPTERS_HEADER_NAME, group.valueAdapters);
+
+                body = (byte[]) siriMarshaller.requestBodyAndHeaders(siri, headers);
             }
+            deliveries.add(new PreparedDelivery(siri, body));
         }
+        return deliveries;
     }
 
-    private void postDataToSubscription(Siri payload, OutboundSubscriptionSetup subscription, boolean showBody) {
+    private void postDataToSubscription(PreparedDelivery delivery, OutboundSubscriptionSetup subscription, boolean showBody) {
 
-        if (serviceDeliveryContainsData(payload)) {
+        if (delivery.body != null) {
             String remoteEndPoint = subscription.getAddress();
 
+            metricsService.countOutgoingData(delivery.siri, SubscriptionSetup.SubscriptionMode.SUBSCRIBE);
+
             Map<String, Object> headers = new HashMap<>();
             headers.put("breadcrumbId", MDC.get("camel.breadcrumbId"));
             headers.put("endpoint", remoteEndPoint);
             headers.put("SubscriptionId", subscription.getSubscriptionId());
             headers.put("showBody", showBody);
-            headers.put(SIRI_VERSION_HEADER_NAME, subscription.getSiriVersion());
-            headers.put(OUTPUT_ADAPTERS_HEADER_NAME, subscription.getValueAdapters());
 
-            siriSubscriptionProcessor.sendBodyAndHeaders(payload, headers);
+            siriSubscriptionProcessor.sendBodyAndHeaders(delivery.body, headers);
         }
     }
 
@@ -227,4 +248,51 @@ public class CamelRouteManager {
         }
         return true;
     }
+
+    /**
+     * Recipients with equal keys receive identical deliveries
+     */
+    private static class DeliveryGroup {
+        private final SiriValidator.Version siriVersion;
+        private final List<ValueAdapter> valueAdapters;
+        private final Map<Class, Set<String>> filterMap;
+        private final int deliverySize;
+
+        private DeliveryGroup(OutboundSubscriptionSetup subscriptionRequest, int deliverySize) {
+            this.siriVersion = subscriptionRequest.getSiriVersion();
+            this.valueAdapters = subscriptionRequest.getValueAdapters();
+            this.filterMap = subscriptionRequest.getFilterMap();
+            this.deliverySize = deliverySize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DeliveryGroup)) return false;
+
+            DeliveryGroup that = (DeliveryGroup) o;
+            return deliverySize == that.deliverySize &&
+                    siriVersion == that.siriVersion &&
+                    Objects.equals(valueAdapters, that.valueAdapters) &&
+                    Objects.equals(filterMap, that.filterMap);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(siriVersion, valueAdapters, filterMap, deliverySize);
+        }
+    }
+
+    /**
+     * Split part of a delivery, and the marshalled body - null if there is no data to send
+     */
+    private static class PreparedDelivery {
+        private final Siri siri;
+        private final byte[] body;
+
+        private PreparedDelivery(Siri siri, byte[] body) {
+            this.siri = siri;
+            this.body = body;
+        }
+    }
 }
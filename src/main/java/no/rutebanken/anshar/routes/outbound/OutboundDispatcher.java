@@ -0,0 +1,243 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dispatches pushes to outbound subscriptions from a bounded queue per subscription.
+ *
+ * A limited number of pushes are in progress per subscription, and in total, and subscriptions with queued pushes are
+ * served in turn. When a subscription's queue is full, the oldest queued push is dropped. A push with a coalesce-key -
+ * e.g. a heartbeat - replaces a queued push with the same key.
+ *
+ * Pushes run on virtual threads when supported by the JDK.
+ */
+@Service
+public class OutboundDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundDispatcher.class);
+
+    @Value("${anshar.default.max.threads.per.outbound.subscription:5}")
+    private int maxConcurrentPerSubscription;
+
+    @Value("${anshar.outbound.dispatcher.max.concurrent:200}")
+    private int maxConcurrent;
+
+    @Value("${anshar.outbound.dispatcher.queue.capacity:100}")
+    private int queueCapacity;
+
+    @Autowired
+    private PrometheusMetricsService metrics;
+
+    // Guarded by this
+    private final Map<String, SubscriberQueue> queues = new HashMap<>();
+    private final Deque<SubscriberQueue> readyQueues = new ArrayDeque<>();
+    private int inFlight;
+
+    private ExecutorService workers;
+
+    /**
+     * Queues the push, and starts it when the concurrency limits allow
+     * @param subscriptionId
+     * @param coalesceKey queued pushes with the same key are replaced - null if the push should never be replaced
+     * @param push
+     */
+    public void submit(String subscriptionId, String coalesceKey, Runnable push) {
+        List<Push> started;
+        synchronized (this) {
+            SubscriberQueue queue = queues.computeIfAbsent(subscriptionId, SubscriberQueue::new);
+
+            if (coalesceKey != null && queue.pushes.removeIf(queued -> coalesceKey.equals(queued.coalesceKey))) {
+                metrics.registerDroppedOutboundPush(subscriptionId, "coalesced");
+            } else if (queue.pushes.size() >= queueCapacity) {
+                queue.pushes.pollFirst();
+                logger.info("Outbound queue for subscription {} is full ({}) - dropping oldest push", subscriptionId, queueCapacity);
+                metrics.registerDroppedOutboundPush(subscriptionId, "queueFull");
+            }
+            queue.pushes.addLast(new Push(queue, coalesceKey, push));
+            markReady(queue);
+
+            started = startPushes();
+        }
+        execute(started);
+    }
+
+    /**
+     * @return number of queued pushes per subscription
+     */
+    public synchronized Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        queues.forEach((subscriptionId, queue) -> depths.put(subscriptionId, queue.pushes.size()));
+        return depths;
+    }
+
+    /**
+     * @return number of pushes in progress per subscription
+     */
+    public synchronized Map<String, Integer> getInFlight() {
+        Map<String, Integer> inFlightPerSubscription = new HashMap<>();
+        queues.forEach((subscriptionId, queue) -> inFlightPerSubscription.put(subscriptionId, queue.inFlight));
+        return inFlightPerSubscription;
+    }
+
+    private void markReady(SubscriberQueue queue) {
+        if (!queue.ready && !queue.pushes.isEmpty() && queue.inFlight < maxConcurrentPerSubscription) {
+            queue.ready = true;
+            readyQueues.addLast(queue);
+        }
+    }
+
+    /*
+     * Takes pushes from the ready subscriptions in turn until the global limit is reached
+     */
+    private List<Push> startPushes() {
+        List<Push> started = new ArrayList<>();
+        while (inFlight < maxConcurrent && !readyQueues.isEmpty()) {
+            SubscriberQueue queue = readyQueues.pollFirst();
+            queue.ready = false;
+
+            Push push = queue.pushes.pollFirst();
+            if (push == null) {
+                continue;
+            }
+            queue.inFlight++;
+            inFlight++;
+            started.add(push);
+
+            markReady(queue);
+        }
+        return started;
+    }
+
+    private void completed(Push push) {
+        List<Push> started;
+        synchronized (this) {
+            SubscriberQueue queue = push.queue;
+            queue.inFlight--;
+            inFlight--;
+            if (queue.inFlight == 0 && queue.pushes.isEmpty()) {
+                // Idle subscriptions are forgotten - terminated subscriptions leave nothing behind
+                queues.remove(queue.subscriptionId, queue);
+            } else {
+                markReady(queue);
+            }
+            started = startPushes();
+        }
+        execute(started);
+    }
+
+    /*
+     * Releases a push that was never run - e.g. when the workers have been shut down
+     */
+    private synchronized void rejected(Push push) {
+        SubscriberQueue queue = push.queue;
+        queue.inFlight--;
+        inFlight--;
+        if (queue.inFlight == 0 && queue.pushes.isEmpty()) {
+            queues.remove(queue.subscriptionId, queue);
+        }
+    }
+
+    private void execute(List<Push> pushes) {
+        for (Push push : pushes) {
+            try {
+                getWorkers().execute(() -> {
+                    long start = System.currentTimeMillis();
+                    long queueMillis = start - push.queued;
+                    try {
+                        push.push.run();
+                    } catch (RuntimeException e) {
+                        logger.warn("Push to subscription {} failed", push.queue.subscriptionId, e);
+                    } finally {
+                        metrics.registerOutboundPush(push.queue.subscriptionId, queueMillis, System.currentTimeMillis() - start);
+                        completed(push);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.info("Push to subscription {} rejected - dispatcher is shut down", push.queue.subscriptionId);
+                rejected(push);
+            }
+        }
+    }
+
+    private synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            workers = createWorkers();
+        }
+        return workers;
+    }
+
+    private static ExecutorService createWorkers() {
+        try {
+            // Virtual threads are available from Java 21
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            logger.info("Outbound pushes run on virtual threads");
+            return executor;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.info("Virtual threads not supported - outbound pushes run on platform threads");
+            return Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("outbound-%d").build());
+        }
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    private static class SubscriberQueue {
+        private final String subscriptionId;
+        private final Deque<Push> pushes = new ArrayDeque<>();
+        private int inFlight;
+        private boolean ready;
+
+        private SubscriberQueue(String subscriptionId) {
+            this.subscriptionId = subscriptionId;
+        }
+    }
+
+    private static class Push {
+        private final SubscriberQueue queue;
+        private final String coalesceKey;
+        private final Runnable push;
+        private final long queued = System.currentTimeMillis();
+
+        private Push(SubscriberQueue queue, String coalesceKey, Runnable push) {
+            this.queue = queue;
+            this.coalesceKey = coalesceKey;
+            this.push = push;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP-client used to push data to outbound subscriptions.
+ *
+ * Connections are kept alive in a pool, and reused for later pushes to the same consumer host. HTTP/2 is used when the
+ * consumer supports it. Queue-, connect-, TLS-, first byte- and total time is recorded per subscription.
+ *
+ * Failed requests are not retried on other connections, as the consumer may already have received the data.
+ */
+@Service
+public class OutboundHttpClient {
+
+    @Value("${anshar.outbound.timeout.socket:15000}")
+    private int socketTimeout;
+
+    @Value("${anshar.outbound.timeout.connect:5000}")
+    private int connectTimeout;
+
+    @Value("${anshar.outbound.http.max.requests:200}")
+    private int maxRequests;
+
+    @Value("${anshar.outbound.http.max.requests.per.host:20}")
+    private int maxRequestsPerHost;
+
+    @Value("${anshar.outbound.http.max.idle.connections:50}")
+    private int maxIdleConnections;
+
+    @Value("${anshar.outbound.http.keep.alive.seconds:300}")
+    private int keepAliveSeconds;
+
+    @Autowired
+    private PrometheusMetricsService metrics;
+
+    private OkHttpClient client;
+
+    @PostConstruct
+    void init() {
+        Dispatcher dispatcher = new Dispatcher(Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("outbound-http-%d").build()));
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+
+        client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS))
+                .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(socketTimeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(socketTimeout, TimeUnit.MILLISECONDS)
+                .followRedirects(false)
+                .retryOnConnectionFailure(false)
+                .addInterceptor(chain -> {
+                    // Runs when the dispatcher starts the call - time before this is spent waiting for the request-limits
+                    OutboundPushTimings timings = chain.request().tag(OutboundPushTimings.class);
+                    if (timings != null) {
+                        timings.started();
+                    }
+                    return chain.proceed(chain.request());
+                })
+                .eventListenerFactory(call -> {
+                    OutboundPushTimings timings = call.request().tag(OutboundPushTimings.class);
+                    return timings != null ? new TimingListener(timings) : EventListener.NONE;
+                })
+                .build();
+    }
+
+    /**
+     * POSTs the body to the consumer, and records the timings for the subscription
+     * @return timings of the push
+     * @throws HttpOperationFailedException if the consumer does not respond with 2xx
+     * @throws IOException if the push could not be completed
+     */
+    public OutboundPushTimings post(String subscriptionId, String endpoint, byte[] body, String contentType) throws IOException, HttpOperationFailedException {
+        OutboundPushTimings timings = new OutboundPushTimings();
+        Request request = new Request.Builder()
+                .url(endpoint)
+                .post(RequestBody.create(body, MediaType.get(contentType)))
+                .tag(OutboundPushTimings.class, timings)
+                .build();
+
+        try (Response response = execute(client.newCall(request))) {
+            timings.statusCode = response.code();
+            if (!response.isSuccessful()) {
+                ResponseBody responseBody = response.body();
+                throw new HttpOperationFailedException(endpoint, response.code(), response.message(), response.header("Location"),
+                        getHeaders(response), responseBody != null ? responseBody.string() : null);
+            }
+        } finally {
+            timings.completed();
+            metrics.registerOutboundHttpTimings(subscriptionId, timings);
+        }
+        return timings;
+    }
+
+    /*
+     * Calls are enqueued, so that the dispatcher's limits per host apply
+     */
+    private static Response execute(Call call) throws IOException {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                future.complete(response);
+            }
+        });
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            call.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for response");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Map<String, String> getHeaders(Response response) {
+        Map<String, String> headers = new HashMap<>();
+        response.headers().forEach(header -> headers.put(header.getFirst(), header.getSecond()));
+        return headers;
+    }
+
+    static long millisSince(long nanoTime) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (client != null) {
+            client.dispatcher().executorService().shutdownNow();
+            client.connectionPool().evictAll();
+        }
+    }
+
+    private static class TimingListener extends EventListener {
+        private final OutboundPushTimings timings;
+        private long connectStart;
+        private long secureConnectStart;
+        private long requestStart;
+
+        private TimingListener(OutboundPushTimings timings) {
+            this.timings = timings;
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            secureConnectStart = System.nanoTime();
+            timings.connectMillis = millisSince(connectStart);
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            timings.tlsMillis = millisSince(secureConnectStart);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            if (secureConnectStart == 0) {
+                timings.connectMillis = millisSince(connectStart);
+            }
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            timings.protocol = connection.protocol().toString();
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            requestStart = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            timings.firstByteMillis = millisSince(requestStart);
+        }
+    }
+}
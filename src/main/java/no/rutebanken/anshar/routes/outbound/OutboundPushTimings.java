@@ -0,0 +1,104 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+/**
+ * Timings of a single push to an outbound subscription - phases that did not occur, e.g. connecting when an existing
+ * connection was reused, are -1
+ */
+public class OutboundPushTimings {
+
+    long queueMillis = -1;
+    long connectMillis = -1;
+    long tlsMillis = -1;
+    long firstByteMillis = -1;
+    long totalMillis = -1;
+    String protocol;
+    int statusCode = -1;
+
+    private final long created = System.nanoTime();
+    private volatile long started;
+
+    void started() {
+        started = System.nanoTime();
+        queueMillis = OutboundHttpClient.millisSince(created);
+    }
+
+    void completed() {
+        if (started != 0) {
+            totalMillis = OutboundHttpClient.millisSince(started);
+        }
+    }
+
+    /**
+     * @return time waiting for the client's limits on concurrent requests, or -1 if the request was never started
+     */
+    public long getQueueMillis() {
+        return queueMillis;
+    }
+
+    /**
+     * @return time to establish the TCP-connection, or -1 if a pooled connection was reused
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    /**
+     * @return time of the TLS-handshake, or -1 if none was performed
+     */
+    public long getTlsMillis() {
+        return tlsMillis;
+    }
+
+    /**
+     * @return time from the request was sent until the first byte of the response was received
+     */
+    public long getFirstByteMillis() {
+        return firstByteMillis;
+    }
+
+    /**
+     * @return time from the request was started until the response was received - excluding time in queue
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    /**
+     * @return negotiated protocol, e.g. "http/1.1" or "h2"
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundPushTimings{" +
+                "queueMillis=" + queueMillis +
+                ", connectMillis=" + connectMillis +
+                ", tlsMillis=" + tlsMillis +
+                ", firstByteMillis=" + firstByteMillis +
+                ", totalMillis=" + totalMillis +
+                ", protocol='" + protocol + '\'' +
+                ", statusCode=" + statusCode +
+                '}';
+    }
+}
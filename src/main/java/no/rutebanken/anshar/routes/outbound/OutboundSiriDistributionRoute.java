@@ -1,7 +1,6 @@
 package no.rutebanken.anshar.routes.outbound;
 
 import jakarta.ws.rs.core.MediaType;
-import no.rutebanken.anshar.metrics.PrometheusMetricsService;
 import no.rutebanken.anshar.routes.dataformat.SiriDataFormatHelper;
 import org.apache.camel.Configuration;
 import org.apache.camel.Exchange;
@@ -24,9 +23,6 @@ public class OutboundSiriDistributionRoute extends RouteBuilder {
     @Autowired
     private ServerSubscriptionManager subscriptionManager;
 
-    @Autowired
-    private PrometheusMetricsService metrics;
-
 
     @Value("${anshar.outbound.error.redelivery.delay.millis:1000}")
     private int redeliveryDelay;
@@ -34,11 +30,8 @@ public class OutboundSiriDistributionRoute extends RouteBuilder {
     @Value("${anshar.outbound.error.redelivery.count:2}")
     private int redeliveryCount;
 
-    @Value("${anshar.outbound.timeout.socket:15000}")
-    private int socketTimeout;
-
-    @Value("${anshar.outbound.timeout.connect:5000}")
-    private int connectTimeout;
+    @Autowired
+    private OutboundHttpClient httpClient;
 
     @Override
     public void configure() {
@@ -64,13 +57,9 @@ public class OutboundSiriDistributionRoute extends RouteBuilder {
             .log("HttpOperationFailed - retry NOT triggered: Response code ${body}")
         ;
 
-        from("direct:send.to.external.subscription")
-                .routeId("send.to.external.subscription")
-                .startupOrder(1)
-                .log(LoggingLevel.DEBUG, "POST data to ${header.SubscriptionId}")
-                .setHeader("CamelHttpMethod", constant("POST"))
-                .setHeader(Exchange.CONTENT_TYPE, constant(MediaType.APPLICATION_XML))
-                .bean(metrics, "countOutgoingData(${body}, SUBSCRIBE)")
+        // Transformed and marshalled once for all recipients with identical deliveries
+        from("direct:marshal.for.external.subscription")
+                .routeId("marshal.for.external.subscription")
                 .to("direct:siri.transform.data")
                 .choice()
                     .when(header(SIRI_VERSION_HEADER_NAME).isEqualTo(SiriValidator.Version.VERSION_2_1))
@@ -82,17 +71,33 @@ public class OutboundSiriDistributionRoute extends RouteBuilder {
                         })
                         .marshal(SiriDataFormatHelper.getSiriJaxbDataformat(SiriValidator.Version.VERSION_2_0))
                 .end()
-                .setHeader("httpClient.socketTimeout", constant(socketTimeout))
-                .setHeader("httpClient.connectTimeout", constant(connectTimeout))
+                .convertBodyTo(byte[].class)
+        ;
+
+        from("direct:send.to.external.subscription")
+                .routeId("send.to.external.subscription")
+                .startupOrder(1)
+                .log(LoggingLevel.DEBUG, "POST data to ${header.SubscriptionId}")
+                .setHeader(Exchange.CONTENT_TYPE, constant(MediaType.APPLICATION_XML))
                 .choice()
                 .when(header("showBody").isEqualTo(true))
                         .to("log:push:" + getClass().getSimpleName() + "?showAll=true&multiline=true")
                 .endChoice()
                 .end()
                 .removeHeader("showBody")
-                .toD("${header.endpoint}")
-                .bean(subscriptionManager, "clearFailTracker(${header.SubscriptionId})")
-                .log(LoggingLevel.DEBUG, "POST complete ${header.SubscriptionId} - Response: [${header.CamelHttpResponseCode} ${header.CamelHttpResponseText}]");
+                .process(p -> {
+                    // Pushed through a pooled client, rather than a dynamic http-endpoint
+                    OutboundPushTimings timings = httpClient.post(
+                            p.getIn().getHeader("SubscriptionId", String.class),
+                            p.getIn().getHeader("endpoint", String.class),
+                            p.getIn().getBody(byte[].class),
+                            p.getIn().getHeader(Exchange.CONTENT_TYPE, String.class)
+                    );
+                    p.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, timings.getStatusCode());
+                    p.getIn().setHeader("responseTimeMillis", timings.getTotalMillis());
+                })
+                .bean(subscriptionManager, "pushCompletedForSubscription(${header.SubscriptionId}, ${header.responseTimeMillis})")
+                .log(LoggingLevel.DEBUG, "POST complete ${header.SubscriptionId} - Response: [${header.CamelHttpResponseCode}] in ${header.responseTimeMillis} ms");
 
     }
 }
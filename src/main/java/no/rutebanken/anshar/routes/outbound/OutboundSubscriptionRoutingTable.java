@@ -0,0 +1,201 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import com.hazelcast.map.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.VehicleRef;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Node-local index of outbound subscriptions, kept in sync with the distributed map by entry-listeners.
+ *
+ * Subscriptions are indexed on data type and datasetId. ET- and VM-subscriptions filtered on LineRef or VehicleRef
+ * are indexed on the filter values instead, and are only found for deliveries containing matching elements.
+ */
+class OutboundSubscriptionRoutingTable {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundSubscriptionRoutingTable.class);
+
+    private static final String ALL_DATASETS = "";
+
+    private final Map<String, OutboundSubscriptionSetup> subscriptions = new ConcurrentHashMap<>();
+
+    // Subscription-ids per datasetId - for subscriptions not indexed on filter values
+    private final Map<SiriDataType, Map<String, Set<String>>> byDatasetId = createIndex();
+
+    private final Map<SiriDataType, Map<String, Set<String>>> byLineRef = createIndex();
+
+    private final Map<SiriDataType, Map<String, Set<String>>> byVehicleRef = createIndex();
+
+    private static Map<SiriDataType, Map<String, Set<String>>> createIndex() {
+        Map<SiriDataType, Map<String, Set<String>>> index = new EnumMap<>(SiriDataType.class);
+        for (SiriDataType dataType : SiriDataType.values()) {
+            index.put(dataType, new ConcurrentHashMap<>());
+        }
+        return index;
+    }
+
+    /**
+     * Keeps the index in sync with the subscription-map, and adds all existing subscriptions
+     */
+    void listenTo(IMap<String, OutboundSubscriptionSetup> subscriptionMap) {
+        subscriptionMap.addEntryListener((EntryAddedListener<String, OutboundSubscriptionSetup>) entryEvent ->
+                put(entryEvent.getValue()), true);
+
+        subscriptionMap.addEntryListener((EntryUpdatedListener<String, OutboundSubscriptionSetup>) entryEvent ->
+                put(entryEvent.getValue()), true);
+
+        subscriptionMap.addEntryListener((EntryRemovedListener<String, OutboundSubscriptionSetup>) entryEvent ->
+                remove(entryEvent.getKey()), false);
+
+        subscriptionMap.addEntryListener((EntryExpiredListener<String, OutboundSubscriptionSetup>) entryEvent ->
+                remove(entryEvent.getKey()), false);
+
+        subscriptionMap.addEntryListener((EntryEvictedListener<String, OutboundSubscriptionSetup>) entryEvent ->
+                remove(entryEvent.getKey()), false);
+
+        for (OutboundSubscriptionSetup subscription : subscriptionMap.values()) {
+            put(subscription);
+        }
+        logger.info("Outbound routing table initialized with {} subscriptions", subscriptions.size());
+    }
+
+    synchronized void put(OutboundSubscriptionSetup subscription) {
+        if (subscription == null) {
+            return;
+        }
+        remove(subscription.getSubscriptionId());
+        subscriptions.put(subscription.getSubscriptionId(), subscription);
+        forEachIndexEntry(subscription, (index, value) ->
+                index.computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(subscription.getSubscriptionId())
+        );
+    }
+
+    synchronized void remove(String subscriptionId) {
+        OutboundSubscriptionSetup subscription = subscriptions.remove(subscriptionId);
+        if (subscription != null) {
+            forEachIndexEntry(subscription, (index, value) -> {
+                Set<String> ids = index.get(value);
+                if (ids != null) {
+                    ids.remove(subscriptionId);
+                    if (ids.isEmpty()) {
+                        index.remove(value);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @param lineRefs LineRefs of the elements in the delivery
+     * @param vehicleRefs VehicleRefs of the elements in the delivery
+     * @return subscriptions that may receive the delivery - the subscription-filter still has to be applied
+     */
+    List<OutboundSubscriptionSetup> findRecipients(SiriDataType dataType, String datasetId, Collection<String> lineRefs, Collection<String> vehicleRefs) {
+        Set<String> ids = new LinkedHashSet<>(getIds(byDatasetId, dataType, ALL_DATASETS));
+        if (datasetId != null) {
+            ids.addAll(getIds(byDatasetId, dataType, datasetId));
+        }
+
+        Set<String> filteredIds = new LinkedHashSet<>();
+        for (String lineRef : lineRefs) {
+            filteredIds.addAll(getIds(byLineRef, dataType, lineRef));
+        }
+        for (String vehicleRef : vehicleRefs) {
+            filteredIds.addAll(getIds(byVehicleRef, dataType, vehicleRef));
+        }
+
+        List<OutboundSubscriptionSetup> recipients = new ArrayList<>();
+        for (String id : ids) {
+            OutboundSubscriptionSetup subscription = subscriptions.get(id);
+            if (subscription != null) {
+                recipients.add(subscription);
+            }
+        }
+        for (String id : filteredIds) {
+            OutboundSubscriptionSetup subscription = subscriptions.get(id);
+            if (subscription != null && (subscription.getDatasetId() == null || subscription.getDatasetId().equals(datasetId))) {
+                recipients.add(subscription);
+            }
+        }
+        return recipients;
+    }
+
+    int size() {
+        return subscriptions.size();
+    }
+
+    private static Set<String> getIds(Map<SiriDataType, Map<String, Set<String>>> index, SiriDataType dataType, String value) {
+        if (value == null) {
+            return Set.of();
+        }
+        return index.get(dataType).getOrDefault(value, Set.of());
+    }
+
+    /*
+     * Calls the consumer with each index, and value, the subscription is indexed on
+     */
+    private void forEachIndexEntry(OutboundSubscriptionSetup subscription, BiConsumer<Map<String, Set<String>>, String> consumer) {
+        SiriDataType dataType = subscription.getSubscriptionType();
+        if (dataType == null) {
+            return;
+        }
+
+        if (dataType == SiriDataType.ESTIMATED_TIMETABLE || dataType == SiriDataType.VEHICLE_MONITORING) {
+            // Single-match filters - an element is only delivered when its value is in the filter
+            Set<String> lineRefs = getFilterValues(subscription, LineRef.class);
+            if (!lineRefs.isEmpty()) {
+                lineRefs.stream().filter(Objects::nonNull).forEach(lineRef -> consumer.accept(byLineRef.get(dataType), lineRef));
+                return;
+            }
+            Set<String> vehicleRefs = getFilterValues(subscription, VehicleRef.class);
+            if (!vehicleRefs.isEmpty()) {
+                vehicleRefs.stream().filter(Objects::nonNull).forEach(vehicleRef -> consumer.accept(byVehicleRef.get(dataType), vehicleRef));
+                return;
+            }
+        }
+
+        String datasetId = subscription.getDatasetId() != null ? subscription.getDatasetId() : ALL_DATASETS;
+        consumer.accept(byDatasetId.get(dataType), datasetId);
+    }
+
+    private static Set<String> getFilterValues(OutboundSubscriptionSetup subscription, Class filterClass) {
+        Map<Class, Set<String>> filterMap = subscription.getFilterMap();
+        if (filterMap == null || filterMap.get(filterClass) == null) {
+            return Set.of();
+        }
+        return filterMap.get(filterClass);
+    }
+}
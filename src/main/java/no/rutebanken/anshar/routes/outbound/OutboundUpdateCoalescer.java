@@ -0,0 +1,140 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Holds back updates to outbound subscriptions that have requested ChangeBeforeUpdates.
+ *
+ * The first update to a subscription opens a window of ChangeBeforeUpdates. Updates received within the window are
+ * merged by storage key - keeping only the newest version of each element - and delivered together when the window
+ * closes.
+ */
+class OutboundUpdateCoalescer {
+
+    private static final Logger logger = LoggerFactory.getLogger(OutboundUpdateCoalescer.class);
+
+    private final BiConsumer<OutboundSubscriptionSetup, List<Object>> delivery;
+
+    // Guarded by this
+    private final Map<String, Window> windows = new HashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param delivery called with the merged updates when a subscription's window closes
+     */
+    OutboundUpdateCoalescer(BiConsumer<OutboundSubscriptionSetup, List<Object>> delivery) {
+        this(delivery, null);
+    }
+
+    /**
+     * @param delivery called with the merged updates when a subscription's window closes
+     * @param scheduler closes the windows - created when the first window is opened if null
+     */
+    OutboundUpdateCoalescer(BiConsumer<OutboundSubscriptionSetup, List<Object>> delivery, ScheduledExecutorService scheduler) {
+        this.delivery = delivery;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Adds the updates to the subscription's window, and opens a new window if none is open
+     * @param keyFunction resolves the storage key of an update
+     */
+    synchronized <T> void add(OutboundSubscriptionSetup subscription, List<T> updates, Function<T, Object> keyFunction) {
+        Window window = windows.get(subscription.getSubscriptionId());
+        if (window == null) {
+            Window opened = new Window(subscription);
+            windows.put(subscription.getSubscriptionId(), opened);
+            getScheduler().schedule(() -> close(opened), subscription.getChangeBeforeUpdates(), TimeUnit.MILLISECONDS);
+            window = opened;
+        }
+        for (T update : updates) {
+            Object key = keyFunction.apply(update);
+            // Removed first so that the order reflects the latest update
+            window.updates.remove(key);
+            window.updates.put(key, update);
+        }
+    }
+
+    /**
+     * Discards updates held back for the subscription
+     */
+    synchronized void remove(String subscriptionId) {
+        windows.remove(subscriptionId);
+    }
+
+    /**
+     * @return number of updates held back per subscription
+     */
+    synchronized Map<String, Integer> getPendingUpdates() {
+        Map<String, Integer> pending = new HashMap<>();
+        windows.forEach((subscriptionId, window) -> pending.put(subscriptionId, window.updates.size()));
+        return pending;
+    }
+
+    private void close(Window window) {
+        String subscriptionId = window.subscription.getSubscriptionId();
+        synchronized (this) {
+            if (!windows.remove(subscriptionId, window)) {
+                // Subscription has been removed while the window was open
+                return;
+            }
+        }
+        logger.debug("Delivering {} coalesced updates to subscription {}", window.updates.size(), subscriptionId);
+        try {
+            delivery.accept(window.subscription, new ArrayList<>(window.updates.values()));
+        } catch (RuntimeException e) {
+            logger.warn("Delivering coalesced updates to subscription {} failed", subscriptionId, e);
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("outbound-coalescer").build());
+        }
+        return scheduler;
+    }
+
+    synchronized void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private static class Window {
+        private final OutboundSubscriptionSetup subscription;
+        private final Map<Object, Object> updates = new LinkedHashMap<>();
+
+        private Window(OutboundSubscriptionSetup subscription) {
+            this.subscription = subscription;
+        }
+    }
+}
@@ -15,7 +15,11 @@
 
 package no.rutebanken.anshar.routes.outbound;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.hazelcast.map.IMap;
+import no.rutebanken.anshar.data.EstimatedTimetables;
+import no.rutebanken.anshar.data.Situations;
+import no.rutebanken.anshar.data.VehicleActivities;
 import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
 import no.rutebanken.anshar.subscription.SiriDataType;
@@ -44,17 +48,24 @@ import uk.org.siri.siri21.SubscriptionRequest;
 import uk.org.siri.siri21.VehicleActivityStructure;
 import uk.org.siri.siri21.VehicleMonitoringSubscriptionStructure;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.function.Function;
 
 import static java.time.temporal.ChronoUnit.MILLIS;
 import static no.rutebanken.anshar.routes.kafka.KafkaConfig.CODESPACE_ID_KAFKA_HEADER_NAME;
@@ -93,6 +104,9 @@ public class ServerSubscriptionManager {
     @Value("${anshar.outbound.error.initialtermination}")
     private String initialTerminationTimePassed = "Error";
 
+    @Value("${anshar.outbound.slow.response.millis:0}")
+    private long slowResponseMillis;
+
     @Value("${anshar.outbound.pubsub.vm.topic.enabled}")
     private boolean pushToVmTopicEnabled;
     @Value("${anshar.outbound.pubsub.et.topic.enabled}")
@@ -115,6 +129,17 @@ public class ServerSubscriptionManager {
     @Autowired
     private SiriHelper siriHelper;
 
+    private final OutboundSubscriptionRoutingTable routingTable = new OutboundSubscriptionRoutingTable();
+
+    // One thread per datatype, so that updates are pushed in the order they were received
+    private final Map<SiriDataType, ExecutorService> pushExecutors = new EnumMap<>(SiriDataType.class);
+
+    private final OutboundUpdateCoalescer coalescer = new OutboundUpdateCoalescer(this::pushCoalescedUpdates);
+
+    @PostConstruct
+    private void initRoutingTable() {
+        routingTable.listenTo(subscriptions);
+    }
 
     public Collection getSubscriptions() {
         return Collections.unmodifiableCollection(subscriptions.values());
@@ -290,12 +315,16 @@ public class ServerSubscriptionManager {
 
     private void addSubscription(OutboundSubscriptionSetup subscription) {
         subscriptions.put(subscription.getSubscriptionId(), subscription);
+        // Entry-listeners are notified asynchronously - local changes are applied immediately
+        routingTable.put(subscription);
     }
 
     private OutboundSubscriptionSetup removeSubscription(String subscriptionId) {
         logger.info("Removing subscription {}", subscriptionId);
         failTrackerMap.delete(subscriptionId);
         heartbeatTimestampMap.remove(subscriptionId);
+        routingTable.remove(subscriptionId);
+        coalescer.remove(subscriptionId);
         return subscriptions.remove(subscriptionId);
     }
 
@@ -371,7 +400,7 @@ public class ServerSubscriptionManager {
 
         final String breadcrumbId = MDC.get("camel.breadcrumbId");
 
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        ExecutorService executorService = getPushExecutor(datatype);
         switch (datatype) {
             case ESTIMATED_TIMETABLE:
                 executorService.submit(() -> pushUpdatedEstimatedTimetables(updates, datasetId, breadcrumbId));
@@ -388,6 +417,17 @@ public class ServerSubscriptionManager {
         }
     }
 
+    private synchronized ExecutorService getPushExecutor(SiriDataType datatype) {
+        return pushExecutors.computeIfAbsent(datatype, type -> Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("outbound-updates-" + type.name().toLowerCase()).build()));
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        pushExecutors.values().forEach(ExecutorService::shutdownNow);
+        coalescer.shutdown();
+    }
+
     private void pushUpdatedVehicleActivities(
         List<VehicleActivityStructure> addedOrUpdated, String datasetId, String breadcrumbId
     ) {
@@ -402,26 +442,21 @@ public class ServerSubscriptionManager {
             siriVmTopicProducer.asyncRequestBodyAndHeader(siriVmTopicProducer.getDefaultEndpoint(), delivery, CODESPACE_ID_KAFKA_HEADER_NAME, datasetId);
         }
 
-        final List<OutboundSubscriptionSetup> recipients = subscriptions
-            .values()
-            .stream()
-            .filter(subscriptionRequest -> (
-                    subscriptionRequest.getSubscriptionType().equals(SiriDataType.VEHICLE_MONITORING)
-                        && (
-                        subscriptionRequest.getDatasetId() == null || (
-                            subscriptionRequest
-                                .getDatasetId()
-                                .equals(datasetId)
-                        )
-                    )
-                )
-
-            )
-            .collect(Collectors.toList());
-
-        for (OutboundSubscriptionSetup recipient : recipients) {
-            camelRouteManager.pushSiriData(delivery, recipient, false);
-        }
+        final List<OutboundSubscriptionSetup> recipients = routingTable.findRecipients(
+                SiriDataType.VEHICLE_MONITORING,
+                datasetId,
+                getValues(addedOrUpdated, activity -> {
+                    VehicleActivityStructure.MonitoredVehicleJourney journey = activity.getMonitoredVehicleJourney();
+                    return journey != null && journey.getLineRef() != null ? journey.getLineRef().getValue() : null;
+                }),
+                getValues(addedOrUpdated, activity -> {
+                    VehicleActivityStructure.MonitoredVehicleJourney journey = activity.getMonitoredVehicleJourney();
+                    return journey != null && journey.getVehicleRef() != null ? journey.getVehicleRef().getValue() : null;
+                })
+        );
+
+        pushUpdates(delivery, recipients, addedOrUpdated, activity -> activity.getMonitoredVehicleJourney() != null ?
+                VehicleActivities.createKey(datasetId, activity.getMonitoredVehicleJourney()) : activity);
 
         MDC.remove("camel.breadcrumbId");
     }
@@ -441,26 +476,14 @@ public class ServerSubscriptionManager {
             siriSxTopicProducer.asyncRequestBodyAndHeader(siriSxTopicProducer.getDefaultEndpoint(), delivery, CODESPACE_ID_KAFKA_HEADER_NAME, datasetId);
         }
 
-        final List<OutboundSubscriptionSetup> recipients = subscriptions
-            .values()
-            .stream()
-            .filter(subscriptionRequest -> (
-                    subscriptionRequest.getSubscriptionType().equals(SiriDataType.SITUATION_EXCHANGE)
-                        && (
-                        subscriptionRequest.getDatasetId() == null || (
-                            subscriptionRequest
-                                .getDatasetId()
-                                .equals(datasetId)
-                        )
-                    )
-                )
-
-            )
-            .collect(Collectors.toList());
+        final List<OutboundSubscriptionSetup> recipients = routingTable.findRecipients(
+                SiriDataType.SITUATION_EXCHANGE,
+                datasetId,
+                Set.of(),
+                Set.of()
+        );
 
-        for (OutboundSubscriptionSetup recipient : recipients) {
-            camelRouteManager.pushSiriData(delivery, recipient, false);
-        }
+        pushUpdates(delivery, recipients, addedOrUpdated, situation -> Situations.createKey(datasetId, situation));
 
         MDC.remove("camel.breadcrumbId");
     }
@@ -479,33 +502,82 @@ public class ServerSubscriptionManager {
             siriEtTopicProducer.asyncRequestBodyAndHeader(siriEtTopicProducer.getDefaultEndpoint(), delivery, CODESPACE_ID_KAFKA_HEADER_NAME, datasetId);
         }
 
-        final List<OutboundSubscriptionSetup> recipients = subscriptions
-            .values()
-            .stream()
-            .filter(subscriptionRequest -> (
-                    subscriptionRequest.getSubscriptionType().equals(SiriDataType.ESTIMATED_TIMETABLE)
-                        && (
-                        subscriptionRequest.getDatasetId() == null || (
-                            subscriptionRequest
-                                .getDatasetId()
-                                .equals(datasetId)
-                        )
-                    )
-                )
-
-            )
-            .collect(Collectors.toList());
+        final List<OutboundSubscriptionSetup> recipients = routingTable.findRecipients(
+                SiriDataType.ESTIMATED_TIMETABLE,
+                datasetId,
+                getValues(addedOrUpdated, journey -> journey.getLineRef() != null ? journey.getLineRef().getValue() : null),
+                getValues(addedOrUpdated, journey -> journey.getVehicleRef() != null ? journey.getVehicleRef().getValue() : null)
+        );
 
         if (!recipients.isEmpty()) {
             logger.info("Pushing {} ET updates to {} outbound subscriptions", addedOrUpdated.size(), recipients.size());
 
-            for (OutboundSubscriptionSetup recipient : recipients) {
-                camelRouteManager.pushSiriData(delivery, recipient, false);
-            }
+            pushUpdates(delivery, recipients, addedOrUpdated, journey -> EstimatedTimetables.createKey(datasetId, journey));
         }
         MDC.remove("camel.breadcrumbId");
     }
 
+    /**
+     * Pushes the delivery immediately to recipients without ChangeBeforeUpdates - updates to the others are held back,
+     * and merged with later updates until their window closes
+     */
+    private <T> void pushUpdates(Siri delivery, List<OutboundSubscriptionSetup> recipients, List<T> updates, Function<T, Object> keyFunction) {
+        List<OutboundSubscriptionSetup> immediateRecipients = new ArrayList<>();
+        for (OutboundSubscriptionSetup recipient : recipients) {
+            if (recipient.getChangeBeforeUpdates() > 0) {
+                coalescer.add(recipient, updates, keyFunction);
+            } else {
+                immediateRecipients.add(recipient);
+            }
+        }
+        if (!immediateRecipients.isEmpty()) {
+            camelRouteManager.pushSiriData(delivery, immediateRecipients, false);
+        }
+    }
+
+    private void pushCoalescedUpdates(OutboundSubscriptionSetup subscription, List<Object> updates) {
+        Siri delivery;
+        switch (subscription.getSubscriptionType()) {
+            case ESTIMATED_TIMETABLE:
+                delivery = siriObjectFactory.createETServiceDelivery(castAll(updates, EstimatedVehicleJourney.class));
+                break;
+            case SITUATION_EXCHANGE:
+                delivery = siriObjectFactory.createSXServiceDelivery(castAll(updates, PtSituationElement.class));
+                break;
+            case VEHICLE_MONITORING:
+                delivery = siriObjectFactory.createVMServiceDelivery(castAll(updates, VehicleActivityStructure.class));
+                break;
+            default:
+                return;
+        }
+        camelRouteManager.pushSiriData(delivery, subscription, false);
+    }
+
+    /**
+     * @throws ClassCastException if any of the elements is not of the given type
+     */
+    private static <T> List<T> castAll(List<Object> elements, Class<T> type) {
+        List<T> result = new ArrayList<>(elements.size());
+        for (Object element : elements) {
+            result.add(type.cast(element));
+        }
+        return result;
+    }
+
+    /**
+     * @return distinct, non-null values extracted from the elements
+     */
+    private static <T> Set<String> getValues(List<T> elements, Function<T, String> valueExtractor) {
+        Set<String> values = new HashSet<>();
+        for (T element : elements) {
+            String value = valueExtractor.apply(element);
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
     public void pushFailedForSubscription(String subscriptionId) {
         OutboundSubscriptionSetup outboundSubscriptionSetup = subscriptions.get(subscriptionId);
         if (outboundSubscriptionSetup != null) {
@@ -526,6 +598,21 @@ public class ServerSubscriptionManager {
         }
     }
 
+    /**
+     * Consumers that respond slower than the configured limit are treated as failing, and are cancelled if they do not
+     * recover within the grace period
+     * @param subscriptionId
+     * @param responseTimeMillis total time of the push
+     */
+    public void pushCompletedForSubscription(String subscriptionId, long responseTimeMillis) {
+        if (slowResponseMillis > 0 && responseTimeMillis > slowResponseMillis) {
+            logger.info("Outbound subscription {} responded in {} ms - limit is {} ms.", subscriptionId, responseTimeMillis, slowResponseMillis);
+            pushFailedForSubscription(subscriptionId);
+        } else {
+            clearFailTracker(subscriptionId);
+        }
+    }
+
     public void clearFailTracker(String subscriptionId) {
         if (failTrackerMap.containsKey(subscriptionId)) {
             logger.info("Subscription {} is now responding - clearing failtracker", subscriptionId);
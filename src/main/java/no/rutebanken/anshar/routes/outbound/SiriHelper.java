@@ -34,6 +34,7 @@ import uk.org.siri.siri21.EstimatedVersionFrameStructure;
 import uk.org.siri.siri21.LineDirectionStructure;
 import uk.org.siri.siri21.LineRef;
 import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.ServiceDelivery;
 import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
 import uk.org.siri.siri21.SituationExchangeRequestStructure;
@@ -52,6 +53,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 @SuppressWarnings("unchecked")
 @Component
@@ -257,22 +259,112 @@ public class SiriHelper {
 
             Siri filtered;
             try {
-                filtered = SiriObjectFactory.deepCopy(siri);
+                filtered = copyDeliveryContainers(siri);
             } catch (Exception e) {
                 return siri;
             }
 
             if (containsValues(filtered.getServiceDelivery().getVehicleMonitoringDeliveries()) |
                     containsValues(filtered.getServiceDelivery().getEstimatedTimetableDeliveries())) {
-                return applySingleMatchFilter(filtered, filter);
+                return copySurvivingElements(applySingleMatchFilter(filtered, filter));
             } else if (containsValues(filtered.getServiceDelivery().getSituationExchangeDeliveries())) {
-                return applyMultipleMatchFilter(filtered, filter);
+                return copySurvivingElements(applyMultipleMatchFilter(filtered, filter));
             }
         }
 
         return siri;
     }
 
+    /*
+     * Copies the delivery-containers without copying the elements - the copied containers reference the elements of
+     * the original. The filters only alter the containers, so the original is left untouched
+     */
+    private static Siri copyDeliveryContainers(Siri siri) {
+        ServiceDelivery original = siri.getServiceDelivery();
+
+        ServiceDelivery serviceDelivery = SiriObjectFactory.shallowCopy(original);
+        serviceDelivery.getVehicleMonitoringDeliveries().clear();
+        serviceDelivery.getEstimatedTimetableDeliveries().clear();
+        serviceDelivery.getSituationExchangeDeliveries().clear();
+
+        Siri copy = SiriObjectFactory.shallowCopy(siri);
+        copy.setServiceDelivery(serviceDelivery);
+        copy = SiriObjectFactory.deepCopy(copy);
+        serviceDelivery = copy.getServiceDelivery();
+
+        for (VehicleMonitoringDeliveryStructure delivery : original.getVehicleMonitoringDeliveries()) {
+            serviceDelivery.getVehicleMonitoringDeliveries().add(
+                    copyWithoutElements(delivery, VehicleMonitoringDeliveryStructure::getVehicleActivities)
+            );
+        }
+
+        for (EstimatedTimetableDeliveryStructure delivery : original.getEstimatedTimetableDeliveries()) {
+            EstimatedTimetableDeliveryStructure copiedDelivery = SiriObjectFactory.shallowCopy(delivery);
+            copiedDelivery.getEstimatedJourneyVersionFrames().clear();
+            copiedDelivery = SiriObjectFactory.deepCopy(copiedDelivery);
+            for (EstimatedVersionFrameStructure version : delivery.getEstimatedJourneyVersionFrames()) {
+                copiedDelivery.getEstimatedJourneyVersionFrames().add(
+                        copyWithoutElements(version, EstimatedVersionFrameStructure::getEstimatedVehicleJourneies)
+                );
+            }
+            serviceDelivery.getEstimatedTimetableDeliveries().add(copiedDelivery);
+        }
+
+        for (SituationExchangeDeliveryStructure delivery : original.getSituationExchangeDeliveries()) {
+            SituationExchangeDeliveryStructure copiedDelivery = SiriObjectFactory.shallowCopy(delivery);
+            copiedDelivery.setSituations(null);
+            copiedDelivery = SiriObjectFactory.deepCopy(copiedDelivery);
+            if (delivery.getSituations() != null) {
+                copiedDelivery.setSituations(
+                        copyWithoutElements(delivery.getSituations(), SituationExchangeDeliveryStructure.Situations::getPtSituationElements)
+                );
+            }
+            serviceDelivery.getSituationExchangeDeliveries().add(copiedDelivery);
+        }
+        return copy;
+    }
+
+    /*
+     * Deep-copies the container, except for the listed elements which are referenced from the original
+     */
+    private static <T, E> T copyWithoutElements(T container, Function<T, List<E>> elements) {
+        T copy = SiriObjectFactory.shallowCopy(container);
+        elements.apply(copy).clear();
+        copy = SiriObjectFactory.deepCopy(copy);
+        elements.apply(copy).addAll(elements.apply(container));
+        return copy;
+    }
+
+    /*
+     * Only the elements that survived filtering are deep-copied - each subscriber may alter its own copy when
+     * applying outbound mapping
+     */
+    private static Siri copySurvivingElements(Siri siri) {
+        ServiceDelivery serviceDelivery = siri.getServiceDelivery();
+        for (VehicleMonitoringDeliveryStructure delivery : serviceDelivery.getVehicleMonitoringDeliveries()) {
+            copyAll(delivery.getVehicleActivities());
+        }
+        for (EstimatedTimetableDeliveryStructure delivery : serviceDelivery.getEstimatedTimetableDeliveries()) {
+            for (EstimatedVersionFrameStructure version : delivery.getEstimatedJourneyVersionFrames()) {
+                copyAll(version.getEstimatedVehicleJourneies());
+            }
+        }
+        for (SituationExchangeDeliveryStructure delivery : serviceDelivery.getSituationExchangeDeliveries()) {
+            if (delivery.getSituations() != null) {
+                copyAll(delivery.getSituations().getPtSituationElements());
+            }
+        }
+        return siri;
+    }
+
+    private static <T> void copyAll(List<T> list) {
+        if (!list.isEmpty()) {
+            List<T> copies = SiriObjectFactory.deepCopyElements(list);
+            list.clear();
+            list.addAll(copies);
+        }
+    }
+
     /*
      * Filters elements with 1 - one - possible match per element
      */
@@ -1,6 +1,7 @@
 package no.rutebanken.anshar.routes.protobuf;
 
 import no.rutebanken.anshar.data.collections.KryoSerializer;
+import org.apache.camel.builder.PredicateBuilder;
 import org.apache.camel.builder.RouteBuilder;
 import org.entur.protobuf.mapper.SiriMapper;
 import org.rutebanken.siri20.util.SiriXml;
@@ -20,21 +21,37 @@ public class ProtobufConverterRoute extends RouteBuilder {
 
 
         from("direct:compress.jaxb")
+                .choice()
+                    .when(body().isInstanceOf(uk.org.siri.siri21.Siri.class))
+                        // Parsed objects are passed as is to internal queues, and written as binary objects to external queues
+                        .filter(PredicateBuilder.not(header("target_topic").startsWith("direct:")))
+                            .bean(kryoSerializer, "write")
+                        .end()
+                    .endChoice()
+                    .otherwise()
+                        .to("direct:fix.xml.encoding")
+                        .process(p -> {
+                            p.getMessage().setHeader(CONTENT_LENGTH, p.getIn().getBody(String.class).getBytes().length);
+                        })
+                        .bean(kryoSerializer, "write")
+                .end()
+        ;
+
+        from("direct:fix.xml.encoding")
                 .setBody(body().convertToString())
                 .process(p -> {
                     final String body = fixEncodingErrorsInXml(p.getIn().getBody(String.class), p.getIn().getHeader("subscriptionId", String.class));
                     p.getOut().setBody(body);
                     p.getOut().setHeaders(p.getIn().getHeaders());
-                    p.getOut().setHeader(CONTENT_LENGTH, body.getBytes().length);
                 })
-                .bean(kryoSerializer, "write")
         ;
 
         from("direct:decompress.jaxb")
+                .filter(PredicateBuilder.not(body().isInstanceOf(uk.org.siri.siri21.Siri.class)))
                 .bean(kryoSerializer, "read")
                 .process(p -> {
-                    final String body = p.getIn().getBody(String.class);
-                    p.getOut().setBody(body);
+                    final Object body = p.getIn().getBody();
+                    p.getOut().setBody(body instanceof uk.org.siri.siri21.Siri ? body : p.getIn().getBody(String.class));
                     p.getOut().setHeaders(p.getIn().getHeaders());
                 })
         ;
@@ -1,6 +1,7 @@
 package no.rutebanken.anshar.routes.pubsub;
 
 import no.rutebanken.anshar.routes.avro.AvroConvertorProcessor;
+import no.rutebanken.anshar.routes.messaging.SiriXmlSplitter;
 import org.apache.camel.builder.RouteBuilder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -43,8 +44,7 @@ public class PubsubTopicRoute extends RouteBuilder {
             from("direct:send.to.pubsub.topic.estimated_timetable")
                     .to("direct:siri.transform.data")
                     .choice().when(body().isNotNull())
-                        .to("xslt-saxon:xsl/split.xsl")
-                        .split().tokenizeXML("Siri").streaming()
+                        .split(method(SiriXmlSplitter.class, "split")).streaming()
                         .wireTap("direct:publish.et.avro")        // Publish as Avro
                         .to("direct:map.jaxb.to.protobuf")
                         .wireTap("direct:log.pubsub.et.traffic")
@@ -59,8 +59,7 @@ public class PubsubTopicRoute extends RouteBuilder {
             from("direct:send.to.pubsub.topic.vehicle_monitoring")
                     .to("direct:siri.transform.data")
                     .choice().when(body().isNotNull())
-                        .to("xslt-saxon:xsl/split.xsl")
-                        .split().tokenizeXML("Siri").streaming()
+                        .split(method(SiriXmlSplitter.class, "split")).streaming()
                         .to("direct:publish.vm.avro")// Publish as Avro
                         .wireTap("direct:log.pubsub.vm.traffic")
                     .end()
@@ -73,8 +72,7 @@ public class PubsubTopicRoute extends RouteBuilder {
             from("direct:send.to.pubsub.topic.situation_exchange")
                     .to("direct:siri.transform.data")
                     .choice().when(body().isNotNull())
-                        .to("xslt-saxon:xsl/split.xsl")
-                        .split().tokenizeXML("Siri").streaming()
+                        .split(method(SiriXmlSplitter.class, "split")).streaming()
                         .wireTap("direct:publish.sx.avro")// Publish as Avro
                         .to("direct:map.jaxb.to.protobuf")
                         .wireTap("direct:log.pubsub.sx.traffic")
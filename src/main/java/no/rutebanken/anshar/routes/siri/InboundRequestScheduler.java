@@ -0,0 +1,279 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import no.rutebanken.anshar.config.AnsharConfiguration;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import no.rutebanken.anshar.subscription.SubscriptionManager;
+import no.rutebanken.anshar.subscription.SubscriptionSetup;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queueing of incoming deliveries between the http-endpoint and the processing.
+ *
+ * Deliveries are queued per subscription, and a fixed number of workers take deliveries from the queues in deficit
+ * round-robin order: each subscription is served a number of bytes proportional to its inbound weight, so that a
+ * single subscription sending large or frequent deliveries does not delay deliveries from all other subscriptions.
+ *
+ * Deliveries are rejected when the subscription's queue, or the total backlog, is full.
+ *
+ * On shutdown, deliveries already accepted are processed before the workers are stopped - within a bounded time.
+ */
+@Service
+public class InboundRequestScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(InboundRequestScheduler.class);
+
+    /**
+     * Number of bytes a subscription with weight 1 is served per round
+     */
+    static final int QUANTUM_BYTES = 64 * 1024;
+
+    /**
+     * Max time to wait for accepted deliveries to be processed on shutdown
+     */
+    private static final int SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    public enum Admission {
+        ACCEPTED,
+        SUBSCRIPTION_BACKLOG_FULL,
+        BACKLOG_FULL
+    }
+
+    @Autowired
+    private AnsharConfiguration configuration;
+
+    @Autowired
+    private SubscriptionManager subscriptionManager;
+
+    @Autowired
+    private PrometheusMetricsService metrics;
+
+    @Produce(value = "direct:async.process.request")
+    protected ProducerTemplate asyncRequestProcessor;
+
+    // Guarded by this
+    private final Map<String, SubscriptionQueue> queues = new HashMap<>();
+    private final Deque<SubscriptionQueue> activeQueues = new ArrayDeque<>();
+    private int backlog;
+    private boolean draining;
+
+    private ExecutorService workers;
+
+    /**
+     * Queues the delivery for processing, and starts workers if needed
+     */
+    public Admission submit(String subscriptionId, Object body, Map<String, Object> headers) {
+        Admission admission = offer(subscriptionId, body, headers);
+        if (admission == Admission.ACCEPTED) {
+            ensureStarted();
+        } else {
+            metrics.registerRejectedInboundRequest(subscriptionId, admission.name());
+        }
+        return admission;
+    }
+
+    synchronized Admission offer(String subscriptionId, Object body, Map<String, Object> headers) {
+        if (draining) {
+            logger.warn("Shutting down - rejecting delivery for subscription {}", subscriptionId);
+            return Admission.BACKLOG_FULL;
+        }
+        if (backlog >= configuration.getInboundQueueMaxBacklog()) {
+            logger.warn("Inbound backlog is full ({}) - rejecting delivery for subscription {}", backlog, subscriptionId);
+            return Admission.BACKLOG_FULL;
+        }
+
+        SubscriptionQueue queue = queues.computeIfAbsent(subscriptionId, SubscriptionQueue::new);
+        if (queue.requests.size() >= configuration.getInboundQueueMaxBacklogPerSubscription()) {
+            logger.warn("Inbound backlog for subscription {} is full ({}) - rejecting delivery", subscriptionId, queue.requests.size());
+            return Admission.SUBSCRIPTION_BACKLOG_FULL;
+        }
+        queue.weight = getWeight(subscriptionId);
+
+        queue.requests.addLast(new InboundRequest(subscriptionId, body, headers));
+        if (queue.requests.size() == 1) {
+            queue.deficit = 0;
+            activeQueues.addLast(queue);
+        }
+        backlog++;
+        notifyAll();
+        return Admission.ACCEPTED;
+    }
+
+    private int getWeight(String subscriptionId) {
+        SubscriptionSetup subscriptionSetup = subscriptionManager.get(subscriptionId);
+        if (subscriptionSetup != null && subscriptionSetup.getInboundWeight() > 0) {
+            return subscriptionSetup.getInboundWeight();
+        }
+        return 1;
+    }
+
+    /**
+     * Waits for, and returns the next delivery to process
+     * @return the next delivery, or null when shutting down and all deliveries have been taken
+     */
+    synchronized InboundRequest take() throws InterruptedException {
+        while (activeQueues.isEmpty()) {
+            if (draining) {
+                return null;
+            }
+            wait();
+        }
+        while (true) {
+            SubscriptionQueue queue = activeQueues.peekFirst();
+            InboundRequest next = queue.requests.peekFirst();
+            if (queue.deficit >= next.size) {
+                queue.deficit -= next.size;
+                queue.requests.pollFirst();
+                if (queue.requests.isEmpty()) {
+                    activeQueues.pollFirst();
+                    // Idle subscriptions are forgotten - terminated subscriptions leave nothing behind
+                    queues.remove(queue.subscriptionId, queue);
+                }
+                backlog--;
+                return next;
+            }
+            // Not enough credit for the next delivery - add quantum, and continue with the next subscription
+            queue.deficit += (long) QUANTUM_BYTES * queue.weight;
+            activeQueues.addLast(activeQueues.pollFirst());
+        }
+    }
+
+    /**
+     * @return number of queued deliveries per subscription
+     */
+    public synchronized Map<String, Integer> getQueueDepths() {
+        Map<String, Integer> depths = new HashMap<>();
+        queues.forEach((subscriptionId, queue) -> depths.put(subscriptionId, queue.requests.size()));
+        return depths;
+    }
+
+    private synchronized void ensureStarted() {
+        if (workers == null) {
+            int workerCount = configuration.getInboundQueueWorkers();
+            logger.info("Starting {} inbound workers", workerCount);
+            workers = Executors.newFixedThreadPool(workerCount, new ThreadFactoryBuilder().setNameFormat("inbound-%d").build());
+            for (int i = 0; i < workerCount; i++) {
+                workers.submit(this::processRequests);
+            }
+        }
+    }
+
+    private void processRequests() {
+        while (!Thread.currentThread().isInterrupted()) {
+            InboundRequest request;
+            try {
+                request = take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (request == null) {
+                return;
+            }
+            metrics.registerInboundQueueWait(request.subscriptionId, System.currentTimeMillis() - request.queued);
+            try {
+                asyncRequestProcessor.sendBodyAndHeaders(request.body, request.headers);
+            } catch (RuntimeException e) {
+                logger.warn("Processing delivery for subscription {} failed", request.subscriptionId, e);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting deliveries, and waits for the accepted deliveries to be processed
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        ExecutorService running;
+        synchronized (this) {
+            draining = true;
+            notifyAll();
+            running = workers;
+        }
+        if (running == null) {
+            return;
+        }
+        running.shutdown();
+        if (!running.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            logger.warn("Inbound backlog not processed within {} seconds - dropping {} deliveries", SHUTDOWN_TIMEOUT_SECONDS, getBacklog());
+            running.shutdownNow();
+        }
+    }
+
+    private synchronized int getBacklog() {
+        return backlog;
+    }
+
+    private static class SubscriptionQueue {
+        private final String subscriptionId;
+        private final Deque<InboundRequest> requests = new ArrayDeque<>();
+        private long deficit;
+        private int weight = 1;
+
+        private SubscriptionQueue(String subscriptionId) {
+            this.subscriptionId = subscriptionId;
+        }
+    }
+
+    static class InboundRequest {
+        private final String subscriptionId;
+        private final Object body;
+        private final Map<String, Object> headers;
+        private final int size;
+        private final long queued = System.currentTimeMillis();
+
+        private InboundRequest(String subscriptionId, Object body, Map<String, Object> headers) {
+            this.subscriptionId = subscriptionId;
+            this.body = body;
+            this.headers = headers;
+            this.size = sizeOf(body);
+        }
+
+        String getSubscriptionId() {
+            return subscriptionId;
+        }
+
+        Object getBody() {
+            return body;
+        }
+
+        private static int sizeOf(Object body) {
+            if (body instanceof String) {
+                return ((String) body).length();
+            }
+            if (body instanceof byte[]) {
+                return ((byte[]) body).length;
+            }
+            return 0;
+        }
+    }
+}
@@ -19,6 +19,7 @@ import jakarta.servlet.http.HttpServletResponse;
 import jakarta.ws.rs.core.MediaType;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.routes.RestRouteBuilder;
+import no.rutebanken.anshar.routes.dataformat.BinarySiriDecoder;
 import no.rutebanken.anshar.routes.dataformat.SiriDataFormatHelper;
 import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
 import no.rutebanken.anshar.routes.siri.handlers.SiriHandler;
@@ -33,10 +34,13 @@ import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Service;
+import uk.org.siri.siri21.ServiceRequest;
 import uk.org.siri.siri21.Siri;
 
 import java.io.InputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static no.rutebanken.anshar.routes.HttpParameter.INTERNAL_SIRI_DATA_TYPE;
 import static no.rutebanken.anshar.routes.HttpParameter.PARAM_DATASET_ID;
@@ -63,9 +67,14 @@ public class Siri20RequestHandlerRoute extends RestRouteBuilder {
     @Autowired
     private AnsharConfiguration configuration;
 
+    @Autowired
+    private InboundRequestScheduler inboundRequestScheduler;
+
     public static final String TRANSFORM_VERSION = "TRANSFORM_VERSION";
     public static final String TRANSFORM_SOAP = "TRANSFORM_SOAP";
 
+    private static final String BINARY_SIRI_REQUEST = "BINARY_SIRI_REQUEST";
+
     @Override
     public void configure() throws Exception {
 
@@ -136,9 +145,14 @@ public class Siri20RequestHandlerRoute extends RestRouteBuilder {
                 .choice()
                     .when(e -> subscriptionExistsAndIsActive(e))
                         //Valid subscription
-                        .wireTap("direct:async.process.request")
-                        .setHeader(Exchange.HTTP_RESPONSE_CODE, constant("200"))
-                        .setBody(constant(null))
+                        .choice()
+                            .when(e -> configuration.isInboundQueueEnabled())
+                                .process(p -> queueIncomingRequest(p))
+                            .otherwise()
+                                .wireTap("direct:async.process.request")
+                                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant("200"))
+                                .setBody(constant(null))
+                        .end()
                     .endChoice()
                     .otherwise()
                         // Invalid subscription
@@ -154,7 +168,18 @@ public class Siri20RequestHandlerRoute extends RestRouteBuilder {
 
         from("direct:async.process.request")
             .to("direct:set.mdc.subscriptionId")
-            .convertBodyTo(String.class)
+            .choice()
+                .when(e -> isBinarySiri(e))
+                    // Decoded to SIRI-objects - XML-transformations do not apply
+                    .process(p -> {
+                        byte[] body = p.getIn().getBody(byte[].class);
+                        p.getMessage().setHeaders(p.getIn().getHeaders());
+                        p.getMessage().removeHeaders("TRANSFORM_*");
+                        p.getMessage().setHeader(Exchange.CONTENT_LENGTH, body.length);
+                        p.getMessage().setBody(BinarySiriDecoder.decode(p.getIn().getHeader(Exchange.CONTENT_TYPE, String.class), body));
+                    })
+            .end()
+            // XML is passed on as received - only converted to a String when the delivery is not read in chunks
             .process(p -> {
                 p.getMessage().setBody(p.getIn().getBody());
                 p.getMessage().setHeaders(p.getIn().getHeaders());
@@ -219,6 +244,8 @@ public class Siri20RequestHandlerRoute extends RestRouteBuilder {
 
         from("direct:process.service.request")
                 .choice()
+                    .when(e -> isBinarySiri(e))
+                        .to("direct:process.binary.service.request")
                     .when().xpath("/siri:Siri/siri:ServiceRequest/siri:VehicleMonitoringRequest", ns)
                         .to("direct:process.vm.service.request")
                     .when().xpath("/siri:Siri/siri:ServiceRequest/siri:SituationExchangeRequest", ns)
@@ -227,6 +254,24 @@ public class Siri20RequestHandlerRoute extends RestRouteBuilder {
                         .to("direct:process.et.service.request.cache")
                 .endChoice()
         ;
+        from("direct:process.binary.service.request")
+                .process(p -> {
+                    // Body is kept as is in case the request is redirected to another instance
+                    byte[] body = p.getIn().getBody(byte[].class);
+                    p.getMessage().setHeaders(p.getIn().getHeaders());
+                    p.getMessage().setBody(body);
+                    p.setProperty(BINARY_SIRI_REQUEST, BinarySiriDecoder.decode(p.getIn().getHeader(Exchange.CONTENT_TYPE, String.class), body));
+                })
+                .choice()
+                    .when(e -> hasValues(getBinaryServiceRequest(e).getVehicleMonitoringRequests()))
+                        .to("direct:process.vm.service.request")
+                    .when(e -> hasValues(getBinaryServiceRequest(e).getSituationExchangeRequests()))
+                        .to("direct:process.sx.service.request")
+                    .when(e -> hasValues(getBinaryServiceRequest(e).getEstimatedTimetableRequests()))
+                        .to("direct:process.et.service.request.cache")
+                .endChoice()
+        ;
+
         from("direct:internal.process.service.request")
                 .to("log:serRequest:" + getClass().getSimpleName() + "?showAll=true&multiline=true&showStreams=true")
                 .choice()
@@ -248,7 +293,14 @@ public class Siri20RequestHandlerRoute extends RestRouteBuilder {
 
                         String useOriginalId = msg.getHeader(PARAM_USE_ORIGINAL_ID, String.class);
 
-                        Siri response = handler.handleIncomingSiri(null, msg.getBody(InputStream.class), datasetId, excludedIdList, SiriHandler.getIdMappingPolicy(useOriginalId), maxSize, clientTrackingName);
+                        Siri binaryRequest = p.getProperty(BINARY_SIRI_REQUEST, Siri.class);
+                        Siri response;
+                        if (binaryRequest != null) {
+                            response = handler.handleIncomingSiri(binaryRequest, datasetId, excludedIdList, SiriHandler.getIdMappingPolicy(useOriginalId), maxSize, clientTrackingName);
+                            p.getOut().setHeader(Exchange.CONTENT_TYPE, MediaType.APPLICATION_XML);
+                        } else {
+                            response = handler.handleIncomingSiri(null, msg.getBody(InputStream.class), datasetId, excludedIdList, SiriHandler.getIdMappingPolicy(useOriginalId), maxSize, clientTrackingName);
+                        }
                         if (response != null) {
                             logger.info("Found ServiceRequest-response, streaming response");
                             p.getOut().setBody(response);
@@ -280,7 +332,13 @@ public class Siri20RequestHandlerRoute extends RestRouteBuilder {
                 String datasetId = msg.getHeader(PARAM_DATASET_ID, String.class);
                 String clientTrackingName = p.getIn().getHeader(configuration.getTrackingHeaderName(), String.class);
 
-                Siri response = handler.handleSiriCacheRequest(msg.getBody(InputStream.class), datasetId, clientTrackingName);
+                Siri binaryRequest = p.getProperty(BINARY_SIRI_REQUEST, Siri.class);
+                Siri response;
+                if (binaryRequest != null) {
+                    response = handler.handleSiriCacheRequest(binaryRequest, datasetId, clientTrackingName);
+                } else {
+                    response = handler.handleSiriCacheRequest(msg.getBody(InputStream.class), datasetId, clientTrackingName);
+                }
                 if (response != null) {
                     logger.info("Found ServiceRequest-response, streaming response");
                 }
@@ -294,6 +352,50 @@ public class Siri20RequestHandlerRoute extends RestRouteBuilder {
 
     }
 
+    /**
+     * Queues the delivery for processing, or rejects it when the backlog is full so that the client backs off
+     */
+    private void queueIncomingRequest(Exchange e) {
+        Message msg = e.getIn();
+        String subscriptionId = msg.getHeader(PARAM_SUBSCRIPTION_ID, String.class);
+
+        Map<String, Object> headers = new HashMap<>(msg.getHeaders());
+        headers.remove(Exchange.HTTP_SERVLET_REQUEST);
+        headers.remove(Exchange.HTTP_SERVLET_RESPONSE);
+
+        // Kept as received - XML is only converted to a String when the delivery is processed
+        Object body = msg.getBody(byte[].class);
+
+        InboundRequestScheduler.Admission admission = inboundRequestScheduler.submit(subscriptionId, body, headers);
+
+        Message response = e.getMessage();
+        response.setBody(null);
+        if (admission == InboundRequestScheduler.Admission.ACCEPTED) {
+            response.setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+        } else {
+            response.removeHeaders("*");
+            if (admission == InboundRequestScheduler.Admission.SUBSCRIPTION_BACKLOG_FULL) {
+                response.setHeader(Exchange.HTTP_RESPONSE_CODE, "429"); //429 Too Many Requests
+            } else {
+                response.setHeader(Exchange.HTTP_RESPONSE_CODE, "503"); //503 Service Unavailable
+            }
+            response.setHeader("Retry-After", configuration.getInboundQueueRetryAfterSeconds());
+        }
+    }
+
+    private boolean isBinarySiri(Exchange e) {
+        return BinarySiriDecoder.isBinary(e.getIn().getHeader(Exchange.CONTENT_TYPE, String.class));
+    }
+
+    private ServiceRequest getBinaryServiceRequest(Exchange e) {
+        ServiceRequest serviceRequest = e.getProperty(BINARY_SIRI_REQUEST, Siri.class).getServiceRequest();
+        return serviceRequest != null ? serviceRequest : new ServiceRequest();
+    }
+
+    private boolean hasValues(List<?> list) {
+        return list != null && !list.isEmpty();
+    }
+
     private String getSubscriptionDataType(Exchange e) {
         String subscriptionId = e.getIn().getHeader(PARAM_SUBSCRIPTION_ID, String.class);
         if (subscriptionId == null || subscriptionId.isEmpty()) {
@@ -17,6 +17,7 @@ package no.rutebanken.anshar.routes.siri;
 
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.routes.dataformat.SiriDataFormatHelper;
+import no.rutebanken.anshar.routes.siri.helpers.ConditionalPollingFilter;
 import no.rutebanken.anshar.routes.siri.helpers.SiriRequestFactory;
 import no.rutebanken.anshar.subscription.SubscriptionManager;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
@@ -44,7 +45,9 @@ public class Siri20ToSiriRS20RequestResponse extends SiriSubscriptionRouteBuilde
 
         SiriRequestFactory helper = new SiriRequestFactory(subscriptionSetup);
 
-        String httpOptions = getTimeout();
+        ConditionalPollingFilter conditionalPolling = createConditionalPollingFilter();
+
+        String httpOptions = getPollingOptions(conditionalPolling);
 
         String monitoringRouteId = "monitor.rs.20." + subscriptionSetup.getSubscriptionType() + "." + subscriptionSetup.getVendor();
         boolean releaseLeadershipOnError;
@@ -74,17 +77,26 @@ public class Siri20ToSiriRS20RequestResponse extends SiriSubscriptionRouteBuilde
             .setHeader(Exchange.CONTENT_TYPE, constant(subscriptionSetup.getContentType())) // Necessary when talking to Microsoft web services
             .setHeader(Exchange.HTTP_METHOD, constant(HttpMethods.POST))
             .process(addCustomHeaders())
+            .process(conditionalPolling.addConditionalHeaders())
             .to("log:request:" + getClass().getSimpleName() + "?showAll=true&multiline=true")
             .doTry()
                 .to(getRequestUrl(subscriptionSetup, httpOptions))
-                .setHeader("CamelHttpPath", constant("/appContext" + subscriptionSetup.buildUrl(false)))
-                .log("Got response " + subscriptionSetup.toString())
-                .setHeader(PARAM_SUBSCRIPTION_ID, simple(subscriptionSetup.getSubscriptionId()))
-                .setHeader(INTERNAL_SIRI_DATA_TYPE, simple(subscriptionSetup.getSubscriptionType().name()))
-                .to("direct:enqueue.message")
+                .choice()
+                .when(conditionalPolling::isUnchanged)
+                    .log("Got unchanged response " + subscriptionSetup.toString())
+                    .process(p -> subscriptionManager.dataReceived(subscriptionSetup.getSubscriptionId()))
+                .otherwise()
+                    .setHeader("CamelHttpPath", constant("/appContext" + subscriptionSetup.buildUrl(false)))
+                    .log("Got response " + subscriptionSetup.toString())
+                    .setHeader(PARAM_SUBSCRIPTION_ID, simple(subscriptionSetup.getSubscriptionId()))
+                    .setHeader(INTERNAL_SIRI_DATA_TYPE, simple(subscriptionSetup.getSubscriptionType().name()))
+                    .to("direct:enqueue.message")
+                    .process(conditionalPolling::processed)
+                .endDoTry()
             .doCatch(Exception.class)
                 .log("Caught exception -" + (releaseLeadershipOnError ? "":" NOT") + " releasing leadership: " + subscriptionSetup.toString())
                 .process(p -> {
+                    conditionalPolling.reset();
                     if (releaseLeadershipOnError) {
                         releaseLeadership(monitoringRouteId);
                     }
@@ -17,6 +17,7 @@ package no.rutebanken.anshar.routes.siri;
 
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.routes.dataformat.SiriDataFormatHelper;
+import no.rutebanken.anshar.routes.siri.helpers.ConditionalPollingFilter;
 import no.rutebanken.anshar.routes.siri.helpers.SiriRequestFactory;
 import no.rutebanken.anshar.subscription.SubscriptionManager;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
@@ -46,7 +47,9 @@ public class Siri20ToSiriWS14RequestResponse extends SiriSubscriptionRouteBuilde
 
         SiriRequestFactory helper = new SiriRequestFactory(subscriptionSetup);
 
-        String httpOptions = getTimeout();
+        ConditionalPollingFilter conditionalPolling = createConditionalPollingFilter();
+
+        String httpOptions = getPollingOptions(conditionalPolling);
 
         String monitoringRouteId = "monitor.ws.14." + subscriptionSetup.getSubscriptionType() + "." + subscriptionSetup.getVendor();
         boolean releaseLeadershipOnError;
@@ -81,20 +84,29 @@ public class Siri20ToSiriWS14RequestResponse extends SiriSubscriptionRouteBuilde
                 .setHeader(Exchange.CONTENT_TYPE, constant(subscriptionSetup.getContentType())) // Necessary when talking to Microsoft web services
                 .setHeader(Exchange.HTTP_METHOD, constant(org.apache.camel.component.http.HttpMethods.POST))
                 .process(addCustomHeaders())
+                .process(conditionalPolling.addConditionalHeaders())
                 .to("log:request:" + getClass().getSimpleName() + "?showAll=true&multiline=true")
                 .doTry()
                     .to(getRequestUrl(subscriptionSetup, httpOptions))
-                    .setHeader("CamelHttpPath", constant("/appContext" + subscriptionSetup.buildUrl(false)))
-                    .log("Got response " + subscriptionSetup.toString())
-                    .setHeader(TRANSFORM_VERSION, constant(TRANSFORM_VERSION))
-                    .setHeader(TRANSFORM_SOAP, constant(TRANSFORM_SOAP))
-                    .setHeader(PARAM_SUBSCRIPTION_ID, simple(subscriptionSetup.getSubscriptionId()))
-                    .setHeader(INTERNAL_SIRI_DATA_TYPE, simple(subscriptionSetup.getSubscriptionType().name()))
-                    .to("direct:process.message.synchronous")
+                    .choice()
+                    .when(conditionalPolling::isUnchanged)
+                        .log("Got unchanged response " + subscriptionSetup.toString())
+                        .process(p -> subscriptionManager.dataReceived(subscriptionSetup.getSubscriptionId()))
+                    .otherwise()
+                        .setHeader("CamelHttpPath", constant("/appContext" + subscriptionSetup.buildUrl(false)))
+                        .log("Got response " + subscriptionSetup.toString())
+                        .setHeader(TRANSFORM_VERSION, constant(TRANSFORM_VERSION))
+                        .setHeader(TRANSFORM_SOAP, constant(TRANSFORM_SOAP))
+                        .setHeader(PARAM_SUBSCRIPTION_ID, simple(subscriptionSetup.getSubscriptionId()))
+                        .setHeader(INTERNAL_SIRI_DATA_TYPE, simple(subscriptionSetup.getSubscriptionType().name()))
+                        .to("direct:process.message.synchronous")
+                        .process(conditionalPolling::processed)
+                    .endDoTry()
                 .doCatch(Exception.class)
                     .log("Caught exception - releasing leadership: " + subscriptionSetup.toString())
                     .to("log:response:" + getClass().getSimpleName() + "?showCaughtException=true&showAll=true&multiline=true")
                     .process(p -> {
+                        conditionalPolling.reset();
                         if (releaseLeadershipOnError) {
                             releaseLeadership(monitoringRouteId);
                         }
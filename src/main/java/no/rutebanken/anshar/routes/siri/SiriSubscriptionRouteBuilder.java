@@ -19,7 +19,9 @@ import com.sun.xml.bind.marshaller.NamespacePrefixMapper;
 import jakarta.ws.rs.core.MediaType;
 import no.rutebanken.anshar.config.AnsharConfiguration;
 import no.rutebanken.anshar.data.EstimatedTimetables;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
 import no.rutebanken.anshar.routes.BaseRouteBuilder;
+import no.rutebanken.anshar.routes.siri.helpers.ConditionalPollingFilter;
 import no.rutebanken.anshar.routes.siri.transformer.ApplicationContextHolder;
 import no.rutebanken.anshar.subscription.SubscriptionManager;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
@@ -72,6 +74,23 @@ public abstract class SiriSubscriptionRouteBuilder extends BaseRouteBuilder {
         return "?socketTimeout=" + timeout + "&connectTimeout=" + timeout;
     }
 
+    ConditionalPollingFilter createConditionalPollingFilter() {
+        return new ConditionalPollingFilter(subscriptionSetup,
+                ApplicationContextHolder.getContext().getBean(PrometheusMetricsService.class),
+                config.isConditionalPollingEnabled());
+    }
+
+    /**
+     * Http-options for polling requests - 304 Not Modified is accepted when conditional polling is enabled
+     */
+    String getPollingOptions(ConditionalPollingFilter conditionalPolling) {
+        String httpOptions = getTimeout();
+        if (conditionalPolling.isEnabled()) {
+            httpOptions += "&" + ConditionalPollingFilter.OK_STATUS_CODE_RANGE;
+        }
+        return httpOptions;
+    }
+
     protected Processor addCustomHeaders() {
         return exchange -> {
             if (subscriptionSetup.getCustomHeaders() != null && !subscriptionSetup.getCustomHeaders().isEmpty()) {
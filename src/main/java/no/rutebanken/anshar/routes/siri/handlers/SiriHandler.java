@@ -15,6 +15,7 @@
 
 package no.rutebanken.anshar.routes.siri.handlers;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import jakarta.xml.bind.JAXBException;
 import jakarta.xml.bind.UnmarshalException;
 import no.rutebanken.anshar.config.AnsharConfiguration;
@@ -36,7 +37,9 @@ import org.entur.siri21.util.SiriXml;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import uk.org.siri.siri21.ErrorCodeStructure;
 import uk.org.siri.siri21.ErrorDescriptionStructure;
@@ -57,6 +60,7 @@ import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
 import uk.org.siri.siri21.VehicleMonitoringRequestStructure;
 import uk.org.siri.siri21.VehicleRef;
 
+import javax.annotation.PostConstruct;
 import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -65,9 +69,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BiFunction;
 
 import static no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter.getOriginalId;
 
@@ -106,6 +118,22 @@ public class SiriHandler {
     @Autowired
     private PrometheusMetricsService metrics;
 
+    @Value("${anshar.incoming.codespace.parallelism:4}")
+    private int codespaceParallelism;
+
+    private ExecutorService codespaceExecutor;
+
+    @PostConstruct
+    private void initializeCodespaceExecutor() {
+        if (codespaceParallelism > 1) {
+            ThreadFactory factory = new ThreadFactoryBuilder()
+                .setNameFormat("codespace-%d")
+                .setDaemon(true)
+                .build();
+            codespaceExecutor = Executors.newFixedThreadPool(codespaceParallelism, factory);
+        }
+    }
+
     public Siri handleIncomingSiri(String subscriptionId, InputStream xml) throws UnmarshalException {
         return handleIncomingSiri(subscriptionId, xml, null, -1);
     }
@@ -143,11 +171,24 @@ public class SiriHandler {
         return null;
     }
 
+    /**
+     * Handling ServiceRequests that have already been parsed - e.g. from a binary format
+     */
+    public Siri handleIncomingSiri(Siri incoming, String datasetId, List<String> excludedDatasetIdList, OutboundIdMappingPolicy outboundIdMappingPolicy, int maxSize, String clientTrackingName) {
+        return processSiriServerRequest(incoming, datasetId, excludedDatasetIdList, outboundIdMappingPolicy, maxSize, clientTrackingName);
+    }
+
     public Siri handleSiriCacheRequest(
         InputStream body, String datasetId, String clientTrackingName
     ) throws XMLStreamException, JAXBException {
 
-        Siri incoming = SiriValueTransformer.parseXml(body);
+        return handleSiriCacheRequest(SiriValueTransformer.parseXml(body), datasetId, clientTrackingName);
+    }
+
+    /**
+     * Variant of the cache-request for requests that have already been parsed - e.g. from a binary format
+     */
+    public Siri handleSiriCacheRequest(Siri incoming, String datasetId, String clientTrackingName) {
 
         if (incoming.getServiceRequest() != null) {
             ServiceRequest serviceRequest = incoming.getServiceRequest();
@@ -339,217 +380,291 @@ long t2 = System.currentTimeMillis();
                 return;
             }
 
-            if (incoming.getHeartbeatNotification() != null) {
-                subscriptionManager.touchSubscription(subscriptionId);
-                logger.info("Heartbeat - {}", subscriptionSetup);
-            } else if (incoming.getCheckStatusResponse() != null) {
-                logger.info("Incoming CheckStatusResponse [{}], reporting ServiceStartedTime: {}", subscriptionSetup, incoming.getCheckStatusResponse().getServiceStartedTime());
-                subscriptionManager.touchSubscription(subscriptionId, incoming.getCheckStatusResponse().getServiceStartedTime());
-            } else if (incoming.getSubscriptionResponse() != null) {
-                SubscriptionResponseStructure subscriptionResponse = incoming.getSubscriptionResponse();
-                subscriptionResponse.getResponseStatuses().forEach(responseStatus -> {
-                    if (responseStatus.isStatus() == null ||
-                        (responseStatus.isStatus() != null && responseStatus.isStatus())) {
-
-                        // If no status is provided it is handled as "true"
-
-                        subscriptionManager.activatePendingSubscription(subscriptionId);
-                    }
-                });
+            processSiriClientRequest(subscriptionSetup, incoming, receivedBytes);
+        } else {
+            logger.debug("ServiceDelivery for invalid subscriptionId [{}] ignored.", subscriptionId);
+        }
+    }
+
+    /**
+     * Handling already parsed - and transformed - deliveries from external servers
+     *
+     * @param subscriptionId
+     * @param incoming
+     * @param receivedBytes size of the original delivery
+     */
+    public void handleIncomingSiri(String subscriptionId, Siri incoming, int receivedBytes) {
+        SubscriptionSetup subscriptionSetup = subscriptionManager.get(subscriptionId);
 
-            } else if (incoming.getTerminateSubscriptionResponse() != null) {
-                TerminateSubscriptionResponseStructure terminateSubscriptionResponse = incoming.getTerminateSubscriptionResponse();
+        if (subscriptionSetup != null && incoming != null) {
+            processSiriClientRequest(subscriptionSetup, incoming, receivedBytes);
+        } else {
+            logger.debug("ServiceDelivery for invalid subscriptionId [{}] ignored.", subscriptionId);
+        }
+    }
 
-                logger.info("Subscription terminated {}", subscriptionSetup);
+    /**
+     * Handling large deliveries from external servers, read and transformed in chunks - each chunk is processed and
+     * stored before the next chunk is read
+     *
+     * @param subscriptionId
+     * @param chunks
+     * @param receivedBytes size of the original delivery
+     */
+    public void handleIncomingSiri(String subscriptionId, Iterator<Siri> chunks, int receivedBytes) {
+        SubscriptionSetup subscriptionSetup = subscriptionManager.get(subscriptionId);
 
-            } else if (incoming.getDataReadyNotification() != null) {
-                //Handled using camel routing
-            } else if (incoming.getServiceDelivery() != null) {
-                boolean deliveryContainsData = false;
-                healthManager.dataReceived();
+        if (subscriptionSetup != null && chunks != null) {
+            int chunkCount = 0;
+            while (chunks.hasNext()) {
+                // Size of the delivery is only reported once
+                processSiriClientRequest(subscriptionSetup, chunks.next(), chunkCount++ == 0 ? receivedBytes : 0);
+            }
+            logger.info("Processed delivery of {} bytes in {} chunks, {}", receivedBytes, chunkCount, subscriptionSetup);
+        } else {
+            logger.debug("ServiceDelivery for invalid subscriptionId [{}] ignored.", subscriptionId);
+        }
+    }
 
-                if (subscriptionSetup.getSubscriptionType().equals(SiriDataType.SITUATION_EXCHANGE)) {
-                    List<SituationExchangeDeliveryStructure> situationExchangeDeliveries = incoming.getServiceDelivery().getSituationExchangeDeliveries();
-                    logger.info("Got SX-delivery: Subscription [{}]", subscriptionSetup);
+    private void processSiriClientRequest(SubscriptionSetup subscriptionSetup, Siri incoming, int receivedBytes) {
+        String subscriptionId = subscriptionSetup.getSubscriptionId();
 
-                    List<PtSituationElement> addedOrUpdated = new ArrayList<>();
-                    if (situationExchangeDeliveries != null) {
-                        situationExchangeDeliveries.forEach(sx -> {
-                                    if (sx != null) {
-                                        if (sx.isStatus() != null && !sx.isStatus()) {
-                                            logger.info(getErrorContents(sx.getErrorCondition()));
-                                        } else {
-                                            if (sx.getSituations() != null && sx.getSituations().getPtSituationElements() != null) {
-                                                if (subscriptionSetup.isUseProvidedCodespaceId()) {
-                                                    Map<String, List<PtSituationElement>> situationsByCodespace = splitSituationsByCodespace(sx.getSituations().getPtSituationElements());
-                                                    for (String codespace : situationsByCodespace.keySet()) {
+        if (incoming.getHeartbeatNotification() != null) {
+            subscriptionManager.touchSubscription(subscriptionId);
+            logger.info("Heartbeat - {}", subscriptionSetup);
+        } else if (incoming.getCheckStatusResponse() != null) {
+            logger.info("Incoming CheckStatusResponse [{}], reporting ServiceStartedTime: {}", subscriptionSetup, incoming.getCheckStatusResponse().getServiceStartedTime());
+            subscriptionManager.touchSubscription(subscriptionId, incoming.getCheckStatusResponse().getServiceStartedTime());
+        } else if (incoming.getSubscriptionResponse() != null) {
+            SubscriptionResponseStructure subscriptionResponse = incoming.getSubscriptionResponse();
+            subscriptionResponse.getResponseStatuses().forEach(responseStatus -> {
+                if (responseStatus.isStatus() == null ||
+                    (responseStatus.isStatus() != null && responseStatus.isStatus())) {
 
-                                                        // List containing added situations for current codespace
-                                                        List<PtSituationElement> addedSituations = new ArrayList();
+                    // If no status is provided it is handled as "true"
 
-                                                        addedSituations.addAll(situations.addAll(
-                                                            codespace,
-                                                            situationsByCodespace.get(codespace)
-                                                        ));
+                    subscriptionManager.activatePendingSubscription(subscriptionId);
+                }
+            });
 
-                                                        // Push updates to subscribers on this codespace
-                                                        serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedSituations, codespace);
+        } else if (incoming.getTerminateSubscriptionResponse() != null) {
+            TerminateSubscriptionResponseStructure terminateSubscriptionResponse = incoming.getTerminateSubscriptionResponse();
 
-                                                        // Add to complete list of added situations
-                                                        addedOrUpdated.addAll(addedSituations);
+            logger.info("Subscription terminated {}", subscriptionSetup);
 
-                                                    }
+        } else if (incoming.getDataReadyNotification() != null) {
+            //Handled using camel routing
+        } else if (incoming.getServiceDelivery() != null) {
+            boolean deliveryContainsData = false;
+            healthManager.dataReceived();
+
+            if (subscriptionSetup.getSubscriptionType().equals(SiriDataType.SITUATION_EXCHANGE)) {
+                List<SituationExchangeDeliveryStructure> situationExchangeDeliveries = incoming.getServiceDelivery().getSituationExchangeDeliveries();
+                logger.info("Got SX-delivery: Subscription [{}]", subscriptionSetup);
+
+                List<PtSituationElement> addedOrUpdated = new ArrayList<>();
+                if (situationExchangeDeliveries != null) {
+                    situationExchangeDeliveries.forEach(sx -> {
+                                if (sx != null) {
+                                    if (sx.isStatus() != null && !sx.isStatus()) {
+                                        logger.info(getErrorContents(sx.getErrorCondition()));
+                                    } else {
+                                        if (sx.getSituations() != null && sx.getSituations().getPtSituationElements() != null) {
+                                            if (subscriptionSetup.isUseProvidedCodespaceId()) {
+                                                Map<String, List<PtSituationElement>> situationsByCodespace = splitSituationsByCodespace(sx.getSituations().getPtSituationElements());
+                                                Map<String, Collection<PtSituationElement>> addedByCodespace = addAllByCodespace(situationsByCodespace, situations::addAll);
+                                                for (String codespace : addedByCodespace.keySet()) {
+
+                                                    // List containing added situations for current codespace
+                                                    List<PtSituationElement> addedSituations = new ArrayList(addedByCodespace.get(codespace));
+
+                                                    // Push updates to subscribers on this codespace
+                                                    serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedSituations, codespace);
 
-                                                } else {
+                                                    // Add to complete list of added situations
+                                                    addedOrUpdated.addAll(addedSituations);
 
-                                                    addedOrUpdated.addAll(situations.addAll(
-                                                        subscriptionSetup.getDatasetId(),
-                                                        sx.getSituations().getPtSituationElements()
-                                                    ));
-                                                    serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedOrUpdated, subscriptionSetup.getDatasetId());
                                                 }
+
+                                            } else {
+
+                                                addedOrUpdated.addAll(situations.addAll(
+                                                    subscriptionSetup.getDatasetId(),
+                                                    sx.getSituations().getPtSituationElements()
+                                                ));
+                                                serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedOrUpdated, subscriptionSetup.getDatasetId());
                                             }
                                         }
                                     }
                                 }
-                        );
-                    }
-                    deliveryContainsData = addedOrUpdated.size() > 0;
-
-                    subscriptionManager.incrementObjectCounter(subscriptionSetup, addedOrUpdated.size());
-
-                    logger.info("Active SX-elements: {}, current delivery: {}, {}", situations.getSize(), addedOrUpdated.size(), subscriptionSetup);
+                            }
+                    );
                 }
-                if (subscriptionSetup.getSubscriptionType().equals(SiriDataType.VEHICLE_MONITORING)) {
-                    List<VehicleMonitoringDeliveryStructure> vehicleMonitoringDeliveries = incoming.getServiceDelivery().getVehicleMonitoringDeliveries();
-                    logger.info("Got VM-delivery: Subscription [{}] {}", subscriptionSetup, subscriptionSetup.forwardPositionData() ? "- Position only":"");
-
-                    List<VehicleActivityStructure> addedOrUpdated = new ArrayList<>();
-                    if (vehicleMonitoringDeliveries != null) {
-                        vehicleMonitoringDeliveries.forEach(vm -> {
-                                    if (vm != null) {
-                                        if (vm.isStatus() != null && !vm.isStatus()) {
-                                            logger.info(getErrorContents(vm.getErrorCondition()));
-                                        } else {
-                                            if (vm.getVehicleActivities() != null) {
-                                                if (subscriptionSetup.isUseProvidedCodespaceId()) {
-                                                    Map<String, List<VehicleActivityStructure>> vehiclesByCodespace = splitVehicleMonitoringByCodespace(vm.getVehicleActivities());
-                                                    for (String codespace : vehiclesByCodespace.keySet()) {
-
-                                                        // List containing added situations for current codespace
-                                                        List<VehicleActivityStructure> addedVehicles = new ArrayList();
-
-                                                        addedVehicles.addAll(vehicleActivities.addAll(
-                                                                codespace,
-                                                                vehiclesByCodespace.get(codespace)
-                                                        ));
-
-                                                        // Push updates to subscribers on this codespace
-                                                        serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedVehicles, codespace);
-
-                                                        // Add to complete list of added situations
-                                                        addedOrUpdated.addAll(addedVehicles);
+                deliveryContainsData = addedOrUpdated.size() > 0;
 
-                                                    }
+                subscriptionManager.incrementObjectCounter(subscriptionSetup, addedOrUpdated.size());
+
+                logger.info("Active SX-elements: {}, current delivery: {}, {}", situations.getSize(), addedOrUpdated.size(), subscriptionSetup);
+            }
+            if (subscriptionSetup.getSubscriptionType().equals(SiriDataType.VEHICLE_MONITORING)) {
+                List<VehicleMonitoringDeliveryStructure> vehicleMonitoringDeliveries = incoming.getServiceDelivery().getVehicleMonitoringDeliveries();
+                logger.info("Got VM-delivery: Subscription [{}] {}", subscriptionSetup, subscriptionSetup.forwardPositionData() ? "- Position only":"");
+
+                List<VehicleActivityStructure> addedOrUpdated = new ArrayList<>();
+                if (vehicleMonitoringDeliveries != null) {
+                    vehicleMonitoringDeliveries.forEach(vm -> {
+                                if (vm != null) {
+                                    if (vm.isStatus() != null && !vm.isStatus()) {
+                                        logger.info(getErrorContents(vm.getErrorCondition()));
+                                    } else {
+                                        if (vm.getVehicleActivities() != null) {
+                                            if (subscriptionSetup.isUseProvidedCodespaceId()) {
+                                                Map<String, List<VehicleActivityStructure>> vehiclesByCodespace = splitVehicleMonitoringByCodespace(vm.getVehicleActivities());
+                                                Map<String, Collection<VehicleActivityStructure>> addedByCodespace = addAllByCodespace(vehiclesByCodespace, vehicleActivities::addAll);
+                                                for (String codespace : addedByCodespace.keySet()) {
+
+                                                    // List containing added situations for current codespace
+                                                    List<VehicleActivityStructure> addedVehicles = new ArrayList(addedByCodespace.get(codespace));
+
+                                                    // Push updates to subscribers on this codespace
+                                                    serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedVehicles, codespace);
+
+                                                    // Add to complete list of added situations
+                                                    addedOrUpdated.addAll(addedVehicles);
 
-                                                } else {
-                                                    addedOrUpdated.addAll(
-                                                            vehicleActivities.addAll(subscriptionSetup.getDatasetId(), vm.getVehicleActivities())
-                                                    );
                                                 }
+
+                                            } else {
+                                                addedOrUpdated.addAll(
+                                                        vehicleActivities.addAll(subscriptionSetup.getDatasetId(), vm.getVehicleActivities())
+                                                );
                                             }
                                         }
                                     }
                                 }
-                        );
-                    }
+                            }
+                    );
+                }
 
-                    deliveryContainsData = deliveryContainsData || (addedOrUpdated.size() > 0);
+                deliveryContainsData = deliveryContainsData || (addedOrUpdated.size() > 0);
 
-                    serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedOrUpdated, subscriptionSetup.getDatasetId());
+                serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedOrUpdated, subscriptionSetup.getDatasetId());
 
-                    subscriptionManager.incrementObjectCounter(subscriptionSetup, addedOrUpdated.size());
+                subscriptionManager.incrementObjectCounter(subscriptionSetup, addedOrUpdated.size());
+
+                logger.info("Active VM-elements: {}, current delivery: {}, {}", vehicleActivities.getSize(), addedOrUpdated.size(), subscriptionSetup);
+            }
+            if (subscriptionSetup.getSubscriptionType().equals(SiriDataType.ESTIMATED_TIMETABLE)) {
+                List<EstimatedTimetableDeliveryStructure> estimatedTimetableDeliveries = incoming.getServiceDelivery().getEstimatedTimetableDeliveries();
+                logger.info("Got ET-delivery: Subscription {}", subscriptionSetup);
+
+                List<EstimatedVehicleJourney> addedOrUpdated = new ArrayList<>();
+                if (estimatedTimetableDeliveries != null) {
+                    estimatedTimetableDeliveries.forEach(et -> {
+                                if (et != null) {
+                                    if (et.isStatus() != null && !et.isStatus()) {
+                                        logger.info(getErrorContents(et.getErrorCondition()));
+                                    } else {
+                                        if (et.getEstimatedJourneyVersionFrames() != null) {
+                                            et.getEstimatedJourneyVersionFrames().forEach(versionFrame -> {
+                                                if (versionFrame != null && versionFrame.getEstimatedVehicleJourneies() != null) {
+                                                    if (subscriptionSetup.isUseProvidedCodespaceId()) {
+                                                        Map<String, List<EstimatedVehicleJourney>> journeysByCodespace = splitEstimatedTimetablesByCodespace(versionFrame.getEstimatedVehicleJourneies());
+                                                        Map<String, Collection<EstimatedVehicleJourney>> addedByCodespace = addAllByCodespace(journeysByCodespace, estimatedTimetables::addAll);
+                                                        for (String codespace : addedByCodespace.keySet()) {
+
+                                                            // List containing added situations for current codespace
+                                                            List<EstimatedVehicleJourney> addedJourneys = new ArrayList(addedByCodespace.get(codespace));
+
+                                                            // Push updates to subscribers on this codespace
+                                                            serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedJourneys, codespace);
+
+                                                            // Add to complete list of added situations
+                                                            addedOrUpdated.addAll(addedJourneys);
 
-                    logger.info("Active VM-elements: {}, current delivery: {}, {}", vehicleActivities.getSize(), addedOrUpdated.size(), subscriptionSetup);
-                }
-                if (subscriptionSetup.getSubscriptionType().equals(SiriDataType.ESTIMATED_TIMETABLE)) {
-                    List<EstimatedTimetableDeliveryStructure> estimatedTimetableDeliveries = incoming.getServiceDelivery().getEstimatedTimetableDeliveries();
-                    logger.info("Got ET-delivery: Subscription {}", subscriptionSetup);
-
-                    List<EstimatedVehicleJourney> addedOrUpdated = new ArrayList<>();
-                    if (estimatedTimetableDeliveries != null) {
-                        estimatedTimetableDeliveries.forEach(et -> {
-                                    if (et != null) {
-                                        if (et.isStatus() != null && !et.isStatus()) {
-                                            logger.info(getErrorContents(et.getErrorCondition()));
-                                        } else {
-                                            if (et.getEstimatedJourneyVersionFrames() != null) {
-                                                et.getEstimatedJourneyVersionFrames().forEach(versionFrame -> {
-                                                    if (versionFrame != null && versionFrame.getEstimatedVehicleJourneies() != null) {
-                                                        if (subscriptionSetup.isUseProvidedCodespaceId()) {
-                                                            Map<String, List<EstimatedVehicleJourney>> journeysByCodespace = splitEstimatedTimetablesByCodespace(versionFrame.getEstimatedVehicleJourneies());
-                                                            for (String codespace : journeysByCodespace.keySet()) {
-
-                                                                // List containing added situations for current codespace
-                                                                List<EstimatedVehicleJourney> addedJourneys = new ArrayList();
-
-                                                                addedJourneys.addAll(estimatedTimetables.addAll(
-                                                                        codespace,
-                                                                        journeysByCodespace.get(codespace)
-                                                                ));
-
-                                                                // Push updates to subscribers on this codespace
-                                                                serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedJourneys, codespace);
-
-                                                                // Add to complete list of added situations
-                                                                addedOrUpdated.addAll(addedJourneys);
-
-                                                            }
-
-                                                        } else {
-                                                            addedOrUpdated.addAll(
-                                                                    estimatedTimetables.addAll(subscriptionSetup.getDatasetId(), versionFrame.getEstimatedVehicleJourneies())
-                                                            );
                                                         }
+
+                                                    } else {
+                                                        addedOrUpdated.addAll(
+                                                                estimatedTimetables.addAll(subscriptionSetup.getDatasetId(), versionFrame.getEstimatedVehicleJourneies())
+                                                        );
                                                     }
-                                                });
-                                            }
+                                                }
+                                            });
                                         }
                                     }
                                 }
-                        );
-                    }
+                            }
+                    );
+                }
 
-                    deliveryContainsData = deliveryContainsData || (addedOrUpdated.size() > 0);
+                deliveryContainsData = deliveryContainsData || (addedOrUpdated.size() > 0);
 
-                    serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedOrUpdated, subscriptionSetup.getDatasetId());
+                serverSubscriptionManager.pushUpdatesAsync(subscriptionSetup.getSubscriptionType(), addedOrUpdated, subscriptionSetup.getDatasetId());
 
-                    subscriptionManager.incrementObjectCounter(subscriptionSetup, addedOrUpdated.size());
+                subscriptionManager.incrementObjectCounter(subscriptionSetup, addedOrUpdated.size());
 
-                    logger.info("Active ET-elements: {}, current delivery: {}, {}", estimatedTimetables.getSize(), addedOrUpdated.size(), subscriptionSetup);
-                }
+                logger.info("Active ET-elements: {}, current delivery: {}, {}", estimatedTimetables.getSize(), addedOrUpdated.size(), subscriptionSetup);
+            }
 
-                if (deliveryContainsData) {
-                    subscriptionManager.dataReceived(subscriptionId, receivedBytes);
-                } else {
-                    subscriptionManager.touchSubscription(subscriptionId);
-                }
+            if (deliveryContainsData) {
+                subscriptionManager.dataReceived(subscriptionId, receivedBytes);
             } else {
-                try {
-                    logger.info("Unsupported SIRI-request:" + SiriXml.toXml(incoming));
-                } catch (JAXBException e) {
-                    //Ignore
-                }
+                subscriptionManager.touchSubscription(subscriptionId);
             }
         } else {
-            logger.debug("ServiceDelivery for invalid subscriptionId [{}] ignored.", subscriptionId);
+            try {
+                logger.info("Unsupported SIRI-request:" + SiriXml.toXml(incoming));
+            } catch (JAXBException e) {
+                //Ignore
+            }
+        }
+    }
+
+    /**
+     * Adds data for each codespace - in parallel on a bounded pool when the delivery contains multiple codespaces.
+     * Results are returned in the same order as the codespaces, regardless of the order the codespaces complete.
+     */
+    private <T> Map<String, Collection<T>> addAllByCodespace(Map<String, List<T>> dataByCodespace, BiFunction<String, List<T>, Collection<T>> addAll) {
+        Map<String, Collection<T>> result = new LinkedHashMap<>();
+        if (codespaceExecutor == null || dataByCodespace.size() < 2) {
+            dataByCodespace.forEach((codespace, data) -> result.put(codespace, addAll.apply(codespace, data)));
+            return result;
         }
+
+        final Map<String, String> mdc = MDC.getCopyOfContextMap();
+        Map<String, Future<Collection<T>>> futures = new LinkedHashMap<>();
+        dataByCodespace.forEach((codespace, data) -> futures.put(codespace, codespaceExecutor.submit(() -> {
+            if (mdc != null) {
+                MDC.setContextMap(mdc);
+            }
+            try {
+                return addAll.apply(codespace, data);
+            } finally {
+                MDC.clear();
+            }
+        })));
+
+        for (Map.Entry<String, Future<Collection<T>>> entry : futures.entrySet()) {
+            try {
+                result.put(entry.getKey(), entry.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while adding data for codespace " + entry.getKey(), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return result;
     }
 
     private Map<String, List<PtSituationElement>> splitSituationsByCodespace(
         List<PtSituationElement> ptSituationElements
     ) {
-        Map<String, List<PtSituationElement>> result = new HashMap<>();
+        Map<String, List<PtSituationElement>> result = new LinkedHashMap<>();
         for (PtSituationElement ptSituationElement : ptSituationElements) {
             final RequestorRef participantRef = ptSituationElement.getParticipantRef();
             if (participantRef != null) {
@@ -573,7 +688,7 @@ long t2 = System.currentTimeMillis();
     private Map<String, List<VehicleActivityStructure>> splitVehicleMonitoringByCodespace(
             List<VehicleActivityStructure> activityStructures
     ) {
-        Map<String, List<VehicleActivityStructure>> result = new HashMap<>();
+        Map<String, List<VehicleActivityStructure>> result = new LinkedHashMap<>();
         for (VehicleActivityStructure vmElement : activityStructures) {
             if (vmElement.getMonitoredVehicleJourney() != null) {
 
@@ -600,7 +715,7 @@ long t2 = System.currentTimeMillis();
     private Map<String, List<EstimatedVehicleJourney>> splitEstimatedTimetablesByCodespace(
             List<EstimatedVehicleJourney> estimatedVehicleJourneys
     ) {
-        Map<String, List<EstimatedVehicleJourney>> result = new HashMap<>();
+        Map<String, List<EstimatedVehicleJourney>> result = new LinkedHashMap<>();
         for (EstimatedVehicleJourney etElement : estimatedVehicleJourneys) {
             if (etElement.getDataSource() != null) {
 
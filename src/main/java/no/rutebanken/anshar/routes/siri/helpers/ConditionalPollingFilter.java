@@ -0,0 +1,197 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.helpers;
+
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import no.rutebanken.anshar.subscription.SubscriptionSetup;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.StreamCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps track of the previous response of a polled subscription, so that unchanged responses are dropped before
+ * they are parsed.
+ *
+ * Requests are sent with If-None-Match/If-Modified-Since when the provider has returned ETag/Last-Modified, and
+ * a 304 Not Modified response is treated as unchanged. Other responses are hashed as they are - i.e. before any
+ * transformation - and compared to the hash of the previous response.
+ *
+ * A response is only remembered when it has been processed successfully - see processed - so that a response that
+ * failed is processed again when it is returned by the next poll.
+ */
+public class ConditionalPollingFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConditionalPollingFilter.class);
+
+    /**
+     * Parameter to add to the http-endpoint so that 304 Not Modified is returned as a response rather than an exception
+     */
+    public static final String OK_STATUS_CODE_RANGE = "okStatusCodeRange=200-299,304";
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private static final String PENDING_RESPONSE_PROPERTY = "ConditionalPollingFilter.pendingResponse";
+
+    private final SubscriptionSetup subscriptionSetup;
+
+    private final PrometheusMetricsService metrics;
+
+    private final boolean enabled;
+
+    private volatile String etag;
+
+    private volatile String lastModified;
+
+    private volatile byte[] lastHash;
+
+    public ConditionalPollingFilter(SubscriptionSetup subscriptionSetup, PrometheusMetricsService metrics, boolean enabled) {
+        this.subscriptionSetup = subscriptionSetup;
+        this.metrics = metrics;
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Adds conditional headers based on the previous response
+     */
+    public Processor addConditionalHeaders() {
+        return exchange -> {
+            if (!enabled) {
+                return;
+            }
+            if (etag != null) {
+                exchange.getIn().setHeader("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                exchange.getIn().setHeader("If-Modified-Since", lastModified);
+            }
+        };
+    }
+
+    /**
+     * @return true if the response is identical to the previous response, and does not need to be processed
+     */
+    public boolean isUnchanged(Exchange exchange) {
+        if (!enabled) {
+            return false;
+        }
+        Message response = exchange.getIn();
+
+        Integer responseCode = response.getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class);
+        if (responseCode != null && responseCode == 304) {
+            logger.info("Response not modified - ignoring {}", subscriptionSetup);
+            metrics.registerUnchangedPollingResponse(subscriptionSetup, "notModified");
+            return true;
+        }
+
+        byte[] hash;
+        try {
+            hash = hash(response);
+        } catch (IOException e) {
+            logger.warn("Could not hash response - response is processed {}", subscriptionSetup, e);
+            return false;
+        }
+
+        if (lastHash != null && MessageDigest.isEqual(hash, lastHash)) {
+            logger.info("Response identical to previous response - ignoring {}", subscriptionSetup);
+            metrics.registerUnchangedPollingResponse(subscriptionSetup, "hash");
+            return true;
+        }
+
+        exchange.setProperty(PENDING_RESPONSE_PROPERTY, new PendingResponse(
+                response.getHeader("ETag", String.class),
+                response.getHeader("Last-Modified", String.class),
+                hash
+        ));
+        return false;
+    }
+
+    /**
+     * Remembers the response as the previous response - called when the response has been processed successfully
+     */
+    public void processed(Exchange exchange) {
+        PendingResponse pending = exchange.getProperty(PENDING_RESPONSE_PROPERTY, PendingResponse.class);
+        if (pending != null) {
+            exchange.removeProperty(PENDING_RESPONSE_PROPERTY);
+            etag = pending.etag;
+            lastModified = pending.lastModified;
+            lastHash = pending.hash;
+        }
+    }
+
+    /**
+     * Forgets the previous response - e.g. when it could not be processed - so that the next response is processed
+     */
+    public void reset() {
+        etag = null;
+        lastModified = null;
+        lastHash = null;
+    }
+
+    static byte[] hash(Message message) throws IOException {
+        MessageDigest digest = createDigest();
+        Object body = message.getBody();
+        if (body instanceof StreamCache) {
+            StreamCache cache = (StreamCache) body;
+            cache.reset();
+            try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+                cache.writeTo(out);
+            }
+            cache.reset();
+        } else if (body instanceof InputStream) {
+            // Stream can only be read once - keep the content so it can be processed after hashing
+            byte[] content = message.getBody(byte[].class);
+            message.setBody(content);
+            digest.update(content);
+        } else if (body != null) {
+            digest.update(message.getBody(byte[].class));
+        }
+        return digest.digest();
+    }
+
+    private static class PendingResponse {
+        private final String etag;
+        private final String lastModified;
+        private final byte[] hash;
+
+        private PendingResponse(String etag, String lastModified, byte[] hash) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -75,14 +75,19 @@ import uk.org.siri.siri21.VehicleMonitoringSubscriptionStructure;
 import uk.org.siri.siri21.VehicleRef;
 
 import javax.annotation.Nonnull;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class SiriObjectFactory {
@@ -91,6 +96,8 @@ public class SiriObjectFactory {
 
     private static final KryoPool kryoPool;
 
+    private static final Map<Class<?>, List<Field>> listFields = new ConcurrentHashMap<>();
+
     static {
     	KryoFactory factory = () -> {
                       Kryo kryo = new Kryo();
@@ -657,4 +664,76 @@ public class SiriObjectFactory {
         	kryoPool.release(kryo);
         }
     }
+
+    /**
+     * Creates a deep copy of provided object
+     * @param object
+     * @return
+     */
+    public static <T> T deepCopy(T object) {
+    	Kryo kryo = kryoPool.borrow();
+        try {
+        	return kryo.copy(object);
+        } finally {
+        	kryoPool.release(kryo);
+        }
+    }
+
+    /**
+     * Creates deep copies of all provided objects
+     * @param elements
+     * @return
+     */
+    public static <T> List<T> deepCopyElements(List<T> elements) {
+    	Kryo kryo = kryoPool.borrow();
+        try {
+            List<T> copies = new ArrayList<>(elements.size());
+            for (T element : elements) {
+                copies.add(kryo.copy(element));
+            }
+            return copies;
+        } finally {
+        	kryoPool.release(kryo);
+        }
+    }
+
+    /**
+     * Creates a shallow copy of provided object - the copy references the same objects as the original. Lists are
+     * copied, so elements may be added or removed without altering the original.
+     * @param object
+     * @return
+     */
+    public static <T> T shallowCopy(T object) {
+        T copy;
+    	Kryo kryo = kryoPool.borrow();
+        try {
+            copy = kryo.copyShallow(object);
+        } finally {
+        	kryoPool.release(kryo);
+        }
+        try {
+            for (Field field : listFields.computeIfAbsent(object.getClass(), SiriObjectFactory::resolveListFields)) {
+                List<?> list = (List<?>) field.get(copy);
+                if (list != null) {
+                    field.set(copy, new ArrayList<>(list));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unable to copy " + object.getClass(), e);
+        }
+        return copy;
+    }
+
+    private static List<Field> resolveListFields(Class<?> clazz) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && List.class.isAssignableFrom(field.getType())) {
+                    field.setAccessible(true);
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
 }
@@ -28,6 +28,7 @@ import uk.org.siri.siri21.VehicleActivityStructure;
 import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
 
 import java.util.List;
+import java.util.Objects;
 
 import static no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter.getMappedId;
 import static no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter.getOriginalId;
@@ -112,4 +113,18 @@ public class CodespaceOutboundProcessor extends ValueAdapter implements PostProc
                 return getMappedId(text);
         }
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CodespaceOutboundProcessor)) return false;
+
+        CodespaceOutboundProcessor that = (CodespaceOutboundProcessor) o;
+        return outboundIdMappingPolicy == that.outboundIdMappingPolicy;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getClass(), outboundIdMappingPolicy);
+    }
 }
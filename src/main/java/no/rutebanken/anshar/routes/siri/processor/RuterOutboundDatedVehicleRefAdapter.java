@@ -27,6 +27,7 @@ import uk.org.siri.siri21.VehicleActivityStructure;
 import uk.org.siri.siri21.VehicleMonitoringDeliveryStructure;
 
 import java.util.List;
+import java.util.Objects;
 
 import static no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter.getMappedId;
 import static no.rutebanken.anshar.routes.siri.transformer.impl.OutboundIdAdapter.getOriginalId;
@@ -112,4 +113,9 @@ public class RuterOutboundDatedVehicleRefAdapter extends ValueAdapter implements
         return outboundIdMappingPolicy == that.outboundIdMappingPolicy;
 
     }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getClassToApply(), outboundIdMappingPolicy);
+    }
 }
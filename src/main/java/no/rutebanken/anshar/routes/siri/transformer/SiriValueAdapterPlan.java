@@ -0,0 +1,347 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.transformer;
+
+import jakarta.xml.bind.annotation.XmlSeeAlso;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Traversal-plan for applying ValueAdapters to a SIRI-object in a single pass.
+ *
+ * For each SIRI-class, the plan holds the fields of one of the mapped classes, and the fields holding objects that
+ * may contain one - all other fields are never read. Subclasses of a field type are resolved from the
+ * JAXB-annotation @XmlSeeAlso. Fields of type Object or an interface are followed when the containing object is
+ * visited, but do not make the containing class a candidate on their own.
+ *
+ * Plans are created once for each set of mapped classes, and shared between threads.
+ */
+final class SiriValueAdapterPlan {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+    private static final MethodType VALUE_GETTER_TYPE = MethodType.methodType(String.class, Object.class);
+    private static final MethodType VALUE_SETTER_TYPE = MethodType.methodType(void.class, Object.class, String.class);
+
+    private static final Set<String> fieldsToIgnore = Set.of("monitoringError");
+
+    private static final Map<Set<Class<?>>, SiriValueAdapterPlan> plans = new ConcurrentHashMap<>();
+
+    private static final Map<Class<?>, MethodHandle[]> valueAccessors = new ConcurrentHashMap<>();
+
+    private final Set<Class<?>> mappedClasses;
+
+    private final Map<Class<?>, List<Accessor>> accessorsByClass = new ConcurrentHashMap<>();
+
+    /**
+     * Resolved classes - true if the class may contain a mapped class
+     */
+    private final Map<Class<?>, Boolean> candidates = new ConcurrentHashMap<>();
+
+    @FunctionalInterface
+    interface ValueMapper {
+        /**
+         * @return new value of the mapped object
+         */
+        String map(Class<?> mappedClass, String value);
+    }
+
+    private SiriValueAdapterPlan(Set<Class<?>> mappedClasses) {
+        this.mappedClasses = mappedClasses;
+    }
+
+    static SiriValueAdapterPlan forClasses(Set<Class<?>> mappedClasses) {
+        return plans.computeIfAbsent(Set.copyOf(mappedClasses), SiriValueAdapterPlan::new);
+    }
+
+    /**
+     * Calls the mapper for all values of the mapped classes within the object, and replaces the value with the result
+     */
+    void apply(Object obj, ValueMapper mapper) throws Throwable {
+        if (obj == null || !isSiriClass(obj.getClass())) {
+            return;
+        }
+        for (Accessor accessor : accessorsByClass.computeIfAbsent(obj.getClass(), this::createAccessors)) {
+            Object value = (Object) accessor.getter.invokeExact(obj);
+            if (value == null) {
+                continue;
+            }
+            if (accessor.mappedClass != null) {
+                MethodHandle[] valueAccessor = getValueAccessor(accessor.mappedClass);
+                String previousValue = (String) valueAccessor[0].invokeExact(value);
+                if (previousValue != null) {
+                    valueAccessor[1].invokeExact(value, mapper.map(accessor.mappedClass, previousValue));
+                }
+            } else if (value instanceof List) {
+                for (Object o : (List<?>) value) {
+                    apply(o, mapper);
+                }
+            } else {
+                apply(value, mapper);
+            }
+        }
+    }
+
+    /**
+     * Same as apply, but without altering the object. Objects on the path from the root to each altered value are
+     * copied, all other objects are shared between the original and the result.
+     *
+     * @return the object itself if no values were altered
+     */
+    Object applyCopyOnWrite(Object obj, ValueMapper mapper) throws Throwable {
+        if (obj == null || !isSiriClass(obj.getClass())) {
+            return obj;
+        }
+        Object copy = null;
+        for (Accessor accessor : accessorsByClass.computeIfAbsent(obj.getClass(), this::createAccessors)) {
+            Object value = (Object) accessor.getter.invokeExact(obj);
+            if (value == null) {
+                continue;
+            }
+            if (value instanceof List && accessor.mappedClass == null) {
+                List<?> list = (List<?>) value;
+                List<Object> copiedList = null;
+                for (int i = 0; i < list.size(); i++) {
+                    Object element = list.get(i);
+                    Object altered = applyCopyOnWrite(element, mapper);
+                    if (altered != element) {
+                        if (copiedList == null) {
+                            copiedList = new ArrayList<>(list);
+                        }
+                        copiedList.set(i, altered);
+                    }
+                }
+                value = copiedList;
+            } else {
+                Object altered = accessor.mappedClass != null ?
+                        mapCopyOnWrite(accessor.mappedClass, value, mapper) :
+                        applyCopyOnWrite(value, mapper);
+                value = altered != value ? altered : null;
+            }
+            if (value != null) {
+                if (copy == null) {
+                    copy = SiriObjectFactory.shallowCopy(obj);
+                }
+                accessor.setter.invokeExact(copy, value);
+            }
+        }
+        return copy != null ? copy : obj;
+    }
+
+    private static Object mapCopyOnWrite(Class<?> mappedClass, Object value, ValueMapper mapper) throws Throwable {
+        MethodHandle[] valueAccessor = getValueAccessor(mappedClass);
+        String previousValue = (String) valueAccessor[0].invokeExact(value);
+        if (previousValue == null) {
+            return value;
+        }
+        String alteredValue = mapper.map(mappedClass, previousValue);
+        if (previousValue.equals(alteredValue)) {
+            return value;
+        }
+        Object copy = SiriObjectFactory.shallowCopy(value);
+        valueAccessor[1].invokeExact(copy, alteredValue);
+        return copy;
+    }
+
+    private List<Accessor> createAccessors(Class<?> clazz) {
+        List<Accessor> accessors = new ArrayList<>();
+        for (Field field : getFields(clazz)) {
+            if (mappedClasses.contains(field.getType())) {
+                accessors.add(createAccessor(field, field.getType()));
+            } else {
+                Class<?> containedType = getContainedType(field);
+                if (isDynamic(containedType) || (isSiriClass(containedType) && isCandidate(containedType))) {
+                    accessors.add(createAccessor(field, null));
+                }
+            }
+        }
+        return accessors;
+    }
+
+    private boolean isCandidate(Class<?> clazz) {
+        Boolean candidate = candidates.get(clazz);
+        if (candidate == null) {
+            resolveCandidates(clazz);
+            candidate = candidates.get(clazz);
+        }
+        return candidate;
+    }
+
+    /**
+     * Resolves all classes reachable from the given class that have not been resolved before, and which of them may
+     * contain a mapped class. Classes resolved earlier already have all reachable classes resolved.
+     */
+    private synchronized void resolveCandidates(Class<?> root) {
+        Map<Class<?>, Set<Class<?>>> containedTypes = new HashMap<>();
+        Set<Class<?>> resolvedCandidates = new HashSet<>();
+
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            Class<?> clazz = queue.poll();
+            if (containedTypes.containsKey(clazz) || candidates.containsKey(clazz)) {
+                continue;
+            }
+            Set<Class<?>> contained = new HashSet<>();
+            for (Field field : getFields(clazz)) {
+                if (mappedClasses.contains(field.getType())) {
+                    resolvedCandidates.add(clazz);
+                } else {
+                    Class<?> containedType = getContainedType(field);
+                    if (isSiriClass(containedType)) {
+                        contained.add(containedType);
+                    }
+                }
+            }
+            // Returned objects may be any of the subclasses known to JAXB
+            XmlSeeAlso subclasses = clazz.getAnnotation(XmlSeeAlso.class);
+            if (subclasses != null) {
+                contained.addAll(Arrays.asList(subclasses.value()));
+            }
+            containedTypes.put(clazz, contained);
+            queue.addAll(contained);
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<Class<?>, Set<Class<?>>> entry : containedTypes.entrySet()) {
+                if (resolvedCandidates.contains(entry.getKey())) {
+                    continue;
+                }
+                for (Class<?> contained : entry.getValue()) {
+                    if (resolvedCandidates.contains(contained) || Boolean.TRUE.equals(candidates.get(contained))) {
+                        resolvedCandidates.add(entry.getKey());
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (Class<?> clazz : containedTypes.keySet()) {
+            candidates.put(clazz, resolvedCandidates.contains(clazz));
+        }
+    }
+
+    /**
+     * @return all instance-fields of the class and its superclasses
+     */
+    private static List<Field> getFields(Class<?> clazz) {
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) &&
+                        !field.isSynthetic() &&
+                        !fieldsToIgnore.contains(field.getName())) {
+                    fields.add(field);
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @return field type - or element-type for lists, null if the type is unknown
+     */
+    private static Class<?> getContainedType(Field field) {
+        if (!List.class.isAssignableFrom(field.getType())) {
+            return field.getType();
+        }
+        Type genericType = field.getGenericType();
+        if (genericType instanceof ParameterizedType) {
+            Type elementType = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+            if (elementType instanceof Class) {
+                return (Class<?>) elementType;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isDynamic(Class<?> type) {
+        return type == null || type == Object.class || type.isInterface();
+    }
+
+    private static boolean isSiriClass(Class<?> type) {
+        //Only apply to Siri-classes
+        return type != null && type.getName().startsWith("uk.org.siri");
+    }
+
+    private static Accessor createAccessor(Field field, Class<?> mappedClass) {
+        try {
+            field.setAccessible(true);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            return new Accessor(
+                    lookup.unreflectGetter(field).asType(GETTER_TYPE),
+                    lookup.unreflectSetter(field).asType(SETTER_TYPE),
+                    mappedClass
+            );
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new IllegalStateException("Unable to access " + field, e);
+        }
+    }
+
+    /**
+     * @return getValue()/setValue(String) for the mapped class
+     */
+    private static MethodHandle[] getValueAccessor(Class<?> mappedClass) {
+        return valueAccessors.computeIfAbsent(mappedClass, clazz -> {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                return new MethodHandle[]{
+                        lookup.unreflect(clazz.getMethod("getValue")).asType(VALUE_GETTER_TYPE),
+                        lookup.unreflect(clazz.getMethod("setValue", String.class)).asType(VALUE_SETTER_TYPE)
+                };
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new IllegalArgumentException("Unable to map values of " + clazz, e);
+            }
+        });
+    }
+
+    private static class Accessor {
+        private final MethodHandle getter;
+
+        private final MethodHandle setter;
+
+        /**
+         * Field type if it is mapped, null if the field value is traversed
+         */
+        private final Class<?> mappedClass;
+
+        private Accessor(MethodHandle getter, MethodHandle setter, Class<?> mappedClass) {
+            this.getter = getter;
+            this.setter = setter;
+            this.mappedClass = mappedClass;
+        }
+    }
+}
@@ -15,9 +15,6 @@
 
 package no.rutebanken.anshar.routes.siri.transformer;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
 import jakarta.xml.bind.JAXBException;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
 import no.rutebanken.anshar.routes.siri.processor.PostProcessor;
@@ -30,12 +27,8 @@ import uk.org.siri.siri21.Siri;
 
 import javax.xml.stream.XMLStreamException;
 import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,28 +39,8 @@ public class SiriValueTransformer {
 
     private static final Logger logger = LoggerFactory.getLogger(SiriValueTransformer.class);
 
-    private static final Map<GetterKey, Set<Method>> cachedGettersForAdapter = new HashMap<>();
-
     private static Set<Class> onewayMappingList = Set.of(LineRef.class);
 
-    private static final LoadingCache<Class, List<Method>> getterMethodsCache = CacheBuilder.newBuilder()
-            .build(
-                    new CacheLoader<Class, List<Method>>() {
-                        public List<Method> load(Class clazz) {
-                            Method[] methods = clazz.getMethods();
-                            List<Method> getterMethods = new ArrayList<>();
-                            for (Method method : methods) {
-                                if (method.getParameterCount() == 0 &&
-                                        !("void".equals(method.getReturnType().getName()))) {
-                                    getterMethods.add(method);
-                                }
-                            }
-                            return getterMethods;
-                        }
-                    });
-
-    private static final List<String> methodsToIgnore = Collections.singletonList("getMonitoringError");
-
     /**
      *
      * @param xml
@@ -92,7 +65,9 @@ public class SiriValueTransformer {
      *
      * @param siri SIRI data to transform
      * @param adapters Adapters to apply
-     * @param deepCopyBeforeTransform Defines if SIRI-object should be deep-copied before transformation. !! Note: If false - input-object will be altered !!
+     * @param deepCopyBeforeTransform Defines if the input-object should be left unaltered. Without PostProcessors, only
+     *                                objects on the path to altered values are copied - all other objects are shared
+     *                                with the input-object. !! Note: If false - input-object will be altered !!
      * @param detailedLogging Switches on/off detailed logging
      * @return Transformed SIRI-object
      */
@@ -103,8 +78,24 @@ public class SiriValueTransformer {
         if (detailedLogging) {
             logger.debug("SIRI Transform: starting");
         }
+
+        List<ValueAdapter> valueAdapters = new ArrayList<>();
+        List<PostProcessor> postProcessors = new ArrayList<>();
+        if (adapters != null) {
+            for (ValueAdapter adapter : adapters) {
+                if (adapter instanceof PostProcessor) {
+                    postProcessors.add((PostProcessor) adapter);
+                } else {
+                    valueAdapters.add(adapter);
+                }
+            }
+        }
+
+        // PostProcessors may alter any part of the object - copy-on-write is only possible without them
+        boolean copyOnWrite = deepCopyBeforeTransform && postProcessors.isEmpty();
+
         Siri transformed;
-        if (deepCopyBeforeTransform) {
+        if (deepCopyBeforeTransform && !copyOnWrite) {
             try {
                 transformed = SiriObjectFactory.deepCopy(siri);
             }
@@ -129,37 +120,18 @@ public class SiriValueTransformer {
             transformed.getServiceDelivery() != null // Has actual data to map
         ) {
 
-            List<ValueAdapter> valueAdapters = new ArrayList<>();
-            for (ValueAdapter adapter : adapters) {
-                if (!(adapter instanceof PostProcessor)) {
-                    valueAdapters.add(adapter);
-                }
-            }
-
             if (detailedLogging) {
                 logger.debug("SIRI Transform: {} valueAdapters added", valueAdapters.size());
-            }
-            List<PostProcessor> postProcessors = new ArrayList<>();
-            for (ValueAdapter valueAdapter : adapters) {
-                if ((valueAdapter instanceof PostProcessor)) {
-                    postProcessors.add((PostProcessor) valueAdapter);
-                }
-            }
-
-            if (detailedLogging) {
                 logger.debug("SIRI Transform: {} postProcessors added", postProcessors.size());
             }
-            for (ValueAdapter a : valueAdapters) {
-                try {
-                    applyAdapter(transformed, a);
-
-                    if (detailedLogging) {
-                        logger.debug("SIRI Transform: valueAdapter {} processed", a.toString());
-                    }
-                } catch (Throwable t) {
-                    logger.warn("Caught exception while transforming SIRI-object.", t);
-                    logger.debug("SIRI Transform: valueAdapter {} failed", a.toString());
+            try {
+                if (copyOnWrite) {
+                    transformed = (Siri) applyAdapters(transformed, valueAdapters, true);
+                } else {
+                    applyAdapters(transformed, valueAdapters, false);
                 }
+            } catch (Throwable t) {
+                logger.warn("Caught exception while transforming SIRI-object.", t);
             }
             if (detailedLogging) {
                 logger.debug("SIRI Transform: valueAdapters processed");
@@ -186,118 +158,70 @@ public class SiriValueTransformer {
     }
 
     /**
-     * Recursively applies ValueAdapter to all fields of the specified type within SIRI-packages.
+     * Applies all ValueAdapters to all fields of the specified types within SIRI-packages, in a single pass.
      *
-     * Uses getValue()/setValue(...) apply adapters
+     * Adapters for the same type are applied in the order they are listed. Uses getValue()/setValue(...) to apply adapters.
      *
      * @param obj
-     * @param adapter
-     * @throws NoSuchMethodException
-     * @throws InvocationTargetException
-     * @throws IllegalAccessException
+     * @param adapters
+     * @param copyOnWrite if true, obj is left unaltered and altered objects are copied
+     * @return obj, or a copy of obj if values were altered with copyOnWrite
+     * @throws Throwable
      */
-    private static void applyAdapter(Object obj, ValueAdapter adapter) throws Throwable {
-
-        //Only apply to Siri-classes
-        if (obj != null && obj.getClass().getName().startsWith("uk.org.siri")) {
-
-            GetterKey getterKey = new GetterKey(obj.getClass(), adapter);
-            Set<Method> allMethods = cachedGettersForAdapter.get(getterKey);
-
-            if (allMethods == null) {
-                allMethods = new HashSet<>();
-                allMethods.addAll(getterMethodsCache.get(obj.getClass()));
+    private static Object applyAdapters(Object obj, List<ValueAdapter> adapters, boolean copyOnWrite) throws Throwable {
+        Map<Class<?>, List<ValueAdapter>> adaptersByClass = new LinkedHashMap<>();
+        for (ValueAdapter adapter : adapters) {
+            if (adapter.getClassToApply() != null) {
+                adaptersByClass.computeIfAbsent(adapter.getClassToApply(), c -> new ArrayList<>()).add(adapter);
             }
-            for (Method method : allMethods) {
-                if (methodsToIgnore.contains(method.getName())) {
-                    continue;
-                }
-
-
-                if (method.getReturnType().equals(adapter.getClassToApply())) {
-
-                    Set<Method> methods = cachedGettersForAdapter.getOrDefault(getterKey, new HashSet<>());
-                    methods.add(method);
-                    cachedGettersForAdapter.put(getterKey, methods);
-
-                    Object previousValue = method.invoke(obj);
-                    if (previousValue != null) {
-                        String value = (String) previousValue.getClass().getMethod("getValue").invoke(previousValue);
-                        String alteredValue;
-
-                        String originalId = value;
-
-                        if (adapter instanceof OutboundIdAdapter) {
-                            alteredValue = adapter.apply(value);
-                        } else {
-                            if (value.contains(SEPARATOR)) {
-                                originalId = value.substring(0, value.indexOf(SEPARATOR));
-                                alteredValue = adapter.apply(value.substring(value.indexOf(SEPARATOR) + SEPARATOR.length()));
-                            } else {
-                                alteredValue = adapter.apply(value);
-                            }
-                            if (!originalId.equals(alteredValue) &&                     // No need to map already correct ids
-                                    !isOnewayMapping(adapter.getClassToApply())) {      // Check for oneway-mapping
-                                alteredValue = originalId + SEPARATOR + alteredValue;
-                            }
-                        }
-
+        }
+        if (adaptersByClass.isEmpty()) {
+            return obj;
+        }
 
-                        Method valueSetter = previousValue.getClass().getMethod("setValue", String.class);
-                        valueSetter.invoke(previousValue, alteredValue);
-                    }
-                } else {
-                    Object currentValue = method.invoke(obj);
-                    if (currentValue != null) {
-                        if (currentValue instanceof List) {
-                            List list = (List) currentValue;
-                            for (Object o : list) {
-                                applyAdapter(o, adapter);
-                            }
-                        } else {
-                            applyAdapter(currentValue, adapter);
-                        }
-                    }
+        SiriValueAdapterPlan.ValueMapper mapper = (mappedClass, value) -> {
+            String alteredValue = value;
+            for (ValueAdapter adapter : adaptersByClass.get(mappedClass)) {
+                try {
+                    alteredValue = applyAdapter(alteredValue, adapter);
+                } catch (RuntimeException e) {
+                    logger.warn("Caught exception while applying valueAdapter {}.", adapter, e);
                 }
             }
-        }
-    }
+            return alteredValue;
+        };
 
-    private static boolean isOnewayMapping(Class classToApply) {
-        return onewayMappingList.contains(classToApply);
+        SiriValueAdapterPlan plan = SiriValueAdapterPlan.forClasses(adaptersByClass.keySet());
+        if (copyOnWrite) {
+            return plan.applyCopyOnWrite(obj, mapper);
+        }
+        plan.apply(obj, mapper);
+        return obj;
     }
 
-    private static class GetterKey {
-        private final ValueAdapter adapter;
-        private final Class clazz;
+    private static String applyAdapter(String value, ValueAdapter adapter) {
+        String alteredValue;
 
-        public GetterKey(Class clazz, ValueAdapter adapter) {
-            this.clazz = clazz;
-            this.adapter = adapter;
-        }
+        String originalId = value;
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
-            }
-            if (o == null || getClass() != o.getClass()) {
-                return false;
+        if (adapter instanceof OutboundIdAdapter) {
+            alteredValue = adapter.apply(value);
+        } else {
+            if (value.contains(SEPARATOR)) {
+                originalId = value.substring(0, value.indexOf(SEPARATOR));
+                alteredValue = adapter.apply(value.substring(value.indexOf(SEPARATOR) + SEPARATOR.length()));
+            } else {
+                alteredValue = adapter.apply(value);
             }
-
-            GetterKey getterKey = (GetterKey) o;
-
-            if (adapter != null ? !adapter.equals(getterKey.adapter) : getterKey.adapter != null) {
-                return false;
+            if (!originalId.equals(alteredValue) &&                     // No need to map already correct ids
+                    !isOnewayMapping(adapter.getClassToApply())) {      // Check for oneway-mapping
+                alteredValue = originalId + SEPARATOR + alteredValue;
             }
-            return clazz != null ? clazz.equals(getterKey.clazz) : getterKey.clazz == null;
         }
+        return alteredValue;
+    }
 
-        @Override
-        public int hashCode() {
-            int result = adapter != null ? adapter.hashCode() : 0;
-            result = 31 * result + (clazz != null ? clazz.hashCode() : 0);
-            return result;
-        }
+    private static boolean isOnewayMapping(Class classToApply) {
+        return onewayMappingList.contains(classToApply);
     }
 }
@@ -21,6 +21,7 @@ import no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer;
 import no.rutebanken.anshar.routes.siri.transformer.ValueAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import java.util.Objects;
 
 public class OutboundIdAdapter extends ValueAdapter {
 
@@ -82,4 +83,9 @@ public class OutboundIdAdapter extends ValueAdapter {
         return outboundIdMappingPolicy == that.outboundIdMappingPolicy;
 
     }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getClassToApply(), outboundIdMappingPolicy);
+    }
 }
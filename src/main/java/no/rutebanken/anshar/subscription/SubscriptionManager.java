@@ -99,18 +99,6 @@ public class SubscriptionManager {
     @Autowired
     private VehicleActivities vm;
 
-    @Autowired
-    @Qualifier("getSituationChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> sxChanges;
-
-    @Autowired
-    @Qualifier("getEstimatedTimetableChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> etChanges;
-
-    @Autowired
-    @Qualifier("getVehicleChangesMap")
-    private IMap<String, Set<SiriObjectStorageKey>> vmChanges;
-
     @Autowired
     private RequestorRefRepository requestorRefRepository;
 
@@ -389,15 +377,15 @@ public class SubscriptionManager {
 
         JSONObject etPolling = new JSONObject();
         etPolling.put("typeName", ""+ ESTIMATED_TIMETABLE);
-        etPolling.put("polling", getIdAndCount(etChanges, ESTIMATED_TIMETABLE));
+        etPolling.put("polling", getIdAndCount(et.getPendingChangeCount(), ESTIMATED_TIMETABLE));
         logger.debug("Built ET polling stats");
         JSONObject vmPolling = new JSONObject();
         vmPolling.put("typeName", ""+ VEHICLE_MONITORING);
-        vmPolling.put("polling", getIdAndCount(vmChanges, VEHICLE_MONITORING));
+        vmPolling.put("polling", getIdAndCount(vm.getPendingChangeCount(), VEHICLE_MONITORING));
         logger.debug("Built VM polling stats");
         JSONObject sxPolling = new JSONObject();
         sxPolling.put("typeName", ""+ SITUATION_EXCHANGE);
-        sxPolling.put("polling", getIdAndCount(sxChanges, SITUATION_EXCHANGE));
+        sxPolling.put("polling", getIdAndCount(sx.getPendingChangeCount(), SITUATION_EXCHANGE));
         logger.debug("Built SX polling stats");
 
         pollingClients.add(etPolling);
@@ -433,12 +421,12 @@ public class SubscriptionManager {
         return result;
     }
 
-    private JSONArray getIdAndCount(Map<String, Set<SiriObjectStorageKey>> map, SiriDataType dataType) {
+    private JSONArray getIdAndCount(Map<String, Integer> pendingChangeCount, SiriDataType dataType) {
         JSONArray count = new JSONArray();
-        for (String key : map.keySet()) {
+        for (String key : pendingChangeCount.keySet()) {
             JSONObject keyValue = new JSONObject();
             keyValue.put("id", key);
-            keyValue.put("count", map.getOrDefault(key, new HashSet<>()).size());
+            keyValue.put("count", pendingChangeCount.getOrDefault(key, 0));
 
             RequestorRefStats stats = requestorRefRepository.getStats(key, dataType);
             String clientTrackingName = "";
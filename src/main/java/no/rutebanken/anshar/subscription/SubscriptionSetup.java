@@ -82,6 +82,8 @@ public class SubscriptionSetup implements Serializable {
 
     private boolean forwardPositionData;
 
+    private int inboundWeight = 1;
+
     private boolean useProvidedCodespaceId = false;
 
     private boolean enrichSiriData = false;
@@ -599,6 +601,17 @@ public class SubscriptionSetup implements Serializable {
         this.forwardPositionData = forwardPositionData;
     }
 
+    /**
+     * Relative share of the inbound processing capacity when deliveries from several subscriptions are queued
+     */
+    public int getInboundWeight() {
+        return inboundWeight;
+    }
+
+    public void setInboundWeight(int inboundWeight) {
+        this.inboundWeight = inboundWeight;
+    }
+
     public void setOauth2Config(Map<OAuthConfigElement, String> oauth2Config) {
         this.oauth2Config = oauth2Config;
     }
@@ -0,0 +1,101 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.IMap;
+import com.hazelcast.ringbuffer.Ringbuffer;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChangeJournalTest extends SpringBootBaseTest {
+
+    @Autowired
+    @Qualifier("getSituationChangeJournal")
+    private Ringbuffer<HashSet<SiriObjectStorageKey>> ringbuffer;
+
+    @Autowired
+    @Qualifier("getSituationChangesMap")
+    private IMap<String, ChangeTrackerPosition> positions;
+
+    private ChangeJournal journal;
+
+    @BeforeEach
+    public void init() {
+        journal = new ChangeJournal(ringbuffer, positions);
+    }
+
+    @Test
+    public void testUnknownRequestorIsNotTracked() {
+        ChangeJournal.PendingChanges pendingChanges = journal.read(UUID.randomUUID().toString());
+
+        assertFalse(pendingChanges.isTracked());
+        assertTrue(pendingChanges.getKeys().isEmpty());
+        assertEquals(ringbuffer.tailSequence() + 1, pendingChanges.getNextSequence());
+    }
+
+    @Test
+    public void testChangesAreCompactedByKey() {
+        String requestorId = UUID.randomUUID().toString();
+        SiriObjectStorageKey keyA = createKey();
+        SiriObjectStorageKey keyB = createKey();
+
+        journal.updatePosition(requestorId, new ChangeTrackerPosition(journal.read(requestorId).getNextSequence(), new HashSet<>()), 1, TimeUnit.MINUTES).toCompletableFuture().join();
+
+        journal.append(Set.of(keyA));
+        journal.append(Set.of(keyA, keyB));
+        journal.append(Set.of(keyB));
+
+        ChangeJournal.PendingChanges pendingChanges = journal.read(requestorId);
+        assertTrue(pendingChanges.isTracked());
+        assertEquals(Set.of(keyA, keyB), pendingChanges.getKeys());
+
+        journal.updatePosition(requestorId, new ChangeTrackerPosition(pendingChanges.getNextSequence(), new HashSet<>()), 1, TimeUnit.MINUTES).toCompletableFuture().join();
+
+        assertTrue(journal.read(requestorId).getKeys().isEmpty());
+    }
+
+    @Test
+    public void testPendingChangesAreKept() {
+        String requestorId = UUID.randomUUID().toString();
+        SiriObjectStorageKey pendingKey = createKey();
+        SiriObjectStorageKey changedKey = createKey();
+
+        long sequence = journal.read(requestorId).getNextSequence();
+        journal.updatePosition(requestorId, new ChangeTrackerPosition(sequence, Set.of(pendingKey)), 1, TimeUnit.MINUTES).toCompletableFuture().join();
+
+        journal.append(Set.of(changedKey));
+
+        assertEquals(Set.of(pendingKey, changedKey), journal.read(requestorId).getKeys());
+        assertEquals(1, journal.getPendingChangeCount().entrySet().stream()
+                .filter(e -> e.getKey().equals(requestorId))
+                .count());
+    }
+
+    private static SiriObjectStorageKey createKey() {
+        return new SiriObjectStorageKey("TST", "Line:1", UUID.randomUUID().toString());
+    }
+}
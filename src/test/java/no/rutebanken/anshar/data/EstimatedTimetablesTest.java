@@ -35,6 +35,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import static no.rutebanken.anshar.helpers.SleepUtil.sleep;
@@ -216,6 +217,33 @@ public class EstimatedTimetablesTest extends SpringBootBaseTest {
 
     }
 
+    @Test
+    public void testUpdatedJourneyWithChangedCalls() {
+        ZonedDateTime departure = ZonedDateTime.now().plusHours(1);
+        String lineRefValue = "12345-changedCalls";
+
+        estimatedTimetables.add("test", createEstimatedVehicleJourney(lineRefValue, "4321", 0, 20, departure, true));
+
+        EstimatedVehicleJourney update = createEstimatedVehicleJourney(lineRefValue, "4321", 0, 20, departure, true);
+        List<EstimatedCall> calls = update.getEstimatedCalls().getEstimatedCalls();
+        calls.get(5).setExpectedDepartureTime(departure.plusMinutes(3));
+        update.setRecordedCalls(new EstimatedVehicleJourney.RecordedCalls());
+        update.getRecordedCalls().getRecordedCalls().add(mapToRecordedCall(calls.remove(0)));
+
+        estimatedTimetables.add("test", update);
+
+        List<EstimatedVehicleJourney> matching = estimatedTimetables.getAll("test").stream()
+            .filter(journey -> lineRefValue.equals(journey.getLineRef().getValue()))
+            .toList();
+        assertEquals(1, matching.size());
+
+        EstimatedVehicleJourney stored = matching.get(0);
+        assertEquals(1, stored.getRecordedCalls().getRecordedCalls().size());
+        assertEquals(19, stored.getEstimatedCalls().getEstimatedCalls().size());
+        assertEquals(departure.plusMinutes(3), stored.getEstimatedCalls().getEstimatedCalls().get(4).getExpectedDepartureTime());
+        assertEquals(update.getRecordedAtTime(), stored.getRecordedAtTime());
+    }
+
     @Test
     public void testUpdatedJourneyWrongOrder() {
         int previousSize = estimatedTimetables.getAll().size();
@@ -557,6 +585,44 @@ public class EstimatedTimetablesTest extends SpringBootBaseTest {
 
     }
 
+    @Test
+    public void testGetByLineRefAndDataset() {
+        String lineRefValue = "TST:Line:Indexed";
+
+        for (int i = 0; i < 5; i++) {
+            estimatedTimetables.add("IDX1", createEstimatedVehicleJourney(lineRefValue, UUID.randomUUID() + " - " + i, 1, 20, ZonedDateTime.now().plusMinutes(2), true));
+        }
+        estimatedTimetables.add("IDX2", createEstimatedVehicleJourney("TST:Line:Other", UUID.randomUUID().toString(), 1, 20, ZonedDateTime.now().plusMinutes(2), true));
+
+        assertEquals(5, (int) estimatedTimetables.getDatasetSize("IDX1"));
+        assertEquals(1, (int) estimatedTimetables.getDatasetSize("IDX2"));
+        assertEquals(5, estimatedTimetables.getAll("IDX1").size());
+
+        // LineRef is matched case-insensitive, and may be URL-encoded
+        Siri serviceDelivery = estimatedTimetables.createServiceDelivery("tst%3Aline%3Aindexed");
+        List<EstimatedVehicleJourney> journeys = serviceDelivery.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+        assertEquals(5, journeys.size());
+
+        estimatedTimetables.clearAllByDatasetId("IDX1");
+        assertEquals(0, (int) estimatedTimetables.getDatasetSize("IDX1"));
+        assertEquals(1, (int) estimatedTimetables.getDatasetSize("IDX2"));
+    }
+
+    @Test
+    public void testDatasetSizeByCodespace() {
+        for (int i = 0; i < 3; i++) {
+            estimatedTimetables.add("CNT1", createEstimatedVehicleJourney("TST:Line:Count", UUID.randomUUID().toString(), 1, 20, ZonedDateTime.now().plusMinutes(2), true));
+        }
+        estimatedTimetables.add("CNT2", createEstimatedVehicleJourney("TST:Line:Count", UUID.randomUUID().toString(), 1, 20, ZonedDateTime.now().plusMinutes(2), true));
+
+        Map<String, Integer> datasetSize = estimatedTimetables.getDatasetSize();
+        assertEquals(3, datasetSize.get("CNT1"));
+        assertEquals(1, datasetSize.get("CNT2"));
+        assertEquals(datasetSize, estimatedTimetables.getLocalDatasetSize());
+        assertEquals(3, (int) estimatedTimetables.getDatasetSize("CNT1"));
+        assertEquals(0, (int) estimatedTimetables.getDatasetSize("CNT3"));
+    }
+
     @Test
     public void testSetDefaultRecordedAtTime() {
 
@@ -0,0 +1,169 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import no.rutebanken.anshar.data.collections.KryoSerializer;
+import no.rutebanken.anshar.data.util.SiriFingerprint;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.RecordedCall;
+import uk.org.siri.siri21.StopPointRefStructure;
+
+import java.math.BigInteger;
+import java.time.ZonedDateTime;
+import java.util.AbstractMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EstimatedVehicleJourneyPatchTest {
+
+    private static final ZonedDateTime AIMED = ZonedDateTime.parse("2023-10-18T12:00:00+02:00");
+
+    private static final SiriFingerprint fingerprint = SiriFingerprint.create();
+
+    private static final SiriObjectStorageKey KEY = new SiriObjectStorageKey("TST", "TST:Line:1", "TST:ServiceJourney:1");
+
+    @Test
+    public void testChangedExpectedTime() {
+        EstimatedVehicleJourney base = createJourney(10);
+        EstimatedVehicleJourney updated = createJourney(10);
+        updated.getEstimatedCalls().getEstimatedCalls().get(3).setExpectedArrivalTime(AIMED.plusMinutes(5));
+        updated.setRecordedAtTime(AIMED.plusMinutes(1));
+
+        EstimatedVehicleJourneyPatch patch = EstimatedVehicleJourneyPatch.create(base, updated, 0.5);
+        assertNotNull(patch);
+        assertEquals(1, patch.getNewCallCount());
+
+        EstimatedVehicleJourney result = patch.apply(base);
+        assertEquals(fingerprint.calculate(updated), fingerprint.calculate(result));
+
+        // Unchanged calls are reused from base
+        assertSame(base.getEstimatedCalls().getEstimatedCalls().get(0), result.getEstimatedCalls().getEstimatedCalls().get(0));
+    }
+
+    @Test
+    public void testCallMovedToRecorded() {
+        EstimatedVehicleJourney base = createJourney(10);
+        EstimatedVehicleJourney updated = createJourney(10);
+        EstimatedCall passed = updated.getEstimatedCalls().getEstimatedCalls().remove(0);
+        updated.setRecordedCalls(new EstimatedVehicleJourney.RecordedCalls());
+        updated.getRecordedCalls().getRecordedCalls().add(createRecordedCall(passed));
+
+        EstimatedVehicleJourneyPatch patch = EstimatedVehicleJourneyPatch.create(base, updated, 0.5);
+        assertNotNull(patch);
+        assertEquals(1, patch.getNewCallCount());
+
+        EstimatedVehicleJourney result = patch.apply(base);
+        assertEquals(1, result.getRecordedCalls().getRecordedCalls().size());
+        assertEquals(9, result.getEstimatedCalls().getEstimatedCalls().size());
+        assertEquals(fingerprint.calculate(updated), fingerprint.calculate(result));
+
+        // Base is not modified
+        assertNull(base.getRecordedCalls());
+        assertEquals(10, base.getEstimatedCalls().getEstimatedCalls().size());
+    }
+
+    @Test
+    public void testTooManyChangedCalls() {
+        EstimatedVehicleJourney base = createJourney(10);
+        EstimatedVehicleJourney updated = createJourney(10);
+        for (EstimatedCall call : updated.getEstimatedCalls().getEstimatedCalls().subList(0, 6)) {
+            call.setExpectedArrivalTime(AIMED.plusMinutes(30));
+        }
+
+        assertNull(EstimatedVehicleJourneyPatch.create(base, updated, 0.5));
+        assertNotNull(EstimatedVehicleJourneyPatch.create(base, updated, 0.75));
+    }
+
+    @Test
+    public void testProcessRejectsModifiedBase() {
+        EstimatedVehicleJourney base = createJourney(10);
+        EstimatedVehicleJourney updated = createJourney(10);
+        updated.getEstimatedCalls().getEstimatedCalls().get(3).setExpectedArrivalTime(AIMED.plusMinutes(5));
+
+        EstimatedVehicleJourneyPatch patch = EstimatedVehicleJourneyPatch.create(base, updated, 0.5);
+
+        EstimatedVehicleJourney modified = createJourney(10);
+        modified.getEstimatedCalls().getEstimatedCalls().get(8).setExpectedArrivalTime(AIMED.plusMinutes(1));
+        Map.Entry<SiriObjectStorageKey, EstimatedVehicleJourney> modifiedEntry = new AbstractMap.SimpleEntry<>(KEY, modified);
+        assertFalse(patch.process(modifiedEntry));
+        assertSame(modified, modifiedEntry.getValue());
+
+        Map.Entry<SiriObjectStorageKey, EstimatedVehicleJourney> missingEntry = new AbstractMap.SimpleEntry<>(KEY, null);
+        assertFalse(patch.process(missingEntry));
+
+        Map.Entry<SiriObjectStorageKey, EstimatedVehicleJourney> entry = new AbstractMap.SimpleEntry<>(KEY, createJourney(10));
+        assertTrue(patch.process(entry));
+        assertEquals(fingerprint.calculate(updated), fingerprint.calculate(entry.getValue()));
+    }
+
+    @Test
+    public void testSerializedPatch() {
+        EstimatedVehicleJourney base = createJourney(10);
+        EstimatedVehicleJourney updated = createJourney(10);
+        updated.getEstimatedCalls().getEstimatedCalls().get(3).setExpectedArrivalTime(AIMED.plusMinutes(5));
+
+        KryoSerializer serializer = new KryoSerializer();
+        EstimatedVehicleJourneyPatch patch = (EstimatedVehicleJourneyPatch) serializer.read(
+                serializer.write(EstimatedVehicleJourneyPatch.create(base, updated, 0.5))
+        );
+
+        EstimatedVehicleJourney deserializedBase = (EstimatedVehicleJourney) serializer.read(serializer.write(base));
+        Map.Entry<SiriObjectStorageKey, EstimatedVehicleJourney> entry = new AbstractMap.SimpleEntry<>(KEY, deserializedBase);
+        assertTrue(patch.process(entry));
+        assertEquals(fingerprint.calculate(updated), fingerprint.calculate(entry.getValue()));
+    }
+
+    private static EstimatedVehicleJourney createJourney(int callCount) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue("TST:Line:1");
+        journey.setLineRef(lineRef);
+        journey.setRecordedAtTime(AIMED);
+        journey.setEstimatedCalls(new EstimatedVehicleJourney.EstimatedCalls());
+
+        List<EstimatedCall> calls = journey.getEstimatedCalls().getEstimatedCalls();
+        for (int i = 0; i < callCount; i++) {
+            StopPointRefStructure stopPointRef = new StopPointRefStructure();
+            stopPointRef.setValue("NSR:Quay:" + i);
+            EstimatedCall call = new EstimatedCall();
+            call.setStopPointRef(stopPointRef);
+            call.setOrder(BigInteger.valueOf(i + 1));
+            call.setAimedArrivalTime(AIMED.plusMinutes(i));
+            call.setExpectedArrivalTime(AIMED.plusMinutes(i));
+            calls.add(call);
+        }
+        return journey;
+    }
+
+    private static RecordedCall createRecordedCall(EstimatedCall call) {
+        RecordedCall recordedCall = new RecordedCall();
+        recordedCall.setStopPointRef(call.getStopPointRef());
+        recordedCall.setOrder(call.getOrder());
+        recordedCall.setAimedArrivalTime(call.getAimedArrivalTime());
+        recordedCall.setActualArrivalTime(call.getExpectedArrivalTime());
+        return recordedCall;
+    }
+}
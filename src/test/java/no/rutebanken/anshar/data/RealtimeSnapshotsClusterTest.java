@@ -0,0 +1,163 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.map.IMap;
+import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Restores snapshots in a separate cluster of two members, each with its own snapshot directory
+ */
+public class RealtimeSnapshotsClusterTest {
+
+    private static final int ELEMENTS = 200;
+
+    private final String clusterName = "snapshot-test-" + UUID.randomUUID();
+
+    private final List<HazelcastInstance> members = new ArrayList<>();
+
+    @TempDir
+    private Path directory;
+
+    @AfterEach
+    public void shutdown() {
+        members.forEach(HazelcastInstance::shutdown);
+    }
+
+    @Test
+    public void testEachMemberRestoresItsSnapshotAfterClusterRestart() {
+        HazelcastInstance member1 = startMember();
+        HazelcastInstance member2 = startMember();
+        RealtimeSnapshots snapshots1 = createSnapshots(member1, "member1");
+        RealtimeSnapshots snapshots2 = createSnapshots(member2, "member2");
+        snapshots1.restoreOnStartup();
+        // Joins the cluster started by member1
+        assertFalse(snapshots2.restoreOnStartup());
+
+        IMap<SiriObjectStorageKey, String> map = member1.getMap("test");
+        for (int i = 0; i < ELEMENTS; i++) {
+            map.set(createKey(i), "value-" + i);
+        }
+        // Each member writes the elements it owns
+        assertTrue(member1.<SiriObjectStorageKey, String>getMap("test").localKeySet().size() < ELEMENTS);
+        snapshots1.writeSnapshots();
+        snapshots2.writeSnapshots();
+
+        // Complete restart of the cluster
+        member1.shutdown();
+        member2.shutdown();
+
+        HazelcastInstance restarted1 = startMember();
+        HazelcastInstance restarted2 = startMember();
+        assertTrue(createSnapshots(restarted1, "member1").restoreOnStartup());
+        assertTrue(createSnapshots(restarted2, "member2").restoreOnStartup());
+
+        IMap<SiriObjectStorageKey, String> restoredMap = restarted2.getMap("test");
+        assertEquals(ELEMENTS, restoredMap.size());
+        assertEquals("value-1", restoredMap.get(createKey(1)));
+    }
+
+    @Test
+    public void testMemberRejoiningRunningClusterDoesNotRestore() {
+        HazelcastInstance member1 = startMember();
+        HazelcastInstance member2 = startMember();
+        createSnapshots(member1, "member1").restoreOnStartup();
+        RealtimeSnapshots snapshots2 = createSnapshots(member2, "member2");
+        snapshots2.restoreOnStartup();
+
+        IMap<SiriObjectStorageKey, String> map = member1.getMap("test");
+        for (int i = 0; i < ELEMENTS; i++) {
+            map.set(createKey(i), "value-" + i);
+        }
+        snapshots2.writeSnapshots();
+        member2.shutdown();
+
+        // Deleted while member2 was restarting - must not be restored from its snapshot
+        map.clear();
+
+        HazelcastInstance rejoined = startMember();
+        assertFalse(createSnapshots(rejoined, "member2").restoreOnStartup());
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testRestoreDoesNotReplaceNewerData() {
+        HazelcastInstance member = startMember();
+        RealtimeSnapshots snapshots = createSnapshots(member, "member1");
+        snapshots.restoreOnStartup();
+        member.<SiriObjectStorageKey, String>getMap("test").set(createKey(1), "old");
+        snapshots.writeSnapshots();
+        member.shutdown();
+
+        HazelcastInstance restarted = startMember();
+        IMap<SiriObjectStorageKey, String> map = restarted.getMap("test");
+        // Received by the restarted cluster before the snapshot was restored
+        map.set(createKey(1), "new");
+
+        assertTrue(createSnapshots(restarted, "member1").restoreOnStartup());
+        assertEquals("new", map.get(createKey(1)));
+        assertNull(map.get(createKey(2)));
+    }
+
+    private HazelcastInstance startMember() {
+        Config config = new Config();
+        config.setClusterName(clusterName);
+        JoinConfig join = config.getNetworkConfig().getJoin();
+        join.getAutoDetectionConfig().setEnabled(false);
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        HazelcastInstance member = Hazelcast.newHazelcastInstance(config);
+        members.add(member);
+        return member;
+    }
+
+    private RealtimeSnapshots createSnapshots(HazelcastInstance member, String memberDirectory) {
+        ExtendedHazelcastService hazelcastService = Mockito.mock(ExtendedHazelcastService.class);
+        Mockito.when(hazelcastService.getHazelcastInstance()).thenReturn(member);
+
+        RealtimeSnapshots snapshots = new RealtimeSnapshots();
+        ReflectionTestUtils.setField(snapshots, "hazelcastService", hazelcastService);
+        ReflectionTestUtils.setField(snapshots, "directory", directory.resolve(memberDirectory).toString());
+        ReflectionTestUtils.setField(snapshots, "segmentSizeMb", 1);
+        ReflectionTestUtils.setField(snapshots, "targets", List.of(
+                new RealtimeSnapshots.SnapshotTarget<String>("test", member.getMap("test"), value -> 3600_000L, List.of())
+        ));
+        return snapshots;
+    }
+
+    private static SiriObjectStorageKey createKey(int i) {
+        return new SiriObjectStorageKey("TST", "line-" + i, "key-" + i);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import uk.org.siri.siri21.HalfOpenTimestampOutputRangeStructure;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.SituationNumber;
+
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class RealtimeSnapshotsTest extends SpringBootBaseTest {
+
+    @Autowired
+    private RealtimeSnapshots realtimeSnapshots;
+
+    @Autowired
+    private Situations situations;
+
+    @BeforeEach
+    public void init() {
+        situations.clearAll();
+    }
+
+    @Test
+    public void testRestoreSnapshot() {
+        situations.add("snapshot", createPtSituationElement("1234", ZonedDateTime.now().plusHours(1)));
+        situations.add("snapshot", createPtSituationElement("1235", ZonedDateTime.now().plusHours(1)));
+        assertEquals(2, situations.getAll("snapshot").size());
+
+        realtimeSnapshots.writeSnapshots();
+        situations.clearAll();
+        assertEquals(0, situations.getAll("snapshot").size());
+
+        realtimeSnapshots.restoreSnapshots();
+        assertEquals(2, situations.getAll("snapshot").size());
+    }
+
+    @Test
+    public void testRestoreDoesNotReplaceExistingData() {
+        situations.add("snapshot", createPtSituationElement("1234", ZonedDateTime.now().plusHours(1)));
+        realtimeSnapshots.writeSnapshots();
+
+        situations.clearAll();
+        PtSituationElement updated = createPtSituationElement("1234", ZonedDateTime.now().plusHours(2));
+        situations.add("snapshot", updated);
+
+        realtimeSnapshots.restoreSnapshots();
+
+        assertEquals(1, situations.getAll("snapshot").size());
+        assertEquals(updated.getValidityPeriods().get(0).getEndTime().toInstant(),
+                situations.getAll("snapshot").iterator().next().getValidityPeriods().get(0).getEndTime().toInstant());
+    }
+
+    private PtSituationElement createPtSituationElement(String situationNumber, ZonedDateTime endTime) {
+        PtSituationElement element = new PtSituationElement();
+        element.setCreationTime(ZonedDateTime.now());
+        element.setParticipantRef(SiriObjectFactory.createRequestorRef("TST"));
+
+        SituationNumber sn = new SituationNumber();
+        sn.setValue(situationNumber);
+        element.setSituationNumber(sn);
+
+        HalfOpenTimestampOutputRangeStructure period = new HalfOpenTimestampOutputRangeStructure();
+        period.setStartTime(ZonedDateTime.now().minusHours(1));
+        period.setEndTime(endTime);
+        element.getValidityPeriods().add(period);
+        return element;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class SnapshotFileTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testNoSnapshot() throws IOException {
+        assertEquals(0, SnapshotFile.read(directory, "et", (expiresAt, key, values) -> {
+            throw new IllegalStateException("No records expected");
+        }));
+    }
+
+    @Test
+    public void testWriteAndReadMultipleSegments() throws IOException {
+        try (SnapshotFile.Writer writer = SnapshotFile.create(directory, "et", 100)) {
+            for (int i = 0; i < 10; i++) {
+                writer.append(1000 + i, bytes("key-" + i), bytes("value-" + i), i % 2 == 0 ? null : bytes("linked-" + i));
+            }
+            // Larger than segment-size
+            writer.append(2000, bytes("large"), new byte[200]);
+            writer.commit();
+        }
+        assertEquals(6, countSegments());
+
+        List<String> read = new ArrayList<>();
+        int count = SnapshotFile.read(directory, "et", (expiresAt, key, values) -> {
+            if (expiresAt == 2000) {
+                assertEquals(1, values.length);
+                assertEquals(200, values[0].length);
+                return;
+            }
+            int i = (int) (expiresAt - 1000);
+            assertEquals("key-" + i, string(key));
+            assertEquals("value-" + i, string(values[0]));
+            if (i % 2 == 0) {
+                assertNull(values[1]);
+            } else {
+                assertArrayEquals(bytes("linked-" + i), values[1]);
+            }
+            read.add(string(key));
+        });
+
+        assertEquals(11, count);
+        assertEquals(10, read.size());
+        assertEquals("key-0", read.get(0));
+    }
+
+    @Test
+    public void testCommitReplacesPreviousSnapshot() throws IOException {
+        try (SnapshotFile.Writer writer = SnapshotFile.create(directory, "sx", 1024)) {
+            writer.append(1, bytes("first"), bytes("value"));
+            writer.commit();
+        }
+
+        // Not committed - previous snapshot is kept
+        try (SnapshotFile.Writer writer = SnapshotFile.create(directory, "sx", 1024)) {
+            writer.append(2, bytes("uncommitted"), bytes("value"));
+        }
+        assertEquals(List.of("first"), readKeys("sx"));
+        assertEquals(1, countSegments());
+
+        try (SnapshotFile.Writer writer = SnapshotFile.create(directory, "sx", 1024)) {
+            writer.append(3, bytes("second"), bytes("value"));
+            writer.commit();
+        }
+        assertEquals(List.of("second"), readKeys("sx"));
+        assertEquals(1, countSegments());
+    }
+
+    private List<String> readKeys(String name) throws IOException {
+        List<String> keys = new ArrayList<>();
+        SnapshotFile.read(directory, name, (expiresAt, key, values) -> keys.add(string(key)));
+        return keys;
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".seg")).count();
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.IMap;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares previewInterval-lookup by streaming all entries of idStartTimeMap with lookup in the local StartTimeIndex.
+ *
+ * Excluded from the default build - run manually.
+ */
+public class StartTimeIndexBenchmarkKT extends SpringBootBaseTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(StartTimeIndexBenchmarkKT.class);
+
+    private static final int JOURNEY_COUNT = 300_000;
+    private static final int ITERATIONS = 20;
+
+    @Autowired
+    @Qualifier("getIdStartTimeMap")
+    private IMap<SiriObjectStorageKey, ZonedDateTime> idStartTimeMap;
+
+    @AfterEach
+    public void cleanup() {
+        idStartTimeMap.clear();
+    }
+
+    @Test
+    public void benchmarkPreviewIntervalLookup() {
+        final ZonedDateTime now = ZonedDateTime.now();
+        final Random random = new Random(42);
+
+        StartTimeIndex index = new StartTimeIndex();
+        Map<SiriObjectStorageKey, ZonedDateTime> batch = new HashMap<>();
+        for (int i = 0; i < JOURNEY_COUNT; i++) {
+            SiriObjectStorageKey key = new SiriObjectStorageKey("TST", "Line:" + (i % 500), UUID.randomUUID().toString());
+            // Journeys spread over +/- 12 hours
+            ZonedDateTime startTime = now.plusSeconds(random.nextInt(24 * 3600) - 12 * 3600);
+            batch.put(key, startTime);
+            index.put(key, startTime);
+            if (batch.size() == 10_000) {
+                idStartTimeMap.setAll(batch);
+                batch.clear();
+            }
+        }
+        idStartTimeMap.setAll(batch);
+
+        final ZonedDateTime previewExpiry = now.plusHours(1);
+
+        Set<SiriObjectStorageKey> expected = null;
+        long streamTotal = 0;
+        long indexTotal = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long t1 = System.nanoTime();
+            Set<SiriObjectStorageKey> streamed = idStartTimeMap
+                    .entrySet().stream()
+                    .filter(entry -> entry.getValue().isBefore(previewExpiry))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toSet());
+            streamTotal += System.nanoTime() - t1;
+
+            t1 = System.nanoTime();
+            Set<SiriObjectStorageKey> indexed = index.getStartingBefore(previewExpiry);
+            indexTotal += System.nanoTime() - t1;
+
+            assertEquals(streamed, indexed);
+            expected = indexed;
+        }
+
+        logger.info("Found {} of {} journeys - idStartTimeMap-stream: {} ms/lookup, StartTimeIndex: {} ms/lookup",
+                expected.size(), JOURNEY_COUNT,
+                streamTotal / ITERATIONS / 1_000_000, indexTotal / ITERATIONS / 1_000_000);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.ZonedDateTime;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StartTimeIndexTest {
+
+    private static final ZonedDateTime NOW = ZonedDateTime.parse("2023-10-18T12:00:30+02:00");
+
+    @Test
+    public void testStartingBefore() {
+        StartTimeIndex index = new StartTimeIndex();
+
+        SiriObjectStorageKey past = createKey();
+        SiriObjectStorageKey sameBucketBefore = createKey();
+        SiriObjectStorageKey sameBucketAfter = createKey();
+        SiriObjectStorageKey future = createKey();
+
+        index.put(past, NOW.minusHours(1));
+        index.put(sameBucketBefore, NOW.minusSeconds(10));
+        index.put(sameBucketAfter, NOW.plusSeconds(10));
+        index.put(future, NOW.plusHours(1));
+
+        assertEquals(Set.of(past, sameBucketBefore), index.getStartingBefore(NOW));
+        assertEquals(Set.of(past, sameBucketBefore, sameBucketAfter, future), index.getStartingBefore(NOW.plusHours(2)));
+        assertTrue(index.getStartingBefore(NOW.minusDays(1)).isEmpty());
+    }
+
+    @Test
+    public void testUpdateMovesKey() {
+        StartTimeIndex index = new StartTimeIndex();
+        SiriObjectStorageKey key = createKey();
+
+        index.put(key, NOW.minusHours(1));
+        assertEquals(Set.of(key), index.getStartingBefore(NOW));
+
+        index.put(key, NOW.plusHours(1));
+        assertTrue(index.getStartingBefore(NOW).isEmpty());
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void testRemove() {
+        StartTimeIndex index = new StartTimeIndex();
+        SiriObjectStorageKey key = createKey();
+
+        index.put(key, NOW.minusHours(1));
+        index.remove(key);
+
+        assertTrue(index.getStartingBefore(NOW).isEmpty());
+        assertEquals(0, index.size());
+
+        index.put(key, NOW.minusHours(1));
+        index.put(key, null);
+        assertEquals(0, index.size());
+    }
+
+    private static SiriObjectStorageKey createKey() {
+        return new SiriObjectStorageKey("TST", "Line:1", UUID.randomUUID().toString());
+    }
+}
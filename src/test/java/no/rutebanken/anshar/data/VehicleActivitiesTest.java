@@ -111,6 +111,20 @@ public class VehicleActivitiesTest extends SpringBootBaseTest {
         assertEquals(previousSize + 2, vehicleActivities.getAll("test").size());
     }
 
+    @Test
+    public void testUnchangedVehicleIsDetectedWhenEvictedFromLocalCache() {
+        VehicleActivityStructure element = createVehicleActivityStructure(
+                                                    ZonedDateTime.now().plusMinutes(1), UUID.randomUUID().toString());
+        vehicleActivities.add("test", element);
+
+        vehicleActivities.evictLocalCache();
+        assertEquals(0, vehicleActivities.getLocalCacheSize());
+
+        // Existing vehicle is read from the map, and the unchanged update is ignored
+        assertTrue(vehicleActivities.addAll("test", List.of(element)).isEmpty());
+        assertEquals(1, vehicleActivities.getLocalCacheSize());
+    }
+
     @Test
     @Disabled
     public void testUpdatedVehicleWrongOrder() {
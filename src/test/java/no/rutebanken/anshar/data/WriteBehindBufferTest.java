@@ -0,0 +1,115 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data;
+
+import com.hazelcast.map.IMap;
+import no.rutebanken.anshar.data.collections.ExtendedHazelcastService;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import uk.org.siri.siri21.VehicleActivityStructure;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WriteBehindBufferTest extends SpringBootBaseTest {
+
+    @Autowired
+    private ExtendedHazelcastService hazelcastService;
+
+    private IMap<SiriObjectStorageKey, VehicleActivityStructure> map;
+
+    private IMap<SiriObjectStorageKey, Long> checksums;
+
+    private WriteBehindBuffer<VehicleActivityStructure> buffer;
+
+    @BeforeEach
+    public void init() {
+        map = hazelcastService.getHazelcastInstance().getMap("writeBehindTest");
+        checksums = hazelcastService.getHazelcastInstance().getMap("writeBehindTestChecksums");
+        map.clear();
+        checksums.clear();
+        buffer = new WriteBehindBuffer<>(map, VehicleActivityStructure::getRecordedAtTime, List.of(checksums));
+    }
+
+    @Test
+    public void testLatestUpdateIsKept() {
+        SiriObjectStorageKey key = new SiriObjectStorageKey("TST", null, "1234");
+        ZonedDateTime now = ZonedDateTime.now();
+
+        VehicleActivityStructure first = createActivity(now);
+        VehicleActivityStructure older = createActivity(now.minusSeconds(10));
+        VehicleActivityStructure newer = createActivity(now.plusSeconds(10));
+
+        buffer.add(key, first, 1L);
+        buffer.add(key, older, 2L);
+        assertSame(first, buffer.get(key).getValue());
+        assertEquals(1L, buffer.get(key).getLinkedValue(0));
+
+        buffer.add(key, newer, 3L);
+        assertSame(newer, buffer.get(key).getValue());
+        assertEquals(3L, buffer.get(key).getLinkedValue(0));
+        assertEquals(3, buffer.get(key).getUpdates());
+        assertEquals(1, buffer.size());
+    }
+
+    @Test
+    public void testFlushStoresAllMaps() {
+        SiriObjectStorageKey key1 = new SiriObjectStorageKey("TST", null, "1234");
+        SiriObjectStorageKey key2 = new SiriObjectStorageKey("TST", null, "1235");
+
+        buffer.add(key1, createActivity(ZonedDateTime.now()), 1L);
+        buffer.add(key1, createActivity(ZonedDateTime.now()), 2L);
+        buffer.add(key2, createActivity(ZonedDateTime.now()), null);
+
+        assertTrue(map.isEmpty());
+
+        Map<SiriObjectStorageKey, WriteBehindBuffer.PendingWrite<VehicleActivityStructure>> flushed = buffer.flush();
+
+        assertEquals(2, flushed.size());
+        assertEquals(3, flushed.values().stream().mapToInt(WriteBehindBuffer.PendingWrite::getUpdates).sum());
+        assertTrue(buffer.isEmpty());
+
+        assertEquals(2, map.size());
+        assertEquals(2L, checksums.get(key1));
+        assertNull(checksums.get(key2));
+    }
+
+    @Test
+    public void testDiscardByCodespace() {
+        buffer.add(new SiriObjectStorageKey("TST", null, "1234"), createActivity(ZonedDateTime.now()), 1L);
+        buffer.add(new SiriObjectStorageKey("ABC", null, "1234"), createActivity(ZonedDateTime.now()), 1L);
+
+        buffer.discard(key -> "TST".equals(key.getCodespaceId()));
+
+        assertEquals(1, buffer.size());
+        assertEquals(1, buffer.flush().size());
+        assertEquals(1, map.size());
+    }
+
+    private VehicleActivityStructure createActivity(ZonedDateTime recordedAtTime) {
+        VehicleActivityStructure activity = new VehicleActivityStructure();
+        activity.setRecordedAtTime(recordedAtTime);
+        return activity;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data.collections;
+
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.Siri;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Compares size and encode/decode-time for the available serializer-settings using real ET-payloads.
+ *
+ * Excluded from the default build - run manually.
+ */
+public class KryoSerializerBenchmarkKT {
+
+    private static final Logger logger = LoggerFactory.getLogger(KryoSerializerBenchmarkKT.class);
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+
+    @Test
+    public void benchmarkEstimatedVehicleJourneys() throws Exception {
+        List<EstimatedVehicleJourney> journeys = new ArrayList<>();
+        for (String file : List.of("src/test/resources/siri-et-from-bnr.xml", "src/test/resources/siri-et-gir-npe.xml")) {
+            try (InputStream xml = new FileInputStream(file)) {
+                Siri siri = SiriXml.parseXml(xml);
+                for (EstimatedVersionFrameStructure frame : siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames()) {
+                    journeys.addAll(frame.getEstimatedVehicleJourneies());
+                }
+            }
+        }
+
+        Map<String, KryoSerializer> serializers = new LinkedHashMap<>();
+        serializers.put("legacy (kryo+deflate)", new KryoSerializer(KryoSerializer.Compression.DEFLATE, Deflater.DEFAULT_COMPRESSION, KryoSerializer.LEGACY_FORMAT));
+        serializers.put("none", KryoSerializer.create("none", KryoSerializer.CURRENT_FORMAT));
+        serializers.put("deflate", KryoSerializer.create("deflate", KryoSerializer.CURRENT_FORMAT));
+        serializers.put("deflate:1", KryoSerializer.create("deflate:1", KryoSerializer.CURRENT_FORMAT));
+        serializers.put("lz4", KryoSerializer.create("lz4", KryoSerializer.CURRENT_FORMAT));
+
+        for (Map.Entry<String, KryoSerializer> entry : serializers.entrySet()) {
+            KryoSerializer serializer = entry.getValue();
+
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                for (EstimatedVehicleJourney journey : journeys) {
+                    serializer.read(serializer.write(journey));
+                }
+            }
+
+            long size = 0;
+            long encodeNanos = 0;
+            long decodeNanos = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                for (EstimatedVehicleJourney journey : journeys) {
+                    long t1 = System.nanoTime();
+                    byte[] bytes = serializer.write(journey);
+                    long t2 = System.nanoTime();
+                    serializer.read(bytes);
+                    long t3 = System.nanoTime();
+
+                    size += bytes.length;
+                    encodeNanos += t2 - t1;
+                    decodeNanos += t3 - t2;
+                }
+            }
+            long operations = (long) ROUNDS * journeys.size();
+            logger.info("{}: {} journeys, avg size {} bytes, encode {} ns/op, decode {} ns/op", entry.getKey(),
+                    journeys.size(), size / operations, encodeNanos / operations, decodeNanos / operations);
+        }
+    }
+}
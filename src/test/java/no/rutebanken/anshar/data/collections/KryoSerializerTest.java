@@ -0,0 +1,128 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+package no.rutebanken.anshar.data.collections;
+
+import com.hazelcast.nio.serialization.HazelcastSerializationException;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.Siri;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KryoSerializerTest {
+
+    private static EstimatedVehicleJourney journey;
+
+    @BeforeAll
+    public static void init() throws Exception {
+        try (InputStream xml = new FileInputStream("src/test/resources/siri-et-from-bnr.xml")) {
+            Siri siri = SiriXml.parseXml(xml);
+            journey = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                    .getEstimatedJourneyVersionFrames().get(0)
+                    .getEstimatedVehicleJourneies().get(0);
+        }
+    }
+
+    @Test
+    public void testRoundtripAllCompressions() {
+        for (KryoSerializer.Compression compression : KryoSerializer.Compression.values()) {
+            KryoSerializer serializer = new KryoSerializer(compression, Deflater.DEFAULT_COMPRESSION, KryoSerializer.CURRENT_FORMAT);
+
+            byte[] bytes = serializer.write(journey);
+            assertReadable(serializer, bytes);
+        }
+    }
+
+    @Test
+    public void testReadLegacyFormat() {
+        KryoSerializer legacy = new KryoSerializer(KryoSerializer.Compression.DEFLATE, Deflater.DEFAULT_COMPRESSION, KryoSerializer.LEGACY_FORMAT);
+        byte[] legacyBytes = legacy.write(journey);
+
+        // Legacy format has no header
+        assertEquals(0x78, legacyBytes[0] & 0xFF);
+
+        assertReadable(KryoSerializer.create("lz4", KryoSerializer.CURRENT_FORMAT), legacyBytes);
+    }
+
+    @Test
+    public void testAnyInstanceReadsAnyCompression() {
+        byte[] bytes = KryoSerializer.create("lz4", KryoSerializer.CURRENT_FORMAT).write(journey);
+
+        assertReadable(KryoSerializer.create("deflate:1", KryoSerializer.CURRENT_FORMAT), bytes);
+    }
+
+    @Test
+    public void testRegisteredClassesReduceSize() {
+        byte[] legacyBytes = new KryoSerializer(KryoSerializer.Compression.DEFLATE, Deflater.DEFAULT_COMPRESSION, KryoSerializer.LEGACY_FORMAT).write(journey);
+        byte[] bytes = new KryoSerializer().write(journey);
+
+        assertTrue(bytes.length < legacyBytes.length, "Expected " + bytes.length + " < " + legacyBytes.length);
+    }
+
+    @Test
+    public void testUnknownFormatVersion() {
+        KryoSerializer serializer = new KryoSerializer();
+        byte[] bytes = serializer.write(journey);
+        bytes[1] = 99;
+
+        assertThrows(HazelcastSerializationException.class, () -> serializer.read(bytes));
+    }
+
+    @Test
+    public void testRegistrationIdsDoNotDependOnRegisteredClasses() {
+        Map<Class<?>, Integer> ids = KryoSerializer.assignRegistrationIds(List.of(EstimatedVehicleJourney.class, Siri.class));
+        Map<Class<?>, Integer> fewerIds = KryoSerializer.assignRegistrationIds(List.of(EstimatedVehicleJourney.class));
+
+        assertEquals(ids.get(EstimatedVehicleJourney.class), fewerIds.get(EstimatedVehicleJourney.class));
+    }
+
+    @Test
+    public void testInvalidSetting() {
+        assertThrows(IllegalArgumentException.class, () -> KryoSerializer.create("zip", KryoSerializer.CURRENT_FORMAT));
+        assertThrows(IllegalArgumentException.class, () -> new KryoSerializer(KryoSerializer.Compression.NONE, 0, 2));
+    }
+
+    @Test
+    public void testRoundtripCompleteDelivery() throws Exception {
+        try (InputStream xml = new FileInputStream("src/test/resources/siri-et-from-bnr.xml")) {
+            Siri siri = SiriXml.parseXml(xml);
+
+            KryoSerializer serializer = new KryoSerializer();
+            Object read = serializer.read(serializer.write(siri));
+
+            assertTrue(read instanceof Siri);
+            assertEquals(SiriXml.toXml(siri), SiriXml.toXml((Siri) read));
+        }
+    }
+
+    private static void assertReadable(KryoSerializer serializer, byte[] bytes) {
+        Object read = serializer.read(bytes);
+
+        // Compare serialized form, as JAXB-objects do not implement equals
+        KryoSerializer uncompressed = new KryoSerializer(KryoSerializer.Compression.NONE, 0, KryoSerializer.CURRENT_FORMAT);
+        assertArrayEquals(uncompressed.write(journey), uncompressed.write(read));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data.util;
+
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.StopPointRefStructure;
+import uk.org.siri.siri21.VehicleActivityStructure;
+import uk.org.siri.siri21.VehicleRef;
+
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SiriFingerprintTest {
+
+    private static final ZonedDateTime AIMED = ZonedDateTime.parse("2023-10-18T12:00:00+02:00");
+
+    @Test
+    public void testEqualObjectsHaveEqualFingerprints() {
+        SiriFingerprint fingerprint = SiriFingerprint.create();
+
+        assertEquals(fingerprint.calculate(createJourney("NSB:Line:1", AIMED)),
+                fingerprint.calculate(createJourney("NSB:Line:1", AIMED)));
+    }
+
+    @Test
+    public void testChangedValueChangesFingerprint() {
+        SiriFingerprint fingerprint = SiriFingerprint.create();
+
+        long original = fingerprint.calculate(createJourney("NSB:Line:1", AIMED));
+
+        assertNotEquals(original, fingerprint.calculate(createJourney("NSB:Line:2", AIMED)));
+        assertNotEquals(original, fingerprint.calculate(createJourney("NSB:Line:1", AIMED.plusMinutes(1))));
+    }
+
+    @Test
+    public void testChangedCallOrderChangesFingerprint() {
+        SiriFingerprint fingerprint = SiriFingerprint.create();
+
+        EstimatedVehicleJourney journey = createJourney("NSB:Line:1", AIMED);
+        addCall(journey, "NSR:Quay:2", AIMED.plusMinutes(5));
+        addCall(journey, "NSR:Quay:3", AIMED.plusMinutes(10));
+
+        long original = fingerprint.calculate(journey);
+
+        EstimatedCall last = journey.getEstimatedCalls().getEstimatedCalls().remove(2);
+        journey.getEstimatedCalls().getEstimatedCalls().add(1, last);
+
+        assertNotEquals(original, fingerprint.calculate(journey));
+    }
+
+    @Test
+    public void testIgnoredFieldDoesNotChangeFingerprint() {
+        SiriFingerprint fingerprint = SiriFingerprint.ignoring(EstimatedVehicleJourney.class, "recordedAtTime");
+
+        EstimatedVehicleJourney journey = createJourney("NSB:Line:1", AIMED);
+        journey.setRecordedAtTime(ZonedDateTime.now());
+        long original = fingerprint.calculate(journey);
+
+        journey.setRecordedAtTime(ZonedDateTime.now().plusMinutes(5));
+        assertEquals(original, fingerprint.calculate(journey));
+
+        // Object is not modified
+        assertNotEquals(null, journey.getRecordedAtTime());
+
+        // Field is included when not ignored
+        assertNotEquals(SiriFingerprint.create().calculate(journey), SiriFingerprint.create().calculate(createJourney("NSB:Line:1", AIMED)));
+    }
+
+    @Test
+    public void testIgnoredInheritedStructure() {
+        SiriFingerprint fingerprint = SiriFingerprint.ignoring(VehicleActivityStructure.class, "validUntilTime");
+
+        VehicleActivityStructure activity = new VehicleActivityStructure();
+        VehicleActivityStructure.MonitoredVehicleJourney journey = new VehicleActivityStructure.MonitoredVehicleJourney();
+        VehicleRef vehicleRef = new VehicleRef();
+        vehicleRef.setValue("1234");
+        journey.setVehicleRef(vehicleRef);
+        activity.setMonitoredVehicleJourney(journey);
+        activity.setRecordedAtTime(AIMED);
+        activity.setValidUntilTime(AIMED.plusMinutes(10));
+
+        long original = fingerprint.calculate(activity);
+
+        activity.setValidUntilTime(AIMED.plusMinutes(20));
+        assertEquals(original, fingerprint.calculate(activity));
+
+        // RecordedAtTime is declared in superclass, and is not ignored
+        activity.setRecordedAtTime(AIMED.plusMinutes(1));
+        assertNotEquals(original, fingerprint.calculate(activity));
+
+        vehicleRef.setValue("4321");
+        activity.setRecordedAtTime(AIMED);
+        assertNotEquals(original, fingerprint.calculate(activity));
+    }
+
+    @Test
+    public void testUnknownIgnoredField() {
+        assertThrows(IllegalArgumentException.class, () -> SiriFingerprint.ignoring(EstimatedVehicleJourney.class, "unknownField"));
+    }
+
+    private static EstimatedVehicleJourney createJourney(String line, ZonedDateTime aimedDeparture) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue(line);
+        journey.setLineRef(lineRef);
+        journey.setEstimatedCalls(new EstimatedVehicleJourney.EstimatedCalls());
+        addCall(journey, "NSR:Quay:1", aimedDeparture);
+        return journey;
+    }
+
+    private static void addCall(EstimatedVehicleJourney journey, String stopPoint, ZonedDateTime aimedDeparture) {
+        EstimatedCall call = new EstimatedCall();
+        StopPointRefStructure stopPointRef = new StopPointRefStructure();
+        stopPointRef.setValue(stopPoint);
+        call.setStopPointRef(stopPointRef);
+        call.setAimedDepartureTime(aimedDeparture);
+        call.setExpectedDepartureTime(aimedDeparture);
+        journey.getEstimatedCalls().getEstimatedCalls().add(call);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.data.util;
+
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedCall;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.StopPointRefStructure;
+
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SiriSizeEstimatorTest {
+
+    private static final ZonedDateTime AIMED = ZonedDateTime.parse("2023-10-18T12:00:00+02:00");
+
+    @Test
+    public void testNull() {
+        assertEquals(0, SiriSizeEstimator.estimate(null));
+    }
+
+    @Test
+    public void testSizeGrowsWithContent() {
+        EstimatedVehicleJourney journey = createJourney("NSB:Line:1", 10);
+        long size = SiriSizeEstimator.estimate(journey);
+        assertTrue(size > 0);
+
+        assertEquals(size, SiriSizeEstimator.estimate(createJourney("NSB:Line:2", 10)));
+        assertTrue(SiriSizeEstimator.estimate(createJourney("NSB:Line:1234567890", 10)) > size);
+
+        long largerJourney = SiriSizeEstimator.estimate(createJourney("NSB:Line:1", 20));
+        long callSize = (largerJourney - size) / 10;
+        assertTrue(callSize > 0);
+        assertEquals(size + 10 * callSize, largerJourney);
+    }
+
+    private static EstimatedVehicleJourney createJourney(String line, int callCount) {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue(line);
+        journey.setLineRef(lineRef);
+        journey.setEstimatedCalls(new EstimatedVehicleJourney.EstimatedCalls());
+        for (int i = 0; i < callCount; i++) {
+            EstimatedCall call = new EstimatedCall();
+            StopPointRefStructure stopPointRef = new StopPointRefStructure();
+            stopPointRef.setValue("NSR:Quay:1");
+            call.setStopPointRef(stopPointRef);
+            call.setAimedDepartureTime(AIMED);
+            call.setExpectedDepartureTime(AIMED);
+            journey.getEstimatedCalls().getEstimatedCalls().add(call);
+        }
+        return journey;
+    }
+}
@@ -19,6 +19,8 @@ import io.restassured.http.ContentType;
 import no.rutebanken.anshar.data.Situations;
 import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
 import no.rutebanken.anshar.subscription.SiriDataType;
+import org.entur.avro.realtime.siri.converter.jaxb2avro.Jaxb2AvroConverter;
+import org.entur.avro.realtime.siri.model.SiriRecord;
 import org.entur.siri21.util.SiriXml;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -28,6 +30,7 @@ import uk.org.siri.siri21.PtSituationElement;
 import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.SituationNumber;
 
+import java.nio.ByteBuffer;
 import java.time.ZonedDateTime;
 
 import static io.restassured.RestAssured.given;
@@ -67,6 +70,29 @@ public class SXRequestResponseTest extends BaseHttpTest {
         ;
     }
 
+    @Test
+    public void testAvroSXRequest() throws Exception {
+
+        //Test SIRI Request encoded as Avro
+        Siri siriRequest = SiriObjectFactory.createServiceRequest(getSubscriptionSetup(SiriDataType.SITUATION_EXCHANGE));
+        ByteBuffer encoded = SiriRecord.getEncoder().encode(Jaxb2AvroConverter.convert(siriRequest));
+        byte[] body = new byte[encoded.remaining()];
+        encoded.get(body);
+
+        given()
+                .when()
+                    .contentType("application/avro")
+                    .body(body)
+                    .post("anshar/services")
+                .then()
+                    .statusCode(200)
+                    .contentType(ContentType.XML)
+                    .rootPath("Siri.ServiceDelivery.SituationExchangeDelivery.Situations.PtSituationElement")
+                        .body("SituationNumber", equalTo(situationNumber))
+                        .body("ParticipantRef", equalTo(participantRef))
+        ;
+    }
+
     @Test
     public void testLiteSXRequest() throws Exception {
 
@@ -20,6 +20,7 @@ import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.RequestorRef;
 import uk.org.siri.siri21.Siri;
 import uk.org.siri.siri21.VehicleActivityStructure;
 import uk.org.siri.siri21.VehicleRef;
@@ -37,6 +38,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class SiriHelperTest {
@@ -185,6 +187,34 @@ public class SiriHelperTest {
         assertEquals(filteredSizeAfter, filteredSizeAfter2, "Filtered size does not match");
     }
 
+    @Test
+    public void testFilteredElementsAreCopied() {
+        List<VehicleActivityStructure> vmElements = new ArrayList<>();
+        vmElements.add(createVehicleActivity("1234", "3333"));
+        vmElements.add(createVehicleActivity("2345", "3333"));
+
+        Siri siri = siriObjectFactory.createVMServiceDelivery(vmElements);
+        RequestorRef producerRef = new RequestorRef();
+        producerRef.setValue("ENT");
+        siri.getServiceDelivery().setProducerRef(producerRef);
+
+        Map<Class, Set<String>> filter = new HashMap<>();
+        filter.put(LineRef.class, Set.of("1234"));
+
+        Siri filtered = SiriHelper.filterSiriPayload(siri, filter);
+
+        VehicleActivityStructure original = siri.getServiceDelivery().getVehicleMonitoringDeliveries().get(0).getVehicleActivities().get(0);
+        VehicleActivityStructure copy = filtered.getServiceDelivery().getVehicleMonitoringDeliveries().get(0).getVehicleActivities().get(0);
+        assertNotSame(original, copy);
+
+        // Altering the filtered data should not affect the original
+        copy.getMonitoredVehicleJourney().getLineRef().setValue("TEST:Line:1234");
+        filtered.getServiceDelivery().getProducerRef().setValue("TEST");
+
+        assertEquals("1234", original.getMonitoredVehicleJourney().getLineRef().getValue());
+        assertEquals("ENT", siri.getServiceDelivery().getProducerRef().getValue());
+    }
+
     @Test
     public void testSplitDelivery(){
 
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.dataformat;
+
+import no.rutebanken.anshar.routes.RestRouteBuilder;
+import org.entur.avro.realtime.siri.converter.jaxb2avro.Jaxb2AvroConverter;
+import org.entur.avro.realtime.siri.model.SiriRecord;
+import org.entur.protobuf.mapper.SiriMapper;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.ServiceDelivery;
+import uk.org.siri.siri21.Siri;
+
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BinarySiriDecoderTest {
+
+    private static final String LINE_REF = "TST:Line:1";
+
+    @Test
+    public void testIsBinary() {
+        assertTrue(BinarySiriDecoder.isBinary("application/x-protobuf"));
+        assertTrue(BinarySiriDecoder.isBinary("application/avro"));
+        assertTrue(BinarySiriDecoder.isBinary("Application/Avro; charset=binary"));
+        assertFalse(BinarySiriDecoder.isBinary("application/xml"));
+        assertFalse(BinarySiriDecoder.isBinary(null));
+    }
+
+    @Test
+    public void testDecodeProtobuf() throws Exception {
+        byte[] body = SiriMapper.mapToPbf(RestRouteBuilder.downgradeSiriVersion(createSiri())).toByteArray();
+
+        assertEquals(LINE_REF, getLineRef(BinarySiriDecoder.decode("application/x-protobuf", body)));
+    }
+
+    @Test
+    public void testDecodeAvro() throws Exception {
+        ByteBuffer encoded = SiriRecord.getEncoder().encode(Jaxb2AvroConverter.convert(createSiri()));
+        byte[] body = new byte[encoded.remaining()];
+        encoded.get(body);
+
+        assertEquals(LINE_REF, getLineRef(BinarySiriDecoder.decode("application/avro", body)));
+    }
+
+    @Test
+    public void testUnsupportedContentType() {
+        assertThrows(IllegalArgumentException.class, () -> BinarySiriDecoder.decode("application/xml", new byte[0]));
+    }
+
+    private static Siri createSiri() {
+        LineRef lineRef = new LineRef();
+        lineRef.setValue(LINE_REF);
+
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        journey.setLineRef(lineRef);
+
+        EstimatedVersionFrameStructure frame = new EstimatedVersionFrameStructure();
+        frame.getEstimatedVehicleJourneies().add(journey);
+        frame.setRecordedAtTime(ZonedDateTime.now());
+
+        EstimatedTimetableDeliveryStructure delivery = new EstimatedTimetableDeliveryStructure();
+        delivery.getEstimatedJourneyVersionFrames().add(frame);
+        delivery.setResponseTimestamp(ZonedDateTime.now());
+
+        ServiceDelivery serviceDelivery = new ServiceDelivery();
+        serviceDelivery.setResponseTimestamp(ZonedDateTime.now());
+        serviceDelivery.getEstimatedTimetableDeliveries().add(delivery);
+
+        Siri siri = new Siri();
+        siri.setVersion("2.1");
+        siri.setServiceDelivery(serviceDelivery);
+        return siri;
+    }
+
+    private static String getLineRef(Siri siri) {
+        return siri.getServiceDelivery()
+                .getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0)
+                .getEstimatedVehicleJourneies().get(0)
+                .getLineRef().getValue();
+    }
+}
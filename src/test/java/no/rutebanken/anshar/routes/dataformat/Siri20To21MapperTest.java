@@ -0,0 +1,93 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.dataformat;
+
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri20.DefaultedTextStructure;
+import uk.org.siri.siri20.PtSituationElement;
+import uk.org.siri.siri20.ServiceDelivery;
+import uk.org.siri.siri20.SeverityEnumeration;
+import uk.org.siri.siri20.SituationExchangeDeliveryStructure;
+import uk.org.siri.siri20.SituationNumber;
+import uk.org.siri.siri21.Siri;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class Siri20To21MapperTest {
+
+    @Test
+    public void testMappingMatchesXmlConversion() throws Exception {
+        assertMappingMatchesXmlConversion("src/test/resources/siri-et-from-bnr.xml");
+        assertMappingMatchesXmlConversion("src/test/resources/siri-et-gir-npe.xml");
+    }
+
+    @Test
+    public void testMapSituation() throws Exception {
+        SituationNumber situationNumber = new SituationNumber();
+        situationNumber.setValue("TST:SituationNumber:1");
+
+        DefaultedTextStructure summary = new DefaultedTextStructure();
+        summary.setValue("Summary");
+        summary.setLang("NO");
+
+        PtSituationElement situation = new PtSituationElement();
+        situation.setCreationTime(ZonedDateTime.now());
+        situation.setSituationNumber(situationNumber);
+        situation.setSeverity(SeverityEnumeration.SEVERE);
+        situation.getSummaries().add(summary);
+
+        SituationExchangeDeliveryStructure.Situations situations = new SituationExchangeDeliveryStructure.Situations();
+        situations.getPtSituationElements().add(situation);
+
+        SituationExchangeDeliveryStructure delivery = new SituationExchangeDeliveryStructure();
+        delivery.setResponseTimestamp(ZonedDateTime.now());
+        delivery.setSituations(situations);
+
+        ServiceDelivery serviceDelivery = new ServiceDelivery();
+        serviceDelivery.setResponseTimestamp(ZonedDateTime.now());
+        serviceDelivery.getSituationExchangeDeliveries().add(delivery);
+
+        uk.org.siri.siri20.Siri siri = new uk.org.siri.siri20.Siri();
+        siri.setVersion("2.0");
+        siri.setServiceDelivery(serviceDelivery);
+
+        uk.org.siri.siri21.PtSituationElement mapped = Siri20To21Mapper.map(siri).getServiceDelivery()
+                .getSituationExchangeDeliveries().get(0)
+                .getSituations().getPtSituationElements().get(0);
+
+        assertEquals("TST:SituationNumber:1", mapped.getSituationNumber().getValue());
+        assertEquals(uk.org.siri.siri21.SeverityEnumeration.SEVERE, mapped.getSeverity());
+        assertEquals("Summary", mapped.getSummaries().get(0).getValue());
+        assertEquals("NO", mapped.getSummaries().get(0).getLang());
+        assertEquals(situation.getCreationTime(), mapped.getCreationTime());
+    }
+
+    private static void assertMappingMatchesXmlConversion(String file) throws Exception {
+        uk.org.siri.siri20.Siri siri;
+        try (InputStream xml = new FileInputStream(file)) {
+            siri = org.rutebanken.siri20.util.SiriXml.parseXml(xml);
+        }
+
+        Siri expected = org.entur.siri21.util.SiriXml.parseXml(org.rutebanken.siri20.util.SiriXml.toXml(siri));
+        Siri mapped = Siri20To21Mapper.map(siri);
+
+        assertEquals(org.entur.siri21.util.SiriXml.toXml(expected), org.entur.siri21.util.SiriXml.toXml(mapped));
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.messaging;
+
+import no.rutebanken.anshar.config.AnsharConfiguration;
+import no.rutebanken.anshar.data.Situations;
+import no.rutebanken.anshar.integration.SpringBootBaseTest;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import no.rutebanken.anshar.subscription.SubscriptionManager;
+import no.rutebanken.anshar.subscription.SubscriptionSetup;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.StreamCache;
+import org.apache.camel.TypeConversionException;
+import org.apache.camel.support.TypeConverterSupport;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.util.ReflectionTestUtils;
+import uk.org.siri.siri21.HalfOpenTimestampOutputRangeStructure;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.SituationNumber;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static no.rutebanken.anshar.routes.HttpParameter.INTERNAL_SIRI_DATA_TYPE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class MessagingRouteTest extends SpringBootBaseTest {
+
+    @Autowired
+    private CamelContext camelContext;
+
+    @Autowired
+    private SubscriptionManager subscriptionManager;
+
+    @Autowired
+    private SiriObjectFactory siriObjectFactory;
+
+    @Autowired
+    private Situations situations;
+
+    @Autowired
+    private AnsharConfiguration configuration;
+
+    private SubscriptionSetup subscriptionSetup;
+
+    @BeforeEach
+    public void init() {
+        situations.clearAll();
+        subscriptionSetup = new SubscriptionSetup(
+                SiriDataType.SITUATION_EXCHANGE,
+                SubscriptionSetup.SubscriptionMode.SUBSCRIBE,
+                "http://localhost",
+                Duration.ofMinutes(1),
+                Duration.ofSeconds(1),
+                "http://www.kolumbus.no/siri",
+                new HashMap<>(),
+                "2.0",
+                "messaging",
+                "msg",
+                SubscriptionSetup.ServiceType.REST,
+                new ArrayList<>(),
+                new HashMap<>(),
+                new ArrayList<>(),
+                UUID.randomUUID().toString(),
+                "RutebankenDEV",
+                Duration.ofSeconds(600),
+                true
+        );
+        subscriptionManager.addSubscription(subscriptionSetup.getSubscriptionId(), subscriptionSetup);
+    }
+
+    @AfterEach
+    public void resetConfiguration() {
+        ReflectionTestUtils.setField(configuration, "incomingBinaryHandoffEnabled", false);
+        ReflectionTestUtils.setField(configuration, "incomingStreamingThresholdBytes", 0);
+    }
+
+    @Test
+    public void testProcessMessageSynchronous() throws Exception {
+        send("direct:process.message.synchronous", "1234", "1235");
+
+        assertEquals(2, situations.getAll("msg").size());
+    }
+
+    @Test
+    public void testProcessMessageSynchronousWithBinaryHandoff() throws Exception {
+        ReflectionTestUtils.setField(configuration, "incomingBinaryHandoffEnabled", true);
+
+        send("direct:process.message.synchronous", "1234", "1235");
+
+        assertEquals(2, situations.getAll("msg").size());
+    }
+
+    @Test
+    public void testEnqueueMessage() throws Exception {
+        send("direct:enqueue.message", "1236");
+
+        assertEquals(1, situations.getAll("msg").size());
+    }
+
+    @Test
+    public void testEnqueueMessageWithBinaryHandoff() throws Exception {
+        ReflectionTestUtils.setField(configuration, "incomingBinaryHandoffEnabled", true);
+
+        send("direct:enqueue.message", "1236");
+
+        assertEquals(1, situations.getAll("msg").size());
+    }
+
+    @Test
+    public void testProcessMessageInChunks() throws Exception {
+        ReflectionTestUtils.setField(configuration, "incomingBinaryHandoffEnabled", true);
+        ReflectionTestUtils.setField(configuration, "incomingStreamingThresholdBytes", 1);
+        ReflectionTestUtils.setField(configuration, "incomingStreamingChunkSize", 2);
+
+        send("direct:process.message.synchronous", "1237", "1238", "1239");
+        assertEquals(3, situations.getAll("msg").size());
+
+        send("direct:enqueue.message", "1240", "1241", "1242");
+        assertEquals(6, situations.getAll("msg").size());
+    }
+
+    @Test
+    public void testLargeDeliveryIsNotConvertedToString() throws Exception {
+        AtomicInteger conversions = new AtomicInteger();
+        camelContext.getTypeConverterRegistry().addTypeConverter(String.class, ReceivedDelivery.class, new TypeConverterSupport() {
+            @Override
+            public <T> T convertTo(Class<T> type, Exchange exchange, Object value) throws TypeConversionException {
+                conversions.incrementAndGet();
+                throw new TypeConversionException(value, type, new IllegalStateException("Delivery converted to String"));
+            }
+        });
+
+        ReflectionTestUtils.setField(configuration, "incomingBinaryHandoffEnabled", true);
+        ReflectionTestUtils.setField(configuration, "incomingStreamingThresholdBytes", 1);
+        ReflectionTestUtils.setField(configuration, "incomingStreamingChunkSize", 2);
+
+        send("direct:process.message.synchronous", ReceivedDelivery::new, "1243", "1244", "1245");
+        assertEquals(3, situations.getAll("msg").size());
+
+        send("direct:enqueue.message", ReceivedDelivery::new, "1246", "1247", "1248");
+        assertEquals(6, situations.getAll("msg").size());
+
+        assertEquals(0, conversions.get());
+    }
+
+    private void send(String endpoint, String... situationNumbers) throws Exception {
+        send(endpoint, xml -> new String(xml, StandardCharsets.UTF_8), situationNumbers);
+    }
+
+    private void send(String endpoint, Function<byte[], Object> body, String... situationNumbers) throws Exception {
+        List<PtSituationElement> elements = new ArrayList<>();
+        for (String situationNumber : situationNumbers) {
+            elements.add(createPtSituationElement(situationNumber));
+        }
+        String xml = SiriXml.toXml(siriObjectFactory.createSXServiceDelivery(elements));
+
+        ProducerTemplate producerTemplate = camelContext.createProducerTemplate();
+        try {
+            producerTemplate.sendBodyAndHeaders(endpoint, body.apply(xml.getBytes(StandardCharsets.UTF_8)), new HashMap<>(Map.of(
+                    "subscriptionId", subscriptionSetup.getSubscriptionId(),
+                    INTERNAL_SIRI_DATA_TYPE, SiriDataType.SITUATION_EXCHANGE.name()
+            )));
+        } finally {
+            producerTemplate.stop();
+        }
+    }
+
+    /**
+     * Cached request body, as received from HTTP - fails if converted to a String
+     */
+    private static class ReceivedDelivery extends ByteArrayInputStream implements StreamCache {
+        private ReceivedDelivery(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            os.write(buf, 0, count);
+        }
+
+        @Override
+        public StreamCache copy(Exchange exchange) {
+            return new ReceivedDelivery(Arrays.copyOf(buf, count));
+        }
+
+        @Override
+        public boolean inMemory() {
+            return true;
+        }
+
+        @Override
+        public long length() {
+            return count;
+        }
+
+        @Override
+        public long position() {
+            return pos;
+        }
+    }
+
+    private PtSituationElement createPtSituationElement(String situationNumber) {
+        PtSituationElement element = new PtSituationElement();
+        element.setCreationTime(ZonedDateTime.now());
+        element.setParticipantRef(SiriObjectFactory.createRequestorRef("MSG"));
+
+        SituationNumber sn = new SituationNumber();
+        sn.setValue(situationNumber);
+        element.setSituationNumber(sn);
+
+        HalfOpenTimestampOutputRangeStructure period = new HalfOpenTimestampOutputRangeStructure();
+        period.setStartTime(ZonedDateTime.now().minusHours(1));
+        period.setEndTime(ZonedDateTime.now().plusHours(1));
+        element.getValidityPeriods().add(period);
+        return element;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.messaging;
+
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.EstimatedVersionFrameStructure;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationNumber;
+import uk.org.siri.siri21.VehicleActivityStructure;
+
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SiriChunkReaderTest {
+
+    private final SiriObjectFactory siriObjectFactory = new SiriObjectFactory(Instant.now());
+
+    @Test
+    public void testReadEstimatedTimetablesInChunks() throws Exception {
+        String xml = Files.readString(Path.of("src/test/resources/siri-et-from-bnr.xml"));
+        Siri original = SiriXml.parseXml(xml);
+        EstimatedVersionFrameStructure frame = original.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0);
+        List<EstimatedVehicleJourney> journeys = frame.getEstimatedVehicleJourneies();
+        assertTrue(journeys.size() > 2);
+
+        List<Siri> chunks = read(xml, 2);
+
+        assertEquals((journeys.size() + 1) / 2, chunks.size());
+        int journeyCount = 0;
+        for (Siri chunk : chunks) {
+            assertEquals(original.getServiceDelivery().getResponseTimestamp(), chunk.getServiceDelivery().getResponseTimestamp());
+            assertEquals(original.getServiceDelivery().getProducerRef().getValue(), chunk.getServiceDelivery().getProducerRef().getValue());
+
+            EstimatedVersionFrameStructure chunkFrame = chunk.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                    .getEstimatedJourneyVersionFrames().get(0);
+            assertEquals(frame.getRecordedAtTime(), chunkFrame.getRecordedAtTime());
+            assertTrue(chunkFrame.getEstimatedVehicleJourneies().size() <= 2);
+
+            for (EstimatedVehicleJourney journey : chunkFrame.getEstimatedVehicleJourneies()) {
+                // Complete journey is read
+                assertEquals(SiriXml.toXml(siriObjectFactory.createETServiceDelivery(List.of(journeys.get(journeyCount++)))).replaceAll("<ResponseTimestamp>.*</ResponseTimestamp>|<RecordedAtTime>.*</RecordedAtTime>", ""),
+                        SiriXml.toXml(siriObjectFactory.createETServiceDelivery(List.of(journey))).replaceAll("<ResponseTimestamp>.*</ResponseTimestamp>|<RecordedAtTime>.*</RecordedAtTime>", ""));
+            }
+        }
+        assertEquals(journeys.size(), journeyCount);
+    }
+
+    @Test
+    public void testReadVehicleActivitiesAndSituations() throws Exception {
+        List<VehicleActivityStructure> activities = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            activities.add(new VehicleActivityStructure());
+            activities.get(i).setRecordedAtTime(ZonedDateTime.now());
+        }
+        List<Siri> chunks = read(SiriXml.toXml(siriObjectFactory.createVMServiceDelivery(activities)), 3);
+        assertEquals(2, chunks.size());
+        assertEquals(3, chunks.get(0).getServiceDelivery().getVehicleMonitoringDeliveries().get(0).getVehicleActivities().size());
+        assertEquals(2, chunks.get(1).getServiceDelivery().getVehicleMonitoringDeliveries().get(0).getVehicleActivities().size());
+
+        PtSituationElement situation = new PtSituationElement();
+        situation.setCreationTime(ZonedDateTime.now());
+        SituationNumber situationNumber = new SituationNumber();
+        situationNumber.setValue("TST:SituationNumber:1");
+        situation.setSituationNumber(situationNumber);
+
+        chunks = read(SiriXml.toXml(siriObjectFactory.createSXServiceDelivery(List.of(situation, situation))), 10);
+        assertEquals(1, chunks.size());
+        List<PtSituationElement> situations = chunks.get(0).getServiceDelivery().getSituationExchangeDeliveries().get(0)
+                .getSituations().getPtSituationElements();
+        assertEquals(2, situations.size());
+        assertEquals("TST:SituationNumber:1", situations.get(1).getSituationNumber().getValue());
+    }
+
+    @Test
+    public void testChunksAreProcessed() throws Exception {
+        EstimatedVehicleJourney journey = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue("1");
+        journey.setLineRef(lineRef);
+        String xml = SiriXml.toXml(siriObjectFactory.createETServiceDelivery(List.of(journey, journey, journey)));
+
+        Iterator<Siri> reader = SiriChunkReader.read(new StringReader(xml), 2, chunk -> {
+            chunk.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0)
+                    .getEstimatedVehicleJourneies().forEach(j -> j.getLineRef().setValue("TST:Line:" + j.getLineRef().getValue()));
+            return chunk;
+        });
+
+        int count = 0;
+        while (reader.hasNext()) {
+            for (EstimatedVehicleJourney j : reader.next().getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                    .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies()) {
+                assertEquals("TST:Line:1", j.getLineRef().getValue());
+                count++;
+            }
+        }
+        assertEquals(3, count);
+    }
+
+    @Test
+    public void testIsServiceDelivery() throws Exception {
+        assertTrue(SiriChunkReader.isServiceDelivery(SiriXml.toXml(siriObjectFactory.createVMServiceDelivery(List.of()))));
+        assertFalse(SiriChunkReader.isServiceDelivery(SiriXml.toXml(siriObjectFactory.createHeartbeatNotification("TST"))));
+        assertFalse(SiriChunkReader.isServiceDelivery("<invalid"));
+    }
+
+    @Test
+    public void testReadIsLazy() throws Exception {
+        String xml = SiriXml.toXml(siriObjectFactory.createSXServiceDelivery(List.of(new PtSituationElement(), new PtSituationElement()))) + "<invalid";
+
+        Iterator<Siri> reader = SiriChunkReader.read(new StringReader(xml), 1, null);
+
+        // First chunk is returned before the rest of the delivery is read
+        assertTrue(reader.hasNext());
+        assertNotNull(reader.next());
+    }
+
+    private static List<Siri> read(String xml, int chunkSize) throws Exception {
+        List<Siri> result = new ArrayList<>();
+        Iterator<Siri> reader = SiriChunkReader.read(new StringReader(xml), chunkSize, null);
+        while (reader.hasNext()) {
+            result.add(reader.next());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.messaging;
+
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.VehicleActivityStructure;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SiriObjectSplitterTest {
+
+    private final SiriObjectFactory siriObjectFactory = new SiriObjectFactory(Instant.now());
+
+    @Test
+    public void testSplitEstimatedTimetables() {
+        EstimatedVehicleJourney first = new EstimatedVehicleJourney();
+        EstimatedVehicleJourney second = new EstimatedVehicleJourney();
+        Siri siri = siriObjectFactory.createETServiceDelivery(List.of(first, second));
+
+        List<Siri> split = SiriObjectSplitter.split(siri);
+
+        assertEquals(2, split.size());
+        assertSame(first, split.get(0).getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0));
+        assertSame(second, split.get(1).getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies().get(0));
+        assertEquals(siri.getServiceDelivery().getResponseTimestamp(), split.get(0).getServiceDelivery().getResponseTimestamp());
+        assertEquals(siri.getVersion(), split.get(0).getVersion());
+    }
+
+    @Test
+    public void testSplitVehicleActivitiesAndSituations() {
+        Siri vm = siriObjectFactory.createVMServiceDelivery(List.of(new VehicleActivityStructure(), new VehicleActivityStructure(), new VehicleActivityStructure()));
+        assertEquals(3, SiriObjectSplitter.split(vm).size());
+
+        PtSituationElement situation = new PtSituationElement();
+        situation.setCreationTime(ZonedDateTime.now());
+        List<Siri> split = SiriObjectSplitter.split(siriObjectFactory.createSXServiceDelivery(List.of(situation)));
+        assertEquals(1, split.size());
+        assertSame(situation, split.get(0).getServiceDelivery().getSituationExchangeDeliveries().get(0)
+                .getSituations().getPtSituationElements().get(0));
+    }
+
+    @Test
+    public void testNoServiceDelivery() {
+        assertTrue(SiriObjectSplitter.split(siriObjectFactory.createHeartbeatNotification("TST")).isEmpty());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.messaging;
+
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
+import org.entur.siri21.util.SiriXml;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
+import uk.org.siri.siri21.EstimatedVehicleJourney;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationNumber;
+import uk.org.siri.siri21.VehicleActivityStructure;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SiriXmlSplitterTest {
+
+    private final SiriObjectFactory siriObjectFactory = new SiriObjectFactory(Instant.now());
+
+    @Test
+    public void testSplitEstimatedTimetables() throws Exception {
+        Siri original;
+        try (InputStream xml = new FileInputStream("src/test/resources/siri-et-from-bnr.xml")) {
+            original = SiriXml.parseXml(xml);
+        }
+        List<EstimatedVehicleJourney> journeys = original.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+
+        List<Siri> split;
+        try (InputStream xml = new FileInputStream("src/test/resources/siri-et-from-bnr.xml")) {
+            split = split(xml);
+        }
+
+        assertEquals(journeys.size(), split.size());
+        for (int i = 0; i < split.size(); i++) {
+            Siri siri = split.get(i);
+            assertEquals("2.0", siri.getVersion());
+            assertEquals(original.getServiceDelivery().getResponseTimestamp(), siri.getServiceDelivery().getResponseTimestamp());
+            assertEquals(original.getServiceDelivery().getProducerRef().getValue(), siri.getServiceDelivery().getProducerRef().getValue());
+
+            EstimatedTimetableDeliveryStructure delivery = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0);
+            assertNotNull(delivery.getResponseTimestamp());
+            List<EstimatedVehicleJourney> splitJourneys = delivery.getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+            assertEquals(1, splitJourneys.size());
+
+            // Complete journey is copied
+            assertEquals(SiriXml.toXml(siriObjectFactory.createETServiceDelivery(List.of(journeys.get(i)))).replaceAll("<ResponseTimestamp>.*</ResponseTimestamp>|<RecordedAtTime>.*</RecordedAtTime>", ""),
+                    SiriXml.toXml(siriObjectFactory.createETServiceDelivery(splitJourneys)).replaceAll("<ResponseTimestamp>.*</ResponseTimestamp>|<RecordedAtTime>.*</RecordedAtTime>", ""));
+        }
+    }
+
+    @Test
+    public void testSplitVehicleActivitiesAndSituations() throws Exception {
+        List<VehicleActivityStructure> activities = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            activities.add(new VehicleActivityStructure());
+            activities.get(i).setRecordedAtTime(ZonedDateTime.now());
+        }
+        assertEquals(3, split(SiriXml.toXml(siriObjectFactory.createVMServiceDelivery(activities))).size());
+
+        PtSituationElement situation = new PtSituationElement();
+        situation.setCreationTime(ZonedDateTime.now());
+        SituationNumber situationNumber = new SituationNumber();
+        situationNumber.setValue("TST:SituationNumber:1");
+        situation.setSituationNumber(situationNumber);
+
+        List<Siri> split = split(SiriXml.toXml(siriObjectFactory.createSXServiceDelivery(List.of(situation, situation))));
+        assertEquals(2, split.size());
+        assertEquals("TST:SituationNumber:1", split.get(1).getServiceDelivery().getSituationExchangeDeliveries().get(0)
+                .getSituations().getPtSituationElements().get(0).getSituationNumber().getValue());
+    }
+
+    @Test
+    public void testPrefixedNamespaces() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<siri:Siri xmlns:siri=\"http://www.siri.org.uk/siri\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n" +
+                "  <siri:ServiceDelivery>\n" +
+                "    <siri:ResponseTimestamp>2016-11-10T04:27:15.9028457+01:00</siri:ResponseTimestamp>\n" +
+                "    <siri:ProducerRef>ATB</siri:ProducerRef>\n" +
+                "    <VehicleMonitoringDelivery xmlns=\"http://www.siri.org.uk/siri\" version=\"2.0\">\n" +
+                "      <ResponseTimestamp>2016-11-10T04:27:15.9028457+01:00</ResponseTimestamp>\n" +
+                "      <VehicleActivity>\n" +
+                "        <RecordedAtTime>2016-11-10T04:27:15.9028457+01:00</RecordedAtTime>\n" +
+                "        <siri:ValidUntilTime>2016-11-10T05:27:15.9028457+01:00</siri:ValidUntilTime>\n" +
+                "        <MonitoredVehicleJourney>\n" +
+                "          <LineRef>ATB:Line:1</LineRef>\n" +
+                "        </MonitoredVehicleJourney>\n" +
+                "      </VehicleActivity>\n" +
+                "    </VehicleMonitoringDelivery>\n" +
+                "  </siri:ServiceDelivery>\n" +
+                "</siri:Siri>\n";
+
+        List<Siri> split = split(xml);
+
+        assertEquals(1, split.size());
+        VehicleActivityStructure activity = split.get(0).getServiceDelivery().getVehicleMonitoringDeliveries().get(0).getVehicleActivities().get(0);
+        assertEquals("ATB", split.get(0).getServiceDelivery().getProducerRef().getValue());
+        assertNotNull(activity.getValidUntilTime());
+        assertEquals("ATB:Line:1", activity.getMonitoredVehicleJourney().getLineRef().getValue());
+    }
+
+    @Test
+    public void testNothingToSplit() throws Exception {
+        Iterator<String> splitter = SiriXmlSplitter.split(stream(SiriXml.toXml(siriObjectFactory.createHeartbeatNotification("TST"))));
+        assertFalse(splitter.hasNext());
+    }
+
+    @Test
+    public void testSplitIsLazy() throws Exception {
+        String xml = SiriXml.toXml(siriObjectFactory.createSXServiceDelivery(List.of(new PtSituationElement()))) + "<invalid";
+
+        Iterator<String> splitter = SiriXmlSplitter.split(stream(xml));
+
+        // First element is returned before the rest of the delivery is read
+        assertTrue(splitter.hasNext());
+        assertNotNull(splitter.next());
+    }
+
+    private static List<Siri> split(String xml) throws Exception {
+        return split(stream(xml));
+    }
+
+    private static List<Siri> split(InputStream xml) throws Exception {
+        List<Siri> result = new ArrayList<>();
+        Iterator<String> splitter = SiriXmlSplitter.split(xml);
+        while (splitter.hasNext()) {
+            result.add(SiriXml.parseXml(splitter.next()));
+        }
+        return result;
+    }
+
+    private static InputStream stream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import com.hazelcast.map.IMap;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import no.rutebanken.anshar.routes.siri.handlers.OutboundIdMappingPolicy;
+import no.rutebanken.anshar.subscription.SiriDataType;
+import no.rutebanken.anshar.subscription.helpers.MappingAdapterPresets;
+import org.apache.camel.ProducerTemplate;
+import org.entur.siri.validator.SiriValidator;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+import uk.org.siri.siri21.PtSituationElement;
+import uk.org.siri.siri21.ServiceDelivery;
+import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationExchangeDeliveryStructure;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+
+public class CamelRouteManagerTest {
+
+    private static final byte[] MARSHALLED = "<Siri/>".getBytes();
+
+    private CamelRouteManager camelRouteManager;
+
+    private ProducerTemplate siriMarshaller;
+
+    private ProducerTemplate siriSubscriptionProcessor;
+
+    @BeforeEach
+    public void init() {
+        siriMarshaller = Mockito.mock(ProducerTemplate.class);
+        Mockito.when(siriMarshaller.requestBodyAndHeaders(any(), anyMap())).thenReturn(MARSHALLED);
+        siriSubscriptionProcessor = Mockito.mock(ProducerTemplate.class);
+
+        SiriHelper siriHelper = Mockito.mock(SiriHelper.class);
+        Mockito.when(siriHelper.splitDeliveries(any(), ArgumentMatchers.anyInt())).thenAnswer(i -> List.of(i.getArgument(0, Siri.class)));
+
+        ServerSubscriptionManager subscriptionManager = Mockito.mock(ServerSubscriptionManager.class);
+        IMap<String, OutboundSubscriptionSetup> subscriptions = Mockito.mock(IMap.class);
+        Mockito.when(subscriptions.containsKey(any())).thenReturn(true);
+        subscriptionManager.subscriptions = subscriptions;
+
+        OutboundDispatcher dispatcher = new OutboundDispatcher();
+        ReflectionTestUtils.setField(dispatcher, "metrics", Mockito.mock(PrometheusMetricsService.class));
+        ReflectionTestUtils.setField(dispatcher, "maxConcurrentPerSubscription", 1);
+        ReflectionTestUtils.setField(dispatcher, "maxConcurrent", 10);
+        ReflectionTestUtils.setField(dispatcher, "queueCapacity", 10);
+
+        camelRouteManager = new CamelRouteManager();
+        camelRouteManager.subscriptionManager = subscriptionManager;
+        camelRouteManager.metricsService = Mockito.mock(PrometheusMetricsService.class);
+        camelRouteManager.dispatcher = dispatcher;
+        camelRouteManager.siriMarshaller = siriMarshaller;
+        camelRouteManager.siriSubscriptionProcessor = siriSubscriptionProcessor;
+        ReflectionTestUtils.setField(camelRouteManager, "siriHelper", siriHelper);
+        ReflectionTestUtils.setField(camelRouteManager, "maximumSizePerDelivery", 1000);
+    }
+
+    @Test
+    public void testIdenticalRecipientsShareMarshalledDelivery() {
+        List<OutboundSubscriptionSetup> recipients = List.of(
+                createSubscription("1", OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1),
+                createSubscription("2", OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1),
+                createSubscription("3", OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1)
+        );
+
+        camelRouteManager.pushSiriData(createSXDelivery(), recipients, false);
+
+        Mockito.verify(siriSubscriptionProcessor, Mockito.timeout(5000).times(3)).sendBodyAndHeaders(eq(MARSHALLED), anyMap());
+        Mockito.verify(siriMarshaller, Mockito.times(1)).requestBodyAndHeaders(any(), anyMap());
+    }
+
+    @Test
+    public void testRecipientsAreGroupedByVersionAndAdapters() {
+        List<OutboundSubscriptionSetup> recipients = List.of(
+                createSubscription("1", OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_1),
+                createSubscription("2", OutboundIdMappingPolicy.DEFAULT, SiriValidator.Version.VERSION_2_0),
+                createSubscription("3", OutboundIdMappingPolicy.ORIGINAL_ID, SiriValidator.Version.VERSION_2_1),
+                createSubscription("4", OutboundIdMappingPolicy.ORIGINAL_ID, SiriValidator.Version.VERSION_2_1)
+        );
+
+        camelRouteManager.pushSiriData(createSXDelivery(), recipients, false);
+
+        Mockito.verify(siriSubscriptionProcessor, Mockito.timeout(5000).times(4)).sendBodyAndHeaders(eq(MARSHALLED), anyMap());
+        Mockito.verify(siriMarshaller, Mockito.times(3)).requestBodyAndHeaders(any(), anyMap());
+    }
+
+    private OutboundSubscriptionSetup createSubscription(String subscriptionId, OutboundIdMappingPolicy policy, SiriValidator.Version version) {
+        return new OutboundSubscriptionSetup(ZonedDateTime.now(), SiriDataType.SITUATION_EXCHANGE, "http://localhost/" + subscriptionId,
+                60000, 0, Map.of(), MappingAdapterPresets.getOutboundAdapters(policy), subscriptionId, "test",
+                ZonedDateTime.now().plusHours(1), null, null, version);
+    }
+
+    private Siri createSXDelivery() {
+        SituationExchangeDeliveryStructure.Situations situations = new SituationExchangeDeliveryStructure.Situations();
+        situations.getPtSituationElements().add(new PtSituationElement());
+
+        SituationExchangeDeliveryStructure delivery = new SituationExchangeDeliveryStructure();
+        delivery.setSituations(situations);
+
+        ServiceDelivery serviceDelivery = new ServiceDelivery();
+        serviceDelivery.getSituationExchangeDeliveries().add(delivery);
+
+        Siri siri = new Siri();
+        siri.setServiceDelivery(serviceDelivery);
+        return siri;
+    }
+}
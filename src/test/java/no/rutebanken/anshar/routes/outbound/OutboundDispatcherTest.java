@@ -0,0 +1,138 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundDispatcherTest {
+
+    private OutboundDispatcher dispatcher;
+
+    private PrometheusMetricsService metrics;
+
+    private final CountDownLatch blocked = new CountDownLatch(1);
+
+    private final List<String> pushed = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void init() {
+        metrics = Mockito.mock(PrometheusMetricsService.class);
+
+        dispatcher = new OutboundDispatcher();
+        ReflectionTestUtils.setField(dispatcher, "metrics", metrics);
+        ReflectionTestUtils.setField(dispatcher, "maxConcurrentPerSubscription", 1);
+        ReflectionTestUtils.setField(dispatcher, "maxConcurrent", 2);
+        ReflectionTestUtils.setField(dispatcher, "queueCapacity", 3);
+    }
+
+    @AfterEach
+    public void shutdown() {
+        blocked.countDown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testConcurrencyIsLimitedPerSubscription() {
+        for (int i = 0; i < 3; i++) {
+            dispatcher.submit("slow", null, this::block);
+        }
+
+        assertEquals(1, (int) dispatcher.getInFlight().get("slow"));
+        assertEquals(2, (int) dispatcher.getQueueDepths().get("slow"));
+
+        // Other subscriptions are not held back by the slow subscription
+        dispatcher.submit("fast", null, () -> pushed.add("fast"));
+        Mockito.verify(metrics, Mockito.timeout(5000)).registerOutboundPush(Mockito.eq("fast"), Mockito.anyLong(), Mockito.anyLong());
+        assertEquals(List.of("fast"), pushed);
+    }
+
+    @Test
+    public void testConcurrencyIsLimitedInTotal() {
+        dispatcher.submit("1", null, this::block);
+        dispatcher.submit("2", null, this::block);
+        dispatcher.submit("3", null, () -> pushed.add("3"));
+
+        assertEquals(0, (int) dispatcher.getInFlight().get("3"));
+        assertEquals(1, (int) dispatcher.getQueueDepths().get("3"));
+
+        blocked.countDown();
+        Mockito.verify(metrics, Mockito.timeout(5000)).registerOutboundPush(Mockito.eq("3"), Mockito.anyLong(), Mockito.anyLong());
+    }
+
+    @Test
+    public void testOldestPushIsDroppedWhenQueueIsFull() {
+        dispatcher.submit("slow", null, this::block);
+        for (int i = 0; i < 4; i++) {
+            String push = "push-" + i;
+            dispatcher.submit("slow", null, () -> pushed.add(push));
+        }
+        assertEquals(3, (int) dispatcher.getQueueDepths().get("slow"));
+        Mockito.verify(metrics).registerDroppedOutboundPush("slow", "queueFull");
+
+        blocked.countDown();
+        Mockito.verify(metrics, Mockito.timeout(5000).times(4)).registerOutboundPush(Mockito.eq("slow"), Mockito.anyLong(), Mockito.anyLong());
+        assertEquals(List.of("push-1", "push-2", "push-3"), pushed);
+    }
+
+    @Test
+    public void testQueuedPushIsCoalesced() {
+        dispatcher.submit("slow", null, this::block);
+        dispatcher.submit("slow", "heartbeat", () -> pushed.add("heartbeat-1"));
+        dispatcher.submit("slow", null, () -> pushed.add("data"));
+        dispatcher.submit("slow", "heartbeat", () -> pushed.add("heartbeat-2"));
+
+        assertEquals(2, (int) dispatcher.getQueueDepths().get("slow"));
+        Mockito.verify(metrics).registerDroppedOutboundPush("slow", "coalesced");
+
+        blocked.countDown();
+        Mockito.verify(metrics, Mockito.timeout(5000).times(3)).registerOutboundPush(Mockito.eq("slow"), Mockito.anyLong(), Mockito.anyLong());
+        assertEquals(List.of("data", "heartbeat-2"), pushed);
+    }
+
+    @Test
+    public void testPushAfterShutdownIsReleased() {
+        dispatcher.submit("1", null, () -> pushed.add("before"));
+        Mockito.verify(metrics, Mockito.timeout(5000)).registerOutboundPush(Mockito.eq("1"), Mockito.anyLong(), Mockito.anyLong());
+
+        dispatcher.shutdown();
+        dispatcher.submit("1", null, () -> pushed.add("after"));
+        dispatcher.submit("2", null, () -> pushed.add("after"));
+
+        assertTrue(dispatcher.getInFlight().isEmpty());
+        assertEquals(List.of("before"), pushed);
+    }
+
+    private void block() {
+        try {
+            assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import com.sun.net.httpserver.HttpServer;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundHttpClientTest {
+
+    private static final byte[] BODY = "<Siri/>".getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer server;
+
+    private OutboundHttpClient httpClient;
+
+    private PrometheusMetricsService metrics;
+
+    private final List<String> received = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void init() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/ok", exchange -> {
+            received.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.createContext("/error", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] response = "Failed".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(500, response.length);
+            exchange.getResponseBody().write(response);
+            exchange.close();
+        });
+        server.start();
+
+        metrics = Mockito.mock(PrometheusMetricsService.class);
+
+        httpClient = new OutboundHttpClient();
+        ReflectionTestUtils.setField(httpClient, "metrics", metrics);
+        ReflectionTestUtils.setField(httpClient, "socketTimeout", 5000);
+        ReflectionTestUtils.setField(httpClient, "connectTimeout", 5000);
+        ReflectionTestUtils.setField(httpClient, "maxRequests", 10);
+        ReflectionTestUtils.setField(httpClient, "maxRequestsPerHost", 2);
+        ReflectionTestUtils.setField(httpClient, "maxIdleConnections", 5);
+        ReflectionTestUtils.setField(httpClient, "keepAliveSeconds", 60);
+        httpClient.init();
+    }
+
+    @AfterEach
+    public void shutdown() {
+        httpClient.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        OutboundPushTimings first = httpClient.post("1", getUrl("/ok"), BODY, "application/xml");
+        assertEquals(200, first.getStatusCode());
+        assertEquals("http/1.1", first.getProtocol());
+        assertTrue(first.getQueueMillis() >= 0);
+        assertTrue(first.getConnectMillis() >= 0);
+        assertEquals(-1, first.getTlsMillis());
+        assertTrue(first.getFirstByteMillis() >= 0);
+        assertTrue(first.getTotalMillis() >= first.getFirstByteMillis());
+
+        OutboundPushTimings second = httpClient.post("1", getUrl("/ok"), BODY, "application/xml");
+        assertEquals(200, second.getStatusCode());
+        assertEquals(-1, second.getConnectMillis());
+
+        assertEquals(List.of("<Siri/>", "<Siri/>"), received);
+        Mockito.verify(metrics).registerOutboundHttpTimings("1", first);
+        Mockito.verify(metrics).registerOutboundHttpTimings("1", second);
+    }
+
+    @Test
+    public void testFailedResponse() {
+        HttpOperationFailedException e = assertThrows(HttpOperationFailedException.class,
+                () -> httpClient.post("1", getUrl("/error"), BODY, "application/xml"));
+
+        assertEquals(500, e.getStatusCode());
+        assertEquals("Failed", e.getResponseBody());
+        Mockito.verify(metrics).registerOutboundHttpTimings(Mockito.eq("1"), Mockito.argThat(timings -> timings.getStatusCode() == 500));
+    }
+
+    @Test
+    public void testUnreachableConsumer() {
+        String url = getUrl("/ok");
+        server.stop(0);
+
+        assertThrows(IOException.class, () -> httpClient.post("1", url, BODY, "application/xml"));
+        Mockito.verify(metrics).registerOutboundHttpTimings(Mockito.eq("1"), Mockito.argThat(timings -> timings.getStatusCode() == -1));
+    }
+
+    private String getUrl(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.junit.jupiter.api.Test;
+import uk.org.siri.siri21.LineRef;
+import uk.org.siri.siri21.VehicleRef;
+
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class OutboundSubscriptionRoutingTableTest {
+
+    private final OutboundSubscriptionRoutingTable routingTable = new OutboundSubscriptionRoutingTable();
+
+    @Test
+    public void testRecipientsByTypeAndDataset() {
+        routingTable.put(createSubscription("all", SiriDataType.ESTIMATED_TIMETABLE, null, Map.of()));
+        routingTable.put(createSubscription("tst", SiriDataType.ESTIMATED_TIMETABLE, "TST", Map.of()));
+        routingTable.put(createSubscription("rut", SiriDataType.ESTIMATED_TIMETABLE, "RUT", Map.of()));
+        routingTable.put(createSubscription("vm", SiriDataType.VEHICLE_MONITORING, null, Map.of()));
+
+        assertEquals(Set.of("all", "tst"), findRecipients(SiriDataType.ESTIMATED_TIMETABLE, "TST", Set.of(), Set.of()));
+        assertEquals(Set.of("all"), findRecipients(SiriDataType.ESTIMATED_TIMETABLE, null, Set.of(), Set.of()));
+        assertEquals(Set.of("vm"), findRecipients(SiriDataType.VEHICLE_MONITORING, "TST", Set.of(), Set.of()));
+        assertEquals(Set.of(), findRecipients(SiriDataType.SITUATION_EXCHANGE, "TST", Set.of(), Set.of()));
+    }
+
+    @Test
+    public void testLineFilteredRecipients() {
+        routingTable.put(createSubscription("line1", SiriDataType.ESTIMATED_TIMETABLE, null, Map.of(LineRef.class, Set.of("TST:Line:1"))));
+        routingTable.put(createSubscription("line2", SiriDataType.ESTIMATED_TIMETABLE, "TST", Map.of(LineRef.class, Set.of("TST:Line:2"))));
+        routingTable.put(createSubscription("vehicle", SiriDataType.ESTIMATED_TIMETABLE, null, Map.of(VehicleRef.class, Set.of("1234"))));
+
+        assertEquals(Set.of("line1"), findRecipients(SiriDataType.ESTIMATED_TIMETABLE, "TST", Set.of("TST:Line:1"), Set.of()));
+        assertEquals(Set.of("line1", "line2"), findRecipients(SiriDataType.ESTIMATED_TIMETABLE, "TST", Set.of("TST:Line:1", "TST:Line:2"), Set.of()));
+        assertEquals(Set.of(), findRecipients(SiriDataType.ESTIMATED_TIMETABLE, "RUT", Set.of("TST:Line:2"), Set.of()));
+        assertEquals(Set.of("vehicle"), findRecipients(SiriDataType.ESTIMATED_TIMETABLE, "TST", Set.of("TST:Line:3"), Set.of("1234")));
+    }
+
+    @Test
+    public void testSituationSubscriptionsAreNotIndexedOnLines() {
+        // SX-filters match on any affected line, so the filter is applied to every delivery
+        routingTable.put(createSubscription("sx", SiriDataType.SITUATION_EXCHANGE, null, Map.of(LineRef.class, Set.of("TST:Line:1"))));
+
+        assertEquals(Set.of("sx"), findRecipients(SiriDataType.SITUATION_EXCHANGE, "TST", Set.of(), Set.of()));
+    }
+
+    @Test
+    public void testUpdateAndRemove() {
+        routingTable.put(createSubscription("1", SiriDataType.ESTIMATED_TIMETABLE, null, Map.of(LineRef.class, Set.of("TST:Line:1"))));
+        routingTable.put(createSubscription("1", SiriDataType.ESTIMATED_TIMETABLE, null, Map.of(LineRef.class, Set.of("TST:Line:2"))));
+
+        assertEquals(Set.of(), findRecipients(SiriDataType.ESTIMATED_TIMETABLE, "TST", Set.of("TST:Line:1"), Set.of()));
+        assertEquals(Set.of("1"), findRecipients(SiriDataType.ESTIMATED_TIMETABLE, "TST", Set.of("TST:Line:2"), Set.of()));
+
+        routingTable.remove("1");
+        assertEquals(Set.of(), findRecipients(SiriDataType.ESTIMATED_TIMETABLE, "TST", Set.of("TST:Line:2"), Set.of()));
+        assertEquals(0, routingTable.size());
+    }
+
+    private Set<String> findRecipients(SiriDataType dataType, String datasetId, Set<String> lineRefs, Set<String> vehicleRefs) {
+        return routingTable.findRecipients(dataType, datasetId, lineRefs, vehicleRefs)
+                .stream()
+                .map(OutboundSubscriptionSetup::getSubscriptionId)
+                .collect(Collectors.toSet());
+    }
+
+    private OutboundSubscriptionSetup createSubscription(String subscriptionId, SiriDataType dataType, String datasetId, Map<Class, Set<String>> filterMap) {
+        return new OutboundSubscriptionSetup(ZonedDateTime.now(), dataType, "http://localhost/" + subscriptionId,
+                60000, 0, filterMap, List.of(), subscriptionId, "test",
+                ZonedDateTime.now().plusHours(1), datasetId, null, null);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.outbound;
+
+import no.rutebanken.anshar.subscription.SiriDataType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundUpdateCoalescerTest {
+
+    private static final Function<String, Object> KEY = update -> update.split("=")[0];
+
+    private final List<List<Object>> deliveries = new ArrayList<>();
+
+    private ScheduledExecutorService scheduler;
+
+    private OutboundUpdateCoalescer coalescer;
+
+    @BeforeEach
+    public void init() {
+        scheduler = Mockito.mock(ScheduledExecutorService.class);
+        coalescer = new OutboundUpdateCoalescer((subscription, updates) -> deliveries.add(updates), scheduler);
+    }
+
+    @Test
+    public void testUpdatesWithinWindowAreMerged() {
+        OutboundSubscriptionSetup subscription = createSubscription("1", 500);
+
+        coalescer.add(subscription, List.of("a=1", "b=1"), KEY);
+        coalescer.add(subscription, List.of("a=2"), KEY);
+        coalescer.add(subscription, List.of("c=1", "b=2"), KEY);
+        assertEquals(3, (int) coalescer.getPendingUpdates().get("1"));
+        assertTrue(deliveries.isEmpty());
+
+        List<Runnable> windows = getScheduledWindows(500);
+        assertEquals(1, windows.size());
+
+        windows.get(0).run();
+        assertEquals(List.of(List.of("a=2", "c=1", "b=2")), deliveries);
+        assertTrue(coalescer.getPendingUpdates().isEmpty());
+    }
+
+    @Test
+    public void testNewWindowIsOpenedAfterDelivery() {
+        OutboundSubscriptionSetup subscription = createSubscription("1", 100);
+
+        coalescer.add(subscription, List.of("a=1"), KEY);
+        getScheduledWindows(100).get(0).run();
+
+        coalescer.add(subscription, List.of("a=2"), KEY);
+        List<Runnable> windows = getScheduledWindows(100);
+        assertEquals(2, windows.size());
+        windows.get(1).run();
+
+        assertEquals(List.of(List.of("a=1"), List.of("a=2")), deliveries);
+    }
+
+    @Test
+    public void testRemovedSubscriptionIsNotDelivered() {
+        OutboundSubscriptionSetup removed = createSubscription("removed", 100);
+        OutboundSubscriptionSetup other = createSubscription("other", 100);
+
+        coalescer.add(removed, List.of("a=1"), KEY);
+        coalescer.add(other, List.of("b=1"), KEY);
+        coalescer.remove("removed");
+
+        getScheduledWindows(100).forEach(Runnable::run);
+        assertEquals(List.of(List.of("b=1")), deliveries);
+    }
+
+    /**
+     * @return tasks scheduled to close windows, in the order they were scheduled
+     */
+    private List<Runnable> getScheduledWindows(long changeBeforeUpdates) {
+        ArgumentCaptor<Runnable> tasks = ArgumentCaptor.forClass(Runnable.class);
+        Mockito.verify(scheduler, Mockito.atLeastOnce()).schedule(tasks.capture(), Mockito.eq(changeBeforeUpdates), Mockito.eq(TimeUnit.MILLISECONDS));
+        return tasks.getAllValues();
+    }
+
+    private OutboundSubscriptionSetup createSubscription(String subscriptionId, long changeBeforeUpdates) {
+        return new OutboundSubscriptionSetup(ZonedDateTime.now(), SiriDataType.ESTIMATED_TIMETABLE, "http://localhost/" + subscriptionId,
+                60000, changeBeforeUpdates, Map.of(), List.of(), subscriptionId, "test",
+                ZonedDateTime.now().plusHours(1), null, null, null);
+    }
+}
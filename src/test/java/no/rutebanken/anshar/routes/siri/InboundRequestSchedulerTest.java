@@ -0,0 +1,142 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri;
+
+import no.rutebanken.anshar.config.AnsharConfiguration;
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import no.rutebanken.anshar.subscription.SubscriptionManager;
+import no.rutebanken.anshar.subscription.SubscriptionSetup;
+import org.apache.camel.ProducerTemplate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static no.rutebanken.anshar.routes.siri.InboundRequestScheduler.Admission.ACCEPTED;
+import static no.rutebanken.anshar.routes.siri.InboundRequestScheduler.Admission.BACKLOG_FULL;
+import static no.rutebanken.anshar.routes.siri.InboundRequestScheduler.Admission.SUBSCRIPTION_BACKLOG_FULL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class InboundRequestSchedulerTest {
+
+    private static final String LARGE_BODY = "x".repeat(InboundRequestScheduler.QUANTUM_BYTES + 1);
+
+    private InboundRequestScheduler scheduler;
+
+    private AnsharConfiguration configuration;
+
+    private SubscriptionManager subscriptionManager;
+
+    @BeforeEach
+    public void init() {
+        configuration = Mockito.mock(AnsharConfiguration.class);
+        Mockito.when(configuration.getInboundQueueMaxBacklog()).thenReturn(10);
+        Mockito.when(configuration.getInboundQueueMaxBacklogPerSubscription()).thenReturn(5);
+        subscriptionManager = Mockito.mock(SubscriptionManager.class);
+
+        scheduler = new InboundRequestScheduler();
+        ReflectionTestUtils.setField(scheduler, "configuration", configuration);
+        ReflectionTestUtils.setField(scheduler, "subscriptionManager", subscriptionManager);
+    }
+
+    @Test
+    public void testBacklogIsBounded() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(ACCEPTED, scheduler.offer("flooding", "<Siri/>", Map.of()));
+        }
+        assertEquals(SUBSCRIPTION_BACKLOG_FULL, scheduler.offer("flooding", "<Siri/>", Map.of()));
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(ACCEPTED, scheduler.offer("other-" + i, "<Siri/>", Map.of()));
+        }
+        assertEquals(BACKLOG_FULL, scheduler.offer("another", "<Siri/>", Map.of()));
+
+        assertEquals(5, scheduler.getQueueDepths().get("flooding"));
+        assertEquals(1, scheduler.getQueueDepths().get("other-0"));
+    }
+
+    @Test
+    public void testSubscriptionsAreServedInTurn() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            scheduler.offer("flooding", LARGE_BODY, Map.of());
+        }
+        scheduler.offer("other", LARGE_BODY, Map.of());
+
+        assertEquals(List.of("flooding", "other", "flooding", "flooding", "flooding"), take(5));
+        // Idle queues are removed
+        assertTrue(scheduler.getQueueDepths().isEmpty());
+    }
+
+    @Test
+    public void testSubscriptionsAreServedByWeight() throws InterruptedException {
+        SubscriptionSetup heavy = new SubscriptionSetup();
+        heavy.setInboundWeight(3);
+        Mockito.when(subscriptionManager.get("heavy")).thenReturn(heavy);
+
+        for (int i = 0; i < 5; i++) {
+            scheduler.offer("light", LARGE_BODY, Map.of());
+            scheduler.offer("heavy", LARGE_BODY, Map.of());
+        }
+
+        List<String> served = take(4);
+        assertEquals(3, served.stream().filter("heavy"::equals).count());
+        assertEquals(1, served.stream().filter("light"::equals).count());
+    }
+
+    @Test
+    public void testSmallDeliveriesAreNotStarved() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            scheduler.offer("large", LARGE_BODY + LARGE_BODY, Map.of());
+        }
+        scheduler.offer("small", "<Siri/>", Map.of());
+
+        List<String> served = take(2);
+        assertEquals("small", served.get(0));
+    }
+
+    @Test
+    public void testAcceptedDeliveriesAreProcessedOnShutdown() throws InterruptedException {
+        Mockito.when(configuration.getInboundQueueWorkers()).thenReturn(1);
+        ProducerTemplate asyncRequestProcessor = Mockito.mock(ProducerTemplate.class);
+        Mockito.doAnswer(i -> {
+            Thread.sleep(50);
+            return null;
+        }).when(asyncRequestProcessor).sendBodyAndHeaders(Mockito.any(), Mockito.anyMap());
+        scheduler.asyncRequestProcessor = asyncRequestProcessor;
+        ReflectionTestUtils.setField(scheduler, "metrics", Mockito.mock(PrometheusMetricsService.class));
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(ACCEPTED, scheduler.submit("subscription", "<Siri/>", Map.of()));
+        }
+        scheduler.shutdown();
+
+        Mockito.verify(asyncRequestProcessor, Mockito.times(5)).sendBodyAndHeaders(Mockito.any(), Mockito.anyMap());
+        assertEquals(BACKLOG_FULL, scheduler.submit("subscription", "<Siri/>", Map.of()));
+    }
+
+    private List<String> take(int count) throws InterruptedException {
+        List<String> served = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            served.add(scheduler.take().getSubscriptionId());
+        }
+        return served;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed under the EUPL, Version 1.2 or – as soon they will be approved by
+ * the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ *   https://joinup.ec.europa.eu/software/page/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and
+ * limitations under the Licence.
+ */
+
+package no.rutebanken.anshar.routes.siri.helpers;
+
+import no.rutebanken.anshar.metrics.PrometheusMetricsService;
+import no.rutebanken.anshar.subscription.SubscriptionSetup;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.converter.stream.InputStreamCache;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConditionalPollingFilterTest {
+
+    private static final byte[] CONTENT = "<Siri><ServiceDelivery/></Siri>".getBytes(StandardCharsets.UTF_8);
+
+    private final CamelContext context = new DefaultCamelContext();
+
+    private final SubscriptionSetup subscriptionSetup = new SubscriptionSetup();
+
+    private final PrometheusMetricsService metrics = Mockito.mock(PrometheusMetricsService.class);
+
+    @Test
+    public void testIdenticalResponseIsUnchanged() {
+        ConditionalPollingFilter filter = new ConditionalPollingFilter(subscriptionSetup, metrics, true);
+
+        assertFalse(isUnchangedAndProcess(filter, response(200, new InputStreamCache(CONTENT))));
+        assertTrue(filter.isUnchanged(response(200, new String(CONTENT, StandardCharsets.UTF_8))));
+        assertFalse(filter.isUnchanged(response(200, "<Siri/>")));
+
+        Mockito.verify(metrics, Mockito.times(1)).registerUnchangedPollingResponse(subscriptionSetup, "hash");
+    }
+
+    @Test
+    public void testResponseIsReadableAfterHashing() {
+        ConditionalPollingFilter filter = new ConditionalPollingFilter(subscriptionSetup, metrics, true);
+
+        Exchange cached = response(200, new InputStreamCache(CONTENT));
+        isUnchangedAndProcess(filter, cached);
+        assertArrayEquals(CONTENT, cached.getIn().getBody(byte[].class));
+
+        Exchange stream = response(200, new ByteArrayInputStream(CONTENT));
+        assertTrue(filter.isUnchanged(stream));
+        assertArrayEquals(CONTENT, stream.getIn().getBody(byte[].class));
+    }
+
+    @Test
+    public void testConditionalHeaders() throws Exception {
+        ConditionalPollingFilter filter = new ConditionalPollingFilter(subscriptionSetup, metrics, true);
+
+        Exchange request = new DefaultExchange(context);
+        filter.addConditionalHeaders().process(request);
+        assertNull(request.getIn().getHeader("If-None-Match"));
+        assertNull(request.getIn().getHeader("If-Modified-Since"));
+
+        Exchange response = response(200, CONTENT);
+        response.getIn().setHeader("ETag", "\"1234\"");
+        response.getIn().setHeader("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT");
+        filter.isUnchanged(response);
+
+        // Not remembered until the response has been processed
+        filter.addConditionalHeaders().process(request);
+        assertNull(request.getIn().getHeader("If-None-Match"));
+
+        filter.processed(response);
+        filter.addConditionalHeaders().process(request);
+        assertEquals("\"1234\"", request.getIn().getHeader("If-None-Match"));
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", request.getIn().getHeader("If-Modified-Since"));
+
+        assertTrue(filter.isUnchanged(response(304, null)));
+        Mockito.verify(metrics).registerUnchangedPollingResponse(subscriptionSetup, "notModified");
+    }
+
+    @Test
+    public void testResetProcessesNextResponse() {
+        ConditionalPollingFilter filter = new ConditionalPollingFilter(subscriptionSetup, metrics, true);
+
+        assertFalse(isUnchangedAndProcess(filter, response(200, CONTENT)));
+        filter.reset();
+        assertFalse(isUnchangedAndProcess(filter, response(200, CONTENT)));
+        assertTrue(filter.isUnchanged(response(200, CONTENT)));
+    }
+
+    @Test
+    public void testUnprocessedResponseIsNotRemembered() {
+        ConditionalPollingFilter filter = new ConditionalPollingFilter(subscriptionSetup, metrics, true);
+
+        // E.g. processing failed after the response was received
+        assertFalse(filter.isUnchanged(response(200, CONTENT)));
+        assertFalse(isUnchangedAndProcess(filter, response(200, CONTENT)));
+        assertTrue(filter.isUnchanged(response(200, CONTENT)));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        ConditionalPollingFilter filter = new ConditionalPollingFilter(subscriptionSetup, metrics, false);
+
+        Exchange response = response(200, CONTENT);
+        response.getIn().setHeader("ETag", "\"1234\"");
+        assertFalse(filter.isUnchanged(response));
+        assertFalse(filter.isUnchanged(response(200, CONTENT)));
+
+        Exchange request = new DefaultExchange(context);
+        filter.addConditionalHeaders().process(request);
+        assertNull(request.getIn().getHeader("If-None-Match"));
+
+        Mockito.verifyNoInteractions(metrics);
+    }
+
+    private static boolean isUnchangedAndProcess(ConditionalPollingFilter filter, Exchange response) {
+        boolean unchanged = filter.isUnchanged(response);
+        filter.processed(response);
+        return unchanged;
+    }
+
+    private Exchange response(int responseCode, Object body) {
+        Exchange exchange = new DefaultExchange(context);
+        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, responseCode);
+        exchange.getIn().setBody(body);
+        return exchange;
+    }
+}
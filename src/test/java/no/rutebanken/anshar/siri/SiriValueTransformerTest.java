@@ -26,6 +26,7 @@ import no.rutebanken.anshar.subscription.helpers.MappingAdapterPresets;
 import org.junit.jupiter.api.Test;
 import uk.org.siri.siri21.BlockRefStructure;
 import uk.org.siri.siri21.DestinationRef;
+import uk.org.siri.siri21.EstimatedCall;
 import uk.org.siri.siri21.EstimatedTimetableDeliveryStructure;
 import uk.org.siri.siri21.EstimatedVehicleJourney;
 import uk.org.siri.siri21.EstimatedVersionFrameStructure;
@@ -33,16 +34,20 @@ import uk.org.siri.siri21.JourneyPlaceRefStructure;
 import uk.org.siri.siri21.LineRef;
 import uk.org.siri.siri21.ServiceDelivery;
 import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.StopPointRefStructure;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
 import static no.rutebanken.anshar.routes.siri.transformer.SiriValueTransformer.SEPARATOR;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 public class SiriValueTransformerTest extends SpringBootBaseTest {
 
@@ -244,6 +249,77 @@ public class SiriValueTransformerTest extends SpringBootBaseTest {
 
     }
 
+    @Test
+    public void testNestedValuesInAllJourneys() {
+        Siri siri = createSiriObject("99", null);
+        EstimatedVersionFrameStructure frame = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0);
+
+        EstimatedVehicleJourney secondJourney = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue("98");
+        secondJourney.setLineRef(lineRef);
+        frame.getEstimatedVehicleJourneies().add(secondJourney);
+
+        for (EstimatedVehicleJourney journey : frame.getEstimatedVehicleJourneies()) {
+            journey.setEstimatedCalls(new EstimatedVehicleJourney.EstimatedCalls());
+            for (int i = 1; i <= 3; i++) {
+                StopPointRefStructure stopPointRef = new StopPointRefStructure();
+                stopPointRef.setValue("" + i);
+                EstimatedCall call = new EstimatedCall();
+                call.setStopPointRef(stopPointRef);
+                journey.getEstimatedCalls().getEstimatedCalls().add(call);
+            }
+        }
+
+        List<ValueAdapter> mappingAdapters = new ArrayList<>();
+        mappingAdapters.add(new LeftPaddingAdapter(LineRef.class, 4, '0'));
+        mappingAdapters.add(new LeftPaddingAdapter(StopPointRefStructure.class, 3, '0'));
+
+        siri = SiriValueTransformer.transform(siri, mappingAdapters);
+
+        List<EstimatedVehicleJourney> journeys = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+
+        assertEquals("0099", journeys.get(0).getLineRef().getValue());
+        assertEquals("0098", journeys.get(1).getLineRef().getValue());
+        for (EstimatedVehicleJourney journey : journeys) {
+            List<EstimatedCall> calls = journey.getEstimatedCalls().getEstimatedCalls();
+            for (int i = 0; i < calls.size(); i++) {
+                assertEquals((i + 1) + SEPARATOR + "00" + (i + 1), calls.get(i).getStopPointRef().getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testUnalteredObjectsAreShared() {
+        Siri siri = createSiriObject("99", null);
+        siri.getServiceDelivery().setResponseTimestamp(ZonedDateTime.now());
+        EstimatedVersionFrameStructure frame = siri.getServiceDelivery().getEstimatedTimetableDeliveries().get(0).getEstimatedJourneyVersionFrames().get(0);
+
+        EstimatedVehicleJourney unalteredJourney = new EstimatedVehicleJourney();
+        LineRef lineRef = new LineRef();
+        lineRef.setValue("1234");
+        unalteredJourney.setLineRef(lineRef);
+        frame.getEstimatedVehicleJourneies().add(unalteredJourney);
+
+        List<ValueAdapter> mappingAdapters = new ArrayList<>();
+        mappingAdapters.add(new LeftPaddingAdapter(LineRef.class, 4, '0'));
+
+        Siri transformed = SiriValueTransformer.transform(siri, mappingAdapters);
+
+        List<EstimatedVehicleJourney> journeys = transformed.getServiceDelivery().getEstimatedTimetableDeliveries().get(0)
+                .getEstimatedJourneyVersionFrames().get(0).getEstimatedVehicleJourneies();
+
+        assertNotSame(siri, transformed);
+        assertEquals("0099", journeys.get(0).getLineRef().getValue());
+        assertEquals("99", getLineRefFromSiriObj(siri), "Original Lineref has been altered");
+        assertSame(unalteredJourney, journeys.get(1));
+        assertSame(siri.getServiceDelivery().getResponseTimestamp(), transformed.getServiceDelivery().getResponseTimestamp());
+
+        // Nothing to alter - nothing is copied
+        assertSame(transformed, SiriValueTransformer.transform(transformed, mappingAdapters));
+    }
+
     private Siri createSiriObject(String lineRefValue, String blockRefValue) {
         return createSiriObject(lineRefValue, blockRefValue, null, null);
     }
@@ -16,21 +16,29 @@
 package no.rutebanken.anshar.siri.handler;
 
 import jakarta.xml.bind.JAXBException;
+import no.rutebanken.anshar.data.Situations;
 import no.rutebanken.anshar.integration.SpringBootBaseTest;
 import no.rutebanken.anshar.routes.siri.handlers.SiriHandler;
+import no.rutebanken.anshar.routes.siri.helpers.SiriObjectFactory;
 import no.rutebanken.anshar.subscription.SiriDataType;
 import no.rutebanken.anshar.subscription.SubscriptionManager;
 import no.rutebanken.anshar.subscription.SubscriptionSetup;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import uk.org.siri.siri21.HalfOpenTimestampOutputRangeStructure;
+import uk.org.siri.siri21.PtSituationElement;
 import uk.org.siri.siri21.Siri;
+import uk.org.siri.siri21.SituationNumber;
 
 import java.io.ByteArrayInputStream;
 import java.time.Duration;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.fail;
 
 public class SiriHandlerTest extends SpringBootBaseTest {
@@ -41,6 +49,12 @@ public class SiriHandlerTest extends SpringBootBaseTest {
     @Autowired
     private SiriHandler handler;
 
+    @Autowired
+    private Situations situations;
+
+    @Autowired
+    private SiriObjectFactory siriObjectFactory;
+
     @Test
     public void testErrorInSXServiceDelivery() throws JAXBException {
         String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
@@ -131,6 +145,41 @@ public class SiriHandlerTest extends SpringBootBaseTest {
 
 
 
+    @Test
+    public void testMultipleCodespacesInSXServiceDelivery() {
+        SubscriptionSetup sxSubscription = getSxSubscription();
+        sxSubscription.setUseProvidedCodespaceId(true);
+        subscriptionManager.addSubscription(sxSubscription.getSubscriptionId(), sxSubscription);
+
+        List<PtSituationElement> elements = new ArrayList<>();
+        for (String codespace : List.of("AAA", "BBB", "CCC", "AAA", "DDD", "AAA")) {
+            elements.add(createPtSituationElement(codespace, codespace + ":SituationNumber:" + elements.size()));
+        }
+
+        handler.handleIncomingSiri(sxSubscription.getSubscriptionId(), siriObjectFactory.createSXServiceDelivery(elements), 0);
+
+        assertEquals(3, situations.getAll("AAA").size());
+        assertEquals(1, situations.getAll("BBB").size());
+        assertEquals(1, situations.getAll("CCC").size());
+        assertEquals(1, situations.getAll("DDD").size());
+    }
+
+    private PtSituationElement createPtSituationElement(String participantRef, String situationNumber) {
+        PtSituationElement element = new PtSituationElement();
+        element.setCreationTime(ZonedDateTime.now());
+        element.setParticipantRef(SiriObjectFactory.createRequestorRef(participantRef));
+
+        SituationNumber sn = new SituationNumber();
+        sn.setValue(situationNumber);
+        element.setSituationNumber(sn);
+
+        HalfOpenTimestampOutputRangeStructure period = new HalfOpenTimestampOutputRangeStructure();
+        period.setStartTime(ZonedDateTime.now().minusHours(1));
+        period.setEndTime(ZonedDateTime.now().plusHours(1));
+        element.getValidityPeriods().add(period);
+        return element;
+    }
+
     private SubscriptionSetup getSxSubscription() {
         return getSubscriptionSetup(SiriDataType.SITUATION_EXCHANGE);
     }